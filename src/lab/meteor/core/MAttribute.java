@@ -34,15 +34,16 @@ public class MAttribute extends MProperty {
 		this.type = type;
 		link();
 		
-		MDatabase.getDB().createElement(this);
+		database.createElement(this);
 	}
 	
 	/**
 	 * Create a "lazy" attribute element with id.
+	 * @param db The database.
 	 * @param id ID of element.
 	 */
-	protected MAttribute(long id) {
-		super(id, MElementType.Attribute);
+	protected MAttribute(MDatabase db, long id) {
+		super(db, id, MElementType.Attribute);
 	}
 	
 	/*
@@ -136,7 +137,7 @@ public class MAttribute extends MProperty {
 		MClass cls = this.clazz;
 		String name = this.name;
 		if (dbInfo.isFlagged(ATTRIB_FLAG_PARENT))
-			cls = MDatabase.getDB().getClass(atbDBInfo.class_id);
+			cls = database.getClass(atbDBInfo.class_id);
 		if (dbInfo.isFlagged(ATTRIB_FLAG_NAME))
 			name = atbDBInfo.name;
 		if (cls != null && name != null && cls.hasProperty(name) && cls.getAttribute(name) != this)
@@ -156,7 +157,7 @@ public class MAttribute extends MProperty {
 		if (dbInfo.isFlagged(ATTRIB_FLAG_DATATYPE)) {
 			if (atbDBInfo.type_id.charAt(0) == MElement.ID_PREFIX) {
 				long id = MUtility.parseID(atbDBInfo.type_id.substring(1));
-				this.type = MDatabase.getDB().getEnum(id);
+				this.type = database.getEnum(id);
 			} else {
 				this.type = MPrimitiveType.getPrimitiveType(atbDBInfo.type_id);
 			}
@@ -0,0 +1,324 @@
+package lab.meteor.core;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The resource budget of a piece of work, such as a script task. While a budget is
+ * entered by a thread, the database charges it for the objects loaded, the round trips
+ * to storage and the elements changed by the thread, and checks it at each of them. When
+ * a limit is exceeded, the budget is canceled or the time is out, the next check throws
+ * a <code>MException</code> with reason <code>BUDGET_EXCEEDED</code>, and the work is
+ * aborted there.
+ * <p>
+ * A limit of <code>0</code> means unlimited. The checks are cooperative, so a work which
+ * never touches the database is only stopped when it touches it again.
+ * <pre>
+ * MBudget budget = new MBudget().timeout(10000).maxObjects(100000);
+ * MBudget.Scope scope = budget.enter();
+ * try {
+ *     ...
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ */
+public class MBudget {
+
+	/**
+	 * The limits of a budget.
+	 */
+	public static enum Limit {
+		/**
+		 * The wall-clock time since the budget is entered at the first time.
+		 */
+		Timeout,
+		/**
+		 * The number of objects loaded from storage.
+		 */
+		Objects,
+		/**
+		 * The number of round trips to storage.
+		 */
+		RoundTrips,
+		/**
+		 * The number of elements changed and not written yet.
+		 */
+		Dirty,
+		/**
+		 * The budget is canceled.
+		 */
+		Canceled
+	}
+
+	/**
+	 * The budget entered by each thread.
+	 */
+	private static final ThreadLocal<MBudget> current = new ThreadLocal<MBudget>();
+
+	private volatile long timeout = 0;
+
+	private volatile long maxObjects = 0;
+
+	private volatile long maxRoundTrips = 0;
+
+	private volatile int maxDirty = 0;
+
+	private volatile long start = 0;
+
+	private volatile boolean canceled = false;
+
+	private volatile Limit exceeded = null;
+
+	private final AtomicLong objects = new AtomicLong();
+
+	private final AtomicLong roundTrips = new AtomicLong();
+
+	/**
+	 * The elements changed under the budget. They're dirty elements, which are held
+	 * by the database anyway until they're written.
+	 */
+	private final Set<MElement> dirty = Collections.newSetFromMap(new IdentityHashMap<MElement, Boolean>());
+
+	/**
+	 * Create an unlimited budget.
+	 */
+	public MBudget() {
+	}
+
+	/**
+	 * Create a budget with the limits of another, e.g. to run a work again.
+	 * @param limits the budget whose limits are copied.
+	 */
+	public MBudget(MBudget limits) {
+		this.timeout = limits.timeout;
+		this.maxObjects = limits.maxObjects;
+		this.maxRoundTrips = limits.maxRoundTrips;
+		this.maxDirty = limits.maxDirty;
+	}
+
+	/**
+	 * Set the wall-clock timeout.
+	 * @param millis the timeout in milliseconds, <code>0</code> for no timeout.
+	 * @return this budget.
+	 */
+	public MBudget timeout(long millis) {
+		this.timeout = Math.max(0, millis);
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of objects loaded from storage.
+	 * @param count the number, <code>0</code> for unlimited.
+	 * @return this budget.
+	 */
+	public MBudget maxObjects(long count) {
+		this.maxObjects = Math.max(0, count);
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of round trips to storage, i.e. the calls of adapter.
+	 * @param count the number, <code>0</code> for unlimited.
+	 * @return this budget.
+	 */
+	public MBudget maxRoundTrips(long count) {
+		this.maxRoundTrips = Math.max(0, count);
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of elements changed, created or deleted under the budget.
+	 * @param count the number, <code>0</code> for unlimited.
+	 * @return this budget.
+	 */
+	public MBudget maxDirty(int count) {
+		this.maxDirty = Math.max(0, count);
+		return this;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public long getMaxObjects() {
+		return maxObjects;
+	}
+
+	public long getMaxRoundTrips() {
+		return maxRoundTrips;
+	}
+
+	public int getMaxDirty() {
+		return maxDirty;
+	}
+
+	/**
+	 * The number of objects loaded so far.
+	 * @return count.
+	 */
+	public long getObjectCount() {
+		return objects.get();
+	}
+
+	/**
+	 * The number of round trips so far.
+	 * @return count.
+	 */
+	public long getRoundTripCount() {
+		return roundTrips.get();
+	}
+
+	/**
+	 * The number of elements changed so far.
+	 * @return count.
+	 */
+	public int getDirtyCount() {
+		synchronized (dirty) {
+			return dirty.size();
+		}
+	}
+
+	/**
+	 * The milliseconds since the budget is entered at the first time.
+	 * @return the elapsed time, <code>0</code> if it's never entered.
+	 */
+	public long getElapsedMillis() {
+		long s = start;
+		return s == 0 ? 0 : (System.nanoTime() - s) / 1000000L;
+	}
+
+	/**
+	 * Cancel the work, it's aborted at the next check. It could be called by any thread.
+	 */
+	public void cancel() {
+		canceled = true;
+	}
+
+	public boolean isCanceled() {
+		return canceled;
+	}
+
+	/**
+	 * The limit which aborted the work.
+	 * @return the limit, or {@code null} if the work is not aborted.
+	 */
+	public Limit getExceeded() {
+		return exceeded;
+	}
+
+	/**
+	 * Make this budget the budget of current thread, until the returned scope is closed.
+	 * A budget could be entered by several threads, which share its limits.
+	 * @return the scope, which must be closed by the same thread.
+	 */
+	public Scope enter() {
+		if (start == 0) {
+			synchronized (this) {
+				if (start == 0)
+					start = System.nanoTime();
+			}
+		}
+		MBudget previous = current.get();
+		current.set(this);
+		return new Scope(previous);
+	}
+
+	/**
+	 * The budget of current thread.
+	 * @return the budget, or {@code null} if none is entered.
+	 */
+	public static MBudget getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * Check the budget of current thread, if there is one.
+	 * @throws MException if the budget is exceeded or canceled.
+	 */
+	public static void checkCurrent() {
+		MBudget budget = current.get();
+		if (budget != null)
+			budget.check();
+	}
+
+	/**
+	 * Charge the budget of current thread for round trips and objects loaded.
+	 */
+	static void charge(int trips, int objs) {
+		MBudget budget = current.get();
+		if (budget == null)
+			return;
+		if (trips > 0)
+			budget.roundTrips.addAndGet(trips);
+		if (objs > 0)
+			budget.objects.addAndGet(objs);
+		budget.check();
+	}
+
+	/**
+	 * Charge the budget of current thread for an element changed. It's not checked
+	 * here, since the change is not tracked yet, but at the next check.
+	 */
+	static void dirtied(MElement e) {
+		MBudget budget = current.get();
+		if (budget == null)
+			return;
+		synchronized (budget.dirty) {
+			budget.dirty.add(e);
+		}
+	}
+
+	/**
+	 * Check the limits.
+	 * @throws MException if a limit is exceeded, or the budget is canceled.
+	 */
+	public void check() {
+		if (exceeded != null)
+			throw new MException(MException.Reason.BUDGET_EXCEEDED);
+		Limit limit = null;
+		if (canceled || Thread.currentThread().isInterrupted())
+			limit = Limit.Canceled;
+		else if (timeout > 0 && getElapsedMillis() > timeout)
+			limit = Limit.Timeout;
+		else if (maxObjects > 0 && objects.get() > maxObjects)
+			limit = Limit.Objects;
+		else if (maxRoundTrips > 0 && roundTrips.get() > maxRoundTrips)
+			limit = Limit.RoundTrips;
+		else if (maxDirty > 0 && getDirtyCount() > maxDirty)
+			limit = Limit.Dirty;
+		if (limit == null)
+			return;
+		exceeded = limit;
+		throw new MException(MException.Reason.BUDGET_EXCEEDED);
+	}
+
+	/**
+	 * A scope where a budget is the budget of thread.
+	 * @see MBudget#enter()
+	 */
+	public static final class Scope implements AutoCloseable {
+
+		private final MBudget previous;
+
+		private boolean closed = false;
+
+		private Scope(MBudget previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (previous == null)
+				current.remove();
+			else
+				current.set(previous);
+		}
+	}
+
+}
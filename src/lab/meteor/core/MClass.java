@@ -1,13 +1,17 @@
 package lab.meteor.core;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lab.meteor.core.MDBAdapter.DBInfo;
+import lab.meteor.core.cache.MSnapshotMap;
+import lab.meteor.core.cache.MSnapshotSet;
 
 /**
  * The class of a kind of objects. <br>
@@ -29,11 +33,11 @@ public class MClass extends MElement implements MType {
 	/**
 	 * The attributes.
 	 */
-	private Map<String, MAttribute> attributes;
+	private final MSnapshotMap<String, MAttribute> attributes = new MSnapshotMap<String, MAttribute>(true);
 	/**
 	 * The references.
 	 */
-	private Map<String, MReference> references;
+	private final MSnapshotMap<String, MReference> references = new MSnapshotMap<String, MReference>(true);
 	
 	/**
 	 * The super class.
@@ -48,12 +52,44 @@ public class MClass extends MElement implements MType {
 	/**
 	 * All subclasses.
 	 */
-	private Set<MClass> subclasses;
+	private final MSnapshotSet<MClass> subclasses = new MSnapshotSet<MClass>(true);
 	
 	/**
 	 * All references that refer to this class.
 	 */
-	private Set<MReference> utilizers;
+	private final MSnapshotSet<MReference> utilizers = new MSnapshotSet<MReference>(true);
+	
+	/**
+	 * The value layout of the objects, built on demand.
+	 */
+	private volatile MClassLayout layout;
+	
+	/**
+	 * The version of layout, increased when the layout is dropped. A layout built
+	 * concurrently with a schema change is not published.
+	 */
+	private volatile int layoutVersion = 0;
+	
+	/**
+	 * The counter of hierarchy indexes.
+	 */
+	private static final AtomicInteger hierarchyCounter = new AtomicInteger();
+	
+	/**
+	 * The index of this class in the hierarchy encoding. Every class instance has a
+	 * unique one.
+	 */
+	private final int hierarchyIndex = hierarchyCounter.getAndIncrement();
+	
+	/**
+	 * The hierarchy indexes of this class and all its superclasses, built on demand.
+	 */
+	private volatile BitSet ancestors;
+	
+	/**
+	 * All direct and indirect sub-classes, built on demand.
+	 */
+	private volatile MClass[] descendants;
 	
 	/* 
 	 * ********************************
@@ -77,7 +113,7 @@ public class MClass extends MElement implements MType {
 	 * @param superclazz superclass.
 	 */
 	public MClass(String name, MClass superclazz) {
-		this(name, superclazz, MPackage.DEFAULT_PACKAGE);
+		this(name, superclazz, null);
 	}
 	
 	/**
@@ -98,10 +134,10 @@ public class MClass extends MElement implements MType {
 	 * @param pkg package.
 	 */
 	public MClass(String name, MClass supercls, MPackage pkg) {
-		super(MElementType.Class);
+		super(databaseOf(pkg != null ? pkg : supercls), MElementType.Class);
 		
 		if (pkg == null)
-			pkg = MPackage.DEFAULT_PACKAGE;
+			pkg = database.getDefaultPackage();
 		if (pkg.isDeleted())
 			throw new MException(MException.Reason.ELEMENT_MISSED);
 		if (pkg.hasChild(name))
@@ -115,15 +151,16 @@ public class MClass extends MElement implements MType {
 		this.parent = pkg;
 		link();
 		
-		MDatabase.getDB().createElement(this);
+		database.createElement(this);
 	}
 	
 	/**
 	 * Create a "lazy" class element with id.
+	 * @param db The database.
 	 * @param id ID of element.
 	 */
-	protected MClass(long id) {
-		super(id, MElementType.Class);
+	protected MClass(MDatabase db, long id) {
+		super(db, id, MElementType.Class);
 	}
 	
 	/*
@@ -144,67 +181,149 @@ public class MClass extends MElement implements MType {
 	public void delete() {
 		isDeleting = true;
 		// delete attributes
-		if (this.attributes != null) {
-			for (MAttribute atb : this.attributes.values()) {
-				atb.delete();
-			}
-			this.attributes.clear();
+		for (MAttribute atb : this.attributes.values()) {
+			atb.delete();
 		}
+		this.attributes.clear();
 		// delete references
-		if (this.references != null) {
-			for (MReference ref : this.references.values()) {
-				ref.delete();
-			}
-			this.references.clear();
+		for (MReference ref : this.references.values()) {
+			ref.delete();
 		}
+		this.references.clear();
 		// delete utilizers
-		if (this.utilizers != null) {
-			for (MReference ref : this.utilizers) {
-				ref.delete();
-			}
-			this.utilizers.clear();
+		for (MReference ref : this.utilizers) {
+			ref.delete();
 		}
+		this.utilizers.clear();
 		// unlink super-sub relations
-		if (this.subclasses != null) {
-			for (MClass cls : this.subclasses) {
-				cls.superclass = this.superclass;
-			}
+		for (MClass cls : this.subclasses) {
+			cls.superclass = this.superclass;
+			if (cls.superclass != null)
+				cls.superclass.subclasses.add(cls);
+			cls.invalidateLayout();
+			cls.hierarchyChanged();
 		}
 		
 		unlink();
-		MDatabase.getDB().deleteAllObjects(this);
+		database.deleteAllObjects(this);
 		super.delete();
 		isDeleting = false;
 	}
 	
-	public Iterator<MObject> objectsIterator() {
-		return new ObjItr(MDatabase.getDB().listAllObjectsID(this));
+	/**
+	 * Iterate the objects of this class, not include the objects of sub-classes.
+	 * @return the iterator of objects.
+	 */
+	public MObjectIterator objectsIterator() {
+		return objectsIterator(false);
 	}
 	
-	private class ObjItr implements Iterator<MObject> {
+	/**
+	 * Iterate the objects of this class. The objects are streamed from database by a 
+	 * single cursor, and they are "lazy" until they are touched, unless a prefetch plan
+	 * is set on the iterator.
+	 * @param includeSubclasses whether the objects of all direct and indirect 
+	 * sub-classes are included.
+	 * @return the iterator of objects.
+	 */
+	public MObjectIterator objectsIterator(boolean includeSubclasses) {
+		return new MObjectIterator(database.findObjectsID(this, includeSubclasses));
+	}
+	
+	/**
+	 * Scan the objects of this class in parallel, not include the objects of sub-classes.
+	 * @return the scan.
+	 */
+	public MObjectScan scan() {
+		return scan(false);
+	}
+	
+	/**
+	 * Scan the objects of this class in parallel. The objects are loaded and visited in
+	 * batches by the threads of a fork-join pool.
+	 * @param includeSubclasses whether the objects of all direct and indirect 
+	 * sub-classes are included.
+	 * @return the scan.
+	 */
+	public MObjectScan scan(boolean includeSubclasses) {
+		return new MObjectScan(this, includeSubclasses);
+	}
+	
+	/**
+	 * The iterator of the objects of a class. If a prefetch plan is set, the objects 
+	 * are loaded in batches, together with the objects along the reference paths of
+	 * the plan, before they are returned.
+	 * @see MPrefetch
+	 */
+	public class MObjectIterator implements Iterator<MObject> {
 
-		Iterator<Long> it;
-		Long last = null;
+		/**
+		 * The default number of objects loaded in a batch.
+		 */
+		public static final int DEFAULT_BATCH_SIZE = 100;
+		
+		final Iterator<Long> it;
+		MObject last = null;
+		MPrefetch plan = null;
+		int batchSize = DEFAULT_BATCH_SIZE;
+		final LinkedList<MObject> batch = new LinkedList<MObject>();
 		
-		ObjItr(List<Long> objects) {
-			it = objects.iterator();
+		MObjectIterator(Iterator<Long> objects) {
+			it = objects;
+		}
+		
+		/**
+		 * Load the objects in batches, and follow the reference paths.
+		 * @param paths the reference paths, such as {@code "owner"} and {@code "items.product"}.
+		 * @return this iterator.
+		 */
+		public MObjectIterator prefetch(String... paths) {
+			return prefetch(MPrefetch.of(paths));
+		}
+		
+		/**
+		 * Load the objects in batches according to a prefetch plan.
+		 * @param plan the plan.
+		 * @return this iterator.
+		 */
+		public MObjectIterator prefetch(MPrefetch plan) {
+			this.plan = plan;
+			return this;
+		}
+		
+		/**
+		 * Set the number of objects loaded in a batch.
+		 * @param size the size of batch.
+		 * @return this iterator.
+		 */
+		public MObjectIterator batchSize(int size) {
+			this.batchSize = Math.max(1, size);
+			return this;
 		}
 		
 		@Override
 		public boolean hasNext() {
-			return it.hasNext();
+			return !batch.isEmpty() || it.hasNext();
 		}
 
 		@Override
 		public MObject next() {
-			last = it.next();
-			return MDatabase.getDB().getLazyObject(last);
+			if (plan == null) {
+				last = database.getLazyObject(it.next());
+				return last;
+			}
+			if (batch.isEmpty()) {
+				while (batch.size() < batchSize && it.hasNext())
+					batch.add(database.getLazyObject(it.next()));
+				plan.apply(batch);
+			}
+			last = batch.removeFirst();
+			return last;
 		}
 
 		@Override
 		public void remove() {
-			it.remove();
-			MDatabase.getDB().getLazyObject(last).delete();
+			last.delete();
 		}
 		
 	}
@@ -275,44 +394,94 @@ public class MClass extends MElement implements MType {
 			cp = cp.superclass;
 		}
 		
+		this.hierarchyChanged();
 		if (this.superclass != null)
-			this.superclass.subclasses().remove(this);
+			this.superclass.subclasses.remove(this);
 		this.superclass = clazz;
 		if (this.superclass != null)
-			this.superclass.subclasses().add(this);
+			this.superclass.subclasses.add(this);
+		this.hierarchyChanged();
+		this.invalidateLayout();
 		this.setChanged(ATTRIB_FLAG_SUPERCLASS);
 	}
 	
 	/**
-	 * Find whether this class is a sub-class of another.
+	 * Find whether this class is a sub-class of another. The check is a single bit
+	 * test on the hierarchy encoding, the superclass chain is not walked.
 	 * @param clazz another class
 	 * @return {@code true} if is sub-class.
 	 */
 	public boolean isKindOf(MClass clazz) {
 		if (isDeleted())
 			return false;
-		
-		MClass cp = this.superclass;
-		do {
-			if (cp == clazz)
-				return true;
-			cp = cp.superclass;
-		} while (cp != null);
-		return false;
+		if (clazz == null || clazz == this)
+			return false;
+		return ancestors().get(clazz.hierarchyIndex);
 	}
 	
 	public MClass[] getSubClasses() {
-		return subclasses().toArray(new MClass[0]);
+		return this.subclasses.toArray(new MClass[0]);
 	}
 	
 	/**
-	 * Get all sub-classes.
-	 * @return the set of sub-classes.
+	 * Get all direct and indirect sub-classes. The result is cached until the class
+	 * hierarchy below this class changes, so the returned array must not be modified.
+	 * @return the sub-classes, in depth-first order.
 	 */
-	private Set<MClass> subclasses() {
-		if (this.subclasses == null)
-			this.subclasses = new TreeSet<MClass>();
-		return this.subclasses;
+	public MClass[] getAllSubClasses() {
+		MClass[] d = this.descendants;
+		if (d == null) {
+			List<MClass> list = new ArrayList<MClass>();
+			collectSubClasses(list);
+			d = list.toArray(new MClass[list.size()]);
+			this.descendants = d;
+		}
+		return d;
+	}
+	
+	private void collectSubClasses(List<MClass> list) {
+		for (MClass cls : this.subclasses) {
+			list.add(cls);
+			cls.collectSubClasses(list);
+		}
+	}
+	
+	/**
+	 * The hierarchy indexes of this class and all its superclasses.
+	 * @return the bit set of indexes.
+	 */
+	private BitSet ancestors() {
+		BitSet a = this.ancestors;
+		if (a == null) {
+			if (this.superclass != null)
+				a = (BitSet) this.superclass.ancestors().clone();
+			else
+				a = new BitSet();
+			a.set(this.hierarchyIndex);
+			this.ancestors = a;
+		}
+		return a;
+	}
+	
+	/**
+	 * Drop the hierarchy encoding affected by a change of this class's position in
+	 * hierarchy, i.e. the ancestors of this class and its sub-classes, and the 
+	 * descendants of this class and its superclasses.
+	 */
+	private void hierarchyChanged() {
+		dropAncestors();
+		MClass cls = this;
+		while (cls != null) {
+			cls.descendants = null;
+			cls = cls.superclass;
+		}
+	}
+	
+	private void dropAncestors() {
+		this.ancestors = null;
+		for (MClass cls : this.subclasses) {
+			cls.dropAncestors();
+		}
 	}
 	
 	/**
@@ -334,7 +503,7 @@ public class MClass extends MElement implements MType {
 			return;
 		
 		if (pkg == null)
-			pkg = MPackage.DEFAULT_PACKAGE;
+			pkg = database.getDefaultPackage();
 		if (pkg == this.parent)
 			return;
 		if (pkg.hasChild(this.name))
@@ -355,7 +524,7 @@ public class MClass extends MElement implements MType {
 	public boolean hasProperty(String name) {
 		if (isDeleted())
 			return false;
-		return this.hasAttribute(name) || this.hasReference(name);
+		return this.getLayout().getProperty(name) != null;
 	}
 	
 	/**
@@ -367,10 +536,18 @@ public class MClass extends MElement implements MType {
 	public MProperty getProperty(String name) {
 		if (isDeleted())
 			return null;
-		MProperty p = this.getAttribute(name);
-		if (p == null)
-			p = this.getReference(name);
-		return p;
+		return this.getLayout().getProperty(name);
+	}
+	
+	/**
+	 * Get a property of the class, include the properties owned by superclass, by ID.
+	 * @param id the ID of property.
+	 * @return property, {@code null} if the property does not belong to this class.
+	 */
+	public MProperty getProperty(long id) {
+		if (isDeleted())
+			return null;
+		return this.getLayout().getPropertyByID(id);
 	}
 	
 	protected void addProperty(MProperty p) {
@@ -402,7 +579,7 @@ public class MClass extends MElement implements MType {
 	public String[] getAttributeNames() {
 		if (isDeleted())
 			return null;
-		return this.attributes().keySet().toArray(new String[0]);
+		return this.attributes.keySet().toArray(new String[0]);
 	}
 	
 	/**
@@ -415,7 +592,7 @@ public class MClass extends MElement implements MType {
 		Set<String> names = new TreeSet<String>();
 		MClass cls = this;
 		while (cls != null) {
-			names.addAll(cls.attributes().keySet());
+			names.addAll(cls.attributes.keySet());
 			cls = cls.superclass;
 		}
 		return names.toArray(new String[0]);
@@ -429,16 +606,7 @@ public class MClass extends MElement implements MType {
 	public MAttribute getAttribute(String name) {
 		if (isDeleted())
 			return null;
-		MAttribute atb = null;
-
-		MClass cls = this;
-		while (cls != null) {
-			atb = cls.attributes().get(name);
-			if (atb != null)
-				break;
-			cls = cls.superclass;
-		}
-		return atb;
+		return this.getLayout().getAttribute(name);
 	}
 
 	/**
@@ -449,31 +617,16 @@ public class MClass extends MElement implements MType {
 	public boolean hasAttribute(String name) {
 		if (isDeleted())
 			return false;
-		MClass cls = this;
-		while (cls != null) {
-			if (cls.attributes().containsKey(name))
-				return true;
-			cls = cls.superclass;
-		}
-		return false;
+		return this.getLayout().getAttribute(name) != null;
 	}
 
-	/**
-	 * Get the attributes.
-	 * @return the map from name to attribute.
-	 */
-	private Map<String, MAttribute> attributes() {
-		if (this.attributes == null)
-			this.attributes = new TreeMap<String, MAttribute>();
-		return this.attributes;
-	}
-	
 	/**
 	 * Add attribute.
 	 * @param atb attribute.
 	 */
 	void addAttribute(MAttribute atb) {
-		this.attributes().put(atb.getName(), atb);
+		this.attributes.put(atb.getName(), atb);
+		this.invalidateLayout();
 	}
 
 	/**
@@ -483,7 +636,8 @@ public class MClass extends MElement implements MType {
 	void removeAttribute(MAttribute atb) {
 		if (isDeleting)
 			return;
-		this.attributes().remove(atb.getName());
+		this.attributes.remove(atb.getName());
+		this.invalidateLayout();
 	}
 	
 	/* 
@@ -499,7 +653,7 @@ public class MClass extends MElement implements MType {
 	public String[] getReferenceNames() {
 		if (isDeleted())
 			return null;
-		return this.references().keySet().toArray(new String[0]);
+		return this.references.keySet().toArray(new String[0]);
 	}
 	
 	/**
@@ -512,7 +666,7 @@ public class MClass extends MElement implements MType {
 		Set<String> names = new TreeSet<String>();
 		MClass cls = this;
 		while (cls != null) {
-			names.addAll(cls.references().keySet());
+			names.addAll(cls.references.keySet());
 			cls = cls.superclass;
 		}
 		return names.toArray(new String[0]);
@@ -526,16 +680,7 @@ public class MClass extends MElement implements MType {
 	public MReference getReference(String name) {
 		if (isDeleted())
 			return null;
-		MReference ref = null;
-		
-		MClass cls = this;
-		while (cls != null) {
-			ref = cls.references().get(name);
-			if (ref != null)
-				break;
-			cls = cls.superclass;
-		}
-		return ref;
+		return this.getLayout().getReference(name);
 	}
 	
 	/**
@@ -546,31 +691,16 @@ public class MClass extends MElement implements MType {
 	public boolean hasReference(String name) {
 		if (isDeleted())
 			return false;
-		MClass cls = this;
-		while (cls != null) {
-			if (cls.references().containsKey(name))
-				return true;
-			cls = cls.superclass;
-		}
-		return false;
+		return this.getLayout().getReference(name) != null;
 	}
 	
-	/**
-	 * Get the references.
-	 * @return the map from name to reference.
-	 */
-	private Map<String, MReference> references() {
-		if (this.references == null)
-			this.references = new TreeMap<String, MReference>();
-		return this.references;
-	}
-
 	/**
 	 * Add reference.
 	 * @param ref reference.
 	 */
 	void addReference(MReference ref) {
-		this.references().put(ref.getName(), ref);
+		this.references.put(ref.getName(), ref);
+		this.invalidateLayout();
 	}
 	
 	/**
@@ -580,7 +710,8 @@ public class MClass extends MElement implements MType {
 	void removeReference(MReference ref) {
 		if (isDeleting)
 			return;
-		this.references().remove(ref.getName());
+		this.references.remove(ref.getName());
+		this.invalidateLayout();
 	}
 	
 	/*
@@ -590,17 +721,7 @@ public class MClass extends MElement implements MType {
 	 */
 	
 	public MReference[] getUtilizers() {
-		return utilizers().toArray(new MReference[0]);
-	}
-	
-	/**
-	 * Utilizers are the references({@code MReference}) refer to this class.
-	 * @return the utilizers.
-	 */
-	private Set<MReference> utilizers() {
-		if (this.utilizers == null)
-			this.utilizers = new TreeSet<MReference>();
-		return this.utilizers;
+		return this.utilizers.toArray(new MReference[0]);
 	}
 	
 	/**
@@ -608,7 +729,7 @@ public class MClass extends MElement implements MType {
 	 * @param utilizer a reference.
 	 */
 	void addUtilizer(MReference utilizer) {
-		this.utilizers().add(utilizer);
+		this.utilizers.add(utilizer);
 	}
 	
 	/**
@@ -616,21 +737,63 @@ public class MClass extends MElement implements MType {
 	 * @param utilizer a reference.
 	 */
 	void removeUtilizer(MReference utilizer) {
-		this.utilizers().remove(utilizer);
+		this.utilizers.remove(utilizer);
 	}
 	
 	private void link() {
 		if (name != null)
 			this.parent.addClass(this);
 		if (this.superclass != null)
-			this.superclass.subclasses().add(this);
+			this.superclass.subclasses.add(this);
+		this.hierarchyChanged();
+		this.invalidateLayout();
 	}
 	
 	private void unlink() {
 		if (name != null)
 			this.parent.removeClass(this);
 		if (this.superclass != null)
-			this.superclass.subclasses().remove(this);
+			this.superclass.subclasses.remove(this);
+		this.hierarchyChanged();
+	}
+	
+	/*
+	 * ********************************
+	 *             LAYOUT
+	 * ********************************
+	 */
+	
+	/**
+	 * Get the value layout of the objects of this class. The layout assigns every
+	 * property, include the inherited ones, a slot index, and resolves the properties
+	 * by name or ID. It's rebuilt lazily after the schema of this class or any 
+	 * superclass changes.
+	 * @return layout.
+	 */
+	MClassLayout getLayout() {
+		MClassLayout l = this.layout;
+		if (l == null) {
+			int version = this.layoutVersion;
+			MClassLayout superLayout = null;
+			if (this.superclass != null)
+				superLayout = this.superclass.getLayout();
+			l = new MClassLayout(superLayout, this.attributes.values(), 
+					this.references.values());
+			if (version == this.layoutVersion)
+				this.layout = l;
+		}
+		return l;
+	}
+	
+	/**
+	 * Drop the layout of this class and all its sub-classes.
+	 */
+	private void invalidateLayout() {
+		this.layoutVersion++;
+		this.layout = null;
+		for (MClass cls : this.subclasses) {
+			cls.invalidateLayout();
+		}
 	}
 	
 	/*
@@ -646,7 +809,7 @@ public class MClass extends MElement implements MType {
 		MPackage pkg = this.parent;
 		String name = this.name;
 		if (dbInfo.isFlagged(ATTRIB_FLAG_PARENT))
-			pkg = MDatabase.getDB().getPackage(clsDBInfo.package_id);
+			pkg = database.getPackage(clsDBInfo.package_id);
 		if (dbInfo.isFlagged(ATTRIB_FLAG_NAME))
 			name = clsDBInfo.name;
 		if (pkg != null && name != null && pkg.hasChild(name) && pkg.getClazz(name) != this)
@@ -662,7 +825,7 @@ public class MClass extends MElement implements MType {
 			this.name = name;
 		}
 		if (dbInfo.isFlagged(ATTRIB_FLAG_SUPERCLASS)) {
-			this.superclass = MDatabase.getDB().getClass(clsDBInfo.superclass_id);
+			this.superclass = database.getClass(clsDBInfo.superclass_id);
 		}
 		if (dbInfo.isFlagged(ATTRIB_FLAG_PARENT)) {
 			this.parent = pkg;
@@ -695,7 +858,7 @@ public class MClass extends MElement implements MType {
 	
 	@Override
 	public String toString() {
-		if (this.parent == MPackage.DEFAULT_PACKAGE)
+		if (this.parent == database.getDefaultPackage())
 			return this.name;
 		return this.parent.toString() + "::" + this.name;
 	}
@@ -0,0 +1,166 @@
+package lab.meteor.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The value layout of a class. Every property of the class, include the properties
+ * inherited from superclasses, is assigned a dense slot index, so that the values of
+ * an object can be stored in an array instead of a map keyed by property ID.
+ * <p>
+ * The layout of a superclass is always a prefix of the layouts of its sub-classes, so an
+ * inherited property keeps the same slot in the whole class hierarchy. A layout is
+ * immutable, when the schema changes the class drops its layout and builds a new one
+ * on next access.
+ * <p>
+ * The layout is also the flattened resolution table of the class. The properties can be
+ * found by name or by ID with a single hash probe, the superclass chain is not walked.
+ * A property owned by a sub-class hides the property with the same name owned by its
+ * superclass.
+ * @see MClass#getLayout()
+ */
+final class MClassLayout {
+
+	/**
+	 * The properties, indexed by slot.
+	 */
+	private final MProperty[] properties;
+
+	/**
+	 * The map from property ID to slot.
+	 */
+	private final Map<Long, Integer> slots;
+
+	/**
+	 * The map from name to attribute.
+	 */
+	private final Map<String, MAttribute> attributes;
+
+	/**
+	 * The map from name to reference.
+	 */
+	private final Map<String, MReference> references;
+
+	/**
+	 * The map from name to property. An attribute precedes a reference with the same name.
+	 */
+	private final Map<String, MProperty> names;
+
+	/**
+	 * Build the layout of a class.
+	 * @param superLayout the layout of superclass, {@code null} if there is no superclass.
+	 * @param atbs the attributes owned by the class.
+	 * @param refs the references owned by the class.
+	 */
+	MClassLayout(MClassLayout superLayout, Collection<MAttribute> atbs, Collection<MReference> refs) {
+		List<MProperty> props = new ArrayList<MProperty>();
+		if (superLayout != null) {
+			for (MProperty p : superLayout.properties)
+				props.add(p);
+			this.attributes = new HashMap<String, MAttribute>(superLayout.attributes);
+			this.references = new HashMap<String, MReference>(superLayout.references);
+		} else {
+			this.attributes = new HashMap<String, MAttribute>();
+			this.references = new HashMap<String, MReference>();
+		}
+		props.addAll(atbs);
+		props.addAll(refs);
+		for (MAttribute atb : atbs)
+			this.attributes.put(atb.name, atb);
+		for (MReference ref : refs)
+			this.references.put(ref.name, ref);
+		this.names = new HashMap<String, MProperty>(this.references);
+		this.names.putAll(this.attributes);
+
+		this.properties = props.toArray(new MProperty[props.size()]);
+		this.slots = new HashMap<Long, Integer>(this.properties.length * 2);
+		for (int i = 0; i < this.properties.length; i++) {
+			this.slots.put(this.properties[i].id, i);
+			this.properties[i].slot = i;
+		}
+	}
+
+	/**
+	 * The number of slots.
+	 * @return size.
+	 */
+	int size() {
+		return properties.length;
+	}
+
+	/**
+	 * Get the property of slot.
+	 * @param slot the slot index.
+	 * @return property.
+	 */
+	MProperty getProperty(int slot) {
+		return properties[slot];
+	}
+
+	/**
+	 * Get the property with specific ID.
+	 * @param id the ID of property.
+	 * @return property, {@code null} if the property is not in this layout.
+	 */
+	MProperty getPropertyByID(long id) {
+		int slot = slotOf(id);
+		if (slot < 0)
+			return null;
+		return properties[slot];
+	}
+
+	/**
+	 * Get the slot of a property.
+	 * @param p the property.
+	 * @return slot index, {@code -1} if the property is not in this layout.
+	 */
+	int slotOf(MProperty p) {
+		int slot = p.slot;
+		if (slot >= 0 && slot < properties.length && properties[slot] == p)
+			return slot;
+		return slotOf(p.id);
+	}
+
+	/**
+	 * Get the slot of a property by its ID.
+	 * @param id the ID of property.
+	 * @return slot index, {@code -1} if the property is not in this layout.
+	 */
+	int slotOf(long id) {
+		Integer slot = slots.get(id);
+		if (slot == null)
+			return -1;
+		return slot;
+	}
+
+	/**
+	 * Get the property with specific name.
+	 * @param name the name.
+	 * @return property, {@code null} if there is no one.
+	 */
+	MProperty getProperty(String name) {
+		return names.get(name);
+	}
+
+	/**
+	 * Get the attribute with specific name.
+	 * @param name the name.
+	 * @return attribute, {@code null} if there is no one.
+	 */
+	MAttribute getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	/**
+	 * Get the reference with specific name.
+	 * @param name the name.
+	 * @return reference, {@code null} if there is no one.
+	 */
+	MReference getReference(String name) {
+		return references.get(name);
+	}
+
+}
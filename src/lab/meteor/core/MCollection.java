@@ -16,17 +16,28 @@ public abstract class MCollection {
 	/**
 	 * A "factory" of collection instances. Pass it to <code>MCollection.createCollection()</code>
 	 * to instantiate a collection class. <br>
-	 * List : Instantiate <code>MList</code>, which actually acts like a linked list. <br>
+	 * List : Instantiate <code>MList</code>, which actually acts like an array list. <br>
 	 * Set : Instantiate <code>MSet</code>, which actually acts like a hash set. <br>
 	 * Dictionary : Instantiate <code>MDictionary</code>, which actually acts like 
 	 * a hash set with string key. <br>
+	 * NumberList, Int64List, IntegerList : Instantiate <code>MNumericList</code>, which
+	 * keeps the numbers in a primitive array. <br>
+	 * NumberSet, Int64Set, IntegerSet : Instantiate <code>MNumericSet</code>, which
+	 * keeps the numbers in a sorted primitive array. <br>
+	 * The factories of packed collections are named after their native data types.
 	 * @author Qiang
 	 *
 	 */
 	public enum Factory {
 		List,
 		Set,
-		Dictionary
+		Dictionary,
+		NumberList,
+		Int64List,
+		IntegerList,
+		NumberSet,
+		Int64Set,
+		IntegerSet
 	}
 	
 	/**
@@ -61,6 +72,14 @@ public abstract class MCollection {
 		root.setChanged(attribute);
 	}
 	
+	MNotifiable getRoot() {
+		return root;
+	}
+	
+	long getAttributeID() {
+		return attribute.getID();
+	}
+	
 	/**
 	 * A callback interface for doing something when traverse a collection.
 	 * @author Qiang
@@ -120,7 +139,8 @@ public abstract class MCollection {
 	 * @param parent collection's parent.
 	 * @return <code>MList</code> when factory is <code>Factory.List</code>;
 	 * <code>MSet</code> when factory is <code>Factory.Set</code>;
-	 * <code>MDictionary</code> when factory is <code>Factory.Dictionary</code>.
+	 * <code>MDictionary</code> when factory is <code>Factory.Dictionary</code>;
+	 * <code>MNumericList</code> or <code>MNumericSet</code> when factory is a packed one.
 	 */
 	static MCollection createCollection(Factory factory, 
 			MNotifiable root, MAttribute atb) {
@@ -131,11 +151,36 @@ public abstract class MCollection {
 			return new MSet(root, atb);
 		case Dictionary:
 			return new MDictionary(root, atb);
+		case NumberList:
+		case Int64List:
+		case IntegerList:
+			return new MNumericList(root, atb, factory);
+		case NumberSet:
+		case Int64Set:
+		case IntegerSet:
+			return new MNumericSet(root, atb, factory);
 		}
 		return null;
 	}
 	
 	static void fromDBObject(MCollection parent, Object value, Object key) {
+		value = fromDBValue(parent, value);
+		if (parent instanceof MList) {
+			((MList) parent).load(value);
+		} else if (parent instanceof MSet) {
+			((MSet) parent).set.add(value);
+		} else if (parent instanceof MDictionary) {
+			((MDictionary) parent).dict.put((String)key, value);
+		}
+	}
+	
+	/**
+	 * Convert a value read from database to the inner value of a collection.
+	 * @param parent the collection.
+	 * @param value the value read from database.
+	 * @return the inner value, a nested collection if the value is a collection.
+	 */
+	static Object fromDBValue(MCollection parent, Object value) {
 		if (value instanceof MDBAdapter.DataList) {
 			MList list = new MList(parent);
 			MDBAdapter.DataList dl = (MDBAdapter.DataList) value;
@@ -161,14 +206,29 @@ public abstract class MCollection {
 				fromDBObject(dict, o, k);
 			}
 			value = dict;
+		} else if (value instanceof MDBAdapter.DataPacked) {
+			MDBAdapter.DataPacked dp = (MDBAdapter.DataPacked) value;
+			MCollection packed;
+			if (dp.kind == Factory.NumberSet || dp.kind == Factory.Int64Set || dp.kind == Factory.IntegerSet)
+				packed = new MNumericSet(parent, dp.kind);
+			else
+				packed = new MNumericList(parent, dp.kind);
+			loadPacked(packed, dp.data);
+			value = packed;
 		}
-		if (parent instanceof MList) {
-			((MList) parent).list.add(value);
-		} else if (parent instanceof MSet) {
-			((MSet) parent).set.add(value);
-		} else if (parent instanceof MDictionary) {
-			((MDictionary) parent).dict.put((String)key, value);
-		}
+		return value;
+	}
+	
+	/**
+	 * Load the numbers of a packed collection read from database.
+	 * @param packed <code>MNumericList</code> or <code>MNumericSet</code>.
+	 * @param data the numbers encoded.
+	 */
+	static void loadPacked(MCollection packed, byte[] data) {
+		if (packed instanceof MNumericList)
+			((MNumericList) packed).array.decode(data);
+		else if (packed instanceof MNumericSet)
+			((MNumericSet) packed).array.decode(data);
 	}
 	
 	static Object toDBObject(Object value) {
@@ -194,6 +254,12 @@ public abstract class MCollection {
 				dd.put(entry.getKey(), toDBObject(entry.getValue()));
 			}
 			return dd;
+		} else if (value instanceof MNumericList) {
+			MNumericList list = (MNumericList) value;
+			return new MDBAdapter.DataPacked(list.getFactory(), list.array.encode());
+		} else if (value instanceof MNumericSet) {
+			MNumericSet set = (MNumericSet) value;
+			return new MDBAdapter.DataPacked(set.getFactory(), set.array.encode());
 		} else if (value instanceof MElement) {
 			return new MElementPointer((MElement) value);
 		} else {
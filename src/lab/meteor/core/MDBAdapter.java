@@ -1,7 +1,9 @@
 package lab.meteor.core;
 
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.TreeMap;
 
 import lab.meteor.core.MElement.MElementType;
@@ -134,6 +136,62 @@ public interface MDBAdapter {
 	void createObject(ObjectDBInfo obj);
 	void updateObject(ObjectDBInfo obj);
 	void deleteObject(ObjectDBInfo obj);
+	/**
+	 * Load a batch of objects with a few queries, instead of a query per object.
+	 * @param objs the information of objects to be loaded, with their IDs and flags.
+	 * @return the IDs of the objects which are not found.
+	 */
+	IDList loadObjects(List<ObjectDBInfo> objs);
+	/**
+	 * Write a batch of objects with a few writes, instead of a write per object. The
+	 * objects are written in order, created first, then updated, and deleted last. The
+	 * existence of objects is not checked again.
+	 * @param created the objects to be created, with their values.
+	 * @param updated the changed values of objects.
+	 * @param deleted the objects to be deleted, with their IDs and classes.
+	 */
+	void saveObjects(List<ObjectDBInfo> created, List<ObjectDBInfo> updated, List<ObjectDBInfo> deleted);
+	
+	/**
+	 * A large collection, whose entries are stored apart from the object, keyed by
+	 * string. It's stored in the object as a marker with the kind and the size. When
+	 * it's written, it also carries the entries changed since it was loaded or saved,
+	 * which are written by the adapter along with the object.
+	 */
+	public static class SpilledCollection {
+		public MCollection.Factory kind;
+		public int size;
+		/**
+		 * Whether all stored entries are removed before the changes are written.
+		 */
+		public boolean clear;
+		/**
+		 * The entries added or replaced.
+		 */
+		public DataDict puts = new DataDict();
+		/**
+		 * The keys of entries removed.
+		 */
+		public List<String> removes = new LinkedList<String>();
+	}
+	
+	/**
+	 * Load an entry of a large collection.
+	 * @param obj_id the ID of object.
+	 * @param atb_id the ID of attribute.
+	 * @param key the key of entry.
+	 * @return the value, or {@code null} if there is no such entry.
+	 */
+	Object loadSpilledEntry(long obj_id, long atb_id, String key);
+	/**
+	 * Load a page of entries of a large collection, in the order of keys.
+	 * @param obj_id the ID of object.
+	 * @param atb_id the ID of attribute.
+	 * @param after the key after which the page starts, {@code null} for the first page.
+	 * @param limit the maximum number of entries.
+	 * @return the entries.
+	 */
+	DataDict loadSpilledEntries(long obj_id, long atb_id, String after, int limit);
 	
 	public static class TagDBInfo extends DBInfo {
 		public String name;
@@ -167,6 +225,14 @@ public interface MDBAdapter {
 	IDList listAllSymbolIDs();
 	IDList listAllObjectIDs(long classID);
 	
+	/**
+	 * Find the IDs of all objects of several classes in one pass. The IDs are streamed
+	 * from the storage, so the memory used doesn't grow with the number of objects.
+	 * @param classIDs the IDs of classes.
+	 * @return a cursor of object IDs. It's closed automatically when exhausted.
+	 */
+	IDCursor findObjectIDs(long[] classIDs);
+	
 	void deleteAllObjects(long classID);
 	long getObjectClass(long obj_id);
 	
@@ -179,6 +245,29 @@ public interface MDBAdapter {
 		private static final long serialVersionUID = 4119666467334909410L;
 	}
 	
+	/**
+	 * The changes of a list by position, which are written instead of the whole list.
+	 * Only one of the fields is set.
+	 */
+	public static class ListDelta {
+		/**
+		 * The values appended to the end.
+		 */
+		public DataList appended;
+		/**
+		 * The values set, keyed by index.
+		 */
+		public TreeMap<Integer, Object> sets;
+		/**
+		 * The values removed, each of which occurred once.
+		 */
+		public DataList pulled;
+		/**
+		 * {@code 1} if the last value is removed, {@code -1} if the first one.
+		 */
+		public int pop;
+	}
+	
 	/**
 	 * A dictionary of object in meteor system. It's a tree map.
 	 * @author Qiang
@@ -197,6 +286,36 @@ public interface MDBAdapter {
 		private static final long serialVersionUID = 8312477680744554417L;
 	}
 	
+	/**
+	 * A packed collection of numbers, which is stored as a binary block.
+	 * @see MCollection.Factory#NumberList
+	 */
+	public static class DataPacked {
+		public MCollection.Factory kind;
+		/**
+		 * The numbers encoded, see <code>MPackedArray</code>.
+		 */
+		public byte[] data;
+		
+		public DataPacked(MCollection.Factory kind, byte[] data) {
+			this.kind = kind;
+			this.data = data;
+		}
+	}
+	
+	/**
+	 * A cursor of element IDs, which are fetched from database in batches.
+	 * @author Qiang
+	 *
+	 */
+	public static interface IDCursor extends Iterator<Long> {
+		/**
+		 * Release the resources of the cursor. It's required only when the cursor
+		 * is abandoned before exhausted.
+		 */
+		void close();
+	}
+	
 	/**
 	 * A list of element ID. It's a linked list.
 	 * @author Qiang
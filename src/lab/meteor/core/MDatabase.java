@@ -1,15 +1,49 @@
 package lab.meteor.core;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import lab.meteor.core.MElement.MElementType;
 import lab.meteor.core.cache.MAutoSaveQueue;
+import lab.meteor.core.cache.MAutoSaveStatistics;
+import lab.meteor.core.cache.MCacheStatistics;
+import lab.meteor.core.cache.MCacheWarmer;
 import lab.meteor.core.cache.MCaches;
+import lab.meteor.core.cache.MOffHeapCache;
 
+/**
+ * The database of elements, which manages the adapter, caches and auto saving. There
+ * could be several databases in a JVM, each with its own adapter and caches, e.g. one
+ * for a tenant. An element belongs to the database where it's created, and always
+ * loads and saves itself through that database.
+ * <p>
+ * A new element, or a pointer created by ID, belongs to the <i>current</i> database of
+ * thread, which is the default database unless another database is entered by 
+ * {@link #enter()}:
+ * <pre>
+ * MDatabase.Scope scope = tenantDB.enter();
+ * try {
+ *     new MObject(cls);
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ */
 public class MDatabase {
 	
+	private static final Logger logger = Logger.getLogger(MDatabase.class.getName());
+	
 	// TODO
 	private static Pattern validNamePattern = Pattern.compile("[a-zA-Z0-9_ ]");
 	public static boolean validateName(String name) {
@@ -19,29 +53,114 @@ public class MDatabase {
 	
 	/*
 	 * ********************************
-	 *            SINGLETON
+	 *            INSTANCES
 	 * ********************************
 	 */
 	/**
-	 * The singleton.
+	 * The default database, created on first use. The class initialization publishes
+	 * it safely to all threads.
+	 */
+	private static class DefaultHolder {
+		static final MDatabase INSTANCE = new MDatabase(true, null);
+	}
+	
+	/**
+	 * The database entered by each thread.
 	 */
-	private static MDatabase database = null;
+	private static final ThreadLocal<MDatabase> current = new ThreadLocal<MDatabase>();
 	
 	/**
-	 * Get the singleton of MDatabase.
-	 * @return singleton
+	 * Get the default database.
+	 * @return the default database.
+	 */
+	public static MDatabase getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+	
+	/**
+	 * Get the current database of thread, i.e. the database entered by the thread,
+	 * or the default database if none is entered.
+	 * @return the current database.
 	 */
 	public static MDatabase getDB() {
-		if (database == null)
-			database = new MDatabase();
-		return database;
+		MDatabase db = current.get();
+		if (db == null)
+			return getDefault();
+		return db;
+	}
+	
+	/**
+	 * Make this database the current database of thread, until the returned scope
+	 * is closed. Scopes could be nested, closing a scope restores the database which
+	 * was current before it's entered.
+	 * @return the scope, which must be closed by the same thread.
+	 */
+	public Scope enter() {
+		MDatabase previous = current.get();
+		current.set(this);
+		return new Scope(previous);
+	}
+	
+	/**
+	 * A scope where a database is the current database of thread.
+	 * @see MDatabase#enter()
+	 */
+	public static final class Scope implements AutoCloseable {
+		
+		private final MDatabase previous;
+		
+		private boolean closed = false;
+		
+		private Scope(MDatabase previous) {
+			this.previous = previous;
+		}
+		
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (previous == null)
+				current.remove();
+			else
+				current.set(previous);
+		}
 	}
 	
-	private MCaches cache;
+	private final MCaches cache;
+	
+	private volatile boolean objectsWeighedBySize = false;
 	
-	private boolean isAutoSave = false;
-	private MAutoSaveQueue<MElement> autoSaveContent;
-	private MAutoSaveQueue<MElement> autoSaveTags;
+	private volatile boolean isAutoSave = false;
+	
+	/**
+	 * The default size from which a dictionary or set is stored apart from its object.
+	 */
+	public static final int DEFAULT_LARGE_COLLECTION_THRESHOLD = 10000;
+	
+	private volatile int largeCollectionThreshold = DEFAULT_LARGE_COLLECTION_THRESHOLD;
+	private final MAutoSaveQueue<MElement> autoSaveContent;
+	private final MAutoSaveQueue<MElement> autoSaveTags;
+	
+	private final MCacheWarmer cacheWarmer;
+	
+	/**
+	 * The memory shared with other databases, <code>null</code> if it's not shared.
+	 */
+	private final MMemoryBudget memory;
+	
+	/**
+	 * The root of packages, <code>null</code> for the default database, whose root is
+	 * <code>MPackage.DEFAULT_PACKAGE</code>.
+	 */
+	private final MPackage rootPackage;
+	
+	/**
+	 * The elements with unsaved changes. They are held strongly until they are saved,
+	 * so a changed element is never reclaimed before it's written back.
+	 */
+	private final Set<MElement> dirtyElements = 
+			Collections.newSetFromMap(new IdentityHashMap<MElement, Boolean>());
 	
 	/*
 	 * ********************************
@@ -49,12 +168,45 @@ public class MDatabase {
 	 * ********************************
 	 */
 	/**
-	 * Private constructor.
+	 * Create a database. An adapter must be set, and then the database must be
+	 * initialized, before it's used.
+	 */
+	public MDatabase() {
+		this(false, null);
+	}
+	
+	/**
+	 * Create a database which shares memory with the other databases of a budget. The
+	 * objects' cache is limited by a share of the capacity of the budget, and the
+	 * objects waiting for auto saving are counted against the budget.
+	 * @param memory the shared memory.
 	 */
-	private MDatabase() {
+	public MDatabase(MMemoryBudget memory) {
+		this(false, memory);
+	}
+	
+	private MDatabase(boolean isDefault, MMemoryBudget memory) {
 		cache = new MCaches();
-		autoSaveContent = new MAutoSaveQueue<MElement>() {
+		autoSaveContent = new MAutoSaveQueue<MElement>(memory != null ? memory.autoSave
+				: new MAutoSaveQueue.Budget()) {
 
+			@Override
+			protected int partitionOf(MElement e) {
+				return (int) (e.id ^ (e.id >>> 32));
+			}
+			
+			@Override
+			protected int weigh(MElement e) {
+				if (e.getElementType() == MElementType.Object)
+					return ((MObject) e).estimateSize();
+				return 64;
+			}
+			
+			@Override
+			protected void save(List<MElement> batch) {
+				saveBatch(batch);
+			}
+			
 			@Override
 			protected void save(MElement e) {
 				if (e.isLoaded())
@@ -64,6 +216,11 @@ public class MDatabase {
 		};
 		autoSaveTags = new MAutoSaveQueue<MElement>() {
 
+			@Override
+			protected int partitionOf(MElement e) {
+				return (int) (e.id ^ (e.id >>> 32));
+			}
+			
 			@Override
 			protected void save(MElement e) {
 				e.saveTags();
@@ -71,8 +228,123 @@ public class MDatabase {
 					((MTag) e).saveElements();
 			}
 			
+		};
+		cacheWarmer = new MCacheWarmer(cache) {
+
+			@Override
+			protected void load(MCacheStatistics.Kind kind, List<Long> ids) {
+				warmUp(kind, ids);
+			}
+			
 		};
 		dbAdapter = null;
+		for (int i = 0; i < LAZY_LOCKS; i++)
+			lazyLocks[i] = new Object();
+		rootPackage = isDefault ? null : new MPackage(this);
+		this.memory = memory;
+		if (memory != null)
+			memory.add(this);
+	}
+	
+	/**
+	 * The memory shared with other databases.
+	 * @return the budget, or <code>null</code> if the memory is not shared.
+	 */
+	public MMemoryBudget getMemoryBudget() {
+		return memory;
+	}
+	
+	/**
+	 * The default package of this database, i.e. the root of all packages, classes 
+	 * and enumes.
+	 * @return the default package.
+	 */
+	public MPackage getDefaultPackage() {
+		if (rootPackage == null)
+			return MPackage.DEFAULT_PACKAGE;
+		return rootPackage;
+	}
+	
+	/**
+	 * The caches of elements.
+	 * @return caches
+	 */
+	public MCaches getCaches() {
+		return cache;
+	}
+	
+	/**
+	 * Limit the objects' cache by the estimated bytes of objects, instead of the number
+	 * of objects. An object is weighed again when it's loaded. If the memory is shared,
+	 * the capacity is set by the budget when a database is added to it or removed.
+	 * @param bytes the capacity in bytes.
+	 */
+	public void setObjectsCapacityInBytes(long bytes) {
+		objectsWeighedBySize = true;
+		cache.setObjectsWeigher(new MCaches.Weigher<MObject>() {
+			@Override
+			public int weigh(MObject obj) {
+				return obj.estimateSize();
+			}
+		});
+		cache.setObjectsCapacity(bytes);
+	}
+	
+	/**
+	 * Limit the objects' cache by the number of objects, which is the default.
+	 * @param count the capacity in objects.
+	 */
+	public void setObjectsCapacityInCount(long count) {
+		objectsWeighedBySize = false;
+		cache.setObjectsWeigher(null);
+		cache.setObjectsCapacity(count);
+	}
+	
+	/**
+	 * Weigh a loaded object again, if the objects' cache is limited by bytes.
+	 * @param obj the object.
+	 */
+	private void reweigh(MObject obj) {
+		if (objectsWeighedBySize)
+			cache.reweighObject(obj);
+	}
+	
+	/**
+	 * The warmer which records the hot set of caches, and loads it again after restart.
+	 * @return warmer
+	 */
+	public MCacheWarmer getCacheWarmer() {
+		return cacheWarmer;
+	}
+	
+	/**
+	 * Load the elements recorded by cache warmer. The objects are loaded in batch, and 
+	 * the elements not found are dropped from cache.
+	 * @param kind the kind of elements.
+	 * @param ids the IDs.
+	 */
+	private void warmUp(MCacheStatistics.Kind kind, List<Long> ids) {
+		if (dbAdapter == null)
+			return;
+		if (kind == MCacheStatistics.Kind.Object) {
+			List<MObject> objs = new ArrayList<MObject>(ids.size());
+			for (Long id : ids)
+				objs.add(getLazyObject(id));
+			loadObjects(objs);
+			for (MObject obj : objs) {
+				if (!obj.isLoaded())
+					cache.removeElement(obj);
+			}
+		} else if (kind == MCacheStatistics.Kind.Tag) {
+			for (Long id : ids) {
+				MTag tag = getLazyTag(id);
+				try {
+					tag.load();
+				} catch (MException e) {
+					cache.removeElement(tag);
+				}
+			}
+		}
 	}
 	
 	public boolean isAutoSave() {
@@ -86,15 +358,333 @@ public class MDatabase {
 	}
 	
 	/**
-	 * Auto saving will periodically save the elements requires to saved. This method
-	 * set the cycle.
-	 * @param millis the length of time of interval in milliseconds to next auto saving.
+	 * Auto saving will save the changed elements in background. This method sets the
+	 * maximum time that a change waits before it's saved.
+	 * @param millis the time in milliseconds, {@code 0} to save as soon as possible.
 	 */
 	public void setAutoSaveCycle(long millis) {
 		autoSaveContent.setSaveCycle(millis);
 		autoSaveTags.setSaveCycle(millis);
 	}
 	
+	/**
+	 * Set the number of changed elements which are saved together. Reaching it triggers
+	 * auto saving before the cycle ends.
+	 * @param size the size of batch.
+	 */
+	public void setAutoSaveBatchSize(int size) {
+		autoSaveContent.setMaxBatchSize(size);
+		autoSaveTags.setMaxBatchSize(size);
+	}
+	
+	/**
+	 * Set the estimated memory in bytes that the objects waiting for auto saving may
+	 * hold. When it's exceeded, everything is saved at once, and the threads changing
+	 * objects are held back until the saving catches up. If the memory is shared, it's
+	 * the budget of all of the databases sharing it.
+	 * @param bytes the budget, {@code 0} for no limit.
+	 */
+	public void setAutoSaveMemoryBudget(long bytes) {
+		autoSaveContent.setMemoryBudget(bytes);
+	}
+	
+	MAutoSaveQueue<MElement> getAutoSaveQueue() {
+		return autoSaveContent;
+	}
+	
+	/**
+	 * The statistics of auto saving of contents, such as queue depth, flush size and
+	 * flush time.
+	 * @return statistics
+	 */
+	public MAutoSaveStatistics getAutoSaveStatistics() {
+		return autoSaveContent.getStatistics();
+	}
+	
+	/**
+	 * Set the size from which a dictionary or set, which is the value of an attribute,
+	 * is stored apart from its object when the object is saved. The entries of such a
+	 * collection are not loaded with the object, but read by key or in pages. Once a
+	 * collection is stored apart, it stays so even if it becomes small.
+	 * @param size the threshold, {@code 0} to keep all collections in objects.
+	 */
+	public void setLargeCollectionThreshold(int size) {
+		this.largeCollectionThreshold = Math.max(0, size);
+	}
+	
+	public int getLargeCollectionThreshold() {
+		return largeCollectionThreshold;
+	}
+	
+	/**
+	 * Register an element with unsaved changes.
+	 * @param e the element.
+	 */
+	void markDirty(MElement e) {
+		synchronized (dirtyElements) {
+			dirtyElements.add(e);
+		}
+		MBudget.dirtied(e);
+	}
+	
+	/**
+	 * Unregister an element if it has no unsaved change any more.
+	 * @param e the element.
+	 */
+	void markClean(MElement e) {
+		synchronized (dirtyElements) {
+			if (e.isDeleted() || !e.isDirty())
+				dirtyElements.remove(e);
+		}
+	}
+	
+	/**
+	 * The number of elements with unsaved changes.
+	 * @return count.
+	 */
+	public int getDirtyCount() {
+		synchronized (dirtyElements) {
+			return dirtyElements.size();
+		}
+	}
+	
+	/**
+	 * Save all unsaved changes of elements, include their contents, tags, and the
+	 * target elements of tags. The changes are saved by auto saving if it's on,
+	 * otherwise this method should be called to write them back, e.g. before exit.
+	 */
+	public void flush() {
+		List<MElement> elements;
+		synchronized (dirtyElements) {
+			elements = new ArrayList<MElement>(dirtyElements);
+		}
+		for (MElement e : elements) {
+			if (e.isDeleted()) {
+				markClean(e);
+				continue;
+			}
+			if (e.isLoaded())
+				e.save();
+			e.saveTags();
+			if (e instanceof MTag)
+				((MTag) e).saveElements();
+			markClean(e);
+		}
+	}
+	
+	/*
+	 * ********************************
+	 *            SESSIONS
+	 * ********************************
+	 */
+	
+	/**
+	 * The session of each thread.
+	 */
+	private final ThreadLocal<MSession> sessions = new ThreadLocal<MSession>();
+	
+	/**
+	 * Begin a session of current thread. Until the session ends, the objects created,
+	 * changed and deleted by the thread are tracked by the session, and written when
+	 * the session is committed.
+	 * @return the session.
+	 * @see MSession
+	 */
+	public MSession beginSession() {
+		if (sessions.get() != null)
+			throw new MException(MException.Reason.INVALID_SESSION);
+		MSession session = new MSession(this);
+		sessions.set(session);
+		return session;
+	}
+	
+	/**
+	 * The active session of current thread.
+	 * @return the session, or <code>null</code> if there is none.
+	 */
+	public MSession getSession() {
+		return sessions.get();
+	}
+	
+	void endSession(MSession session) {
+		if (sessions.get() == session)
+			sessions.remove();
+	}
+	
+	/**
+	 * Track a changed element by the session of current thread, if there is one and
+	 * the element is an object.
+	 * @param e the element.
+	 * @return <code>true</code> if the element is tracked, so it's not auto saved.
+	 */
+	boolean joinSession(MElement e) {
+		if (e.getElementType() != MElementType.Object)
+			return false;
+		MSession session = sessions.get();
+		if (session == null)
+			return false;
+		session.changed((MObject) e);
+		MBudget.checkCurrent();
+		return true;
+	}
+	
+	/**
+	 * Write the changes of a session, with a batch of writes.
+	 * @param session the session.
+	 */
+	void commitSession(MSession session) {
+		if (dbAdapter == null)
+			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
+		List<MDBAdapter.ObjectDBInfo> created = new ArrayList<MDBAdapter.ObjectDBInfo>();
+		List<MDBAdapter.ObjectDBInfo> updated = new ArrayList<MDBAdapter.ObjectDBInfo>();
+		List<MDBAdapter.ObjectDBInfo> deleted = new ArrayList<MDBAdapter.ObjectDBInfo>();
+		List<MObject> written = new ArrayList<MObject>();
+		List<MDBAdapter.ObjectDBInfo> infos = new ArrayList<MDBAdapter.ObjectDBInfo>();
+		for (MObject obj : session.created.values()) {
+			MDBAdapter.ObjectDBInfo objDBInfo = new MDBAdapter.ObjectDBInfo();
+			obj.saveToDBInfo(objDBInfo);
+			created.add(objDBInfo);
+			written.add(obj);
+			infos.add(objDBInfo);
+		}
+		for (MObject obj : session.changed.values()) {
+			if (!obj.isLoaded())
+				continue;
+			MDBAdapter.ObjectDBInfo objDBInfo = new MDBAdapter.ObjectDBInfo();
+			obj.saveToDBInfo(objDBInfo);
+			written.add(obj);
+			infos.add(objDBInfo);
+			if (!objDBInfo.values.isEmpty() || !objDBInfo.deleteKeys.isEmpty())
+				updated.add(objDBInfo);
+		}
+		for (MObject obj : session.deleted.values()) {
+			MDBAdapter.ObjectDBInfo objDBInfo = new MDBAdapter.ObjectDBInfo();
+			objDBInfo.id = obj.id;
+			objDBInfo.class_id = obj.getClazzID();
+			deleted.add(objDBInfo);
+		}
+		
+		charge(1, 0);
+		MProfile.saved(created.size() + updated.size() + deleted.size());
+		try {
+			dbAdapter.saveObjects(created, updated, deleted);
+		} catch (RuntimeException ex) {
+			// keep the changes, so the session could be committed again
+			for (int i = 0; i < written.size(); i++)
+				written.get(i).restoreChanges(infos.get(i));
+			throw ex;
+		}
+		for (int i = 0; i < written.size(); i++)
+			written.get(i).changesSaved(infos.get(i));
+		
+		// the objects created are in database now, so their tags could be written
+		List<MObject> objs = new ArrayList<MObject>(session.created.values());
+		session.created.clear();
+		for (MObject obj : objs) {
+			if (obj.isTagsLoaded())
+				obj.forceSaveTags();
+			markClean(obj);
+		}
+		for (MObject obj : session.changed.values()) {
+			evictObjectDocument(obj.id);
+			obj.saveTags();
+			markClean(obj);
+		}
+		for (MObject obj : session.deleted.values()) {
+			evictObjectDocument(obj.id);
+			markClean(obj);
+		}
+	}
+	
+	/**
+	 * Whether an element is an object created by the session of current thread, which
+	 * has not been written to database.
+	 * @param ele the element.
+	 * @return <code>true</code> if it's not in database yet.
+	 */
+	private boolean isPendingObject(MElement ele) {
+		if (ele.getElementType() != MElementType.Object)
+			return false;
+		MSession session = sessions.get();
+		return session != null && session.isCreated((MObject) ele);
+	}
+	
+	/**
+	 * Discard the changes of a session.
+	 * @param session the session.
+	 */
+	void rollbackSession(MSession session) {
+		for (MObject obj : session.created.values()) {
+			obj.discard();
+			markClean(obj);
+		}
+		for (MObject obj : session.changed.values()) {
+			obj.unload();
+			markClean(obj);
+		}
+		for (MObject obj : session.deleted.values()) {
+			obj.undelete();
+			markClean(obj);
+		}
+	}
+	
+	/**
+	 * Save the changes of a batch of elements. The objects are written together by a
+	 * bulk write of adapter, the other elements one by one. If a write fails, the
+	 * changes are kept, and the elements are queued again to be retried later.
+	 * @param batch the elements.
+	 */
+	private void saveBatch(List<MElement> batch) {
+		if (dbAdapter == null)
+			return;
+		List<MObject> objs = new ArrayList<MObject>(batch.size());
+		List<MDBAdapter.ObjectDBInfo> infos = new ArrayList<MDBAdapter.ObjectDBInfo>(batch.size());
+		List<MDBAdapter.ObjectDBInfo> updated = new ArrayList<MDBAdapter.ObjectDBInfo>(batch.size());
+		for (MElement e : batch) {
+			if (!e.isLoaded() || e.isDeleted())
+				continue;
+			if (e.getElementType() != MElementType.Object) {
+				try {
+					e.save();
+				} catch (RuntimeException ex) {
+					logger.log(Level.WARNING, "failed to save " + e + ", retry later", ex);
+					autoSaveContent.retry(e);
+				}
+				continue;
+			}
+			MObject obj = (MObject) e;
+			if (!obj.isChanged())
+				continue;
+			MDBAdapter.ObjectDBInfo objDBInfo = new MDBAdapter.ObjectDBInfo();
+			// the flag is cleared with the changes taken, so a change made during the
+			// write is not lost, and restored if the write fails
+			obj.saveToDBInfo(objDBInfo);
+			objs.add(obj);
+			infos.add(objDBInfo);
+			if (!objDBInfo.values.isEmpty() || !objDBInfo.deleteKeys.isEmpty())
+				updated.add(objDBInfo);
+		}
+		if (!updated.isEmpty()) {
+			List<MDBAdapter.ObjectDBInfo> none = Collections.emptyList();
+			try {
+				dbAdapter.saveObjects(none, updated, none);
+			} catch (RuntimeException ex) {
+				logger.log(Level.WARNING, "failed to save " + updated.size() + " objects, retry later", ex);
+				for (int i = 0; i < objs.size(); i++) {
+					objs.get(i).restoreChanges(infos.get(i));
+					autoSaveContent.retry(objs.get(i));
+				}
+				return;
+			}
+		}
+		for (int i = 0; i < objs.size(); i++)
+			objs.get(i).changesSaved(infos.get(i));
+		for (MObject obj : objs) {
+			evictObjectDocument(obj.id);
+			markClean(obj);
+		}
+	}
+	
 	void autoSave(MElement e) {
 		autoSaveContent.offer(e);
 	}
@@ -109,10 +699,27 @@ public class MDatabase {
 	 * ********************************
 	 */
 	
+	/**
+	 * The number of locks for creating "lazy" elements, a power of two.
+	 */
+	private static final int LAZY_LOCKS = 16;
+	
+	/**
+	 * The locks which make sure that only one instance of an object or a tag is created,
+	 * when several threads fault it in at the same time.
+	 */
+	private final Object[] lazyLocks = new Object[LAZY_LOCKS];
+	
+	/**
+	 * The lock of loading meta elements. It's held before the lock of meta element
+	 * registry, e.g. in <code>initialize()</code>.
+	 */
+	private final Object metaLock = new Object();
+	
 	/**
 	 * DB adapter. The adapter contributes a data storage system for the system.
 	 */
-	private MDBAdapter dbAdapter = null;
+	private volatile MDBAdapter dbAdapter = null;
 	
 	/*
 	 * ********************************
@@ -132,35 +739,42 @@ public class MDatabase {
 		
 		dbAdapter.checkAndPrepareDB();
 		
-		// load all packages
-		List<Long> pkgIDList = this.dbAdapter.listAllPackageIDs();
-		for (Long pkgID : pkgIDList) {
-			this.getPackage(pkgID);
-		}
-		// load all classes
-		List<Long> clsIDList = this.dbAdapter.listAllClassIDs();
-		for (Long clsID : clsIDList) {
-			this.getClass(clsID);
-		}
-		// load all enumes
-		List<Long> enmIDList = this.dbAdapter.listAllEnumIDs();
-		for (Long enmID : enmIDList) {
-			this.getEnum(enmID);
-		}
-		// load all attributes
-		List<Long> atbIDList = this.dbAdapter.listAllAttributeIDs();
-		for (Long atbID : atbIDList) {
-			this.getAttribute(atbID);
-		}
-		// load all references
-		List<Long> refIDList = this.dbAdapter.listAllReferenceIDs();
-		for (Long refID : refIDList) {
-			this.getReference(refID);
-		}
-		// load all symbols
-		List<Long> symIDList = this.dbAdapter.listAllSymbolIDs();
-		for (Long symID : symIDList) {
-			this.getSymbol(symID);
+		synchronized (metaLock) {
+			cache.beginMetaBatch();
+			try {
+				// load all packages
+				List<Long> pkgIDList = this.dbAdapter.listAllPackageIDs();
+				for (Long pkgID : pkgIDList) {
+					this.getPackage(pkgID);
+				}
+				// load all classes
+				List<Long> clsIDList = this.dbAdapter.listAllClassIDs();
+				for (Long clsID : clsIDList) {
+					this.getClass(clsID);
+				}
+				// load all enumes
+				List<Long> enmIDList = this.dbAdapter.listAllEnumIDs();
+				for (Long enmID : enmIDList) {
+					this.getEnum(enmID);
+				}
+				// load all attributes
+				List<Long> atbIDList = this.dbAdapter.listAllAttributeIDs();
+				for (Long atbID : atbIDList) {
+					this.getAttribute(atbID);
+				}
+				// load all references
+				List<Long> refIDList = this.dbAdapter.listAllReferenceIDs();
+				for (Long refID : refIDList) {
+					this.getReference(refID);
+				}
+				// load all symbols
+				List<Long> symIDList = this.dbAdapter.listAllSymbolIDs();
+				for (Long symID : symIDList) {
+					this.getSymbol(symID);
+				}
+			} finally {
+				cache.endMetaBatch();
+			}
 		}
 	}
 	
@@ -173,6 +787,9 @@ public class MDatabase {
 			return;
 		dbAdapter.resetDB();
 		cache.clear();
+		synchronized (dirtyElements) {
+			dirtyElements.clear();
+		}
 	}
 	
 	/*
@@ -205,6 +822,7 @@ public class MDatabase {
 	protected long getNewID() {
 		if (dbAdapter == null)
 			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
+		charge(1, 0);
 		long id = dbAdapter.loadLastIDAndIncrement();
 		// in case of the id is NULL_ID
 		if (id == MElement.NULL_ID)
@@ -226,6 +844,7 @@ public class MDatabase {
 		if (e != null) {
 			return e.getElementType();
 		} else {
+			charge(1, 0);
 			MElementType type = this.dbAdapter.getElementType(id);
 			return type;
 		}
@@ -243,6 +862,17 @@ public class MDatabase {
 		cache.removeElement(e);
 	}
 	
+	/**
+	 * Charge the budget and the profile of current thread for round trips to storage
+	 * and objects loaded.
+	 * @param trips the number of round trips.
+	 * @param objs the number of objects loaded.
+	 */
+	private static void charge(int trips, int objs) {
+		MBudget.charge(trips, objs);
+		MProfile.charge(trips, objs);
+	}
+	
 	/**
 	 * Check whether the element with specific ID is exist and if exist, whether the type of
 	 * element is the expect type. Throw a <code>MException</code> if not. This method always
@@ -251,6 +881,7 @@ public class MDatabase {
 	 * @param type the expect type.
 	 */
 	private void checkExistenceAndType(long id, MElementType type) {
+		charge(1, 0);
 		MElementType t = dbAdapter.getElementType(id);
 		if (t == null)
 			throw new MException(MException.Reason.ELEMENT_MISSED);
@@ -264,6 +895,7 @@ public class MDatabase {
 	 * @param id the specific ID.
 	 */
 	private void checkExistence(long id) {
+		charge(1, 0);
 		MElementType t = dbAdapter.getElementType(id);
 		if (t == null)
 			throw new MException(MException.Reason.ELEMENT_MISSED);
@@ -275,21 +907,39 @@ public class MDatabase {
 	 * @param id the specific ID.
 	 */
 	private void checkConflict(long id) {
+		charge(1, 0);
 		MElementType t = dbAdapter.getElementType(id);
 		if (t != null)
 			throw new MException(MException.Reason.ELEMENT_CONFILICT);
 	}
 	
 	/**
-	 * Load the element information from database.
+	 * Load the element information from database. The loading runs in the scope of this
+	 * database, so the pointers loaded are resolved in this database.
 	 * @param ele The element to be loaded.
 	 */
 	void loadElement(MElement ele, int flag) {
+		Scope scope = enter();
+		try {
+			loadElementInScope(ele, flag);
+		} finally {
+			scope.close();
+		}
+	}
+	
+	private void loadElementInScope(MElement ele, int flag) {
 		if (dbAdapter == null)
 			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
 		if (ele == null)
 			return;
+		long start = System.nanoTime();
+		if (ele.getElementType() == MElementType.Object && loadObjectFromDocuments((MObject) ele, flag)) {
+			charge(0, 1);
+			cache.recordLoad(MElementType.Object, System.nanoTime() - start);
+			return;
+		}
 		checkExistenceAndType(ele.id, ele.getElementType());
+		charge(1, ele.getElementType() == MElementType.Object ? 1 : 0);
 		
 		switch (ele.getElementType()) {
 		case Package:
@@ -339,7 +989,9 @@ public class MDatabase {
 			MDBAdapter.ObjectDBInfo objDBInfo = new MDBAdapter.ObjectDBInfo(flag);
 			objDBInfo.id = obj.id;
 			dbAdapter.loadObject(objDBInfo);
+			putObjectDocument(objDBInfo);
 			obj.loadFromDBInfo(objDBInfo);
+			reweigh(obj);
 			break;
 		case Tag:
 			MTag tag = (MTag) ele;
@@ -351,6 +1003,121 @@ public class MDatabase {
 		default:
 			throw new MException(MException.Reason.NOT_SUPPORT_YET);
 		}
+		cache.recordLoad(ele.getElementType(), System.nanoTime() - start);
+	}
+	
+	/**
+	 * Load a batch of objects with all attributes. The objects which have been loaded
+	 * are skipped, and the others are loaded by a few queries instead of a query
+	 * per object. The objects not found in database are left unloaded.
+	 * @param objs the objects.
+	 */
+	void loadObjects(Collection<MObject> objs) {
+		Scope scope = enter();
+		try {
+			loadObjectsInScope(objs);
+		} finally {
+			scope.close();
+		}
+	}
+	
+	private void loadObjectsInScope(Collection<MObject> objs) {
+		if (dbAdapter == null)
+			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
+		Map<Long, MObject> pending = new HashMap<Long, MObject>();
+		List<MDBAdapter.ObjectDBInfo> infos = new ArrayList<MDBAdapter.ObjectDBInfo>();
+		for (MObject obj : objs) {
+			if (obj == null || obj.isLoaded() || obj.isDeleted() || pending.containsKey(obj.id))
+				continue;
+			long start = System.nanoTime();
+			synchronized (obj) {
+				if (obj.isLoaded())
+					continue;
+				if (loadObjectFromDocuments(obj, MElement.FULL_ATTRIB_FLAG)) {
+					charge(0, 1);
+					obj.markLoaded();
+					cache.recordLoad(MElementType.Object, System.nanoTime() - start);
+					continue;
+				}
+			}
+			MDBAdapter.ObjectDBInfo objDBInfo = new MDBAdapter.ObjectDBInfo();
+			objDBInfo.id = obj.id;
+			infos.add(objDBInfo);
+			pending.put(obj.id, obj);
+		}
+		if (infos.isEmpty())
+			return;
+		charge(1, infos.size());
+		long start = System.nanoTime();
+		Set<Long> missed = new HashSet<Long>(dbAdapter.loadObjects(infos));
+		long elapsed = (System.nanoTime() - start) / infos.size();
+		for (MDBAdapter.ObjectDBInfo objDBInfo : infos) {
+			if (missed.contains(objDBInfo.id))
+				continue;
+			putObjectDocument(objDBInfo);
+			MObject obj = pending.get(objDBInfo.id);
+			// another thread may have loaded and changed it meanwhile
+			synchronized (obj) {
+				if (obj.isLoaded())
+					continue;
+				obj.loadFromDBInfo(objDBInfo);
+				reweigh(obj);
+				obj.markLoaded();
+			}
+			cache.recordLoad(MElementType.Object, elapsed);
+		}
+	}
+	
+	/**
+	 * Load an object from the off-heap document cache, if it's enabled and has the
+	 * document of object. The document of an object is dropped when the object is changed
+	 * or deleted in database, so the existence of object is not checked again.
+	 * @param obj the object to be loaded.
+	 * @param flag the attribute flags.
+	 * @return {@code true} if the object is loaded.
+	 */
+	private boolean loadObjectFromDocuments(MObject obj, int flag) {
+		MOffHeapCache documents = cache.getDocumentCache();
+		if (documents == null)
+			return false;
+		byte[] data = documents.get(obj.id);
+		if (data == null)
+			return false;
+		MDBAdapter.ObjectDBInfo objDBInfo = new MDBAdapter.ObjectDBInfo(flag);
+		objDBInfo.id = obj.id;
+		if (!MDocumentCodec.decode(data, objDBInfo)) {
+			documents.remove(obj.id);
+			return false;
+		}
+		obj.loadFromDBInfo(objDBInfo);
+		reweigh(obj);
+		return true;
+	}
+	
+	/**
+	 * Put the document of an object loaded from database into the off-heap document cache,
+	 * if it's enabled and the document is complete.
+	 * @param objDBInfo the information of object.
+	 */
+	private void putObjectDocument(MDBAdapter.ObjectDBInfo objDBInfo) {
+		MOffHeapCache documents = cache.getDocumentCache();
+		if (documents == null || !objDBInfo.isFlagged(MObject.ATTRIB_FLAG_CLASS) 
+				|| !objDBInfo.isFlagged(MObject.ATTRIB_FLAG_VALUES))
+			return;
+		byte[] data = MDocumentCodec.encode(objDBInfo);
+		if (data != null)
+			documents.put(objDBInfo.id, data);
+	}
+	
+	/**
+	 * Drop the document of an object from the off-heap document cache, since it's
+	 * changed or deleted in database.
+	 * @param id the ID of object.
+	 */
+	private void evictObjectDocument(long id) {
+		MOffHeapCache documents = cache.getDocumentCache();
+		if (documents != null)
+			documents.remove(id);
 	}
 	
 	/**
@@ -364,9 +1131,16 @@ public class MDatabase {
 			return;
 		if (ele.isDeleted())
 			return;
+		if (ele.getElementType() == MElementType.Object && sessions.get() != null) {
+			// written when the session is committed
+			sessions.get().changed((MObject) ele);
+			return;
+		}
 		
 		if (ele.isLoaded()) {
 			checkExistenceAndType(ele.id, ele.getElementType());
+			charge(1, 0);
+			MProfile.saved(1);
 			
 			switch (ele.getElementType()) {
 			case Package:
@@ -409,7 +1183,14 @@ public class MDatabase {
 				MObject obj = (MObject) ele;
 				MDBAdapter.ObjectDBInfo objDBInfo = new MDBAdapter.ObjectDBInfo(flag);
 				obj.saveToDBInfo(objDBInfo);
-				dbAdapter.updateObject(objDBInfo);
+				try {
+					dbAdapter.updateObject(objDBInfo);
+				} catch (RuntimeException ex) {
+					obj.restoreChanges(objDBInfo);
+					throw ex;
+				}
+				obj.changesSaved(objDBInfo);
+				evictObjectDocument(obj.id);
 				break;
 			case Tag:
 				MTag tag = (MTag) ele;
@@ -430,7 +1211,16 @@ public class MDatabase {
 	void createElement(MElement ele) {
 		if (dbAdapter == null)
 			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
+		if (ele.getElementType() == MElementType.Object && sessions.get() != null) {
+			// written when the session is committed
+			sessions.get().created((MObject) ele);
+			MBudget.dirtied(ele);
+			MBudget.checkCurrent();
+			return;
+		}
 		checkConflict(ele.id);
+		charge(1, 0);
+		MProfile.saved(1);
 		
 		switch (ele.getElementType()) {
 		case Package:
@@ -497,7 +1287,16 @@ public class MDatabase {
 			return;
 		if (ele.isDeleted())
 			return;
+		if (ele.getElementType() == MElementType.Object && sessions.get() != null) {
+			// written when the session is committed
+			sessions.get().deleted((MObject) ele);
+			MBudget.dirtied(ele);
+			MBudget.checkCurrent();
+			return;
+		}
 		checkExistenceAndType(ele.id, ele.getElementType());
+		charge(1, 0);
+		MProfile.saved(1);
 		
 		switch (ele.getElementType()) {
 		case Package:
@@ -535,6 +1334,7 @@ public class MDatabase {
 			objDBInfo.id = ele.id;
 			objDBInfo.class_id = ((MObject) ele).getClazzID();
 			dbAdapter.deleteObject(objDBInfo);
+			evictObjectDocument(ele.id);
 			break;
 		case Tag:
 			MDBAdapter.TagDBInfo tagDBInfo = new MDBAdapter.TagDBInfo();
@@ -557,9 +1357,14 @@ public class MDatabase {
 			return;
 		if (ele.isDeleted())
 			return;
+		MDBAdapter.IDList idList = new MDBAdapter.IDList();
+		if (isPendingObject(ele)) {
+			ele.loadTagsFromDBInfo(idList);
+			return;
+		}
 		checkExistence(ele.id);
 
-		MDBAdapter.IDList idList = new MDBAdapter.IDList();
+		charge(1, 0);
 		this.dbAdapter.loadElementTags(ele.id, idList);
 		ele.loadTagsFromDBInfo(idList);
 	}
@@ -575,10 +1380,14 @@ public class MDatabase {
 			return;
 		if (ele.isDeleted())
 			return;
+		if (isPendingObject(ele))
+			// written when the session is committed
+			return;
 		checkExistence(ele.id);
 		
 		MDBAdapter.IDList idList = new MDBAdapter.IDList();
 		ele.saveTagsToDBInfo(idList);
+		charge(1, 0);
 		this.dbAdapter.saveElementTags(ele.id, idList);
 	}
 	
@@ -591,6 +1400,7 @@ public class MDatabase {
 			return;
 		
 		MDBAdapter.IDList idList = new MDBAdapter.IDList();
+		charge(1, 0);
 		this.dbAdapter.loadTagElements(tag.id, idList);
 		tag.loadElementsFromDBInfo(idList);
 	}
@@ -605,6 +1415,7 @@ public class MDatabase {
 		
 		MDBAdapter.IDList idList = new MDBAdapter.IDList();
 		tag.saveElementsToDBInfo(idList);
+		charge(1, 0);
 		this.dbAdapter.saveTagElements(tag.id, idList);
 	}
 	
@@ -618,26 +1429,91 @@ public class MDatabase {
 		
 		MDBAdapter.TagDBInfo tagDBInfo = new MDBAdapter.TagDBInfo(MTag.ATTRIB_FLAG_NAME);
 		tagDBInfo.id = tag.id;
+		charge(1, 0);
 		dbAdapter.loadTag(tagDBInfo);
 		tag.name = tagDBInfo.name;
 	}
 	
+	/**
+	 * Load an entry of a large collection.
+	 * @param obj the object.
+	 * @param atbId the ID of attribute.
+	 * @param key the key of entry.
+	 * @return the value, or {@code null} if not exist.
+	 */
+	Object loadSpilledEntry(MObject obj, long atbId, String key) {
+		if (dbAdapter == null)
+			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
+		
+		charge(1, 0);
+		return dbAdapter.loadSpilledEntry(obj.id, atbId, key);
+	}
+	
+	/**
+	 * Load a page of entries of a large collection, in the order of keys.
+	 * @param obj the object.
+	 * @param atbId the ID of attribute.
+	 * @param after the key after which the page starts, {@code null} for the first page.
+	 * @param limit the maximum number of entries.
+	 * @return the entries.
+	 */
+	MDBAdapter.DataDict loadSpilledEntries(MObject obj, long atbId, String after, int limit) {
+		if (dbAdapter == null)
+			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
+		
+		charge(1, 0);
+		return dbAdapter.loadSpilledEntries(obj.id, atbId, after, limit);
+	}
+	
 	List<Long> listAllObjectsID(MClass cls) {
 		if (dbAdapter == null)
 			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
 		if (cls == null)
 			return null;
 		
+		charge(1, 0);
 		return dbAdapter.listAllObjectIDs(cls.id);
 	}
 	
+	/**
+	 * Find the IDs of all objects of a class, and optionally of all its sub-classes,
+	 * with a single cursor.
+	 * @param cls the class.
+	 * @param includeSubclasses whether the objects of sub-classes are included.
+	 * @return the cursor of object IDs.
+	 */
+	MDBAdapter.IDCursor findObjectsID(MClass cls, boolean includeSubclasses) {
+		if (dbAdapter == null)
+			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
+		if (cls == null)
+			return null;
+		
+		long[] ids;
+		if (includeSubclasses) {
+			MClass[] subs = cls.getAllSubClasses();
+			ids = new long[subs.length + 1];
+			ids[0] = cls.id;
+			for (int i = 0; i < subs.length; i++)
+				ids[i + 1] = subs[i].id;
+		} else {
+			ids = new long[] { cls.id };
+		}
+		charge(1, 0);
+		return dbAdapter.findObjectIDs(ids);
+	}
+	
 	void deleteAllObjects(MClass cls) {
 		if (dbAdapter == null)
 			throw new MException(MException.Reason.DB_ADAPTER_NOT_ATTACHED);
 		if (cls == null)
 			return;
 		
+		charge(1, 0);
 		dbAdapter.deleteAllObjects(cls.id);
+		// the documents are not indexed by class, so all of them are dropped
+		MOffHeapCache documents = cache.getDocumentCache();
+		if (documents != null)
+			documents.clear();
 	}
 	
 	/**
@@ -649,19 +1525,25 @@ public class MDatabase {
 	 */
 	protected MPackage getPackage(long id) {
 		if (id == MElement.NULL_ID)
-			return MPackage.DEFAULT_PACKAGE;
+			return getDefaultPackage();
 		MElement meta = cache.getMetaElement(id);
-		MPackage pkg = null;
-		if (meta == null) {
-			pkg = new MPackage(id);
-			pkg.load();
-			cache.addElement(pkg);
-		} else if (meta.getElementType() == MElementType.Package) {
-			pkg = (MPackage) meta;
-		} else {
-			throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+		if (meta instanceof MPackage)
+			return (MPackage) meta;
+		// loaded once even if several threads miss it
+		synchronized (metaLock) {
+			meta = cache.getMetaElement(id);
+			MPackage pkg = null;
+			if (meta == null) {
+				pkg = new MPackage(this, id);
+				pkg.load();
+				cache.addElement(pkg);
+			} else if (meta.getElementType() == MElementType.Package) {
+				pkg = (MPackage) meta;
+			} else {
+				throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+			}
+			return pkg;
 		}
-		return pkg;
 	}
 
 	/**
@@ -674,18 +1556,24 @@ public class MDatabase {
 	protected MClass getClass(long id) {
 		if (id == MElement.NULL_ID)
 			return null;
-		MElement meta = cache.getMetaElement(id);;
-		MClass cls = null;
-		if (meta == null) {
-			cls = new MClass(id);
-			cls.forceLoad();
-			cache.addElement(cls);
-		} else if (meta instanceof MClass) {
-			cls = (MClass) meta;
-		} else {
-			throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+		MElement meta = cache.getMetaElement(id);
+		if (meta instanceof MClass)
+			return (MClass) meta;
+		// loaded once even if several threads miss it
+		synchronized (metaLock) {
+			meta = cache.getMetaElement(id);
+			MClass cls = null;
+			if (meta == null) {
+				cls = new MClass(this, id);
+				cls.forceLoad();
+				cache.addElement(cls);
+			} else if (meta instanceof MClass) {
+				cls = (MClass) meta;
+			} else {
+				throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+			}
+			return cls;
 		}
-		return cls;
 	}
 	
 	/**
@@ -699,17 +1587,23 @@ public class MDatabase {
 		if (id == MElement.NULL_ID)
 			return null;
 		MElement meta = cache.getMetaElement(id);
-		MAttribute atb = null;
-		if (meta == null) {
-			atb = new MAttribute(id);
-			atb.forceLoad();
-			cache.addElement(atb);
-		} else if (meta instanceof MAttribute) {
-			atb = (MAttribute) meta;
-		} else {
-			throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+		if (meta instanceof MAttribute)
+			return (MAttribute) meta;
+		// loaded once even if several threads miss it
+		synchronized (metaLock) {
+			meta = cache.getMetaElement(id);
+			MAttribute atb = null;
+			if (meta == null) {
+				atb = new MAttribute(this, id);
+				atb.forceLoad();
+				cache.addElement(atb);
+			} else if (meta instanceof MAttribute) {
+				atb = (MAttribute) meta;
+			} else {
+				throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+			}
+			return atb;
 		}
-		return atb;
 	}
 	
 	/**
@@ -723,17 +1617,23 @@ public class MDatabase {
 		if (id == MElement.NULL_ID)
 			return null;
 		MElement meta = cache.getMetaElement(id);
-		MReference ref = null;
-		if (meta == null) {
-			ref = new MReference(id);
-			ref.forceLoad();
-			cache.addElement(ref);
-		} else if (meta instanceof MReference) {
-			ref = (MReference) meta;
-		} else {
-			throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+		if (meta instanceof MReference)
+			return (MReference) meta;
+		// loaded once even if several threads miss it
+		synchronized (metaLock) {
+			meta = cache.getMetaElement(id);
+			MReference ref = null;
+			if (meta == null) {
+				ref = new MReference(this, id);
+				ref.forceLoad();
+				cache.addElement(ref);
+			} else if (meta instanceof MReference) {
+				ref = (MReference) meta;
+			} else {
+				throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+			}
+			return ref;
 		}
-		return ref;
 	}
 	
 	/**
@@ -747,17 +1647,23 @@ public class MDatabase {
 		if (id == MElement.NULL_ID)
 			return null;
 		MElement meta = cache.getMetaElement(id);
-		MEnum enm = null;
-		if (meta == null) {
-			enm = new MEnum(id);
-			enm.forceLoad();
-			cache.addElement(enm);
-		} else if (meta instanceof MEnum) {
-			enm = (MEnum) meta;
-		} else {
-			throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+		if (meta instanceof MEnum)
+			return (MEnum) meta;
+		// loaded once even if several threads miss it
+		synchronized (metaLock) {
+			meta = cache.getMetaElement(id);
+			MEnum enm = null;
+			if (meta == null) {
+				enm = new MEnum(this, id);
+				enm.forceLoad();
+				cache.addElement(enm);
+			} else if (meta instanceof MEnum) {
+				enm = (MEnum) meta;
+			} else {
+				throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+			}
+			return enm;
 		}
-		return enm;
 	}
 	
 	/**
@@ -771,17 +1677,23 @@ public class MDatabase {
 		if (id == MElement.NULL_ID)
 			return null;
 		MElement meta = cache.getMetaElement(id);
-		MSymbol sym = null;
-		if (meta == null) {
-			sym = new MSymbol(id);
-			sym.forceLoad();
-			cache.addElement(sym);
-		} else if (meta instanceof MSymbol) {
-			sym = (MSymbol) meta;
-		} else {
-			throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+		if (meta instanceof MSymbol)
+			return (MSymbol) meta;
+		// loaded once even if several threads miss it
+		synchronized (metaLock) {
+			meta = cache.getMetaElement(id);
+			MSymbol sym = null;
+			if (meta == null) {
+				sym = new MSymbol(this, id);
+				sym.forceLoad();
+				cache.addElement(sym);
+			} else if (meta instanceof MSymbol) {
+				sym = (MSymbol) meta;
+			} else {
+				throw new MException(MException.Reason.MISMATCHED_ELEMENT_TYPE);
+			}
+			return sym;
 		}
-		return sym;
 	}
 	
 	/*
@@ -824,9 +1736,17 @@ public class MDatabase {
 		if (id == MElement.NULL_ID)
 			return null;
 		MObject obj = cache.getObjectElement(id);
-		if (obj == null) {
-			obj = new MObject(id);
-			cache.addElement(obj);
+		if (obj != null) {
+			MProfile.hit();
+			return obj;
+		}
+		MProfile.miss();
+		synchronized (lazyLockFor(id)) {
+			obj = cache.getObjectElement(id);
+			if (obj == null) {
+				obj = new MObject(this, id);
+				cache.addElement(obj);
+			}
 		}
 		return obj;
 	}
@@ -843,13 +1763,27 @@ public class MDatabase {
 		if (id == MElement.NULL_ID)
 			return null;
 		MTag tag = cache.getTagElement(id);
-		if (tag == null) {
-			tag = new MTag(id);
-			cache.addElement(tag);
+		if (tag != null) {
+			MProfile.hit();
+			return tag;
+		}
+		MProfile.miss();
+		synchronized (lazyLockFor(id)) {
+			tag = cache.getTagElement(id);
+			if (tag == null) {
+				tag = new MTag(this, id);
+				cache.addElement(tag);
+			}
 		}
 		return tag;
 	}
 	
+	private Object lazyLockFor(long id) {
+		int h = (int) (id ^ (id >>> 32));
+		h ^= (h >>> 16);
+		return lazyLocks[h & (LAZY_LOCKS - 1)];
+	}
+	
 	/**
 	 * Get all objects of a class.
 	 * @param class_id The ID of class.
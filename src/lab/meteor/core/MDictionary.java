@@ -14,7 +14,9 @@ import java.util.TreeMap;
  * The dictionary can only be created by the factory method
  * <code>MCollection.createCollection()</code>.
  * <p>
- * It's a wrapper of <code>TreeMap&ltString, Object&gt</code>.
+ * It's a wrapper of <code>TreeMap&ltString, Object&gt</code>. A large dictionary, which
+ * is the value of an attribute, is stored apart from the object, and its entries are
+ * not loaded with the object. See {@link #isLarge()}.
  * @author Qiang
  *
  */
@@ -30,45 +32,64 @@ public class MDictionary extends MCollection implements Iterable<Map.Entry<Strin
 
 	final Map<String, Object> dict = new TreeMap<String, Object>();
 	
+	/**
+	 * The state of large dictionary, {@code null} if the entries are in memory.
+	 */
+	MSpill spill = null;
+	
 	public Object put(String key, Object value) {
 		checkType(value);
 		
 		value = toInputObject(value);
-		Object o = dict.put(key, value);
-		o = toOutputObject(value);
+		Object o = spill != null ? spill.put(key, value) : dict.put(key, value);
+		o = toOutputObject(o);
 		this.notifyChanged();
 		return o;
 	}
 
 	public Object remove(String key) {
-		Object o = dict.remove(key);
+		Object o = spill != null ? spill.remove(key) : dict.remove(key);
 		o = toOutputObject(o);
 		this.notifyChanged();
 		return o;
 	}
 
 	public Object get(String key) {
-		Object o = dict.get(key);
+		Object o = spill != null ? spill.get(key) : dict.get(key);
 		o = toOutputObject(o);
 		return o;
 	}
 
 	public void clear() {
-		dict.clear();
+		if (spill != null)
+			spill.clear();
+		else
+			dict.clear();
 		this.notifyChanged();
 	}
 
 	public boolean containsKey(String key) {
+		if (spill != null)
+			return spill.get(key) != null;
 		return dict.containsKey(key);
 	}
 
 	public boolean containsValue(Object value) {
 		value = toInputObject(value);
+		if (spill != null) {
+			Iterator<Map.Entry<String, Object>> it = spill.iterator();
+			while (it.hasNext()) {
+				Object o = it.next().getValue();
+				if (value == null ? o == null : value.equals(o))
+					return true;
+			}
+			return false;
+		}
 		return dict.containsValue(value);
 	}
 
 	public boolean isEmpty() {
-		return dict.isEmpty();
+		return size() == 0;
 	}
 	
 	public Iterator<String> keyIterator() {
@@ -76,8 +97,64 @@ public class MDictionary extends MCollection implements Iterable<Map.Entry<Strin
 	}
 
 	public int size() {
+		if (spill != null)
+			return spill.size();
 		return dict.size();
 	}
+	
+	/**
+	 * Whether the dictionary is stored apart from the object. The entries of a large
+	 * dictionary are read by key one by one, and iterated in pages.
+	 * @return <code>true</code> if it's large.
+	 */
+	public boolean isLarge() {
+		return spill != null;
+	}
+	
+	/**
+	 * Take the dictionary to be written as a large dictionary, if it's large or it
+	 * reaches the threshold.
+	 * @param threshold the threshold of size, <code>0</code> if there is no threshold.
+	 * @return the dictionary to be written, or <code>null</code> if it's written in object.
+	 */
+	MDBAdapter.SpilledCollection takeSpill(int threshold) {
+		if (spill != null)
+			return spill.takeChanges();
+		if (threshold <= 0 || dict.size() < threshold)
+			return null;
+		MSpill s = new MSpill(this, Factory.Dictionary, 0);
+		s.clear();
+		for (Map.Entry<String, Object> entry : dict.entrySet())
+			s.put(entry.getKey(), entry.getValue());
+		dict.clear();
+		s.markFresh();
+		spill = s;
+		return s.takeChanges();
+	}
+	
+	/**
+	 * Confirm that the dictionary taken by {@link #takeSpill(int)} is written.
+	 * @param sc the dictionary written.
+	 */
+	void spillSaved(MDBAdapter.SpilledCollection sc) {
+		if (spill != null)
+			spill.persisted(sc);
+	}
+	
+	/**
+	 * Keep the changes of the dictionary taken by {@link #takeSpill(int)} whose write
+	 * failed. If it was spilled by that save, the entries are moved back in memory.
+	 * @param sc the dictionary not written.
+	 */
+	void spillFailed(MDBAdapter.SpilledCollection sc) {
+		if (spill == null)
+			return;
+		spill.unpersisted(sc);
+		if (spill.isFresh()) {
+			dict.putAll(spill.entries());
+			spill = null;
+		}
+	}
 
 	@Override
 	public Iterator<Entry<String, Object>> iterator() {
@@ -109,7 +186,11 @@ public class MDictionary extends MCollection implements Iterable<Map.Entry<Strin
 			checkType(value);
 			
 			value = toInputObject(value);
-			Object o = entry.setValue(value);
+			Object o;
+			if (spill != null)
+				o = spill.put(entry.getKey(), value);
+			else
+				o = entry.setValue(value);
 			o = toOutputObject(o);
 			MDictionary.this.notifyChanged();
 			return o;
@@ -122,7 +203,10 @@ public class MDictionary extends MCollection implements Iterable<Map.Entry<Strin
 		private final Iterator<Map.Entry<String, Object>> it;
 		
 		public MapItr() {
-			it = MDictionary.this.dict.entrySet().iterator();
+			if (spill != null)
+				it = spill.iterator();
+			else
+				it = MDictionary.this.dict.entrySet().iterator();
 		}
 		
 		@Override
@@ -146,10 +230,13 @@ public class MDictionary extends MCollection implements Iterable<Map.Entry<Strin
 	
 	private class KeyItr implements Iterator<String> {
 
-		private final Iterator<String> it;
+		private final Iterator<Map.Entry<String, Object>> it;
 		
 		public KeyItr() {
-			it = MDictionary.this.dict.keySet().iterator();
+			if (spill != null)
+				it = spill.iterator();
+			else
+				it = MDictionary.this.dict.entrySet().iterator();
 		}
 		
 		@Override
@@ -159,7 +246,7 @@ public class MDictionary extends MCollection implements Iterable<Map.Entry<Strin
 
 		@Override
 		public String next() {
-			return it.next();
+			return it.next().getKey();
 		}
 
 		@Override
@@ -175,7 +262,7 @@ public class MDictionary extends MCollection implements Iterable<Map.Entry<Strin
 	public void forEach(ForEachCallback callback) {
 		if (callback == null)
 			return;
-		Iterator<Entry<String, Object>> it = dict.entrySet().iterator();
+		Iterator<Entry<String, Object>> it = spill != null ? spill.iterator() : dict.entrySet().iterator();
 		while (it.hasNext()) {
 			Entry<String, Object> e = it.next();
 			Object o = e.getValue();
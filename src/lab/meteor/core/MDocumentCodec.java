@@ -0,0 +1,246 @@
+package lab.meteor.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Map;
+
+import lab.meteor.core.MElement.MElementType;
+import lab.meteor.core.type.MBinary;
+import lab.meteor.core.type.MCode;
+
+/**
+ * The compact binary form of the object documents, which is used by the off-heap
+ * document cache. A document is the class ID and the values of an object, in the
+ * form that <code>MDBAdapter</code> loads them.
+ * <p>
+ * The values are written with a type tag. A document with a value the codec doesn't
+ * know (e.g. <code>MRef</code>) is not encoded, so it's always loaded from database.
+ */
+final class MDocumentCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte T_NULL = 0;
+	private static final byte T_STRING = 1;
+	private static final byte T_INTEGER = 2;
+	private static final byte T_LONG = 3;
+	private static final byte T_DOUBLE = 4;
+	private static final byte T_BOOLEAN = 5;
+	private static final byte T_DATE = 6;
+	private static final byte T_BINARY = 7;
+	private static final byte T_CODE = 8;
+	private static final byte T_POINTER = 9;
+	private static final byte T_LIST = 10;
+	private static final byte T_SET = 11;
+	private static final byte T_DICT = 12;
+	private static final byte T_PACKED = 13;
+
+	private static final MCollection.Factory[] FACTORIES = MCollection.Factory.values();
+
+	private static final MElementType[] TYPES = MElementType.values();
+
+	/**
+	 * Thrown when a value can't be encoded.
+	 */
+	private static class UnsupportedValueException extends IOException {
+		private static final long serialVersionUID = -1204875532916617370L;
+	}
+
+	private MDocumentCodec() {
+	}
+
+	/**
+	 * Encode the class ID and the values of an object.
+	 * @param obj the loaded information with all flags.
+	 * @return the document, {@code null} if it contains a value can't be encoded.
+	 */
+	static byte[] encode(MDBAdapter.ObjectDBInfo obj) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeLong(obj.class_id);
+			writeDict(out, obj.values);
+			out.flush();
+		} catch (IOException e) {
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode a document into the information of object.
+	 * @param data the document.
+	 * @param obj the information to be filled.
+	 * @return {@code false} if the document is corrupted, the information is not changed.
+	 */
+	static boolean decode(byte[] data, MDBAdapter.ObjectDBInfo obj) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			long class_id = in.readLong();
+			MDBAdapter.DataDict values = readDict(in);
+			if (obj.isFlagged(MObject.ATTRIB_FLAG_CLASS))
+				obj.class_id = class_id;
+			if (obj.isFlagged(MObject.ATTRIB_FLAG_VALUES))
+				obj.values.putAll(values);
+		} catch (IOException e) {
+			return false;
+		} catch (RuntimeException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private static void writeDict(DataOutputStream out, MDBAdapter.DataDict dict) throws IOException {
+		out.writeInt(dict.size());
+		for (Map.Entry<String, Object> entry : dict.entrySet()) {
+			writeString(out, entry.getKey());
+			writeValue(out, entry.getValue());
+		}
+	}
+
+	private static MDBAdapter.DataDict readDict(DataInputStream in) throws IOException {
+		MDBAdapter.DataDict dict = new MDBAdapter.DataDict();
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			String key = readString(in);
+			dict.put(key, readValue(in));
+		}
+		return dict;
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(T_NULL);
+		} else if (value instanceof String) {
+			out.writeByte(T_STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(T_INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(T_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(T_DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(T_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Date) {
+			out.writeByte(T_DATE);
+			out.writeLong(((Date) value).getTime());
+		} else if (value instanceof MBinary) {
+			out.writeByte(T_BINARY);
+			byte[] data = ((MBinary) value).getData();
+			out.writeInt(data.length);
+			out.write(data);
+		} else if (value instanceof MCode) {
+			out.writeByte(T_CODE);
+			writeString(out, ((MCode) value).getCode());
+		} else if (value instanceof MElementPointer) {
+			MElementPointer pt = (MElementPointer) value;
+			if (pt.getElementType() == null)
+				throw new UnsupportedValueException();
+			out.writeByte(T_POINTER);
+			out.writeByte(pt.getElementType().ordinal());
+			out.writeLong(pt.getID());
+		} else if (value instanceof MDBAdapter.DataList) {
+			MDBAdapter.DataList list = (MDBAdapter.DataList) value;
+			out.writeByte(T_LIST);
+			out.writeInt(list.size());
+			for (Object o : list)
+				writeValue(out, o);
+		} else if (value instanceof MDBAdapter.DataSet) {
+			MDBAdapter.DataSet set = (MDBAdapter.DataSet) value;
+			out.writeByte(T_SET);
+			out.writeInt(set.size());
+			for (Object o : set)
+				writeValue(out, o);
+		} else if (value instanceof MDBAdapter.DataDict) {
+			out.writeByte(T_DICT);
+			writeDict(out, (MDBAdapter.DataDict) value);
+		} else if (value instanceof MDBAdapter.DataPacked) {
+			MDBAdapter.DataPacked packed = (MDBAdapter.DataPacked) value;
+			out.writeByte(T_PACKED);
+			out.writeByte(packed.kind.ordinal());
+			out.writeInt(packed.data.length);
+			out.write(packed.data);
+		} else {
+			throw new UnsupportedValueException();
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case T_NULL:
+			return null;
+		case T_STRING:
+			return readString(in);
+		case T_INTEGER:
+			return in.readInt();
+		case T_LONG:
+			return in.readLong();
+		case T_DOUBLE:
+			return in.readDouble();
+		case T_BOOLEAN:
+			return in.readBoolean();
+		case T_DATE:
+			return new Date(in.readLong());
+		case T_BINARY:
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			return new MBinary(data);
+		case T_CODE:
+			return new MCode(readString(in));
+		case T_POINTER:
+			int t = in.readByte();
+			if (t < 0 || t >= TYPES.length)
+				throw new IOException("unknown type " + t);
+			MElementType type = TYPES[t];
+			return new MElementPointer(in.readLong(), type);
+		case T_LIST:
+			MDBAdapter.DataList list = new MDBAdapter.DataList();
+			int lsize = in.readInt();
+			for (int i = 0; i < lsize; i++)
+				list.add(readValue(in));
+			return list;
+		case T_SET:
+			MDBAdapter.DataSet set = new MDBAdapter.DataSet();
+			int ssize = in.readInt();
+			for (int i = 0; i < ssize; i++)
+				set.add(readValue(in));
+			return set;
+		case T_DICT:
+			return readDict(in);
+		case T_PACKED:
+			int k = in.readByte();
+			if (k < 0 || k >= FACTORIES.length)
+				throw new IOException("unknown kind " + k);
+			MCollection.Factory kind = FACTORIES[k];
+			byte[] packed = new byte[in.readInt()];
+			in.readFully(packed);
+			return new MDBAdapter.DataPacked(kind, packed);
+		default:
+			throw new IOException("unknown tag " + tag);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] data = s.getBytes(UTF8);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return new String(data, UTF8);
+	}
+
+}
@@ -108,6 +108,11 @@ public abstract class MElement implements Comparable<MElement> {
 			return element.id;
 	}
 
+	/**
+	 * The database which the element belongs to, bound at creation.
+	 */
+	final MDatabase database;
+	
 	/**
 	 * The identifier.
 	 */
@@ -121,7 +126,7 @@ public abstract class MElement implements Comparable<MElement> {
 	/**
 	 * A state of element.
 	 */
-	protected boolean loaded = false;
+	protected volatile boolean loaded = false;
 	
 	/**
 	 * A state of element.
@@ -134,22 +139,49 @@ public abstract class MElement implements Comparable<MElement> {
 	private boolean deleted = false;
 
 	/**
-	 * Create a element by element type.
+	 * The database of an element.
+	 * @param element An element or <code>null</code>.
+	 * @return the current database of thread if <code>null</code>, otherwise the database
+	 * of element.
+	 */
+	static MDatabase databaseOf(MElement element) {
+		if (element == null)
+			return MDatabase.getDB();
+		else
+			return element.database;
+	}
+	
+	/**
+	 * Create a element by element type. The element belongs to the current database
+	 * of thread.
 	 * @param type The type of element.
+	 * @see MDatabase#getDB()
 	 */
 	protected MElement(MElementType type) {
+		this(MDatabase.getDB(), type);
+	}
+	
+	/**
+	 * Create a element of specific database by element type.
+	 * @param db The database.
+	 * @param type The type of element.
+	 */
+	protected MElement(MDatabase db, MElementType type) {
+		this.database = db;
 		this.type = type;
 	}
 	
 	/**
 	 * Create a "lazy" element by specific id.
+	 * @param db The database.
 	 * @param id The ID of element.
 	 * @param type The type of element.
 	 */
-	protected MElement(long id, MElementType type) {
+	protected MElement(MDatabase db, long id, MElementType type) {
+		this.database = db;
 		this.id = id;
 		this.type = type;
-		MDatabase.getDB().addElementInCache(this);
+		db.addElementInCache(this);
 	}
 	
 	/**
@@ -157,17 +189,10 @@ public abstract class MElement implements Comparable<MElement> {
 	 * states and store it into cache and database.
 	 */
 	protected void initialize() {
-		this.id = MDatabase.getDB().getNewID();
+		this.id = database.getNewID();
 		this.loaded = true;
 		this.changed_flag = 0;
-		MDatabase.getDB().addElementInCache(this);
-	}
-	
-	@Override
-	protected void finalize() throws Throwable {
-		save();
-		saveTags();
-		super.finalize();
+		database.addElementInCache(this);
 	}
 	
 	/**
@@ -186,6 +211,14 @@ public abstract class MElement implements Comparable<MElement> {
 		return changed_flag != 0;
 	}
 
+	/**
+	 * If the element or its tags have changes which have not been saved.
+	 * @return <code>true</code> if there are unsaved changes.
+	 */
+	public boolean isDirty() {
+		return changed_flag != 0 || changed_tags;
+	}
+
 	/**
 	 * If the element is deleted.
 	 * @return <code>true</code> if deleted.
@@ -210,6 +243,14 @@ public abstract class MElement implements Comparable<MElement> {
 		return this.type;
 	}
 	
+	/**
+	 * The database which the element belongs to.
+	 * @return The database.
+	 */
+	public MDatabase getDatabase() {
+		return this.database;
+	}
+	
 	/**
 	 * Load all attributes of element from database. If the element has been loaded once,
 	 * there is no effect for calling this method.
@@ -233,10 +274,48 @@ public abstract class MElement implements Comparable<MElement> {
 	 */
 	public void forceLoad() {
 		forceLoad(FULL_ATTRIB_FLAG);
+		markLoaded();
+	}
+	
+	/**
+	 * Mark the element loaded with all attributes, after the content is loaded.
+	 */
+	void markLoaded() {
 		changed_flag = 0;
 		loaded = true;
 	}
 	
+	/**
+	 * Discard the content and the unsaved changes of element. The content will be loaded
+	 * again from database when it's touched.
+	 */
+	void unload() {
+		changed_flag = 0;
+		loaded = false;
+		tags = null;
+		loaded_tags = false;
+		changed_tags = false;
+	}
+	
+	/**
+	 * Drop an element which has never been written to database.
+	 */
+	void discard() {
+		database.removeElementInCache(this);
+		deleted = true;
+		changed_flag = 0;
+	}
+	
+	/**
+	 * Bring back an element whose deletion has not been written to database. The content
+	 * will be loaded again from database.
+	 */
+	void undelete() {
+		deleted = false;
+		unload();
+		database.addElementInCache(this);
+	}
+	
 	/**
 	 * Forcibly load the specific attributes of element from database according to flag.
 	 * @param flag The flag that which attributes is going to be loaded.
@@ -244,7 +323,7 @@ public abstract class MElement implements Comparable<MElement> {
 	public void forceLoad(int flag) {
 		if (deleted || id == NULL_ID)
 			return;
-		MDatabase.getDB().loadElement(this, flag);
+		database.loadElement(this, flag);
 	}
 	
 	/**
@@ -253,7 +332,7 @@ public abstract class MElement implements Comparable<MElement> {
 	 */
 	public void save() {
 		if (isChanged())
-			forceSave(changed_flag);
+			write(changed_flag);
 	}
 	
 	/**
@@ -262,18 +341,38 @@ public abstract class MElement implements Comparable<MElement> {
 	 * @param flag The flag that which attributes is going to be saved.
 	 */
 	public void save(int flag) {
-		if ((changed_flag & flag) != 0) {
-			forceSave(changed_flag & flag);
-			changed_flag &= ~flag;
-		}
+		if ((changed_flag & flag) != 0)
+			write(changed_flag & flag);
 	}
 	
 	/**
 	 * Forcibly save all attributes of element to database.
 	 */
 	public void forceSave() {
-		forceSave(FULL_ATTRIB_FLAG);
-		changed_flag = 0;
+		write(FULL_ATTRIB_FLAG);
+	}
+	
+	/**
+	 * Save the flagged attributes, and clear their change flags. The flags are cleared
+	 * before the write, under the monitor of element as {@link #setChanged(int)}, so a
+	 * change made during the write is saved again; they are restored if the write fails.
+	 * @param flag The flag that which attributes is going to be saved.
+	 */
+	private void write(int flag) {
+		int taken;
+		synchronized (this) {
+			taken = changed_flag & flag;
+			changed_flag &= ~flag;
+		}
+		try {
+			forceSave(flag);
+		} catch (RuntimeException ex) {
+			synchronized (this) {
+				changed_flag |= taken;
+			}
+			throw ex;
+		}
+		database.markClean(this);
 	}
 	
 	/**
@@ -285,7 +384,7 @@ public abstract class MElement implements Comparable<MElement> {
 			return;
 		if (!loaded)
 			throw new MException(MException.Reason.FORBIDEN_SAVE_BEFORE_LOAD);
-		MDatabase.getDB().saveElement(this, flag);
+		database.saveElement(this, flag);
 	}
 	
 	/**
@@ -303,10 +402,11 @@ public abstract class MElement implements Comparable<MElement> {
 			it.remove();
 		}
 		
-		MDatabase.getDB().removeElementInCache(this);
-		MDatabase.getDB().deleteElement(this);
+		database.removeElementInCache(this);
+		database.deleteElement(this);
 		deleted = true;
 		changed_flag = 0;
+		database.markClean(this);
 	}
 	
 	/**
@@ -314,9 +414,14 @@ public abstract class MElement implements Comparable<MElement> {
 	 * modification of element content.
 	 */
 	protected void setChanged(int flag) {
-		changed_flag |= flag;
-		if (MDatabase.getDB().isAutoSave()) {
-			MDatabase.getDB().autoSave(this);
+		synchronized (this) {
+			changed_flag |= flag;
+		}
+		database.markDirty(this);
+		if (database.joinSession(this))
+			return;
+		if (database.isAutoSave()) {
+			database.autoSave(this);
 		}
 	}
 
@@ -499,8 +604,11 @@ public abstract class MElement implements Comparable<MElement> {
 	
 	private void tagsChanged() {
 		changed_tags = true;
-		if (MDatabase.getDB().isAutoSave()) {
-			MDatabase.getDB().autoSaveTags(this);
+		database.markDirty(this);
+		if (database.joinSession(this))
+			return;
+		if (database.isAutoSave()) {
+			database.autoSaveTags(this);
 		}
 	}
 	
@@ -510,11 +618,19 @@ public abstract class MElement implements Comparable<MElement> {
 	public void forceLoadTags() {
 		if (deleted || id == NULL_ID)
 			return;
-		MDatabase.getDB().loadElementTags(this);
+		database.loadElementTags(this);
 		changed_tags = false;
 		loaded_tags = true;
 	}
 	
+	/**
+	 * If the tags are loaded from database.
+	 * @return
+	 */
+	boolean isTagsLoaded() {
+		return loaded_tags;
+	}
+	
 	/**
 	 * Load tags from database. If it has been loaded once, there is no effect
 	 * for calling this method.
@@ -534,8 +650,9 @@ public abstract class MElement implements Comparable<MElement> {
 			throw new MException(MException.Reason.FORBIDEN_SAVE_BEFORE_LOAD);
 		
 		// TODO save the "elements" attributes of its tags.
-		MDatabase.getDB().saveElementTags(this);
+		database.saveElementTags(this);
 		changed_tags = false;
+		database.markClean(this);
 	}
 	
 	/**
@@ -671,7 +788,7 @@ public abstract class MElement implements Comparable<MElement> {
 			tags = new MTagSet(name);
 			this.getTags().put(name, tags);
 		}
-		tags.pointers.add(new MElementPointer(id, MElementType.Tag));
+		tags.pointers.add(new MElementPointer(database, id, MElementType.Tag));
 		tagsChanged();
 	}
 
@@ -696,7 +813,7 @@ public abstract class MElement implements Comparable<MElement> {
 	 */
 	void loadTagsFromDBInfo(MDBAdapter.IDList idList) {
 		for (Long id : idList) {
-			MTag tag = MDatabase.getDB().getLazyTag(id);
+			MTag tag = database.getLazyTag(id);
 			if (tag == null)
 				continue;
 			tag.preloadName();
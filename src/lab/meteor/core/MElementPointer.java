@@ -3,7 +3,9 @@ package lab.meteor.core;
 import lab.meteor.core.MElement.MElementType;
 
 /**
- * A pointer to an element.
+ * A pointer to an element. The pointer resolves the element in the database where it's
+ * created, i.e. the database of the pointed element, or the current database of thread
+ * if it's created by ID.
  * @author Qiang
  * @see MElement
  */
@@ -19,6 +21,11 @@ public class MElementPointer implements Comparable<MElementPointer> {
 	 */
 	private MElementType eType;
 	
+	/**
+	 * The database where the element is resolved.
+	 */
+	private MDatabase database;
+	
 	/**
 	 * Create a null pointer.
 	 */
@@ -27,7 +34,7 @@ public class MElementPointer implements Comparable<MElementPointer> {
 	}
 	
 	public MElementPointer(long id) {
-		this(id, MDatabase.getDB().getElementType(id));
+		this(MDatabase.getDB(), id);
 	}
 	
 	/**
@@ -36,6 +43,21 @@ public class MElementPointer implements Comparable<MElementPointer> {
 	 * @param eType The element type.
 	 */
 	public MElementPointer(long id, MElementType eType) {
+		this(MDatabase.getDB(), id, eType);
+	}
+	
+	private MElementPointer(MDatabase db, long id) {
+		this(db, id, db.getElementType(id));
+	}
+	
+	/**
+	 * Create a pointer of specific database.
+	 * @param db The database.
+	 * @param id The ID of element.
+	 * @param eType The element type.
+	 */
+	MElementPointer(MDatabase db, long id, MElementType eType) {
+		this.database = db;
 		this.id = id;
 		this.eType = eType;
 	}
@@ -46,9 +68,11 @@ public class MElementPointer implements Comparable<MElementPointer> {
 	 */
 	public MElementPointer(MElement ele) {
 		if (ele == null) {
+			this.database = MDatabase.getDB();
 			this.id = MElement.NULL_ID;
 			this.eType = null;
 		} else {
+			this.database = ele.database;
 			this.id = ele.id;
 			this.eType = ele.getElementType();
 		}
@@ -75,6 +99,7 @@ public class MElementPointer implements Comparable<MElementPointer> {
 	 * @param ele The element.
 	 */
 	public void setPointer(MElement ele) {
+		this.database = ele.database;
 		this.id = ele.id;
 		this.eType = ele.getElementType();
 	}
@@ -86,21 +111,21 @@ public class MElementPointer implements Comparable<MElementPointer> {
 	public MElement getElement() {
 		switch (this.eType) {
 		case Class:
-			return MDatabase.getDB().getClass(id);
+			return database.getClass(id);
 		case Attribute:
-			return MDatabase.getDB().getAttribute(id);
+			return database.getAttribute(id);
 		case Reference:
-			return MDatabase.getDB().getReference(id);
+			return database.getReference(id);
 		case Enum:
-			return MDatabase.getDB().getEnum(id);
+			return database.getEnum(id);
 		case Symbol:
-			return MDatabase.getDB().getSymbol(id);
+			return database.getSymbol(id);
 		case Package:
-			return MDatabase.getDB().getPackage(id);
+			return database.getPackage(id);
 		case Object:
-			return MDatabase.getDB().getLazyObject(id);
+			return database.getLazyObject(id);
 		case Tag:
-			return MDatabase.getDB().getLazyTag(id);
+			return database.getLazyTag(id);
 		default:
 			return null;
 		}
@@ -1,11 +1,8 @@
 package lab.meteor.core;
 
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
-
 import lab.meteor.core.MDBAdapter.DBInfo;
+import lab.meteor.core.cache.MSnapshotMap;
+import lab.meteor.core.cache.MSnapshotSet;
 
 /**
  * Enumeration type.
@@ -18,19 +15,19 @@ public class MEnum extends MElement implements MDataType {
 	
 	private String name;
 	
-	private Map<String, MSymbol> symbols;
+	private final MSnapshotMap<String, MSymbol> symbols = new MSnapshotMap<String, MSymbol>(true);
 	
-	private Set<MAttribute> utilizers;
+	private final MSnapshotSet<MAttribute> utilizers = new MSnapshotSet<MAttribute>(true);
 	
 	public MEnum(String name) throws MException {
 		this(name, null);
 	}
 	
 	public MEnum(String name, MPackage pkg) throws MException {
-		super(MElementType.Enum);
+		super(databaseOf(pkg), MElementType.Enum);
 		
 		if (pkg == null)
-			pkg = MPackage.DEFAULT_PACKAGE;
+			pkg = database.getDefaultPackage();
 		if (pkg.isDeleted())
 			throw new MException(MException.Reason.ELEMENT_MISSED);
 		if (pkg.hasClass(name) || pkg.hasEnum(name))
@@ -41,15 +38,16 @@ public class MEnum extends MElement implements MDataType {
 		this.parent = pkg;
 		this.parent.addEnum(this);
 		
-		MDatabase.getDB().createElement(this);
+		database.createElement(this);
 	}
 	
 	/**
 	 * Create a "lazy" enumerator element with id.
+	 * @param db The database.
 	 * @param id ID of element.
 	 */
-	protected MEnum(long id) {
-		super(id, MElementType.Enum);
+	protected MEnum(MDatabase db, long id) {
+		super(db, id, MElementType.Enum);
 	}
 
 	private boolean isDeleting = false;
@@ -58,19 +56,15 @@ public class MEnum extends MElement implements MDataType {
 	public void delete() throws MException {
 		isDeleting = true;
 		// delete symbols
-		if (this.symbols != null) {
-			for (MSymbol sym : this.symbols.values()) {
-				sym.delete();
-			}
-			this.symbols.clear();
+		for (MSymbol sym : this.symbols.values()) {
+			sym.delete();
 		}
+		this.symbols.clear();
 		// delete utilizers
-		if (this.utilizers != null) {
-			for (MAttribute atb : this.utilizers) {
-				atb.delete();
-			}
-			this.utilizers.clear();
+		for (MAttribute atb : this.utilizers) {
+			atb.delete();
 		}
+		this.utilizers.clear();
 		// package
 		this.parent.removeEnum(this);
 		super.delete();
@@ -99,38 +93,32 @@ public class MEnum extends MElement implements MDataType {
 		this.setChanged(ATTRIB_FLAG_NAME);
 	}
 	
-	private Map<String, MSymbol> symbols() {
-		if (this.symbols == null)
-			this.symbols = new TreeMap<String, MSymbol>();
-		return this.symbols;
-	}
-	
 	protected void addSymbol(MSymbol sym) {
-		this.symbols().put(sym.getName(), sym);
+		this.symbols.put(sym.getName(), sym);
 	}
 	
 	protected void removeSymbol(MSymbol sym) {
 		if (isDeleting)
 			return;
-		this.symbols().remove(sym.getName());
+		this.symbols.remove(sym.getName());
 	}
 	
 	public String[] getSymbolNames() {
 		if (isDeleted())
 			return null;
-		return this.symbols().keySet().toArray(new String[0]);
+		return this.symbols.keySet().toArray(new String[0]);
 	}
 	
 	public MSymbol getSymbol(String sym) {
 		if (isDeleted())
 			return null;
-		return this.symbols().get(sym);
+		return this.symbols.get(sym);
 	}
 	
 	public boolean hasSymbol(String sym) {
 		if (isDeleted())
 			return false;
-		return this.symbols().containsKey(sym);
+		return this.symbols.containsKey(sym);
 	}
 	
 	public MPackage getPackage() {
@@ -143,7 +131,7 @@ public class MEnum extends MElement implements MDataType {
 		if (isDeleted())
 			return;
 		if (pkg == null)
-			pkg = MPackage.DEFAULT_PACKAGE;
+			pkg = database.getDefaultPackage();
 		if (pkg == this.parent)
 			return;
 		if (pkg.hasClass(this.name) || pkg.hasEnum(this.name))
@@ -156,21 +144,15 @@ public class MEnum extends MElement implements MDataType {
 	}
 	
 	public MAttribute[] getUtilizers() {
-		return utilizers().toArray(new MAttribute[0]);
+		return this.utilizers.toArray(new MAttribute[0]);
 	}
 	
 	void addUtilizer(MAttribute atb) {
-		this.utilizers().add(atb);
+		this.utilizers.add(atb);
 	}
 	
 	void removeUtilizer(MAttribute atb) {
-		this.utilizers().remove(atb);
-	}
-	
-	private Set<MAttribute> utilizers() {
-		if (this.utilizers == null)
-			this.utilizers = new TreeSet<MAttribute>();
-		return this.utilizers;
+		this.utilizers.remove(atb);
 	}
 
 	@Override
@@ -210,7 +192,7 @@ public class MEnum extends MElement implements MDataType {
 		MPackage pkg = this.parent;
 		String name = this.name;
 		if (dbInfo.isFlagged(ATTRIB_FLAG_PARENT))
-			pkg = MDatabase.getDB().getPackage(enmDBInfo.package_id);
+			pkg = database.getPackage(enmDBInfo.package_id);
 		if (dbInfo.isFlagged(ATTRIB_FLAG_NAME))
 			name = enmDBInfo.name;
 		if (pkg != null && name != null && pkg.hasChild(name) && pkg.getEnum(name) != this)
@@ -246,7 +228,7 @@ public class MEnum extends MElement implements MDataType {
 	
 	@Override
 	public String toString() {
-		if (this.parent == MPackage.DEFAULT_PACKAGE)
+		if (this.parent == database.getDefaultPackage())
 			return this.name;
 		return this.parent.toString() + "::" + this.name;
 	}
@@ -84,7 +84,16 @@ public class MException extends RuntimeException {
 		INVALID_OPPOSITE,
 		NULL_NOTIFICABLE,
 		FORBIDEN_SAVE_BEFORE_LOAD,
-		PACKAGE_LOOP
+		PACKAGE_LOOP,
+		/**
+		 * Begin a session when the thread has a session of the database, or use a
+		 * session which has been ended.
+		 */
+		INVALID_SESSION,
+		/**
+		 * The budget of thread is exceeded or canceled, see <code>MBudget.getExceeded()</code>.
+		 */
+		BUDGET_EXCEEDED
 	}
 	
 	/**
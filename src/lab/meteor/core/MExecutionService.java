@@ -0,0 +1,365 @@
+package lab.meteor.core;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads of the background work of Meteor, shared by all databases. Each kind of
+ * work runs in its own bounded pool, whose threads are created on demand and retired
+ * when idle. The periodic work (e.g. auto saving cycles) is triggered by a scheduler,
+ * which only hands the work over to the pools.
+ * <p>
+ * On a runtime with virtual threads, the scripts and imports run in virtual threads,
+ * one per task, since they mostly wait for database. Otherwise they run in the bounded
+ * pools too.
+ * <p>
+ * The service is shut down by {@link #shutdown(long, TimeUnit)}, or when JVM exits if
+ * {@link #installShutdownHook()} is called. The shutdown hooks added to the service run
+ * before the pools stop, e.g. to save the unsaved changes.
+ */
+public class MExecutionService {
+
+	/**
+	 * The kinds of background work.
+	 */
+	public static enum Kind {
+		/**
+		 * The script tasks.
+		 */
+		Script,
+		/**
+		 * The importing of data.
+		 */
+		Import,
+		/**
+		 * The writing of auto saving.
+		 */
+		AutoSave,
+		/**
+		 * The maintenance of caches, e.g. recording and replaying hot sets.
+		 */
+		Maintenance
+	}
+
+	/**
+	 * The time that an idle thread is kept.
+	 */
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private static class DefaultHolder {
+		static final MExecutionService INSTANCE = new MExecutionService();
+	}
+
+	/**
+	 * Get the service shared by all databases.
+	 * @return the service.
+	 */
+	public static MExecutionService getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	private final Map<Kind, ThreadPoolExecutor> pools = new EnumMap<Kind, ThreadPoolExecutor>(Kind.class);
+
+	private final Map<Kind, ExecutorService> virtualExecutors = new EnumMap<Kind, ExecutorService>(Kind.class);
+
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	private volatile ForkJoinPool forkJoinPool = null;
+
+	private final List<Runnable> shutdownHooks = new ArrayList<Runnable>();
+
+	private volatile boolean shutdown = false;
+
+	private Thread jvmHook = null;
+
+	/**
+	 * Create a service with the default sizes of pools.
+	 */
+	public MExecutionService() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		pools.put(Kind.Script, newPool(Kind.Script, Math.max(4, cpus * 2)));
+		pools.put(Kind.Import, newPool(Kind.Import, 2));
+		pools.put(Kind.AutoSave, newPool(Kind.AutoSave, Math.max(2, cpus)));
+		pools.put(Kind.Maintenance, newPool(Kind.Maintenance, 2));
+		scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Meteor-Scheduler"));
+		scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+		for (Kind kind : new Kind[] { Kind.Script, Kind.Import }) {
+			ExecutorService virtual = newVirtualExecutor("Meteor-" + kind + "-");
+			if (virtual != null)
+				virtualExecutors.put(kind, virtual);
+		}
+	}
+
+	private static ThreadPoolExecutor newPool(Kind kind, int size) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Meteor-" + kind));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Get the executor of a kind of work.
+	 * @param kind the kind.
+	 * @return the executor.
+	 */
+	public ExecutorService getExecutor(Kind kind) {
+		ExecutorService virtual = virtualExecutors.get(kind);
+		if (virtual != null)
+			return virtual;
+		return pools.get(kind);
+	}
+
+	/**
+	 * Whether a kind of work runs in virtual threads.
+	 * @param kind the kind.
+	 * @return {@code true} if virtual threads are used.
+	 */
+	public boolean isVirtual(Kind kind) {
+		return virtualExecutors.containsKey(kind);
+	}
+
+	/**
+	 * Set the maximum number of threads of a kind of work. It has no effect on the work
+	 * running in virtual threads.
+	 * @param kind the kind.
+	 * @param size the number of threads.
+	 */
+	public void setPoolSize(Kind kind, int size) {
+		ThreadPoolExecutor pool = pools.get(kind);
+		size = Math.max(1, size);
+		if (size > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		} else {
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+	}
+
+	public int getPoolSize(Kind kind) {
+		return pools.get(kind).getMaximumPoolSize();
+	}
+
+	/**
+	 * Run a task in background.
+	 * @param kind the kind of work.
+	 * @param task the task.
+	 * @return the future of task.
+	 */
+	public Future<?> submit(Kind kind, Runnable task) {
+		return getExecutor(kind).submit(task);
+	}
+
+	/**
+	 * Run a task in a pool periodically. The delay is counted from the end of a run to
+	 * the start of next run, so the runs never overlap.
+	 * @param kind the kind of work.
+	 * @param task the task.
+	 * @param delay the delay before first run, and between runs.
+	 * @param unit the unit of delay.
+	 * @return the future, which is cancelled to stop the task.
+	 */
+	public ScheduledFuture<?> scheduleWithFixedDelay(final Kind kind, final Runnable task, long delay, TimeUnit unit) {
+		return scheduler.scheduleWithFixedDelay(new Runnable() {
+			boolean running = false;
+
+			@Override
+			public void run() {
+				synchronized (this) {
+					if (running)
+						return;
+					running = true;
+				}
+				final Runnable self = this;
+				pools.get(kind).execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run();
+						} finally {
+							synchronized (self) {
+								running = false;
+							}
+						}
+					}
+				});
+			}
+		}, delay, delay, unit);
+	}
+
+	/**
+	 * The scheduler, which should only be used to trigger short work.
+	 * @return the scheduler.
+	 */
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * The fork-join pool for parallel scans, with a thread per processor.
+	 * @return the pool.
+	 */
+	public ForkJoinPool getForkJoinPool() {
+		ForkJoinPool pool = forkJoinPool;
+		if (pool == null) {
+			synchronized (this) {
+				pool = forkJoinPool;
+				if (pool == null) {
+					pool = new ForkJoinPool();
+					forkJoinPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Add a hook, which runs when the service is shut down, before the pools stop.
+	 * @param hook the hook.
+	 */
+	public void addShutdownHook(Runnable hook) {
+		synchronized (shutdownHooks) {
+			shutdownHooks.add(hook);
+		}
+	}
+
+	public void removeShutdownHook(Runnable hook) {
+		synchronized (shutdownHooks) {
+			shutdownHooks.remove(hook);
+		}
+	}
+
+	/**
+	 * Shut down the service when JVM exits.
+	 */
+	public synchronized void installShutdownHook() {
+		if (jvmHook != null)
+			return;
+		jvmHook = new Thread("Meteor-Shutdown") {
+			@Override
+			public void run() {
+				shutdown(10, TimeUnit.SECONDS);
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(jvmHook);
+	}
+
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Shut down the service. The hooks run first, then the periodic work stops, and the
+	 * queued work is finished.
+	 * @param timeout the maximum time to wait for the work to finish.
+	 * @param unit the unit of timeout.
+	 * @return {@code true} if all work is finished in time.
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) {
+		List<Runnable> hooks;
+		synchronized (this) {
+			if (shutdown)
+				return true;
+			shutdown = true;
+		}
+		synchronized (shutdownHooks) {
+			hooks = new ArrayList<Runnable>(shutdownHooks);
+		}
+		for (Runnable hook : hooks) {
+			try {
+				hook.run();
+			} catch (RuntimeException e) {
+				/*
+				 * the other hooks still run
+				 */
+			}
+		}
+		scheduler.shutdownNow();
+		for (ThreadPoolExecutor pool : pools.values())
+			pool.shutdown();
+		for (ExecutorService executor : virtualExecutors.values())
+			executor.shutdown();
+		if (forkJoinPool != null)
+			forkJoinPool.shutdown();
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean finished = true;
+		try {
+			List<ExecutorService> all = new ArrayList<ExecutorService>(pools.values());
+			all.addAll(virtualExecutors.values());
+			if (forkJoinPool != null)
+				all.add(forkJoinPool);
+			for (ExecutorService executor : all) {
+				long left = deadline - System.nanoTime();
+				if (!executor.awaitTermination(Math.max(0, left), TimeUnit.NANOSECONDS))
+					finished = false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			finished = false;
+		}
+		return finished;
+	}
+
+	/**
+	 * Create an executor which runs each task in a new named virtual thread, if the
+	 * runtime supports them. The API is looked up by reflection, so the code still runs
+	 * on the runtimes without it.
+	 * @param prefix the prefix of names.
+	 * @return the executor, or {@code null} if not supported.
+	 */
+	private static ExecutorService newVirtualExecutor(String prefix) {
+		ThreadFactory factory;
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+			factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+		try {
+			Method m = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) m.invoke(null, factory);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create daemon threads named by a prefix and a sequence number.
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+
+		private final AtomicInteger sequence = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + sequence.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
@@ -1,8 +1,9 @@
 package lab.meteor.core;
 
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.TreeMap;
 
 /**
  * The list, one of a primitive type in meteor system. When there is a modify operation, such
@@ -12,7 +13,11 @@ import java.util.ListIterator;
  * <p>
  * The list can only be created by the factory method <code>MCollection.createCollection()</code>.
  * <p>
- * It's a wrapper of <code>LinkedList&ltObject&gt</code>.
+ * It's a wrapper of <code>ArrayList&ltObject&gt</code>, so it's accessed by index in
+ * constant time. A list which is the value of an attribute records its changes since
+ * it was loaded or saved, so that appending, setting by index or removing could be
+ * written without rewriting the whole list. Only one kind of change is recorded at a
+ * time; when the changes are mixed, the whole list is written.
  * @author Qiang
  */
 public class MList extends MCollection implements Iterable<Object> {
@@ -28,15 +33,56 @@ public class MList extends MCollection implements Iterable<Object> {
 	/**
 	 * The inner list.
 	 */
-	final LinkedList<Object> list = new LinkedList<Object>();
+	final ArrayList<Object> list = new ArrayList<Object>();
+	
+	/**
+	 * The kind of changes since the list was loaded or saved.
+	 */
+	private static enum Change {
+		None,
+		Append,
+		Set,
+		Pull,
+		PopFirst,
+		PopLast,
+		/**
+		 * Not in database yet, or the changes can't be expressed by position.
+		 */
+		Full
+	}
+	
+	private Change change = Change.Full;
+	
+	/**
+	 * The index of the first element appended.
+	 */
+	private int appendFrom;
+	
+	/**
+	 * The indexes set.
+	 */
+	private TreeMap<Integer, Boolean> setIndexes;
+	
+	/**
+	 * The values removed, each of which was the only occurrence in list.
+	 */
+	private MDBAdapter.DataList pulled;
+	
+	/**
+	 * The number of nested collections, whose changes are not recorded.
+	 */
+	private int nested = 0;
 	
 	public boolean add(Object e) {
 		checkType(e);
 		
 		e = toInputObject(e);
+		int index = list.size();
 		boolean b = this.list.add(e);
-		if (b)
+		if (b) {
+			inserted(index, e);
 			this.notifyChanged();
+		}
 		return b;
 	}
 
@@ -45,19 +91,24 @@ public class MList extends MCollection implements Iterable<Object> {
 		
 		element = toInputObject(element);
 		list.add(index, element);
+		inserted(index, element);
 		this.notifyChanged();
 	}
 
 	public boolean remove(Object o) {
 		o = toInputObject(o);
-		boolean b = list.remove(o);
-		if (b)
-			this.notifyChanged();
-		return b;
+		int index = list.indexOf(o);
+		if (index < 0)
+			return false;
+		list.remove(index);
+		removed(index, o);
+		this.notifyChanged();
+		return true;
 	}
 
 	public Object remove(int index) {
 		Object o = list.remove(index);
+		removed(index, o);
 		this.notifyChanged();
 		return o;
 	}
@@ -67,6 +118,7 @@ public class MList extends MCollection implements Iterable<Object> {
 		
 		element = toInputObject(element);
 		Object o = list.set(index, element);
+		replaced(index, o, element);
 		this.notifyChanged();
 		return o;
 	}
@@ -79,6 +131,8 @@ public class MList extends MCollection implements Iterable<Object> {
 
 	public void clear() {
 		list.clear();
+		nested = 0;
+		change = Change.Full;
 		this.notifyChanged();
 	}
 
@@ -93,7 +147,7 @@ public class MList extends MCollection implements Iterable<Object> {
 	}
 
 	public int lastIndexOf(Object o) {
-		o = toInputObject(0);
+		o = toInputObject(o);
 		return list.lastIndexOf(o);
 	}
 
@@ -104,6 +158,125 @@ public class MList extends MCollection implements Iterable<Object> {
 	public int size() {
 		return list.size();
 	}
+	
+	/**
+	 * Append an element loaded from database.
+	 * @param e the inner element.
+	 */
+	void load(Object e) {
+		list.add(e);
+		if (e instanceof MCollection)
+			nested++;
+	}
+	
+	private void inserted(int index, Object e) {
+		if (e instanceof MCollection)
+			nested++;
+		if (index != list.size() - 1) {
+			change = Change.Full;
+		} else if (change == Change.None) {
+			change = Change.Append;
+			appendFrom = index;
+		} else if (change != Change.Append) {
+			change = Change.Full;
+		}
+	}
+	
+	private void removed(int index, Object o) {
+		if (o instanceof MCollection)
+			nested--;
+		if (change == Change.None && index == list.size()) {
+			change = Change.PopLast;
+		} else if (change == Change.None && index == 0) {
+			change = Change.PopFirst;
+		} else if ((change == Change.None || change == Change.Pull) 
+				&& !(o instanceof MCollection) && !list.contains(o)) {
+			if (change == Change.None) {
+				change = Change.Pull;
+				pulled = new MDBAdapter.DataList();
+			}
+			pulled.add(MCollection.toDBObject(o));
+		} else {
+			change = Change.Full;
+		}
+	}
+	
+	private void replaced(int index, Object old, Object e) {
+		if (old instanceof MCollection)
+			nested--;
+		if (e instanceof MCollection)
+			nested++;
+		if (change == Change.Append && index >= appendFrom)
+			return;
+		if (change == Change.None) {
+			change = Change.Set;
+			setIndexes = new TreeMap<Integer, Boolean>();
+		}
+		if (change == Change.Set)
+			setIndexes.put(index, Boolean.TRUE);
+		else
+			change = Change.Full;
+	}
+	
+	/**
+	 * Take the changes since the list was loaded or saved, and start recording again.
+	 * @return the changes, or {@code null} if the whole list should be written.
+	 */
+	MDBAdapter.ListDelta takeDelta() {
+		Change c = nested > 0 ? Change.Full : change;
+		MDBAdapter.ListDelta delta = null;
+		switch (c) {
+		case Append:
+			delta = new MDBAdapter.ListDelta();
+			delta.appended = new MDBAdapter.DataList();
+			for (int i = appendFrom; i < list.size(); i++)
+				delta.appended.add(MCollection.toDBObject(list.get(i)));
+			break;
+		case Set:
+			delta = new MDBAdapter.ListDelta();
+			delta.sets = new TreeMap<Integer, Object>();
+			for (Integer index : setIndexes.keySet()) {
+				if (index < list.size())
+					delta.sets.put(index, MCollection.toDBObject(list.get(index)));
+			}
+			break;
+		case Pull:
+			delta = new MDBAdapter.ListDelta();
+			delta.pulled = pulled;
+			break;
+		case PopFirst:
+			delta = new MDBAdapter.ListDelta();
+			delta.pop = -1;
+			break;
+		case PopLast:
+			delta = new MDBAdapter.ListDelta();
+			delta.pop = 1;
+			break;
+		default:
+			break;
+		}
+		markPersisted();
+		return delta;
+	}
+	
+	/**
+	 * Mark the list the same as in database.
+	 */
+	void markPersisted() {
+		change = Change.None;
+		setIndexes = null;
+		pulled = null;
+	}
+	
+	/**
+	 * Forget the changes taken by a write which failed. The list in database is unknown
+	 * then, so the whole list is written next time.
+	 */
+	void markUnpersisted() {
+		change = Change.Full;
+		setIndexes = null;
+		pulled = null;
+	}
 
 	@Override
 	public Iterator<Object> iterator() {
@@ -121,6 +294,11 @@ public class MList extends MCollection implements Iterable<Object> {
 	private class ListItr implements ListIterator<Object> {
 		private final ListIterator<Object> it;
 		
+		/**
+		 * The index of the element returned by last call to next or previous.
+		 */
+		private int lastRet = -1;
+		
 		public ListItr(int index) {
 			this.it = MList.this.list.listIterator(index);
 		}
@@ -130,7 +308,10 @@ public class MList extends MCollection implements Iterable<Object> {
 			checkType(e);
 			
 			e = MList.this.toInputObject(e);
+			int index = it.nextIndex();
 			it.add(e);
+			lastRet = -1;
+			MList.this.inserted(index, e);
 			MList.this.notifyChanged();
 		}
 
@@ -146,6 +327,7 @@ public class MList extends MCollection implements Iterable<Object> {
 
 		@Override
 		public Object next() {
+			lastRet = it.nextIndex();
 			Object o = it.next();
 			o = MList.this.toOutputObject(o);
 			return o;
@@ -158,6 +340,7 @@ public class MList extends MCollection implements Iterable<Object> {
 
 		@Override
 		public Object previous() {
+			lastRet = it.previousIndex();
 			Object o = it.previous();
 			o = MList.this.toOutputObject(o);
 			return o;
@@ -170,7 +353,12 @@ public class MList extends MCollection implements Iterable<Object> {
 
 		@Override
 		public void remove() {
+			if (lastRet < 0)
+				throw new IllegalStateException();
+			Object o = MList.this.list.get(lastRet);
 			it.remove();
+			MList.this.removed(lastRet, o);
+			lastRet = -1;
 			MList.this.notifyChanged();
 		}
 
@@ -178,8 +366,12 @@ public class MList extends MCollection implements Iterable<Object> {
 		public void set(Object e) {
 			checkType(e);
 			
+			if (lastRet < 0)
+				throw new IllegalStateException();
 			e = MList.this.toInputObject(e);
-			it.add(e);
+			Object o = MList.this.list.get(lastRet);
+			it.set(e);
+			MList.this.replaced(lastRet, o, e);
 			MList.this.notifyChanged();
 		}
 		
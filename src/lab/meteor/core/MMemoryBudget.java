@@ -0,0 +1,108 @@
+package lab.meteor.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lab.meteor.core.cache.MAutoSaveQueue;
+
+/**
+ * The memory shared by several databases, which are created with it. The thread pools
+ * are always shared, see {@link MExecutionService}, while the memory is shared by the
+ * databases of a budget:
+ * <ul>
+ * <li>the objects' caches are limited by the estimated bytes of objects, and the
+ * capacity is split evenly among the databases, again when one is added or removed;</li>
+ * <li>the objects waiting for auto saving are counted against one budget over all of
+ * the databases, so the changes of any database could throttle all of them.</li>
+ * </ul>
+ * <pre>
+ * MMemoryBudget memory = new MMemoryBudget(256L &lt;&lt; 20, 64L &lt;&lt; 20);
+ * MDatabase a = new MDatabase(memory);
+ * MDatabase b = new MDatabase(memory);
+ * </pre>
+ */
+public class MMemoryBudget {
+
+	private final List<MDatabase> databases = new ArrayList<MDatabase>();
+
+	private long cacheCapacity;
+
+	final MAutoSaveQueue.Budget autoSave;
+
+	/**
+	 * Create a budget.
+	 * @param cacheBytes the capacity of the objects' caches in bytes, {@code 0} to leave
+	 * the capacity of each database alone.
+	 * @param autoSaveBytes the memory of the objects waiting for auto saving in bytes,
+	 * {@code 0} for no limit.
+	 */
+	public MMemoryBudget(long cacheBytes, long autoSaveBytes) {
+		this.cacheCapacity = Math.max(0, cacheBytes);
+		this.autoSave = new MAutoSaveQueue.Budget(autoSaveBytes);
+	}
+
+	synchronized void add(MDatabase db) {
+		databases.add(db);
+		rebalance();
+	}
+
+	/**
+	 * Remove a database no longer used, so its share goes to the others. Its changes
+	 * waiting for auto saving should be saved before.
+	 * @param db the database.
+	 */
+	public synchronized void remove(MDatabase db) {
+		if (databases.remove(db)) {
+			autoSave.remove(db.getAutoSaveQueue());
+			rebalance();
+		}
+	}
+
+	public synchronized List<MDatabase> getDatabases() {
+		return Collections.unmodifiableList(new ArrayList<MDatabase>(databases));
+	}
+
+	public synchronized long getCacheCapacity() {
+		return cacheCapacity;
+	}
+
+	/**
+	 * Set the capacity of the objects' caches of all of the databases.
+	 * @param bytes the capacity in bytes, {@code 0} to leave the capacity of each
+	 * database alone.
+	 */
+	public synchronized void setCacheCapacity(long bytes) {
+		this.cacheCapacity = Math.max(0, bytes);
+		rebalance();
+	}
+
+	public long getAutoSaveBudget() {
+		return autoSave.getLimit();
+	}
+
+	/**
+	 * Set the memory of the objects waiting for auto saving in all of the databases.
+	 * @param bytes the budget in bytes, {@code 0} for no limit.
+	 */
+	public void setAutoSaveBudget(long bytes) {
+		autoSave.setLimit(bytes);
+	}
+
+	/**
+	 * The estimated bytes of the objects waiting for auto saving in all of the databases.
+	 * @return weight.
+	 */
+	public long getAutoSavePendingWeight() {
+		return autoSave.getWeight();
+	}
+
+	private void rebalance() {
+		if (cacheCapacity == 0 || databases.isEmpty())
+			return;
+		long share = cacheCapacity / databases.size();
+		for (MDatabase db : databases)
+			db.setObjectsCapacityInBytes(share);
+	}
+
+}
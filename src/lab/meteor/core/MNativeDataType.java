@@ -67,5 +67,35 @@ public enum MNativeDataType {
 	/**
 	 * The enumeration.
 	 */
-	Enum
+	Enum,
+	/**
+	 * The packed list of double values.
+	 * @see MNumericList
+	 */
+	NumberList,
+	/**
+	 * The packed list of 64-bit integers.
+	 * @see MNumericList
+	 */
+	Int64List,
+	/**
+	 * The packed list of 32-bit integers.
+	 * @see MNumericList
+	 */
+	IntegerList,
+	/**
+	 * The packed set of double values.
+	 * @see MNumericSet
+	 */
+	NumberSet,
+	/**
+	 * The packed set of 64-bit integers.
+	 * @see MNumericSet
+	 */
+	Int64Set,
+	/**
+	 * The packed set of 32-bit integers.
+	 * @see MNumericSet
+	 */
+	IntegerSet
 }
@@ -0,0 +1,193 @@
+package lab.meteor.core;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The packed list of numbers, one of a primitive type in meteor system. The numbers are
+ * kept in a primitive array of the element type, i.e. <code>double</code> for
+ * <code>NumberList</code>, <code>long</code> for <code>Int64List</code> and
+ * <code>int</code> for <code>IntegerList</code>, and the list is stored as a single
+ * binary block instead of an array of values. A number added is converted to the
+ * element type.
+ * <p>
+ * The list can only be created by the factory method <code>MCollection.createCollection()</code>.
+ * Like the other collections, a modify operation notifies its parent there is a change
+ * needed to be updated, and the whole list is written.
+ * @see MPackedArray
+ */
+public class MNumericList extends MCollection implements Iterable<Number> {
+
+	private final Factory factory;
+
+	final MPackedArray array;
+
+	MNumericList(MNotifiable root, MAttribute atb, Factory factory) {
+		super(root, atb);
+		this.factory = factory;
+		this.array = new MPackedArray(MPackedArray.elementTypeOf(factory));
+	}
+
+	MNumericList(MCollection parent, Factory factory) {
+		super(parent);
+		this.factory = factory;
+		this.array = new MPackedArray(MPackedArray.elementTypeOf(factory));
+	}
+
+	/**
+	 * The factory of this list.
+	 * @return <code>NumberList</code>, <code>Int64List</code> or <code>IntegerList</code>.
+	 */
+	public Factory getFactory() {
+		return factory;
+	}
+
+	/**
+	 * The type of numbers.
+	 * @return <code>Number</code>, <code>Int64</code> or <code>Integer</code>.
+	 */
+	public MNativeDataType getElementType() {
+		return array.elementType;
+	}
+
+	public boolean add(Number e) {
+		MPackedArray.checkNumber(e);
+		array.insert(array.size(), e);
+		this.notifyChanged();
+		return true;
+	}
+
+	public void add(int index, Number e) {
+		MPackedArray.checkNumber(e);
+		array.insert(index, e);
+		this.notifyChanged();
+	}
+
+	public void addAll(double[] values) {
+		array.append(values, 0, values.length);
+		this.notifyChanged();
+	}
+
+	public void addAll(long[] values) {
+		array.append(values, 0, values.length);
+		this.notifyChanged();
+	}
+
+	public void addAll(int[] values) {
+		array.append(values, 0, values.length);
+		this.notifyChanged();
+	}
+
+	public Number remove(int index) {
+		Number o = array.remove(index);
+		this.notifyChanged();
+		return o;
+	}
+
+	public Number set(int index, Number e) {
+		MPackedArray.checkNumber(e);
+		Number o = array.set(index, e);
+		this.notifyChanged();
+		return o;
+	}
+
+	public Number get(int index) {
+		return array.get(index);
+	}
+
+	public double getDouble(int index) {
+		return array.getDouble(index);
+	}
+
+	public long getLong(int index) {
+		return array.getLong(index);
+	}
+
+	public int getInt(int index) {
+		return array.getInt(index);
+	}
+
+	public void clear() {
+		array.clear();
+		this.notifyChanged();
+	}
+
+	public boolean contains(Number o) {
+		return indexOf(o) >= 0;
+	}
+
+	public int indexOf(Number o) {
+		if (o == null)
+			return -1;
+		return array.indexOf(o);
+	}
+
+	public boolean isEmpty() {
+		return array.size() == 0;
+	}
+
+	public int size() {
+		return array.size();
+	}
+
+	/**
+	 * Copy the numbers to a new array.
+	 * @return the array.
+	 */
+	public double[] toDoubleArray() {
+		return array.toDoubleArray();
+	}
+
+	public long[] toLongArray() {
+		return array.toLongArray();
+	}
+
+	public int[] toIntArray() {
+		return array.toIntArray();
+	}
+
+	@Override
+	public Iterator<Number> iterator() {
+		return new Itr();
+	}
+
+	private class Itr implements Iterator<Number> {
+
+		private int cursor = 0;
+
+		private int lastRet = -1;
+
+		@Override
+		public boolean hasNext() {
+			return cursor < array.size();
+		}
+
+		@Override
+		public Number next() {
+			if (cursor >= array.size())
+				throw new NoSuchElementException();
+			lastRet = cursor++;
+			return array.get(lastRet);
+		}
+
+		@Override
+		public void remove() {
+			if (lastRet < 0)
+				throw new IllegalStateException();
+			MNumericList.this.remove(lastRet);
+			cursor = lastRet;
+			lastRet = -1;
+		}
+
+	}
+
+	@Override
+	public void forEach(ForEachCallback callback) {
+		if (callback == null)
+			return;
+		for (int i = 0; i < array.size(); i++) {
+			callback.action(i, array.get(i));
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+package lab.meteor.core;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The packed set of numbers, one of a primitive type in meteor system. The numbers are
+ * kept sorted and distinct in a primitive array of the element type, i.e.
+ * <code>double</code> for <code>NumberSet</code>, <code>long</code> for
+ * <code>Int64Set</code> and <code>int</code> for <code>IntegerSet</code>, so they're
+ * looked up by binary search and iterated in ascending order. The set is stored as a
+ * single binary block, which is usually delta-encoded since the numbers are sorted.
+ * <p>
+ * The set can only be created by the factory method <code>MCollection.createCollection()</code>.
+ * Like the other collections, a modify operation notifies its parent there is a change
+ * needed to be updated, and the whole set is written.
+ * @see MPackedArray
+ */
+public class MNumericSet extends MCollection implements Iterable<Number> {
+
+	private final Factory factory;
+
+	final MPackedArray array;
+
+	MNumericSet(MNotifiable root, MAttribute atb, Factory factory) {
+		super(root, atb);
+		this.factory = factory;
+		this.array = new MPackedArray(MPackedArray.elementTypeOf(factory));
+	}
+
+	MNumericSet(MCollection parent, Factory factory) {
+		super(parent);
+		this.factory = factory;
+		this.array = new MPackedArray(MPackedArray.elementTypeOf(factory));
+	}
+
+	/**
+	 * The factory of this set.
+	 * @return <code>NumberSet</code>, <code>Int64Set</code> or <code>IntegerSet</code>.
+	 */
+	public Factory getFactory() {
+		return factory;
+	}
+
+	/**
+	 * The type of numbers.
+	 * @return <code>Number</code>, <code>Int64</code> or <code>Integer</code>.
+	 */
+	public MNativeDataType getElementType() {
+		return array.elementType;
+	}
+
+	public boolean add(Number e) {
+		MPackedArray.checkNumber(e);
+		int i = array.search(e);
+		if (i >= 0)
+			return false;
+		array.insert(-i - 1, e);
+		this.notifyChanged();
+		return true;
+	}
+
+	public void addAll(double[] values) {
+		array.append(values, 0, values.length);
+		array.sortUnique();
+		this.notifyChanged();
+	}
+
+	public void addAll(long[] values) {
+		array.append(values, 0, values.length);
+		array.sortUnique();
+		this.notifyChanged();
+	}
+
+	public void addAll(int[] values) {
+		array.append(values, 0, values.length);
+		array.sortUnique();
+		this.notifyChanged();
+	}
+
+	public boolean remove(Number o) {
+		if (o == null)
+			return false;
+		int i = array.search(o);
+		if (i < 0)
+			return false;
+		array.remove(i);
+		this.notifyChanged();
+		return true;
+	}
+
+	public void clear() {
+		array.clear();
+		this.notifyChanged();
+	}
+
+	public boolean contains(Number o) {
+		if (o == null)
+			return false;
+		return array.search(o) >= 0;
+	}
+
+	public boolean isEmpty() {
+		return array.size() == 0;
+	}
+
+	public int size() {
+		return array.size();
+	}
+
+	/**
+	 * Copy the numbers to a new array in ascending order.
+	 * @return the array.
+	 */
+	public double[] toDoubleArray() {
+		return array.toDoubleArray();
+	}
+
+	public long[] toLongArray() {
+		return array.toLongArray();
+	}
+
+	public int[] toIntArray() {
+		return array.toIntArray();
+	}
+
+	@Override
+	public Iterator<Number> iterator() {
+		return new Itr();
+	}
+
+	private class Itr implements Iterator<Number> {
+
+		private int cursor = 0;
+
+		private int lastRet = -1;
+
+		@Override
+		public boolean hasNext() {
+			return cursor < array.size();
+		}
+
+		@Override
+		public Number next() {
+			if (cursor >= array.size())
+				throw new NoSuchElementException();
+			lastRet = cursor++;
+			return array.get(lastRet);
+		}
+
+		@Override
+		public void remove() {
+			if (lastRet < 0)
+				throw new IllegalStateException();
+			array.remove(lastRet);
+			cursor = lastRet;
+			lastRet = -1;
+			MNumericSet.this.notifyChanged();
+		}
+
+	}
+
+	@Override
+	public void forEach(ForEachCallback callback) {
+		if (callback == null)
+			return;
+		for (int i = 0; i < array.size(); i++) {
+			callback.action(null, array.get(i));
+		}
+	}
+
+}
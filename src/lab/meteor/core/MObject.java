@@ -1,9 +1,12 @@
 package lab.meteor.core;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import lab.meteor.core.MCollection.Factory;
@@ -12,17 +15,30 @@ import lab.meteor.core.MReference.Multiplicity;
 
 /**
  * The object.
+ * <p>
+ * The values and the change tracking of an object are guarded by its monitor, which
+ * the loading and the saving also hold, so an object could be changed while it's
+ * auto saved. The contents of a collection are not guarded, so a collection should be
+ * changed by one thread at a time.
  * @author Qiang
  *
  */
 public class MObject extends MElement implements MNotifiable {
 	
-	private Map<Long, Object> values = null;
+	/**
+	 * The values, indexed by the slots of <code>layout</code>.
+	 */
+	private Object[] values = null;
+	
+	/**
+	 * The class layout that the values are arranged by.
+	 */
+	private MClassLayout layout = null;
 	
 	MElementPointer class_pt = new MElementPointer();
 	
 	public MObject(MClass clazz) throws MException {
-		super(MElementType.Object);
+		super(databaseOf(clazz), MElementType.Object);
 		
 		if (clazz == null)
 			throw new MException(MException.Reason.NULL_ELEMENT);
@@ -32,7 +48,7 @@ public class MObject extends MElement implements MNotifiable {
 		this.initialize();
 		this.class_pt.setPointer(clazz);
 
-		MDatabase.getDB().createElement(this);
+		database.createElement(this);
 	}
 	
 	/**
@@ -40,7 +56,16 @@ public class MObject extends MElement implements MNotifiable {
 	 * @param id ID of element.
 	 */
 	public MObject(long id) {
-		super(id, MElementType.Object);
+		this(MDatabase.getDB(), id);
+	}
+	
+	/**
+	 * Create a "lazy" object element of specific database with id.
+	 * @param db The database.
+	 * @param id ID of element.
+	 */
+	MObject(MDatabase db, long id) {
+		super(db, id, MElementType.Object);
 	}
 	
 	public MClass getClazz() {
@@ -85,6 +110,26 @@ public class MObject extends MElement implements MNotifiable {
 		}
 	}
 	
+	/**
+	 * Get the value of a property, which is resolved before, e.g. by a compiled path
+	 * expression. The property must belong to the class of this object.
+	 * @param p the property.
+	 * @return the value, <code>MObject</code> or <code>MObjectSet</code> if it's a reference.
+	 */
+	public Object get(MProperty p) {
+		if (isDeleted() || p == null)
+			return null;
+		load();
+		switch (p.getElementType()) {
+		case Attribute:
+			return this.getAttribute((MAttribute) p);
+		case Reference:
+			return this.getReference((MReference) p);
+		default:
+			return null;
+		}
+	}
+	
 	public void set(String name, Object o) {
 		if (isDeleted())
 			return;
@@ -297,15 +342,99 @@ public class MObject extends MElement implements MNotifiable {
 		}
 	}
 
-	private Map<Long, Object> getValues() {
+	/**
+	 * Get the layout of the object's class. If the schema has been changed since the
+	 * values were arranged, the values are moved to the slots of the new layout, and
+	 * the values of the properties no longer in class are marked removed.
+	 * @return the current layout.
+	 */
+	private MClassLayout layout() {
+		MClass cls = (MClass) class_pt.getElement();
+		if (cls == null)
+			throw new MException(MException.Reason.ELEMENT_MISSED);
+		MClassLayout l = cls.getLayout();
+		if (l != this.layout)
+			relayout(l);
+		return l;
+	}
+	
+	private void relayout(MClassLayout l) {
+		MClassLayout old = this.layout;
+		Object[] oldValues = this.values;
+		BitSet oldChanged = this.changedProperties;
+		this.layout = l;
+		this.values = null;
+		this.changedProperties = null;
+		if (old == null || oldValues == null)
+			return;
+		
+		boolean dropped = false;
+		for (int i = 0; i < oldValues.length; i++) {
+			MProperty p = old.getProperty(i);
+			int slot = l.slotOf(p);
+			if (slot >= 0) {
+				if (oldValues[i] != null)
+					this.getValues()[slot] = oldValues[i];
+				if (oldChanged != null && oldChanged.get(i))
+					this.getChangedProperties().set(slot);
+			} else if (oldValues[i] != null) {
+				getRemovedProperties().add(p.id);
+				dropped = true;
+			}
+		}
+		if (dropped && this.loaded)
+			this.setChanged(ATTRIB_FLAG_VALUES);
+	}
+	
+	/**
+	 * Load the object. The object is loaded only once even if several threads touch
+	 * it at the same time.
+	 */
+	@Override
+	public void load() {
+		if (!loaded) {
+			synchronized (this) {
+				if (!loaded)
+					forceLoad();
+			}
+		}
+	}
+	
+	@Override
+	synchronized void unload() {
+		super.unload();
+		this.values = null;
+		this.changedProperties = null;
+		this.removedProperties = null;
+	}
+	
+	private Object[] getValues() {
 		if (this.values == null)
-			this.values = new TreeMap<Long, Object>();
+			this.values = new Object[this.layout.size()];
 		return this.values;
 	}
 	
+	private synchronized Object getValue(MProperty p) {
+		int slot = layout().slotOf(p);
+		if (slot < 0 || this.values == null)
+			return null;
+		return this.values[slot];
+	}
+	
+	private synchronized void putValue(MProperty p, Object value) {
+		int slot = layout().slotOf(p);
+		if (slot < 0) {
+			if (p.getElementType() == MElementType.Attribute)
+				throw new MException(MException.Reason.ATTRIBUTE_NOT_FOUND);
+			else
+				throw new MException(MException.Reason.REFERENCE_NOT_FOUND);
+		}
+		this.getValues()[slot] = value;
+	}
+	
 	private Object getAttribute(MAttribute atb) {
 		load();
-		Object o = this.getValues().get(atb.id);
+		Object o = this.getValue(atb);
 		if (o != null) {
 			if (!MUtility.checkOutputType(atb.getDataType(), o)) {
 				this.setAttribute(atb, null);
@@ -317,19 +446,30 @@ public class MObject extends MElement implements MNotifiable {
 		case List:
 			if (o == null) {
 				o = MCollection.createCollection(Factory.List, this, atb);
-				this.getValues().put(atb.id, o);
+				this.putValue(atb, o);
 			}
 			break;
 		case Set:
 			if (o == null) {
 				o = MCollection.createCollection(Factory.Set, this, atb);
-				this.getValues().put(atb.id, o);
+				this.putValue(atb, o);
 			}
 			break;
 		case Dictionary:
 			if (o == null) {
 				o = MCollection.createCollection(Factory.Dictionary, this, atb);
-				this.getValues().put(atb.id, o);
+				this.putValue(atb, o);
+			}
+			break;
+		case NumberList:
+		case Int64List:
+		case IntegerList:
+		case NumberSet:
+		case Int64Set:
+		case IntegerSet:
+			if (o == null) {
+				o = MCollection.createCollection(Factory.valueOf(nType.toString()), this, atb);
+				this.putValue(atb, o);
 			}
 			break;
 		case Enum:
@@ -355,17 +495,33 @@ public class MObject extends MElement implements MNotifiable {
 		} else {
 			o = obj;
 		}
-		this.getValues().put(atb.id, o);
+		this.putValue(atb, o);
 		this.setChanged(atb);
 	}
 	
+	/**
+	 * Collect the objects referred by a reference of this object, without loading them.
+	 * This object must be loaded.
+	 * @param ref the reference.
+	 * @param targets the collection to which the referred objects are added.
+	 */
+	void collectReferred(MReference ref, Collection<MObject> targets) {
+		Object value = this.getValue(ref);
+		if (value instanceof MElementPointer) {
+			targets.add((MObject) ((MElementPointer) value).getElement());
+		} else if (value instanceof MObjectSet) {
+			for (MElementPointer pt : ((MObjectSet) value).pointers)
+				targets.add((MObject) pt.getElement());
+		}
+	}
+	
 	private Object getReference(MReference ref) {
 		load();
-		Object value = this.getValues().get(ref.id);
+		Object value = this.getValue(ref);
 		if (ref.getMultiplicity() == Multiplicity.Multiple) {
 			if (value == null || !(value instanceof MObjectSet)) {
 				value = new MObjectSet(ref);
-				this.getValues().put(ref.id, value);
+				this.putValue(ref, value);
 			}
 		} else if (ref.getMultiplicity() == Multiplicity.One) {
 			if (value == null)
@@ -389,7 +545,9 @@ public class MObject extends MElement implements MNotifiable {
 		if (ref.getMultiplicity() == Multiplicity.One)
 			return;
 		MObjectSet set = (MObjectSet) this.getReference(ref);
-		set.pointers.add(new MElementPointer(obj));
+		synchronized (this) {
+			set.pointers.add(new MElementPointer(obj));
+		}
 		this.setChanged(ref);
 	}
 	
@@ -398,7 +556,9 @@ public class MObject extends MElement implements MNotifiable {
 		if (ref.getMultiplicity() == Multiplicity.One)
 			return;
 		MObjectSet set = (MObjectSet) this.getReference(ref);
-		set.pointers.remove(new MElementPointer(obj));
+		synchronized (this) {
+			set.pointers.remove(new MElementPointer(obj));
+		}
 		this.setChanged(ref);
 	}
 	
@@ -407,9 +567,9 @@ public class MObject extends MElement implements MNotifiable {
 		if (ref.getMultiplicity() == Multiplicity.Multiple)
 			return;
 		if (obj == null)
-			this.getValues().remove(ref.id);
+			this.putValue(ref, null);
 		else
-			this.getValues().put(ref.id, new MElementPointer(obj));
+			this.putValue(ref, new MElementPointer(obj));
 		this.setChanged(ref);
 	}
 	
@@ -423,29 +583,31 @@ public class MObject extends MElement implements MNotifiable {
 		
 		MDBAdapter.ObjectDBInfo objDBInfo = (MDBAdapter.ObjectDBInfo) dbInfo;
 		if (dbInfo.isFlagged(ATTRIB_FLAG_CLASS))
-			this.class_pt = new MElementPointer(objDBInfo.class_id, MElementType.Class);
+			this.class_pt = new MElementPointer(database, objDBInfo.class_id, MElementType.Class);
 		
+		MClassLayout l = layout();
 		Iterator<Map.Entry<String, Object>> it = objDBInfo.values.entrySet().iterator();
 		while (it.hasNext()) {
 			Map.Entry<String, Object> entry = it.next();
 			long id = MUtility.parseID(entry.getKey());
-			MElementType type = MDatabase.getDB().getElementType(id);
+			int slot = l.slotOf(id);
+			MProperty p = slot < 0 ? null : l.getProperty(slot);
 			Object value = entry.getValue();
 			
 			// if attribute
-			if (type == MElementType.Attribute) {
-				MAttribute atb = MDatabase.getDB().getAttribute(id);
+			if (p != null && p.getElementType() == MElementType.Attribute) {
+				MAttribute atb = (MAttribute) p;
 				if (!MUtility.checkInputType(atb.getDataType(), value)) {
 					changeFlag = true;
 				}
-				fromDBObject(this, atb, value, id);
+				this.getValues()[slot] = fromDBObject(this, atb, value);
 			// if reference
-			} else if (type == MElementType.Reference) {
-				MReference ref = MDatabase.getDB().getReference(id);
+			} else if (p != null && p.getElementType() == MElementType.Reference) {
+				MReference ref = (MReference) p;
 				// multiplicity one
 				if (value instanceof MElementPointer) {
 					if (ref.getMultiplicity() == Multiplicity.One) {
-						this.getValues().put(id, value);
+						this.getValues()[slot] = value;
 					} else {
 						changeFlag = true;
 					}
@@ -457,7 +619,7 @@ public class MObject extends MElement implements MNotifiable {
 						for (Object o : ds) {
 							ps.pointers.add((MElementPointer) o);
 						}
-						this.getValues().put(id, ps);
+						this.getValues()[slot] = ps;
 					} else {
 						changeFlag = true;
 					}
@@ -483,9 +645,11 @@ public class MObject extends MElement implements MNotifiable {
 		objDBInfo.id = this.id;
 		objDBInfo.class_id = this.class_pt.getID();
 		if (dbInfo.isFlagged(ATTRIB_FLAG_VALUES)) {
-			if (this.values != null) {
-				for (Long id : changedProperties) {
-					Object value = values.get(id);
+			if (this.values != null && this.changedProperties != null) {
+				BitSet changed = this.changedProperties;
+				for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+					long id = layout.getProperty(i).id;
+					Object value = values[i];
 					if (value instanceof MObjectSet) {
 						MDBAdapter.DataSet ds = new MDBAdapter.DataSet();
 						for (MElementPointer pt : ((MObjectSet) value).pointers) {
@@ -493,7 +657,15 @@ public class MObject extends MElement implements MNotifiable {
 						}
 						objDBInfo.values.put(MUtility.stringID(id), ds);
 					} else {
-						Object o = MCollection.toDBObject(value);
+						Object o = null;
+						if (value instanceof MList)
+							o = ((MList) value).takeDelta();
+						else if (value instanceof MDictionary)
+							o = ((MDictionary) value).takeSpill(database.getLargeCollectionThreshold());
+						else if (value instanceof MSet)
+							o = ((MSet) value).takeSpill(database.getLargeCollectionThreshold());
+						if (o == null)
+							o = MCollection.toDBObject(value);
 						objDBInfo.values.put(MUtility.stringID(id), o);
 					}
 				}
@@ -506,15 +678,79 @@ public class MObject extends MElement implements MNotifiable {
 				removedProperties.clear();
 			}
 		}
+		// the changes are taken, a change made later sets the flag again
+		changed_flag &= ~dbInfo.flag;
+	}
+
+	/**
+	 * Confirm that the changes taken by {@link #saveToDBInfo(DBInfo)} are written, so
+	 * the large collections drop the changes they keep until then.
+	 * @param objDBInfo the changes written.
+	 */
+	synchronized void changesSaved(MDBAdapter.ObjectDBInfo objDBInfo) {
+		for (Map.Entry<String, Object> entry : objDBInfo.values.entrySet()) {
+			if (!(entry.getValue() instanceof MDBAdapter.SpilledCollection))
+				continue;
+			int slot = layout().slotOf(MUtility.parseID(entry.getKey()));
+			if (slot < 0 || values == null)
+				continue;
+			MDBAdapter.SpilledCollection sc = (MDBAdapter.SpilledCollection) entry.getValue();
+			if (values[slot] instanceof MDictionary)
+				((MDictionary) values[slot]).spillSaved(sc);
+			else if (values[slot] instanceof MSet)
+				((MSet) values[slot]).spillSaved(sc);
+		}
 	}
 
-	private static void fromDBObject(MObject obj, MAttribute atb, Object value, Object key) {
-		if (value instanceof MDBAdapter.DataList) {
+	/**
+	 * Mark again the changes taken by {@link #saveToDBInfo(DBInfo)} when the write of
+	 * them fails, so that they are written by the next save. The lists are written
+	 * whole then, since the changes taken from them are gone.
+	 * @param objDBInfo the changes which were not written.
+	 */
+	synchronized void restoreChanges(MDBAdapter.ObjectDBInfo objDBInfo) {
+		if (objDBInfo.values.isEmpty() && objDBInfo.deleteKeys.isEmpty())
+			return;
+		for (Map.Entry<String, Object> entry : objDBInfo.values.entrySet()) {
+			int slot = layout().slotOf(MUtility.parseID(entry.getKey()));
+			if (slot < 0)
+				continue;
+			getChangedProperties().set(slot);
+			Object value = values != null ? values[slot] : null;
+			if (value instanceof MList) {
+				((MList) value).markUnpersisted();
+			} else if (entry.getValue() instanceof MDBAdapter.SpilledCollection) {
+				MDBAdapter.SpilledCollection sc = (MDBAdapter.SpilledCollection) entry.getValue();
+				if (value instanceof MDictionary)
+					((MDictionary) value).spillFailed(sc);
+				else if (value instanceof MSet)
+					((MSet) value).spillFailed(sc);
+			}
+		}
+		for (String key : objDBInfo.deleteKeys.keySet())
+			getRemovedProperties().add(MUtility.parseID(key));
+		changed_flag |= ATTRIB_FLAG_VALUES;
+	}
+
+	private static Object fromDBObject(MObject obj, MAttribute atb, Object value) {
+		if (value instanceof MDBAdapter.SpilledCollection) {
+			MDBAdapter.SpilledCollection sc = (MDBAdapter.SpilledCollection) value;
+			if (sc.kind == MCollection.Factory.Set) {
+				MSet set = new MSet(obj, atb);
+				set.spill = new MSpill(set, sc.kind, sc.size);
+				value = set;
+			} else {
+				MDictionary dict = new MDictionary(obj, atb);
+				dict.spill = new MSpill(dict, sc.kind, sc.size);
+				value = dict;
+			}
+		} else if (value instanceof MDBAdapter.DataList) {
 			MList list = new MList(obj, atb);
 			MDBAdapter.DataList dl = (MDBAdapter.DataList) value;
 			for (Object o : dl) {
 				MCollection.fromDBObject(list, o, null);
 			}
+			list.markPersisted();
 			value = list;
 		} else if (value instanceof MDBAdapter.DataSet) {
 			MSet set = new MSet(obj, atb);
@@ -534,8 +770,13 @@ public class MObject extends MElement implements MNotifiable {
 				MCollection.fromDBObject(dict, o, k);
 			}
 			value = dict;
+		} else if (value instanceof MDBAdapter.DataPacked) {
+			MDBAdapter.DataPacked dp = (MDBAdapter.DataPacked) value;
+			MCollection packed = MCollection.createCollection(dp.kind, obj, atb);
+			MCollection.loadPacked(packed, dp.data);
+			value = packed;
 		}
-		obj.getValues().put(atb.id, value);
+		return value;
 	}
 
 	public class MObjectSet implements Iterable<MObject> {
@@ -588,6 +829,23 @@ public class MObject extends MElement implements MNotifiable {
 			changed();
 		}
 		
+		/**
+		 * Load the objects of this set together, and the objects along the reference
+		 * paths.
+		 * @param paths the reference paths, such as {@code "owner"} and {@code "items.product"}.
+		 * @return this set.
+		 * @see MPrefetch
+		 */
+		public MObjectSet prefetch(String... paths) {
+			if (isDeleted())
+				return this;
+			List<MObject> objs = new ArrayList<MObject>(pointers.size());
+			for (MElementPointer pt : pointers)
+				objs.add((MObject) pt.getElement());
+			MPrefetch.of(paths).apply(objs);
+			return this;
+		}
+		
 		public boolean contains(MObject o) {
 			if (isDeleted())
 				return false;
@@ -659,30 +917,33 @@ public class MObject extends MElement implements MNotifiable {
 	public String details() {
 		StringBuilder sb = new StringBuilder();
 		sb.append(this.getClazz().toString()).append("(").append(this.id).append(")\n");
-		for (Long id : this.getValues().keySet()) {
-			MElementType type = MDatabase.getDB().getElementType(id);
+		MClassLayout l = layout();
+		for (int i = 0; this.values != null && i < this.values.length; i++) {
+			if (this.values[i] == null)
+				continue;
+			MProperty p = l.getProperty(i);
 			sb.append("  ");
-			if (type == MElementType.Attribute) {
-				MAttribute a = MDatabase.getDB().getAttribute(id);
+			if (p.getElementType() == MElementType.Attribute) {
+				MAttribute a = (MAttribute) p;
 				sb.append(a.name).append(" : ");
-				Object v = this.values.get(id);
+				Object v = this.values[i];
 				if (a.getDataType().getNativeDataType() == MNativeDataType.Enum) {
 					sb.append(((MElementPointer) v).getElement().toString()).append("\n");
 				} else {
 					sb.append(v.toString()).append("\n");
 				}
 			} else {
-				MReference r = MDatabase.getDB().getReference(id);
+				MReference r = (MReference) p;
 				sb.append(r.name).append(" : ");
 				if (r.getMultiplicity() == Multiplicity.Multiple) {
-					MObjectSet set = (MObjectSet)this.values.get(r.id);
+					MObjectSet set = (MObjectSet)this.values[i];
 					sb.append("\n  {\n");
 					for (MElementPointer pt : set.pointers) {
 						sb.append("    ").append(pt.getElement().toString()).append("\n");
 					}
 					sb.append("  }\n");
 				} else {
-					MElementPointer pt = (MElementPointer)this.values.get(r.id);
+					MElementPointer pt = (MElementPointer)this.values[i];
 					sb.append(pt.getElement().toString()).append("\n");
 				}
 			}
@@ -697,9 +958,23 @@ public class MObject extends MElement implements MNotifiable {
 		return sb.toString();
 	}
 	
-	Set<Long> changedProperties = new TreeSet<Long>();
+	/**
+	 * The slots of changed properties.
+	 */
+	private BitSet changedProperties;
+	
+	/**
+	 * The IDs of stored properties that are no longer in class. They have no slot in
+	 * layout, so they are kept by ID.
+	 */
 	private Set<Long> removedProperties;
 	
+	private BitSet getChangedProperties() {
+		if (changedProperties == null)
+			changedProperties = new BitSet(this.layout.size());
+		return changedProperties;
+	}
+	
 	private Set<Long> getRemovedProperties() {
 		if (removedProperties == null)
 			removedProperties = new TreeSet<Long>();
@@ -707,24 +982,55 @@ public class MObject extends MElement implements MNotifiable {
 	}
 	
 	public void setChanged(MElementPointer property) {
-		changedProperties.add(property.getID());
+		synchronized (this) {
+			int slot = layout().slotOf(property.getID());
+			if (slot >= 0)
+				getChangedProperties().set(slot);
+		}
 		setChanged(ATTRIB_FLAG_VALUES);
 	}
 	
 	void setChanged(MProperty p) {
-		changedProperties.add(p.id);
+		synchronized (this) {
+			int slot = layout().slotOf(p);
+			if (slot >= 0)
+				getChangedProperties().set(slot);
+		}
 		setChanged(ATTRIB_FLAG_VALUES);
 	}
 	
-	void clearChange() {
-		changedProperties.clear();
+	synchronized void clearChange() {
+		if (changedProperties != null)
+			changedProperties.clear();
+	}
+	
+	/**
+	 * A rough estimate of the memory held by the object in bytes. A dirty object is
+	 * pinned in cache until it's saved, so the whole object is counted.
+	 * @return the estimate.
+	 */
+	int estimateSize() {
+		Object[] vs = this.values;
+		if (vs == null)
+			return 64;
+		int size = 64 + vs.length * 32;
+		for (Object v : vs) {
+			// the packed numbers are the bulk of an object
+			if (v instanceof MNumericList)
+				size += ((MNumericList) v).array.estimateSize();
+			else if (v instanceof MNumericSet)
+				size += ((MNumericSet) v).array.estimateSize();
+		}
+		return size;
 	}
 	
 	@Override
 	public void save(int flag) {
 		super.save(flag);
-		if ((changed_flag & ATTRIB_FLAG_VALUES) == 0)
-			clearChange();
+		synchronized (this) {
+			if ((changed_flag & ATTRIB_FLAG_VALUES) == 0)
+				clearChange();
+		}
 	}
 	
 	public static final int ATTRIB_FLAG_CLASS = 0x00000001;
@@ -0,0 +1,244 @@
+package lab.meteor.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A parallel scan of the objects of a class. The IDs are read from database by a single
+ * cursor, in segments, and every segment is processed by a fork-join task, which splits
+ * the segment into batches. The objects of a batch are loaded together, with a prefetch
+ * plan if it's set, and then visited one by one. The number of segments in flight is
+ * bounded, so the memory used doesn't grow with the number of objects.
+ * <p>
+ * The objects are visited by several threads at the same time and in no particular
+ * order, so the visitor must be thread-safe. Each object is visited once.
+ * @see MClass#scan(boolean)
+ */
+public class MObjectScan {
+
+	/**
+	 * The visitor of objects.
+	 */
+	public static interface Visitor {
+		/**
+		 * Visit an object, which is loaded.
+		 * @param obj the object.
+		 */
+		void visit(MObject obj);
+	}
+	
+	/**
+	 * The visitor of batches of objects, e.g. to write the changes of a batch together.
+	 */
+	public static interface BatchVisitor {
+		/**
+		 * Visit a batch of objects, which are loaded, in the thread loaded them.
+		 * @param objs the objects.
+		 */
+		void visit(List<MObject> objs);
+	}
+
+	/**
+	 * The default number of objects loaded in a batch.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * The number of batches in a segment.
+	 */
+	private static final int SEGMENT_BATCHES = 8;
+
+	private final MClass clazz;
+
+	private final boolean includeSubclasses;
+
+	private MPrefetch plan = null;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private ForkJoinPool pool = null;
+
+	MObjectScan(MClass clazz, boolean includeSubclasses) {
+		this.clazz = clazz;
+		this.includeSubclasses = includeSubclasses;
+	}
+
+	/**
+	 * Load the objects together with the objects along the reference paths.
+	 * @param paths the reference paths, such as {@code "owner"} and {@code "items.product"}.
+	 * @return this scan.
+	 */
+	public MObjectScan prefetch(String... paths) {
+		return prefetch(MPrefetch.of(paths));
+	}
+
+	/**
+	 * Load the objects according to a prefetch plan.
+	 * @param plan the plan.
+	 * @return this scan.
+	 */
+	public MObjectScan prefetch(MPrefetch plan) {
+		this.plan = plan;
+		return this;
+	}
+
+	/**
+	 * Set the number of objects loaded in a batch.
+	 * @param size the size of batch.
+	 * @return this scan.
+	 */
+	public MObjectScan batchSize(int size) {
+		this.batchSize = Math.max(1, size);
+		return this;
+	}
+
+	/**
+	 * Set the pool which runs the scan. By default, the pool of
+	 * {@link MExecutionService#getForkJoinPool()} is used.
+	 * @param pool the pool.
+	 * @return this scan.
+	 */
+	public MObjectScan pool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Visit all objects, and wait until all of them are visited. If the visitor throws
+	 * an exception, the scan stops and the exception is thrown again by this method.
+	 * @param visitor the visitor.
+	 */
+	public void forEach(final Visitor visitor) {
+		forEachBatch(new BatchVisitor() {
+			@Override
+			public void visit(List<MObject> objs) {
+				for (MObject obj : objs)
+					visitor.visit(obj);
+			}
+		});
+	}
+	
+	/**
+	 * Visit all objects batch by batch, and wait until all of them are visited. If the
+	 * visitor throws an exception, the scan stops and the exception is thrown again by
+	 * this method.
+	 * @param visitor the visitor.
+	 */
+	public void forEachBatch(BatchVisitor visitor) {
+		ForkJoinPool p = this.pool != null ? this.pool : MExecutionService.getDefault().getForkJoinPool();
+		MDatabase db = clazz.getDatabase();
+		ScanContext context = new ScanContext(db, visitor, p.getParallelism() * 2);
+		MDBAdapter.IDCursor cursor = db.findObjectsID(clazz, includeSubclasses);
+		int segmentSize = batchSize * SEGMENT_BATCHES;
+		try {
+			while (cursor.hasNext() && context.failure.get() == null) {
+				long[] ids = new long[segmentSize];
+				int n = 0;
+				while (n < segmentSize && cursor.hasNext())
+					ids[n++] = cursor.next();
+				context.inFlight.acquireUninterruptibly();
+				context.phaser.register();
+				p.execute(new Segment(context, ids, 0, n, true));
+			}
+		} finally {
+			if (context.failure.get() != null)
+				cursor.close();
+			context.phaser.arriveAndAwaitAdvance();
+		}
+		Throwable t = context.failure.get();
+		if (t instanceof RuntimeException)
+			throw (RuntimeException) t;
+		if (t instanceof Error)
+			throw (Error) t;
+	}
+
+	/**
+	 * The state shared by the tasks of a scan.
+	 */
+	private class ScanContext {
+		final MDatabase database;
+		final BatchVisitor visitor;
+		final Semaphore inFlight;
+		final Phaser phaser = new Phaser(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		ScanContext(MDatabase database, BatchVisitor visitor, int maxSegments) {
+			this.database = database;
+			this.visitor = visitor;
+			this.inFlight = new Semaphore(Math.max(1, maxSegments));
+		}
+	}
+
+	/**
+	 * A range of IDs, which is split until it's not larger than a batch.
+	 */
+	private class Segment extends RecursiveAction {
+
+		private static final long serialVersionUID = -3592086315617470962L;
+
+		final ScanContext context;
+		final long[] ids;
+		final int lo;
+		final int hi;
+		final boolean root;
+
+		Segment(ScanContext context, long[] ids, int lo, int hi, boolean root) {
+			this.context = context;
+			this.ids = ids;
+			this.lo = lo;
+			this.hi = hi;
+			this.root = root;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				if (context.failure.get() != null)
+					return;
+				if (hi - lo <= batchSize) {
+					visitBatch();
+				} else {
+					int mid = (lo + hi) >>> 1;
+					invokeAll(new Segment(context, ids, lo, mid, false),
+							new Segment(context, ids, mid, hi, false));
+				}
+			} catch (Throwable t) {
+				context.failure.compareAndSet(null, t);
+			} finally {
+				if (root) {
+					context.inFlight.release();
+					context.phaser.arriveAndDeregister();
+				}
+			}
+		}
+
+		private void visitBatch() {
+			MDatabase db = context.database;
+			MDatabase.Scope scope = db.enter();
+			try {
+				List<MObject> objs = new ArrayList<MObject>(hi - lo);
+				for (int i = lo; i < hi; i++)
+					objs.add(db.getLazyObject(ids[i]));
+				if (plan != null)
+					plan.apply(objs);
+				else
+					db.loadObjects(objs);
+				List<MObject> loaded = new ArrayList<MObject>(objs.size());
+				for (MObject obj : objs) {
+					if (obj.isLoaded() && !obj.isDeleted())
+						loaded.add(obj);
+				}
+				if (!loaded.isEmpty() && context.failure.get() == null)
+					context.visitor.visit(loaded);
+			} finally {
+				scope.close();
+			}
+		}
+	}
+
+}
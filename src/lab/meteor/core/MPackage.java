@@ -1,30 +1,29 @@
 package lab.meteor.core;
 
-import java.util.Map;
-import java.util.TreeMap;
-
 import lab.meteor.core.MDBAdapter.DBInfo;
+import lab.meteor.core.cache.MSnapshotMap;
 
 public class MPackage extends MElement {
 
 	/**
-	 * The default package.
+	 * The default package of the default database.
 	 * Default package is the root of all packages, classes and enumes.
+	 * @see MDatabase#getDefaultPackage()
 	 */
-	public static final MPackage DEFAULT_PACKAGE = new MPackage();
+	public static final MPackage DEFAULT_PACKAGE = new MPackage(MDatabase.getDefault());
 	
 	/**
 	 * The classes.
 	 */
-	private Map<String, MClass> classes;
+	private final MSnapshotMap<String, MClass> classes = new MSnapshotMap<String, MClass>(true);
 	/**
 	 * The enumes.
 	 */
-	private Map<String, MEnum> enumes;
+	private final MSnapshotMap<String, MEnum> enumes = new MSnapshotMap<String, MEnum>(true);
 	/**
 	 * The packages.
 	 */
-	private Map<String, MPackage> packages;
+	private final MSnapshotMap<String, MPackage> packages = new MSnapshotMap<String, MPackage>(true);
 	/**
 	 * The name.
 	 */
@@ -35,10 +34,11 @@ public class MPackage extends MElement {
 	private MPackage parent;
 	
 	/**
-	 * Create the default package.
+	 * Create the default package of a database.
+	 * @param db The database.
 	 */
-	private MPackage() {
-		super(MElementType.Package);
+	MPackage(MDatabase db) {
+		super(db, MElementType.Package);
 		this.name = "";
 		this.id = MElement.NULL_ID;
 		this.parent = null;
@@ -49,7 +49,7 @@ public class MPackage extends MElement {
 	 * @param name
 	 */
 	public MPackage(String name) {
-		this(name, MPackage.DEFAULT_PACKAGE);
+		this(name, null);
 	}
 	
 	/**
@@ -58,10 +58,10 @@ public class MPackage extends MElement {
 	 * @param pkg The parent package
 	 */
 	public MPackage(String name, MPackage pkg) {
-		super(MElementType.Package);
+		super(databaseOf(pkg), MElementType.Package);
 		
 		if (pkg == null)
-			pkg = MPackage.DEFAULT_PACKAGE;
+			pkg = database.getDefaultPackage();
 		if (pkg.isDeleted())
 			throw new MException(MException.Reason.ELEMENT_MISSED);
 		if (pkg.hasChild(name))
@@ -72,15 +72,16 @@ public class MPackage extends MElement {
 		this.parent = pkg;
 		link();
 		
-		MDatabase.getDB().createElement(this);
+		database.createElement(this);
 	}
 	
 	/**
 	 * Create a "lazy" package element with id.
+	 * @param db The database.
 	 * @param id ID of element.
 	 */
-	protected MPackage(long id) {
-		super(id, MElementType.Package);
+	protected MPackage(MDatabase db, long id) {
+		super(db, id, MElementType.Package);
 	}
 	
 	/*
@@ -95,26 +96,20 @@ public class MPackage extends MElement {
 	public void delete() {
 		isDeleting = true;
 		// delete classes
-		if (this.classes != null) {
-			for (MClass cls : this.classes.values()) {
-				cls.delete();
-			}
-			this.classes.clear();
+		for (MClass cls : this.classes.values()) {
+			cls.delete();
 		}
+		this.classes.clear();
 		// delete enumes
-		if (this.enumes != null) {
-			for (MEnum enm : this.enumes.values()) {
-				enm.delete();
-			}
-			this.enumes.clear();
+		for (MEnum enm : this.enumes.values()) {
+			enm.delete();
 		}
+		this.enumes.clear();
 		// delete packages
-		if (this.packages != null) {
-			for (MPackage pkg : this.packages.values()) {
-				pkg.delete();
-			}
-			this.packages.clear();
+		for (MPackage pkg : this.packages.values()) {
+			pkg.delete();
 		}
+		this.packages.clear();
 		
 		unlink();
 		super.delete();
@@ -170,7 +165,7 @@ public class MPackage extends MElement {
 		if (this.id == MPackage.DEFAULT_PACKAGE.id)
 			return;
 		if (pkg == null)
-			pkg = DEFAULT_PACKAGE;
+			pkg = database.getDefaultPackage();
 		if (pkg == this.parent)
 			return;
 		if (pkg.hasChild(this.name))
@@ -210,7 +205,7 @@ public class MPackage extends MElement {
 	 * @return <code>true</code> if there is
 	 */
 	public boolean hasClass(String name) {
-		return this.classes().containsKey(name);
+		return this.classes.containsKey(name);
 	}
 
 	/**
@@ -219,7 +214,7 @@ public class MPackage extends MElement {
 	 * @return <code>true</code> if there is
 	 */
 	public boolean hasEnum(String name) {
-		return this.enumes().containsKey(name);
+		return this.enumes.containsKey(name);
 	}
 	
 	/**
@@ -228,7 +223,7 @@ public class MPackage extends MElement {
 	 * @return <code>true</code> if there is
 	 */
 	public boolean hasPackage(String name) {
-		return this.packages().containsKey(name);
+		return this.packages.containsKey(name);
 	}
 	
 	/**
@@ -237,11 +232,11 @@ public class MPackage extends MElement {
 	 * @return package, class or enum
 	 */
 	public MElement getChild(String name) {
-		MElement child = this.packages().get(name);
+		MElement child = this.packages.get(name);
 		if (child == null)
-			child = this.classes().get(name);
+			child = this.classes.get(name);
 		if (child == null)
-			child = this.enumes().get(name);
+			child = this.enumes.get(name);
 		return child;
 	}
 	
@@ -251,7 +246,7 @@ public class MPackage extends MElement {
 	 * @return The class
 	 */
 	public MClass getClazz(String name) {
-		return this.classes().get(name);
+		return this.classes.get(name);
 	}
 	
 	/**
@@ -260,7 +255,7 @@ public class MPackage extends MElement {
 	 * @return The enum
 	 */
 	public MEnum getEnum(String name) {
-		return this.enumes().get(name);
+		return this.enumes.get(name);
 	}
 	
 	/**
@@ -269,7 +264,7 @@ public class MPackage extends MElement {
 	 * @return The package
 	 */
 	public MPackage getPackage(String name) {
-		return this.packages().get(name);
+		return this.packages.get(name);
 	}
 	
 	/**
@@ -277,7 +272,7 @@ public class MPackage extends MElement {
 	 * @return All classes' names
 	 */
 	public String[] getClassNames() {
-		return this.classes().keySet().toArray(new String[0]);
+		return this.classes.keySet().toArray(new String[0]);
 	}
 	
 	/**
@@ -285,7 +280,7 @@ public class MPackage extends MElement {
 	 * @return All enumes' names
 	 */
 	public String[] getEnumNames() {
-		return this.enumes().keySet().toArray(new String[0]);
+		return this.enumes.keySet().toArray(new String[0]);
 	}
 	
 	/**
@@ -293,45 +288,15 @@ public class MPackage extends MElement {
 	 * @return All packages' names
 	 */
 	public String[] getPackageNames() {
-		return this.packages().keySet().toArray(new String[0]);
+		return this.packages.keySet().toArray(new String[0]);
 	}
 
-	/**
-	 * Get class map.
-	 * @return
-	 */
-	private Map<String, MClass> classes() {
-		if (this.classes == null)
-			this.classes = new TreeMap<String, MClass>();
-		return this.classes;
-	}
-	
-	/**
-	 * Get enum map.
-	 * @return
-	 */
-	private Map<String, MEnum> enumes() {
-		if (this.enumes == null)
-			this.enumes = new TreeMap<String, MEnum>();
-		return this.enumes;
-	}
-	
-	/**
-	 * Get package map.
-	 * @return
-	 */
-	private Map<String, MPackage> packages() {
-		if (this.packages == null)
-			this.packages = new TreeMap<String, MPackage>();
-		return this.packages;
-	}
-	
 	/**
 	 * Add a class to this package.
 	 * @param cls The class
 	 */
 	protected void addClass(MClass cls) {
-		this.classes().put(cls.getName(), cls);
+		this.classes.put(cls.getName(), cls);
 	}
 	
 	/**
@@ -341,7 +306,7 @@ public class MPackage extends MElement {
 	protected void removeClass(MClass cls) {
 		if (isDeleting)
 			return;
-		this.classes().remove(cls.getName());
+		this.classes.remove(cls.getName());
 	}
 	
 	/**
@@ -349,7 +314,7 @@ public class MPackage extends MElement {
 	 * @param enm The enum
 	 */
 	protected void addEnum(MEnum enm) {
-		this.enumes().put(enm.getName(), enm);
+		this.enumes.put(enm.getName(), enm);
 	}
 	
 	/**
@@ -359,7 +324,7 @@ public class MPackage extends MElement {
 	protected void removeEnum(MEnum enm) {
 		if (isDeleting)
 			return;
-		this.enumes().remove(enm.getName());
+		this.enumes.remove(enm.getName());
 	}
 	
 	/**
@@ -367,7 +332,7 @@ public class MPackage extends MElement {
 	 * @param pkg The package
 	 */
 	protected void addPackage(MPackage pkg) {
-		this.packages().put(pkg.getName(), pkg);
+		this.packages.put(pkg.getName(), pkg);
 	}
 	
 	/**
@@ -377,7 +342,7 @@ public class MPackage extends MElement {
 	protected void removePackage(MPackage pkg) {
 		if (isDeleting)
 			return;
-		this.packages().remove(pkg.getName());
+		this.packages.remove(pkg.getName());
 	}
 
 	private void link() {
@@ -403,7 +368,7 @@ public class MPackage extends MElement {
 		MPackage pkg = this.parent;
 		String name = this.name;
 		if (dbInfo.isFlagged(ATTRIB_FLAG_PARENT))
-			pkg = MDatabase.getDB().getPackage(pkgDBInfo.package_id);
+			pkg = database.getPackage(pkgDBInfo.package_id);
 		if (dbInfo.isFlagged(ATTRIB_FLAG_NAME))
 			name = pkgDBInfo.name;
 		if (pkg != null && name != null && pkg.hasChild(name) && pkg.getPackage(name) != this)
@@ -418,7 +383,7 @@ public class MPackage extends MElement {
 			this.name = name;
 		}
 		if (dbInfo.isFlagged(ATTRIB_FLAG_PARENT)) {
-			this.parent = MDatabase.getDB().getPackage(pkgDBInfo.package_id);
+			this.parent = database.getPackage(pkgDBInfo.package_id);
 		}
 		// link
 		if (relink)
@@ -439,7 +404,7 @@ public class MPackage extends MElement {
 	
 	@Override
 	public String toString() {
-		if (parent == null || parent == DEFAULT_PACKAGE) {
+		if (parent == null || parent == database.getDefaultPackage()) {
 			return this.name;
 		}
 		return this.parent.toString() + "::" + this.name;
@@ -448,7 +413,7 @@ public class MPackage extends MElement {
 	@Override
 	public String details() {
 		StringBuilder sb = new StringBuilder();
-		if (this == MPackage.DEFAULT_PACKAGE) {
+		if (this == database.getDefaultPackage()) {
 			sb.append("Root Package {\n");
 		} else {
 			sb.append("Package(").append(id).append(") - ");
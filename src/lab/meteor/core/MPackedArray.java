@@ -0,0 +1,496 @@
+package lab.meteor.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The numbers of a packed collection, kept in a primitive array of the element type
+ * instead of boxed objects. The element type is one of <code>Number</code> (double),
+ * <code>Int64</code> (long) and <code>Integer</code> (int).
+ * <p>
+ * The array is stored as a binary block, which is a byte of encoding, the count of
+ * numbers, and the numbers in little-endian. The integers may be delta-encoded, i.e.
+ * the differences between neighbours as zigzag variable-length integers, which is used
+ * when it's smaller, e.g. for sorted or slowly changing series.
+ */
+final class MPackedArray {
+
+	private static final byte ENCODING_RAW = 0;
+	private static final byte ENCODING_DELTA = 1;
+
+	private static final int HEADER_SIZE = 5;
+
+	final MNativeDataType elementType;
+
+	private double[] doubles;
+	private long[] longs;
+	private int[] ints;
+
+	private int size = 0;
+
+	MPackedArray(MNativeDataType elementType) {
+		this.elementType = elementType;
+		switch (elementType) {
+		case Number:
+			doubles = new double[8];
+			break;
+		case Int64:
+			longs = new long[8];
+			break;
+		case Integer:
+			ints = new int[8];
+			break;
+		default:
+			throw new MException(MException.Reason.INVALID_VALUE_TYPE);
+		}
+	}
+
+	/**
+	 * The element type of a factory of packed collection.
+	 * @param factory the factory.
+	 * @return the element type, or {@code null} if it's not a packed collection.
+	 */
+	static MNativeDataType elementTypeOf(MCollection.Factory factory) {
+		switch (factory) {
+		case NumberList:
+		case NumberSet:
+			return MNativeDataType.Number;
+		case Int64List:
+		case Int64Set:
+			return MNativeDataType.Int64;
+		case IntegerList:
+		case IntegerSet:
+			return MNativeDataType.Integer;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Check the value is a number.
+	 * @param o the value.
+	 * @return the number.
+	 */
+	static Number checkNumber(Object o) {
+		if (!(o instanceof java.lang.Number))
+			throw new MException(MException.Reason.INVALID_VALUE_TYPE);
+		return (Number) o;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+
+	private void ensureCapacity(int capacity) {
+		int length = capacity();
+		if (capacity <= length)
+			return;
+		int n = Math.max(capacity, length + (length >> 1) + 1);
+		switch (elementType) {
+		case Number:
+			doubles = Arrays.copyOf(doubles, n);
+			break;
+		case Int64:
+			longs = Arrays.copyOf(longs, n);
+			break;
+		default:
+			ints = Arrays.copyOf(ints, n);
+			break;
+		}
+	}
+
+	private int capacity() {
+		switch (elementType) {
+		case Number:
+			return doubles.length;
+		case Int64:
+			return longs.length;
+		default:
+			return ints.length;
+		}
+	}
+
+	/**
+	 * Get a number as the boxed element type.
+	 */
+	Number get(int index) {
+		checkIndex(index);
+		switch (elementType) {
+		case Number:
+			return doubles[index];
+		case Int64:
+			return longs[index];
+		default:
+			return ints[index];
+		}
+	}
+
+	double getDouble(int index) {
+		checkIndex(index);
+		switch (elementType) {
+		case Number:
+			return doubles[index];
+		case Int64:
+			return longs[index];
+		default:
+			return ints[index];
+		}
+	}
+
+	long getLong(int index) {
+		checkIndex(index);
+		switch (elementType) {
+		case Number:
+			return (long) doubles[index];
+		case Int64:
+			return longs[index];
+		default:
+			return ints[index];
+		}
+	}
+
+	int getInt(int index) {
+		return (int) getLong(index);
+	}
+
+	/**
+	 * Replace a number.
+	 * @return the old number.
+	 */
+	Number set(int index, Number value) {
+		Number old = get(index);
+		put(index, value);
+		return old;
+	}
+
+	private void put(int index, Number value) {
+		switch (elementType) {
+		case Number:
+			doubles[index] = value.doubleValue();
+			break;
+		case Int64:
+			longs[index] = value.longValue();
+			break;
+		default:
+			ints[index] = value.intValue();
+			break;
+		}
+	}
+
+	void insert(int index, Number value) {
+		if (index < 0 || index > size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		ensureCapacity(size + 1);
+		Object array = array();
+		System.arraycopy(array, index, array, index + 1, size - index);
+		size++;
+		put(index, value);
+	}
+
+	Number remove(int index) {
+		Number old = get(index);
+		Object array = array();
+		System.arraycopy(array, index + 1, array, index, size - index - 1);
+		size--;
+		return old;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	private Object array() {
+		switch (elementType) {
+		case Number:
+			return doubles;
+		case Int64:
+			return longs;
+		default:
+			return ints;
+		}
+	}
+
+	void append(double[] values, int offset, int length) {
+		ensureCapacity(size + length);
+		for (int i = 0; i < length; i++) {
+			double v = values[offset + i];
+			switch (elementType) {
+			case Number:
+				doubles[size + i] = v;
+				break;
+			case Int64:
+				longs[size + i] = (long) v;
+				break;
+			default:
+				ints[size + i] = (int) v;
+				break;
+			}
+		}
+		size += length;
+	}
+
+	void append(long[] values, int offset, int length) {
+		ensureCapacity(size + length);
+		if (elementType == MNativeDataType.Int64) {
+			System.arraycopy(values, offset, longs, size, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				if (elementType == MNativeDataType.Number)
+					doubles[size + i] = values[offset + i];
+				else
+					ints[size + i] = (int) values[offset + i];
+			}
+		}
+		size += length;
+	}
+
+	void append(int[] values, int offset, int length) {
+		ensureCapacity(size + length);
+		if (elementType == MNativeDataType.Integer) {
+			System.arraycopy(values, offset, ints, size, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				if (elementType == MNativeDataType.Number)
+					doubles[size + i] = values[offset + i];
+				else
+					longs[size + i] = values[offset + i];
+			}
+		}
+		size += length;
+	}
+
+	/**
+	 * Find a number by scanning the array.
+	 * @return the index, or <code>-1</code> if not found.
+	 */
+	int indexOf(Number value) {
+		switch (elementType) {
+		case Number:
+			long bits = Double.doubleToLongBits(value.doubleValue());
+			for (int i = 0; i < size; i++)
+				if (Double.doubleToLongBits(doubles[i]) == bits)
+					return i;
+			break;
+		case Int64:
+			long l = value.longValue();
+			for (int i = 0; i < size; i++)
+				if (longs[i] == l)
+					return i;
+			break;
+		default:
+			int n = value.intValue();
+			for (int i = 0; i < size; i++)
+				if (ints[i] == n)
+					return i;
+			break;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find a number in the sorted array.
+	 * @return the index, or <code>(-(insertion point) - 1)</code> if not found, as
+	 * <code>Arrays.binarySearch()</code>.
+	 */
+	int search(Number value) {
+		switch (elementType) {
+		case Number:
+			return Arrays.binarySearch(doubles, 0, size, value.doubleValue());
+		case Int64:
+			return Arrays.binarySearch(longs, 0, size, value.longValue());
+		default:
+			return Arrays.binarySearch(ints, 0, size, value.intValue());
+		}
+	}
+
+	/**
+	 * Sort the numbers and remove the duplicated ones.
+	 */
+	void sortUnique() {
+		if (size == 0)
+			return;
+		int n = 1;
+		switch (elementType) {
+		case Number:
+			Arrays.sort(doubles, 0, size);
+			for (int i = 1; i < size; i++)
+				if (Double.compare(doubles[i], doubles[n - 1]) != 0)
+					doubles[n++] = doubles[i];
+			break;
+		case Int64:
+			Arrays.sort(longs, 0, size);
+			for (int i = 1; i < size; i++)
+				if (longs[i] != longs[n - 1])
+					longs[n++] = longs[i];
+			break;
+		default:
+			Arrays.sort(ints, 0, size);
+			for (int i = 1; i < size; i++)
+				if (ints[i] != ints[n - 1])
+					ints[n++] = ints[i];
+			break;
+		}
+		size = n;
+	}
+
+	double[] toDoubleArray() {
+		double[] a = new double[size];
+		for (int i = 0; i < size; i++)
+			a[i] = elementType == MNativeDataType.Number ? doubles[i] : getLong(i);
+		return a;
+	}
+
+	long[] toLongArray() {
+		if (elementType == MNativeDataType.Int64)
+			return Arrays.copyOf(longs, size);
+		long[] a = new long[size];
+		for (int i = 0; i < size; i++)
+			a[i] = getLong(i);
+		return a;
+	}
+
+	int[] toIntArray() {
+		if (elementType == MNativeDataType.Integer)
+			return Arrays.copyOf(ints, size);
+		int[] a = new int[size];
+		for (int i = 0; i < size; i++)
+			a[i] = getInt(i);
+		return a;
+	}
+
+	/**
+	 * The estimated memory of the array in bytes.
+	 */
+	int estimateSize() {
+		return 32 + capacity() * (elementType == MNativeDataType.Integer ? 4 : 8);
+	}
+
+	private int width() {
+		return elementType == MNativeDataType.Integer ? 4 : 8;
+	}
+
+	/**
+	 * Encode the numbers into a binary block.
+	 * @return the block.
+	 */
+	byte[] encode() {
+		int deltaSize = elementType == MNativeDataType.Number ? -1 : deltaSize();
+		int rawSize = size * width();
+		ByteBuffer buf;
+		if (deltaSize >= 0 && deltaSize < rawSize) {
+			buf = ByteBuffer.allocate(HEADER_SIZE + deltaSize).order(ByteOrder.LITTLE_ENDIAN);
+			buf.put(ENCODING_DELTA);
+			buf.putInt(size);
+			long prev = 0;
+			for (int i = 0; i < size; i++) {
+				long v = elementType == MNativeDataType.Int64 ? longs[i] : ints[i];
+				long d = v - prev;
+				writeVarLong(buf, (d << 1) ^ (d >> 63));
+				prev = v;
+			}
+		} else {
+			buf = ByteBuffer.allocate(HEADER_SIZE + rawSize).order(ByteOrder.LITTLE_ENDIAN);
+			buf.put(ENCODING_RAW);
+			buf.putInt(size);
+			switch (elementType) {
+			case Number:
+				buf.asDoubleBuffer().put(doubles, 0, size);
+				break;
+			case Int64:
+				buf.asLongBuffer().put(longs, 0, size);
+				break;
+			default:
+				buf.asIntBuffer().put(ints, 0, size);
+				break;
+			}
+		}
+		return buf.array();
+	}
+
+	/**
+	 * Replace the numbers with the ones of a binary block.
+	 * @param data the block.
+	 */
+	void decode(byte[] data) {
+		ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		byte encoding = buf.get();
+		int n = buf.getInt();
+		size = 0;
+		ensureCapacity(n);
+		if (encoding == ENCODING_DELTA) {
+			long prev = 0;
+			for (int i = 0; i < n; i++) {
+				long z = readVarLong(buf);
+				long v = prev + ((z >>> 1) ^ -(z & 1));
+				if (elementType == MNativeDataType.Int64)
+					longs[i] = v;
+				else if (elementType == MNativeDataType.Integer)
+					ints[i] = (int) v;
+				else
+					doubles[i] = v;
+				prev = v;
+			}
+		} else if (encoding == ENCODING_RAW) {
+			switch (elementType) {
+			case Number:
+				buf.asDoubleBuffer().get(doubles, 0, n);
+				break;
+			case Int64:
+				buf.asLongBuffer().get(longs, 0, n);
+				break;
+			default:
+				buf.asIntBuffer().get(ints, 0, n);
+				break;
+			}
+		} else {
+			throw new MException(MException.Reason.INVALID_VALUE_TYPE);
+		}
+		size = n;
+	}
+
+	/**
+	 * The size of the delta-encoded numbers in bytes.
+	 */
+	private int deltaSize() {
+		int bytes = 0;
+		long prev = 0;
+		for (int i = 0; i < size; i++) {
+			long v = elementType == MNativeDataType.Int64 ? longs[i] : ints[i];
+			long d = v - prev;
+			long z = (d << 1) ^ (d >> 63);
+			do {
+				bytes++;
+				z >>>= 7;
+			} while (z != 0);
+			prev = v;
+		}
+		return bytes;
+	}
+
+	private static void writeVarLong(ByteBuffer buf, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	private static long readVarLong(ByteBuffer buf) {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get();
+			v |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+
+}
@@ -0,0 +1,143 @@
+package lab.meteor.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A prefetch plan, i.e. the reference paths to be followed when a batch of objects
+ * is loaded. A path is the names of references separated by dots, such as
+ * {@code "items.product"}. After a batch is loaded, the objects referred by the first
+ * reference of every path are collected and loaded together, and so on, so each hop
+ * of a path costs a few batched queries instead of a query per object.
+ * <p>
+ * The references are resolved by the class of each object, so a batch of objects of
+ * different classes could be prefetched by one plan. An object whose class has no
+ * reference with the name is skipped.
+ * @see MClass#objectsIterator(boolean)
+ * @see MObject.MObjectSet#prefetch(String...)
+ */
+public class MPrefetch {
+
+	/**
+	 * The plans of the referred objects, keyed by the name of reference.
+	 */
+	private final Map<String, MPrefetch> children = new LinkedHashMap<String, MPrefetch>();
+
+	public MPrefetch() {
+	}
+
+	/**
+	 * Create a plan with paths.
+	 * @param paths the reference paths.
+	 * @return the plan.
+	 */
+	public static MPrefetch of(String... paths) {
+		MPrefetch plan = new MPrefetch();
+		for (String path : paths)
+			plan.add(path);
+		return plan;
+	}
+
+	/**
+	 * Add a reference path.
+	 * @param path the names of references separated by dots.
+	 * @return this plan.
+	 */
+	public MPrefetch add(String path) {
+		MPrefetch plan = this;
+		for (String name : path.split("\\.")) {
+			name = name.trim();
+			if (name.isEmpty())
+				continue;
+			MPrefetch child = plan.children.get(name);
+			if (child == null) {
+				child = new MPrefetch();
+				plan.children.put(name, child);
+			}
+			plan = child;
+		}
+		return this;
+	}
+
+	/**
+	 * Whether there is no path in the plan.
+	 * @return {@code true} if empty.
+	 */
+	public boolean isEmpty() {
+		return children.isEmpty();
+	}
+
+	/**
+	 * Load an object and the objects along the paths.
+	 * @param obj the object.
+	 */
+	public void apply(MObject obj) {
+		apply(Collections.singletonList(obj));
+	}
+
+	/**
+	 * Load a batch of objects and the objects along the paths.
+	 * @param objs the objects.
+	 */
+	public void apply(Collection<MObject> objs) {
+		if (objs.isEmpty())
+			return;
+		loadObjects(objs);
+		for (Map.Entry<String, MPrefetch> entry : children.entrySet()) {
+			String name = entry.getKey();
+			List<MObject> targets = new ArrayList<MObject>();
+			for (MObject obj : objs) {
+				if (obj == null || !obj.isLoaded() || obj.isDeleted())
+					continue;
+				MReference ref = obj.getClazz().getReference(name);
+				if (ref == null)
+					continue;
+				obj.collectReferred(ref, targets);
+			}
+			entry.getValue().apply(targets);
+		}
+	}
+
+	/**
+	 * Load the objects in batches by their databases.
+	 * @param objs the objects.
+	 */
+	private static void loadObjects(Collection<MObject> objs) {
+		Map<MDatabase, List<MObject>> batches = new IdentityHashMap<MDatabase, List<MObject>>();
+		for (MObject obj : objs) {
+			if (obj == null)
+				continue;
+			List<MObject> batch = batches.get(obj.database);
+			if (batch == null) {
+				batch = new ArrayList<MObject>();
+				batches.put(obj.database, batch);
+			}
+			batch.add(obj);
+		}
+		for (Map.Entry<MDatabase, List<MObject>> entry : batches.entrySet())
+			entry.getKey().loadObjects(entry.getValue());
+	}
+	
+	@Override
+	public String toString() {
+		List<String> paths = new ArrayList<String>();
+		collectPaths("", paths);
+		return paths.toString();
+	}
+
+	private void collectPaths(String prefix, List<String> paths) {
+		for (Map.Entry<String, MPrefetch> entry : children.entrySet()) {
+			String path = prefix + entry.getKey();
+			if (entry.getValue().isEmpty())
+				paths.add(path);
+			else
+				entry.getValue().collectPaths(path + ".", paths);
+		}
+	}
+
+}
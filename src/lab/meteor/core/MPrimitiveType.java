@@ -25,6 +25,13 @@ public class MPrimitiveType implements MDataType {
 	public static final MPrimitiveType Set = new MPrimitiveType(MNativeDataType.Set);
 	public static final MPrimitiveType Dictionary = new MPrimitiveType(MNativeDataType.Dictionary);
 	
+	public static final MPrimitiveType NumberList = new MPrimitiveType(MNativeDataType.NumberList);
+	public static final MPrimitiveType Int64List = new MPrimitiveType(MNativeDataType.Int64List);
+	public static final MPrimitiveType IntegerList = new MPrimitiveType(MNativeDataType.IntegerList);
+	public static final MPrimitiveType NumberSet = new MPrimitiveType(MNativeDataType.NumberSet);
+	public static final MPrimitiveType Int64Set = new MPrimitiveType(MNativeDataType.Int64Set);
+	public static final MPrimitiveType IntegerSet = new MPrimitiveType(MNativeDataType.IntegerSet);
+	
 	private MNativeDataType nType;
 	
 	private MPrimitiveType(MNativeDataType nType) {
@@ -0,0 +1,292 @@
+package lab.meteor.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters of storage accesses of a piece of work, such as a script task, split by
+ * sections. While a profile is entered by a thread, the database counts the objects
+ * loaded and saved, the hits and misses of the object cache, and the round trips to
+ * storage made by the thread, into the section the thread is in. A section is opened by
+ * {@link #begin(String)}, e.g. by each entry point of the script helper, and the accesses
+ * outside of any section are counted into {@link #OTHER}.
+ * <p>
+ * Sections are not nested, the accesses in an inner section are counted into the outer
+ * one. The counters are cheap, so the overhead is small, but nothing is counted unless
+ * a profile is entered.
+ */
+public class MProfile {
+
+	/**
+	 * The section of the accesses outside of any section.
+	 */
+	public static final String OTHER = "<other>";
+
+	/**
+	 * The profile entered by each thread.
+	 */
+	private static final ThreadLocal<MProfile> current = new ThreadLocal<MProfile>();
+
+	/**
+	 * The open section of each thread.
+	 */
+	private static final ThreadLocal<Section> active = new ThreadLocal<Section>();
+
+	private final ConcurrentMap<String, Counters> sections = new ConcurrentHashMap<String, Counters>();
+
+	/**
+	 * Make this profile the profile of current thread, until the returned scope is
+	 * closed.
+	 * @return the scope, which must be closed by the same thread.
+	 */
+	public Scope enter() {
+		MProfile previous = current.get();
+		current.set(this);
+		return new Scope(previous);
+	}
+
+	/**
+	 * The profile of current thread.
+	 * @return the profile, or {@code null} if none is entered.
+	 */
+	public static MProfile getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * Open a section of the profile of current thread.
+	 * @param name the name of section.
+	 * @return the section, which must be passed to {@link #end(Section)}, or
+	 * {@code null} if there is no profile or the thread is in a section already.
+	 */
+	public static Section begin(String name) {
+		MProfile profile = current.get();
+		if (profile == null || active.get() != null)
+			return null;
+		Section section = new Section(profile.counters(name));
+		active.set(section);
+		return section;
+	}
+
+	/**
+	 * Close a section.
+	 * @param section the section returned by {@link #begin(String)}, could be
+	 * {@code null}.
+	 */
+	public static void end(Section section) {
+		if (section == null)
+			return;
+		section.counters.calls.incrementAndGet();
+		section.counters.time.addAndGet(System.nanoTime() - section.start);
+		active.remove();
+	}
+
+	private Counters counters(String name) {
+		Counters c = sections.get(name);
+		if (c == null) {
+			Counters n = new Counters(name);
+			c = sections.putIfAbsent(name, n);
+			if (c == null)
+				c = n;
+		}
+		return c;
+	}
+
+	/**
+	 * The counters of the section which current thread is in.
+	 */
+	private static Counters currentCounters() {
+		MProfile profile = current.get();
+		if (profile == null)
+			return null;
+		Section section = active.get();
+		if (section != null)
+			return section.counters;
+		return profile.counters(OTHER);
+	}
+
+	static void charge(int trips, int objs) {
+		Counters c = currentCounters();
+		if (c == null)
+			return;
+		if (trips > 0)
+			c.trips.addAndGet(trips);
+		if (objs > 0)
+			c.loads.addAndGet(objs);
+	}
+
+	static void saved(int objs) {
+		Counters c = currentCounters();
+		if (c != null)
+			c.saves.addAndGet(objs);
+	}
+
+	static void hit() {
+		Counters c = currentCounters();
+		if (c != null)
+			c.hits.incrementAndGet();
+	}
+
+	static void miss() {
+		Counters c = currentCounters();
+		if (c != null)
+			c.misses.incrementAndGet();
+	}
+
+	/**
+	 * Take a snapshot of the counters of sections.
+	 * @return the snapshots, in no particular order.
+	 */
+	public List<Snapshot> snapshot() {
+		List<Snapshot> list = new ArrayList<Snapshot>(sections.size());
+		for (Counters c : sections.values())
+			list.add(new Snapshot(c));
+		return list;
+	}
+
+	/**
+	 * An open section.
+	 */
+	public static final class Section {
+
+		private final Counters counters;
+
+		private final long start = System.nanoTime();
+
+		private Section(Counters counters) {
+			this.counters = counters;
+		}
+	}
+
+	private static final class Counters {
+		final String name;
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong time = new AtomicLong();
+		final AtomicLong loads = new AtomicLong();
+		final AtomicLong saves = new AtomicLong();
+		final AtomicLong hits = new AtomicLong();
+		final AtomicLong misses = new AtomicLong();
+		final AtomicLong trips = new AtomicLong();
+
+		Counters(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * The values of the counters of a section at a moment.
+	 */
+	public static class Snapshot {
+
+		private final String name;
+		private final long calls;
+		private final long time;
+		private final long loads;
+		private final long saves;
+		private final long hits;
+		private final long misses;
+		private final long trips;
+
+		private Snapshot(Counters c) {
+			this.name = c.name;
+			this.calls = c.calls.get();
+			this.time = c.time.get();
+			this.loads = c.loads.get();
+			this.saves = c.saves.get();
+			this.hits = c.hits.get();
+			this.misses = c.misses.get();
+			this.trips = c.trips.get();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * The number of times the section is opened, <code>0</code> for {@link #OTHER}.
+		 */
+		public long getCallCount() {
+			return calls;
+		}
+
+		/**
+		 * The nanoseconds spent in the section.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * The number of objects loaded.
+		 */
+		public long getLoadCount() {
+			return loads;
+		}
+
+		/**
+		 * The number of objects written.
+		 */
+		public long getSaveCount() {
+			return saves;
+		}
+
+		/**
+		 * The number of objects and tags found in cache.
+		 */
+		public long getHitCount() {
+			return hits;
+		}
+
+		/**
+		 * The number of objects and tags not found in cache.
+		 */
+		public long getMissCount() {
+			return misses;
+		}
+
+		/**
+		 * The number of round trips to storage, i.e. the calls of adapter.
+		 */
+		public long getRoundTripCount() {
+			return trips;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": calls=" + calls + ", time=" + (time / 1000000L) + "ms, loads=" + loads
+					+ ", saves=" + saves + ", hits=" + hits + ", misses=" + misses + ", trips=" + trips;
+		}
+	}
+
+	/**
+	 * A scope where a profile is the profile of thread.
+	 * @see MProfile#enter()
+	 */
+	public static final class Scope implements AutoCloseable {
+
+		private final MProfile previous;
+
+		private boolean closed = false;
+
+		private Scope(MProfile previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (previous == null) {
+				current.remove();
+				active.remove();
+			} else {
+				current.set(previous);
+			}
+		}
+	}
+
+}
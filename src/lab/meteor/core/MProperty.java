@@ -12,8 +12,15 @@ public abstract class MProperty extends MElement {
 	 */
 	protected MClass clazz;
 	
+	/**
+	 * The slot of the property in the latest built layout. It's only a hint, the
+	 * layout validates it before use.
+	 * @see MClassLayout
+	 */
+	int slot = -1;
+	
 	protected MProperty(MClass cls, String name, MElementType type) {
-		super(type);
+		super(databaseOf(cls), type);
 		
 		if (cls == null)
 			throw new MException(MException.Reason.NULL_ELEMENT);
@@ -27,8 +34,8 @@ public abstract class MProperty extends MElement {
 		this.name = name;
 	}
 	
-	public MProperty(long id, MElementType type) {
-		super(id, type);
+	protected MProperty(MDatabase db, long id, MElementType type) {
+		super(db, id, type);
 	}
 
 	/**
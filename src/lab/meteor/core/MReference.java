@@ -21,15 +21,16 @@ public class MReference extends MProperty {
 		this.multi = multi;
 		link();
 		
-		MDatabase.getDB().createElement(this);
+		database.createElement(this);
 	}
 	
 	/**
 	 * Create a "lazy" reference element with id.
+	 * @param db The database.
 	 * @param id ID of element.
 	 */
-	protected MReference(long id) {
-		super(id, MElementType.Reference);
+	protected MReference(MDatabase db, long id) {
+		super(db, id, MElementType.Reference);
 	}
 	
 	@Override
@@ -115,7 +116,7 @@ public class MReference extends MProperty {
 		MClass cls = this.clazz;
 		String name = this.name;
 		if (dbInfo.isFlagged(ATTRIB_FLAG_PARENT))
-			cls = MDatabase.getDB().getClass(refDBInfo.class_id);
+			cls = database.getClass(refDBInfo.class_id);
 		if (dbInfo.isFlagged(ATTRIB_FLAG_NAME))
 			name = refDBInfo.name;
 		if (cls != null && name != null && cls.hasProperty(name) && cls.getReference(name) != this)
@@ -136,10 +137,10 @@ public class MReference extends MProperty {
 			this.multi = refDBInfo.multi;
 		}
 		if (dbInfo.isFlagged(ATTRIB_FLAG_REFERENCE)) {
-			this.reference = MDatabase.getDB().getClass(refDBInfo.reference_id);
+			this.reference = database.getClass(refDBInfo.reference_id);
 		}
 		if (dbInfo.isFlagged(ATTRIB_FLAG_OPPOSITE)) {
-			this.opposite = MDatabase.getDB().getReference(refDBInfo.opposite_id);
+			this.opposite = database.getReference(refDBInfo.opposite_id);
 		}
 		// link
 		if (relink)
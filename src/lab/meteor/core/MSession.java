@@ -0,0 +1,137 @@
+package lab.meteor.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A unit of work of a thread. While a session is active, the objects created, changed
+ * and deleted by the thread are not written to database one by one, nor by auto saving.
+ * They are tracked by the session, and written together by {@link #commit()} with a
+ * few batched writes per collection, or discarded by {@link #rollback()}.
+ * <p>
+ * A session covers the objects only. The meta elements and tags are still written when
+ * they are changed. The objects are shared by all threads, so the changes in a session
+ * are visible to other threads in memory before they're committed.
+ * <pre>
+ * MSession session = db.beginSession();
+ * try {
+ *     ...
+ *     session.commit();
+ * } finally {
+ *     session.close();
+ * }
+ * </pre>
+ * @see MDatabase#beginSession()
+ */
+public class MSession implements AutoCloseable {
+
+	private final MDatabase database;
+
+	/**
+	 * The objects created in the session, which are not in database yet.
+	 */
+	final Map<Long, MObject> created = new LinkedHashMap<Long, MObject>();
+
+	/**
+	 * The objects changed in the session.
+	 */
+	final Map<Long, MObject> changed = new LinkedHashMap<Long, MObject>();
+
+	/**
+	 * The objects deleted in the session.
+	 */
+	final Map<Long, MObject> deleted = new LinkedHashMap<Long, MObject>();
+
+	private boolean active = true;
+
+	MSession(MDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 * The database of session.
+	 * @return the database.
+	 */
+	public MDatabase getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Whether the session is neither committed nor rolled back.
+	 * @return {@code true} if active.
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * The number of objects created, changed or deleted in the session.
+	 * @return count.
+	 */
+	public int size() {
+		return created.size() + changed.size() + deleted.size();
+	}
+
+	void created(MObject obj) {
+		created.put(obj.id, obj);
+	}
+
+	boolean isCreated(MObject obj) {
+		return created.containsKey(obj.id);
+	}
+
+	void changed(MObject obj) {
+		if (!created.containsKey(obj.id))
+			changed.put(obj.id, obj);
+	}
+
+	void deleted(MObject obj) {
+		changed.remove(obj.id);
+		if (created.remove(obj.id) == null)
+			deleted.put(obj.id, obj);
+	}
+
+	/**
+	 * Write all changes of session to database, and end the session. If the writing
+	 * fails, the session is still active, and it should be rolled back.
+	 */
+	public void commit() {
+		checkActive();
+		database.commitSession(this);
+		end();
+	}
+
+	/**
+	 * Discard all changes of session, and end the session. The objects created are
+	 * deleted from memory, and the objects changed or deleted are loaded again from
+	 * database when they're touched.
+	 */
+	public void rollback() {
+		checkActive();
+		database.rollbackSession(this);
+		end();
+	}
+
+	/**
+	 * Roll back the session if it's still active.
+	 */
+	@Override
+	public void close() {
+		if (active)
+			rollback();
+	}
+
+	private void checkActive() {
+		if (!active)
+			throw new MException(MException.Reason.INVALID_SESSION);
+	}
+
+	private void end() {
+		active = false;
+		created.clear();
+		changed.clear();
+		deleted.clear();
+		database.endSession(this);
+	}
+
+}
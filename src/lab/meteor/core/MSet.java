@@ -2,6 +2,7 @@ package lab.meteor.core;
 
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -11,7 +12,9 @@ import java.util.Set;
  * <p>
  * The set can only be created by the factory method <code>MCollection.createCollection()</code>.
  * <p>
- * It's a wrapper of <code>HashSet&ltObject&gt</code>.
+ * It's a wrapper of <code>HashSet&ltObject&gt</code>. A large set, which is the value of
+ * an attribute, is stored apart from the object, and its elements are not loaded with
+ * the object. See {@link #isLarge()}.
  * @author Qiang
  *
  */
@@ -19,6 +22,11 @@ public class MSet extends MCollection implements Iterable<Object> {
 
 	final Set<Object> set = new HashSet<Object>();
 	
+	/**
+	 * The state of large set, {@code null} if the elements are in memory.
+	 */
+	MSpill spill = null;
+	
 	MSet(MNotifiable root, MAttribute atb) {
 		super(root, atb);
 	}
@@ -29,7 +37,17 @@ public class MSet extends MCollection implements Iterable<Object> {
 
 	public boolean add(Object e) {
 		e = toInputObject(e);
-		boolean b = set.add(e);
+		boolean b;
+		if (spill != null) {
+			String key = MSpill.keyOf(e);
+			if (key == null)
+				throw new MException(MException.Reason.INVALID_VALUE_TYPE);
+			b = spill.get(key) == null;
+			if (b)
+				spill.put(key, e);
+		} else {
+			b = set.add(e);
+		}
 		if (b)
 			this.notifyChanged();
 		return b;
@@ -39,29 +57,102 @@ public class MSet extends MCollection implements Iterable<Object> {
 		checkType(o);
 		
 		o = toInputObject(o);
-		boolean b = set.remove(o);
+		boolean b;
+		if (spill != null) {
+			String key = MSpill.keyOf(o);
+			b = key != null && spill.remove(key) != null;
+		} else {
+			b = set.remove(o);
+		}
 		if (b)
 			this.notifyChanged();
 		return b;
 	}
 
 	public void clear() {
-		this.clear();
+		if (spill != null)
+			spill.clear();
+		else
+			set.clear();
 		this.notifyChanged();
 	}
 
 	public boolean contains(Object o) {
 		o = toInputObject(o);
+		if (spill != null) {
+			String key = MSpill.keyOf(o);
+			return key != null && spill.get(key) != null;
+		}
 		return set.contains(o);
 	}
 
 	public boolean isEmpty() {
-		return set.isEmpty();
+		return size() == 0;
 	}
 
 	public int size() {
+		if (spill != null)
+			return spill.size();
 		return set.size();
 	}
+	
+	/**
+	 * Whether the set is stored apart from the object. The elements of a large set are
+	 * looked up by <code>contains()</code> one by one, and iterated in pages.
+	 * @return <code>true</code> if it's large.
+	 */
+	public boolean isLarge() {
+		return spill != null;
+	}
+	
+	/**
+	 * Take the set to be written as a large set, if it's large or it reaches the
+	 * threshold.
+	 * @param threshold the threshold of size, <code>0</code> if there is no threshold.
+	 * @return the set to be written, or <code>null</code> if it's written in object.
+	 */
+	MDBAdapter.SpilledCollection takeSpill(int threshold) {
+		if (spill != null)
+			return spill.takeChanges();
+		if (threshold <= 0 || set.size() < threshold)
+			return null;
+		for (Object o : set) {
+			if (MSpill.keyOf(o) == null)
+				return null;
+		}
+		MSpill s = new MSpill(this, Factory.Set, 0);
+		s.clear();
+		for (Object o : set)
+			s.put(MSpill.keyOf(o), o);
+		set.clear();
+		s.markFresh();
+		spill = s;
+		return s.takeChanges();
+	}
+	
+	/**
+	 * Confirm that the set taken by {@link #takeSpill(int)} is written.
+	 * @param sc the set written.
+	 */
+	void spillSaved(MDBAdapter.SpilledCollection sc) {
+		if (spill != null)
+			spill.persisted(sc);
+	}
+	
+	/**
+	 * Keep the changes of the set taken by {@link #takeSpill(int)} whose write failed.
+	 * If it was spilled by that save, the elements are moved back in memory.
+	 * @param sc the set not written.
+	 */
+	void spillFailed(MDBAdapter.SpilledCollection sc) {
+		if (spill == null)
+			return;
+		spill.unpersisted(sc);
+		if (spill.isFresh()) {
+			set.addAll(spill.entries().values());
+			spill = null;
+		}
+	}
 
 	@Override
 	public Iterator<Object> iterator() {
@@ -72,25 +163,36 @@ public class MSet extends MCollection implements Iterable<Object> {
 
 		private final Iterator<Object> it;
 		
+		private final Iterator<Map.Entry<String, Object>> spillIt;
+		
 		public SetItr() {
-			it = MSet.this.set.iterator();
+			if (spill != null) {
+				it = null;
+				spillIt = spill.iterator();
+			} else {
+				it = MSet.this.set.iterator();
+				spillIt = null;
+			}
 		}
 		
 		@Override
 		public boolean hasNext() {
-			return it.hasNext();
+			return spillIt != null ? spillIt.hasNext() : it.hasNext();
 		}
 
 		@Override
 		public Object next() {
-			Object o = it.next();
+			Object o = spillIt != null ? spillIt.next().getValue() : it.next();
 			o = toOutputObject(o);
 			return o;
 		}
 
 		@Override
 		public void remove() {
-			it.remove();
+			if (spillIt != null)
+				spillIt.remove();
+			else
+				it.remove();
 			MSet.this.notifyChanged();
 		}
 		
@@ -98,10 +200,9 @@ public class MSet extends MCollection implements Iterable<Object> {
 
 	@Override
 	public void forEach(ForEachCallback callback) {
-		for (Object o : set) {
-			o = toOutputObject(o);
-			callback.action(null, o);
-		}
+		Iterator<Object> it = iterator();
+		while (it.hasNext())
+			callback.action(null, it.next());
 	}
 
 }
@@ -0,0 +1,353 @@
+package lab.meteor.core;
+
+import java.util.AbstractMap;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * The state of a large collection, whose entries are stored apart from the object.
+ * Only the entries changed since the last save are held in memory, and the others are
+ * read from database by key, or in pages when the collection is iterated. The entries
+ * are keyed by string, the keys of dictionary or the keys of set elements given by
+ * {@link #keyOf(Object)}.
+ * <p>
+ * The nested collections read from database are kept in memory and written on every
+ * save, since their changes are not tracked.
+ * <p>
+ * The changes taken by a save are kept until the write is confirmed by
+ * {@link #persisted(MDBAdapter.SpilledCollection)}, and read meanwhile. If the write
+ * fails, {@link #unpersisted(MDBAdapter.SpilledCollection)} puts them back under the
+ * changes made since, so they are written by the next save.
+ * @see MDatabase#setLargeCollectionThreshold(int)
+ */
+class MSpill {
+
+	/**
+	 * The number of entries read in a page.
+	 */
+	static final int PAGE_SIZE = 500;
+
+	/**
+	 * The mark of removed entries.
+	 */
+	private static final Object REMOVED = new Object();
+
+	private final MCollection owner;
+
+	private final MCollection.Factory kind;
+
+	private int size;
+
+	/**
+	 * Whether the stored entries are all removed since the last save.
+	 */
+	private boolean cleared = false;
+
+	/**
+	 * The entries changed since the last save, the removed ones are {@link #REMOVED}.
+	 */
+	private final TreeMap<String, Object> changed = new TreeMap<String, Object>();
+
+	/**
+	 * The nested collections read from database.
+	 */
+	private final TreeMap<String, Object> pinned = new TreeMap<String, Object>();
+
+	/**
+	 * The changes being written, which are not confirmed yet.
+	 */
+	private TreeMap<String, Object> writing = new TreeMap<String, Object>();
+
+	/**
+	 * Whether the stored entries are all removed by the changes being written.
+	 */
+	private boolean writingCleared = false;
+
+	/**
+	 * The collection being written, {@code null} if no write is pending.
+	 */
+	private MDBAdapter.SpilledCollection pending = null;
+
+	/**
+	 * Whether nothing of the collection has been written, i.e. it has been spilled by
+	 * the last save, which is not confirmed yet.
+	 */
+	private boolean fresh = false;
+
+	MSpill(MCollection owner, MCollection.Factory kind, int size) {
+		this.owner = owner;
+		this.kind = kind;
+		this.size = size;
+	}
+
+	/**
+	 * The key of an element of set.
+	 * @param o the inner element.
+	 * @return the key, or {@code null} if the element can't be keyed, e.g. a collection.
+	 */
+	static String keyOf(Object o) {
+		if (o instanceof String)
+			return "s" + o;
+		if (o instanceof MElementPointer)
+			return "e" + MUtility.stringID(((MElementPointer) o).getID());
+		if (o instanceof Date)
+			return "t" + ((Date) o).getTime();
+		if (o instanceof Number || o instanceof Boolean || o instanceof Character)
+			return o.getClass().getSimpleName() + ":" + o;
+		return null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Get an entry.
+	 * @param key the key.
+	 * @return the inner value, or {@code null} if there is no such entry.
+	 */
+	Object get(String key) {
+		Object v = changed.get(key);
+		if (v == null && !cleared)
+			v = writing.get(key);
+		if (v != null)
+			return v == REMOVED ? null : v;
+		v = pinned.get(key);
+		if (v != null || cleared || writingCleared)
+			return v;
+		MObject obj = (MObject) owner.getRoot();
+		v = obj.database.loadSpilledEntry(obj, owner.getAttributeID(), key);
+		return v == null ? null : loaded(key, v);
+	}
+
+	/**
+	 * Convert a value read from database, and keep it if it's a collection.
+	 */
+	private Object loaded(String key, Object value) {
+		Object v = MCollection.fromDBValue(owner, value);
+		if (v instanceof MCollection)
+			pinned.put(key, v);
+		return v;
+	}
+
+	Object put(String key, Object value) {
+		if (value == null)
+			return remove(key);
+		Object old = get(key);
+		if (old == null)
+			size++;
+		pinned.remove(key);
+		changed.put(key, value);
+		return old;
+	}
+
+	Object remove(String key) {
+		Object old = get(key);
+		if (old != null) {
+			size--;
+			pinned.remove(key);
+			changed.put(key, REMOVED);
+		}
+		return old;
+	}
+
+	void clear() {
+		changed.clear();
+		pinned.clear();
+		cleared = true;
+		size = 0;
+	}
+
+	/**
+	 * Mark the collection spilled by the save, i.e. none of it is stored apart yet.
+	 */
+	void markFresh() {
+		fresh = true;
+	}
+
+	boolean isFresh() {
+		return fresh;
+	}
+
+	/**
+	 * Take the changes since the last save to be written. A write not confirmed yet is
+	 * taken as failed, its changes are written again.
+	 * @return the collection to be written.
+	 */
+	MDBAdapter.SpilledCollection takeChanges() {
+		if (pending != null)
+			unpersisted(pending);
+		MDBAdapter.SpilledCollection sc = new MDBAdapter.SpilledCollection();
+		sc.kind = kind;
+		sc.size = size;
+		sc.clear = cleared;
+		for (Map.Entry<String, Object> entry : changed.entrySet()) {
+			Object v = entry.getValue();
+			if (v == REMOVED) {
+				if (!cleared)
+					sc.removes.add(entry.getKey());
+			} else {
+				sc.puts.put(entry.getKey(), MCollection.toDBObject(v));
+				if (v instanceof MCollection)
+					pinned.put(entry.getKey(), v);
+			}
+		}
+		for (Map.Entry<String, Object> entry : pinned.entrySet()) {
+			if (!sc.puts.containsKey(entry.getKey()))
+				sc.puts.put(entry.getKey(), MCollection.toDBObject(entry.getValue()));
+		}
+		TreeMap<String, Object> w = writing;
+		writing = new TreeMap<String, Object>(changed);
+		writingCleared = cleared;
+		w.clear();
+		changed.clear();
+		cleared = false;
+		pending = sc;
+		return sc;
+	}
+
+	/**
+	 * Confirm that the changes taken as a collection are written.
+	 * @param sc the collection returned by {@link #takeChanges()}.
+	 */
+	void persisted(MDBAdapter.SpilledCollection sc) {
+		if (sc != pending)
+			return;
+		writing.clear();
+		writingCleared = false;
+		pending = null;
+		fresh = false;
+	}
+
+	/**
+	 * Put back the changes taken as a collection whose write failed. The changes made
+	 * since are kept over them, and if the entries were all removed since, they are
+	 * dropped.
+	 * @param sc the collection returned by {@link #takeChanges()}.
+	 */
+	void unpersisted(MDBAdapter.SpilledCollection sc) {
+		if (sc != pending)
+			return;
+		if (!cleared) {
+			for (Map.Entry<String, Object> entry : writing.entrySet()) {
+				if (!changed.containsKey(entry.getKey()))
+					changed.put(entry.getKey(), entry.getValue());
+			}
+			cleared = writingCleared;
+		}
+		writing.clear();
+		writingCleared = false;
+		pending = null;
+	}
+
+	/**
+	 * All entries of a collection which is not stored apart yet, see {@link #isFresh()}.
+	 * @return the keys and inner values.
+	 */
+	TreeMap<String, Object> entries() {
+		TreeMap<String, Object> entries = new TreeMap<String, Object>();
+		if (!cleared)
+			entries.putAll(writing);
+		entries.putAll(pinned);
+		entries.putAll(changed);
+		Iterator<Object> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() == REMOVED)
+				it.remove();
+		}
+		return entries;
+	}
+
+	/**
+	 * Iterate the entries in the order of keys. The stored entries are read in pages,
+	 * and merged with the changed ones.
+	 * @return the iterator of keys and inner values.
+	 */
+	Iterator<Map.Entry<String, Object>> iterator() {
+		return new PageItr();
+	}
+
+	private class PageItr implements Iterator<Map.Entry<String, Object>> {
+
+		/**
+		 * The last key of the pages read, {@code null} before the first page.
+		 */
+		private String last = null;
+
+		private boolean exhausted = cleared || writingCleared;
+
+		private Iterator<Map.Entry<String, Object>> page = null;
+
+		private String lastReturned = null;
+
+		@Override
+		public boolean hasNext() {
+			while (page == null || !page.hasNext()) {
+				if (page != null && exhausted)
+					return false;
+				page = nextPage();
+			}
+			return true;
+		}
+
+		private Iterator<Map.Entry<String, Object>> nextPage() {
+			TreeMap<String, Object> entries = new TreeMap<String, Object>();
+			String upper = null;
+			if (!exhausted) {
+				MObject obj = (MObject) owner.getRoot();
+				MDBAdapter.DataDict dd = obj.database.loadSpilledEntries(obj,
+						owner.getAttributeID(), last, PAGE_SIZE);
+				if (dd.size() < PAGE_SIZE)
+					exhausted = true;
+				else
+					upper = dd.lastKey();
+				for (Map.Entry<String, Object> entry : dd.entrySet()) {
+					String key = entry.getKey();
+					if (changed.containsKey(key) || (!cleared && writing.containsKey(key)))
+						continue;
+					Object v = pinned.get(key);
+					entries.put(key, v != null ? v : loaded(key, entry.getValue()));
+				}
+			}
+			// the changed entries in the range of the page, over the ones being written
+			NavigableMap<String, Object> overlay = changed;
+			if (!cleared && !writing.isEmpty()) {
+				overlay = new TreeMap<String, Object>(writing);
+				overlay.putAll(changed);
+			}
+			NavigableMap<String, Object> range = last == null ? overlay : overlay.tailMap(last, false);
+			if (upper != null)
+				range = range.headMap(upper, true);
+			for (Map.Entry<String, Object> entry : range.entrySet()) {
+				if (entry.getValue() != REMOVED)
+					entries.put(entry.getKey(), entry.getValue());
+			}
+			last = upper;
+			if (upper == null)
+				exhausted = true;
+			return entries.entrySet().iterator();
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<String, Object> entry = page.next();
+			lastReturned = entry.getKey();
+			return new AbstractMap.SimpleImmutableEntry<String, Object>(entry);
+		}
+
+		@Override
+		public void remove() {
+			if (lastReturned == null)
+				throw new IllegalStateException();
+			MSpill.this.remove(lastReturned);
+			lastReturned = null;
+		}
+	}
+
+}
@@ -15,7 +15,7 @@ public class MSymbol extends MElement {
 	 */
 	
 	public MSymbol(MEnum enm, String name) throws MException {
-		super(MElementType.Symbol);
+		super(databaseOf(enm), MElementType.Symbol);
 		
 		if (enm == null)
 			throw new MException(MException.Reason.NULL_ELEMENT);
@@ -29,15 +29,16 @@ public class MSymbol extends MElement {
 		this.name = name;
 		link();
 		
-		MDatabase.getDB().createElement(this);
+		database.createElement(this);
 	}
 	
 	/**
 	 * Create a "lazy" symbol element with id.
+	 * @param db The database.
 	 * @param id ID of element.
 	 */
-	protected MSymbol(long id) {
-		super(id, MElementType.Symbol);
+	protected MSymbol(MDatabase db, long id) {
+		super(db, id, MElementType.Symbol);
 	}
 	
 	/*
@@ -95,7 +96,7 @@ public class MSymbol extends MElement {
 		MEnum enm = this.envm;
 		String name = this.name;
 		if (dbInfo.isFlagged(ATTRIB_FLAG_PARENT))
-			enm = MDatabase.getDB().getEnum(symDBInfo.enum_id);
+			enm = database.getEnum(symDBInfo.enum_id);
 		if (dbInfo.isFlagged(ATTRIB_FLAG_NAME))
 			name = symDBInfo.name;
 		if (enm != null && name != null && enm.hasSymbol(name) && enm.getSymbol(name) != this)
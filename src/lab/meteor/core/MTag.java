@@ -21,7 +21,7 @@ public class MTag extends MElement implements MNotifiable {
 	}
 	
 	public MTag(MElement target, String name, Object value) {
-		super(MElementType.Tag);
+		super(databaseOf(target), MElementType.Tag);
 		
 		if (target == null || target.getID() == MElement.NULL_ID)
 			throw new MException(MException.Reason.NULL_ELEMENT);
@@ -42,8 +42,8 @@ public class MTag extends MElement implements MNotifiable {
 			this.value = value;
 		}
 		
-		MDatabase.getDB().createElement(this);
-		MDatabase.getDB().saveTagElements(this);
+		database.createElement(this);
+		database.saveTagElements(this);
 		// this must be called after create operation.
 		target.addTag(this);
 	}
@@ -78,8 +78,8 @@ public class MTag extends MElement implements MNotifiable {
 			this.value = value;
 		}
 		
-		MDatabase.getDB().createElement(this);
-		MDatabase.getDB().saveTagElements(this);
+		database.createElement(this);
+		database.saveTagElements(this);
 		
 		// this must be called after create operation.
 		for (MElement target : targets) {
@@ -89,10 +89,11 @@ public class MTag extends MElement implements MNotifiable {
 	
 	/**
 	 * Create a "lazy" tag element with id.
+	 * @param db The database.
 	 * @param id ID of element.
 	 */
-	protected MTag(long id) {
-		super(id, MElementType.Tag);
+	protected MTag(MDatabase db, long id) {
+		super(db, id, MElementType.Tag);
 	}
 	
 	public void delete() {
@@ -105,9 +106,8 @@ public class MTag extends MElement implements MNotifiable {
 	}
 	
 	@Override
-	protected void finalize() throws Throwable {
-		saveElements();
-		super.finalize();
+	public boolean isDirty() {
+		return super.isDirty() || changed_elements;
 	}
 	
 	public String getName() {
@@ -174,7 +174,7 @@ public class MTag extends MElement implements MNotifiable {
 	
 	void relink(String oldName, String newName) {
 		for (MElementPointer pt : this.elements) {
-			MElement e = MDatabase.getDB().getElementInCache(pt.getID());
+			MElement e = database.getElementInCache(pt.getID());
 			if (e != null) {
 				e.removeTag(oldName, this.id);
 				e.addTag(newName, this.id);
@@ -230,13 +230,18 @@ public class MTag extends MElement implements MNotifiable {
 				MCollection.fromDBObject(dict, o, k);
 			}
 			value = dict;
+		} else if (value instanceof MDBAdapter.DataPacked) {
+			MDBAdapter.DataPacked dp = (MDBAdapter.DataPacked) value;
+			MCollection packed = MCollection.createCollection(dp.kind, tag, null);
+			MCollection.loadPacked(packed, dp.data);
+			value = packed;
 		}
 		tag.value = value;
 	}
 
 	void preloadName() {
 		if (this.name == null)
-			MDatabase.getDB().preloadTagName(this);
+			database.preloadTagName(this);
 	}
 	
 	private boolean loaded_elements = false;
@@ -245,8 +250,9 @@ public class MTag extends MElement implements MNotifiable {
 	
 	private void elementsChanged() {
 		changed_elements = true;
-		if (MDatabase.getDB().isAutoSave()) {
-			MDatabase.getDB().autoSaveTags(this);
+		database.markDirty(this);
+		if (database.isAutoSave()) {
+			database.autoSaveTags(this);
 		}
 	}
 	
@@ -258,7 +264,7 @@ public class MTag extends MElement implements MNotifiable {
 			return;
 		if (this.id == NULL_ID)
 			return;
-		MDatabase.getDB().loadTagElements(this);
+		database.loadTagElements(this);
 		loaded_elements = true;
 		changed_elements = false;
 	}
@@ -282,8 +288,9 @@ public class MTag extends MElement implements MNotifiable {
 			return;
 		if (!loaded_elements)
 			throw new MException(MException.Reason.FORBIDEN_SAVE_BEFORE_LOAD);
-		MDatabase.getDB().saveTagElements(this);
+		database.saveTagElements(this);
 		changed_elements = false;
+		database.markClean(this);
 	}
 	
 	/**
@@ -297,8 +304,8 @@ public class MTag extends MElement implements MNotifiable {
 	
 	void loadElementsFromDBInfo(MDBAdapter.IDList idList) {
 		for (Long target_id : idList) {
-			MElementType eType = MDatabase.getDB().getElementType(target_id);
-			this.elements.add(new MElementPointer(target_id, eType));
+			MElementType eType = database.getElementType(target_id);
+			this.elements.add(new MElementPointer(database, target_id, eType));
 		}
 	}
 	
@@ -177,6 +177,15 @@ public class MUtility {
 			if (value == MCollection.Factory.Dictionary)
 				return true;
 			break;
+		case NumberList:
+		case Int64List:
+		case IntegerList:
+		case NumberSet:
+		case Int64Set:
+		case IntegerSet:
+			if (value == MCollection.Factory.valueOf(nType.toString()))
+				return true;
+			break;
 		case Binary:
 			if (value instanceof MBinary)
 				return true;
@@ -260,6 +269,20 @@ public class MUtility {
 			if (value instanceof MDictionary)
 				return true;
 			break;
+		case NumberList:
+		case Int64List:
+		case IntegerList:
+			if (value instanceof MNumericList
+					&& ((MNumericList) value).getFactory().toString().equals(nType.toString()))
+				return true;
+			break;
+		case NumberSet:
+		case Int64Set:
+		case IntegerSet:
+			if (value instanceof MNumericSet
+					&& ((MNumericSet) value).getFactory().toString().equals(nType.toString()))
+				return true;
+			break;
 		case Binary:
 			if (value instanceof MBinary)
 				return true;
@@ -1,119 +1,641 @@
 package lab.meteor.core.cache;
 
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import lab.meteor.core.MExecutionService;
+
+/**
+ * The queue of elements to be saved in background. The elements are split into
+ * partitions, each of which is written by at most one writer at a time, so the saves
+ * of an element never run out of order, while the partitions are written in parallel.
+ * <p>
+ * Offering an element never waits for the writers. Every partition has two buffers:
+ * the producers append to the active one without lock, and the writer swaps it with
+ * the spare one, then drains the full buffer and saves its elements as a batch. An
+ * element already waiting in a partition is not queued again, since the save writes
+ * its latest state anyway.
+ * <p>
+ * A partition is flushed when any of the limits is reached:
+ * <ul>
+ * <li>the oldest element has waited for the save cycle, checked by a periodic tick;</li>
+ * <li>the partition holds the maximum batch size of elements;</li>
+ * <li>the total weight of waiting elements exceeds the memory budget. Then all
+ * partitions are flushed, and the producers wait until the weight falls below the
+ * budget, or the throttle timeout elapses.</li>
+ * </ul>
+ * The memory budget could be shared by several queues, see {@link Budget}.
+ * <p>
+ * If a batch fails to save, its elements are queued again by {@link #retry(Object)},
+ * and the rest of the buffer is still saved.
+ */
 public abstract class MAutoSaveQueue<T> {
 	
-	long saveCycleMillis;
+	private static final Logger logger = Logger.getLogger(MAutoSaveQueue.class.getName());
+	
+	public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+	
+	public static final long DEFAULT_THROTTLE_TIMEOUT = 1000;
+	
+	public static final long DEFAULT_RETRY_DELAY = 1000;
+	
+	/**
+	 * The bounds of the interval of age checks.
+	 */
+	private static final long MIN_TICK_MILLIS = 10;
+	private static final long MAX_TICK_MILLIS = 1000;
+	
+	/**
+	 * The time of a buffer which has never been appended to.
+	 */
+	private static final long NO_TIME = Long.MIN_VALUE;
+	
+	volatile long saveCycleMillis;
+	
+	private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	
+	private volatile long throttleTimeoutMillis = DEFAULT_THROTTLE_TIMEOUT;
 	
-	Queue<T> queue = new LinkedList<T>();
+	private volatile long retryDelayMillis = DEFAULT_RETRY_DELAY;
 	
-	Set<T> elements = new HashSet<T>();
+	private final MExecutionService service;
 	
-	private static class Lock { }
+	private final List<Partition> partitions;
 	
-	private Lock lock = new Lock();
+	/**
+	 * The total weight of waiting elements.
+	 */
+	private final AtomicLong weight = new AtomicLong();
 	
-	private AutoSaveHandler handler;
+	private final MAutoSaveStatistics statistics = new MAutoSaveStatistics(this);
 	
-	private boolean enable = false;
+	/**
+	 * The memory budget, on which the throttled producers wait.
+	 */
+	private final Budget budget;
+	
+	/**
+	 * Whether current thread is a writer, which is never throttled.
+	 */
+	private static final ThreadLocal<Boolean> writer = new ThreadLocal<Boolean>();
+	
+	/**
+	 * The periodic check of ages, if the cycle is not zero.
+	 */
+	private ScheduledFuture<?> ticker;
+	
+	private final Runnable tickTask = new Runnable() {
+		@Override
+		public void run() {
+			long cycle = saveCycleMillis;
+			long now = System.nanoTime();
+			for (Partition p : partitions) {
+				long first = p.active.get().first.get();
+				if (first != NO_TIME && now - first >= TimeUnit.MILLISECONDS.toNanos(cycle))
+					p.submit();
+			}
+		}
+	};
+	
+	private final Runnable shutdownHook = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	
+	private volatile boolean enable = false;
 	
 	public MAutoSaveQueue() {
 		this(0);
 	}
 	
 	public MAutoSaveQueue(long saveCycleMillis) {
+		this(saveCycleMillis, MExecutionService.getDefault());
+	}
+	
+	public MAutoSaveQueue(long saveCycleMillis, MExecutionService service) {
+		this(saveCycleMillis, service, service.getPoolSize(MExecutionService.Kind.AutoSave));
+	}
+	
+	/**
+	 * Create a queue.
+	 * @param saveCycleMillis the cycle of saving, {@code 0} to save as soon as possible.
+	 * @param service the service which runs the writers.
+	 * @param writers the number of partitions, i.e. the writers which run at the same time.
+	 */
+	public MAutoSaveQueue(long saveCycleMillis, MExecutionService service, int writers) {
+		this(saveCycleMillis, service, writers, new Budget());
+	}
+	
+	/**
+	 * Create a queue which saves as soon as possible, with a memory budget shared by
+	 * other queues.
+	 * @param budget the budget.
+	 */
+	public MAutoSaveQueue(Budget budget) {
+		this(0, MExecutionService.getDefault(),
+				MExecutionService.getDefault().getPoolSize(MExecutionService.Kind.AutoSave), budget);
+	}
+	
+	/**
+	 * Create a queue.
+	 * @param saveCycleMillis the cycle of saving, {@code 0} to save as soon as possible.
+	 * @param service the service which runs the writers.
+	 * @param writers the number of partitions, i.e. the writers which run at the same time.
+	 * @param budget the memory budget, which could be shared by other queues.
+	 */
+	public MAutoSaveQueue(long saveCycleMillis, MExecutionService service, int writers, Budget budget) {
 		this.saveCycleMillis = saveCycleMillis;
+		this.service = service;
+		this.budget = budget;
+		budget.queues.add(this);
+		writers = Math.max(1, writers);
+		this.partitions = new ArrayList<Partition>(writers);
+		for (int i = 0; i < writers; i++)
+			partitions.add(new Partition());
 	}
 	
 	public long getSaveCycle() {
 		return this.saveCycleMillis;
 	}
 	
-	public void setSaveCycle(long saveCycleMillis) {
+	/**
+	 * Set the maximum time that an element waits before it's saved. The ages are
+	 * checked periodically, at a fraction of the cycle.
+	 * @param saveCycleMillis the time in milliseconds, {@code 0} to save as soon as possible.
+	 */
+	public synchronized void setSaveCycle(long saveCycleMillis) {
 		this.saveCycleMillis = saveCycleMillis;
+		if (enable) {
+			stop();
+			start();
+		}
+	}
+	
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+	
+	/**
+	 * Set the number of elements in a partition which triggers a flush. It's also the
+	 * maximum size of a batch passed to {@link #save(List)}.
+	 * @param size the size.
+	 */
+	public void setMaxBatchSize(int size) {
+		this.maxBatchSize = Math.max(1, size);
+	}
+	
+	public long getMemoryBudget() {
+		return budget.limit;
+	}
+	
+	/**
+	 * Set the maximum total weight of waiting elements, as weighed by {@link #weigh(Object)}.
+	 * If the budget is shared, it's set for all of the queues sharing it.
+	 * @param budget the budget, {@code 0} for no limit.
+	 */
+	public void setMemoryBudget(long budget) {
+		this.budget.setLimit(budget);
+	}
+	
+	/**
+	 * The memory budget, which could be shared by other queues.
+	 * @return the budget.
+	 */
+	public Budget getBudget() {
+		return budget;
+	}
+	
+	public long getThrottleTimeout() {
+		return throttleTimeoutMillis;
+	}
+	
+	/**
+	 * Set the maximum time that a producer waits when the memory budget is exceeded.
+	 * @param millis the time in milliseconds.
+	 */
+	public void setThrottleTimeout(long millis) {
+		this.throttleTimeoutMillis = Math.max(0, millis);
+	}
+	
+	public long getRetryDelay() {
+		return retryDelayMillis;
+	}
+	
+	/**
+	 * Set the time that an element whose save failed waits before it's saved again.
+	 * @param millis the time in milliseconds.
+	 */
+	public void setRetryDelay(long millis) {
+		this.retryDelayMillis = Math.max(0, millis);
 	}
 	
 	public boolean isEnable() {
 		return enable;
 	}
 	
-	public void setEnable(boolean enable) {
+	public synchronized void setEnable(boolean enable) {
 		if (this.enable != enable) {
+			this.enable = enable;
 			if (enable) {
-				handler = new AutoSaveHandler();
-				handler.start();
+				start();
+				service.addShutdownHook(shutdownHook);
 			} else {
-				handler.disable();
-				handler = null;
+				stop();
+				service.removeShutdownHook(shutdownHook);
+				synchronized (budget) {
+					budget.notifyAll();
+				}
 			}
 		}
-		this.enable = enable;
+	}
+	
+	private void start() {
+		long cycle = saveCycleMillis;
+		if (cycle > 0) {
+			long tick = Math.min(MAX_TICK_MILLIS, Math.max(MIN_TICK_MILLIS, cycle / 4));
+			ticker = service.getScheduler().scheduleWithFixedDelay(tickTask,
+					tick, tick, TimeUnit.MILLISECONDS);
+		} else {
+			for (Partition p : partitions) {
+				if (!p.isEmpty())
+					p.submit();
+			}
+		}
+	}
+	
+	private void stop() {
+		if (ticker != null) {
+			ticker.cancel(false);
+			ticker = null;
+		}
+	}
+	
+	/**
+	 * The number of elements waiting to be saved.
+	 * @return count.
+	 */
+	public int size() {
+		int n = 0;
+		for (Partition p : partitions)
+			n += p.count.get();
+		return n;
+	}
+	
+	/**
+	 * The total weight of elements waiting to be saved.
+	 * @return weight.
+	 */
+	public long getPendingWeight() {
+		return weight.get();
+	}
+	
+	public MAutoSaveStatistics getStatistics() {
+		return statistics;
 	}
 	
 	public void offer(T e) {
-		synchronized (lock) {
-			if (elements.contains(e))
-				return;
-			elements.add(e);
-			queue.offer(e);
-			lock.notify();
+		Partition p = partitionFor(e);
+		boolean queued = p.offer(e);
+		statistics.recordOffer(queued);
+		if (!queued || !enable)
+			return;
+		if (saveCycleMillis <= 0 || p.count.get() >= maxBatchSize)
+			p.submit();
+		long limit = budget.limit;
+		if (limit > 0 && budget.weight.get() > limit)
+			throttle();
+	}
+	
+	/**
+	 * Queue again an element whose save failed, e.g. because the storage is down. Unlike
+	 * {@link #offer(Object)}, the partition is not flushed at once but after the retry
+	 * delay, so the writers don't spin on a failing storage.
+	 * @param e the element.
+	 */
+	public void retry(T e) {
+		final Partition p = partitionFor(e);
+		if (!p.offer(e) || !enable || service.isShutdown())
+			return;
+		if (p.retrying.compareAndSet(false, true)) {
+			service.getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					p.retrying.set(false);
+					p.submit();
+				}
+			}, retryDelayMillis, TimeUnit.MILLISECONDS);
 		}
 	}
 	
-	private void remove() {
-		synchronized (lock) {
-			if (queue.size() == 0) {
+	private Partition partitionFor(T e) {
+		return partitions.get((partitionOf(e) & 0x7fffffff) % partitions.size());
+	}
+	
+	/**
+	 * Flush all partitions of the queues sharing the budget, and hold current thread
+	 * back until the weight falls below the budget.
+	 */
+	private void throttle() {
+		for (MAutoSaveQueue<?> q : budget.queues) {
+			if (q.enable) {
+				for (MAutoSaveQueue<?>.Partition p : q.partitions)
+					p.submit();
+			}
+		}
+		if (writer.get() != null)
+			return;
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(throttleTimeoutMillis);
+		synchronized (budget) {
+			for (;;) {
+				long limit = budget.limit;
+				if (!enable || limit == 0 || budget.weight.get() <= limit)
+					break;
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					break;
 				try {
-					lock.wait();
-				} catch (InterruptedException e) {
-					/*
-					 * do nothing
-					 */
+					TimeUnit.NANOSECONDS.timedWait(budget, left);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					break;
 				}
 			}
-			// save all elements in queue
-			while (queue.size() != 0) {
-				T e = queue.remove();
-				elements.remove(e);
-				save(e);
-			}
 		}
+		statistics.recordThrottle(System.nanoTime() - start);
+	}
+	
+	/**
+	 * Save all elements waiting in the queue by current thread.
+	 */
+	public void drain() {
+		for (Partition p : partitions)
+			p.drain();
+	}
+	
+	/**
+	 * The key by which an element is assigned to a partition. The saves of elements with
+	 * the same key are never run at the same time.
+	 * @param e the element.
+	 * @return the key.
+	 */
+	protected int partitionOf(T e) {
+		return e.hashCode();
+	}
+	
+	/**
+	 * The weight of the unsaved state of an element, which is counted against the memory
+	 * budget. By default, every element weighs 1.
+	 * @param e the element.
+	 * @return the weight.
+	 */
+	protected int weigh(T e) {
+		return 1;
+	}
+	
+	/**
+	 * Save a batch of elements. By default, the elements are saved one by one.
+	 * @param batch the elements.
+	 */
+	protected void save(List<T> batch) {
+		for (T e : batch)
+			save(e);
 	}
 	
 	protected abstract void save(T e);
 	
-	private class AutoSaveHandler extends Thread {
+	/**
+	 * A buffer of elements, the number of producers appending to it, and the time of
+	 * the first element appended.
+	 */
+	private class Buffer {
+		final ConcurrentLinkedQueue<T> items = new ConcurrentLinkedQueue<T>();
+		final AtomicInteger producers = new AtomicInteger();
+		final AtomicLong first = new AtomicLong(NO_TIME);
+	}
+	
+	private class Partition {
 		
-		boolean enable = true;
+		final AtomicReference<Buffer> active = new AtomicReference<Buffer>(new Buffer());
 		
-		AutoSaveHandler() {
-			super("Meteor-AutoSave-Handler");
-			setDaemon(true);
+		/**
+		 * The buffer to be swapped in, only touched by the writer.
+		 */
+		Buffer spare = new Buffer();
+		
+		/**
+		 * The elements in buffers with their weights, for coalescing.
+		 */
+		final ConcurrentMap<T, Integer> pending = new ConcurrentHashMap<T, Integer>();
+		
+		final AtomicInteger count = new AtomicInteger();
+		
+		final AtomicBoolean submitted = new AtomicBoolean(false);
+		
+		final AtomicBoolean writing = new AtomicBoolean(false);
+		
+		/**
+		 * Whether a flush is scheduled for the elements queued again.
+		 */
+		final AtomicBoolean retrying = new AtomicBoolean(false);
+		
+		/**
+		 * Whether a drain was requested while the writer was busy.
+		 */
+		volatile boolean again = false;
+		
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				submitted.set(false);
+				drain();
+			}
+		};
+		
+		boolean isEmpty() {
+			return count.get() == 0;
 		}
 		
-		public void disable() {
-			enable = false;
+		/**
+		 * Append an element to the active buffer.
+		 * @param e the element.
+		 * @return {@code false} if the element is already waiting.
+		 */
+		boolean offer(T e) {
+			int w = weigh(e);
+			if (pending.putIfAbsent(e, w) != null)
+				return false;
+			count.incrementAndGet();
+			weight.addAndGet(w);
+			budget.weight.addAndGet(w);
+			for (;;) {
+				Buffer b = active.get();
+				b.producers.incrementAndGet();
+				try {
+					// the buffer may be swapped out before it's pinned
+					if (active.get() == b) {
+						b.items.offer(e);
+						b.first.compareAndSet(NO_TIME, System.nanoTime());
+						return true;
+					}
+				} finally {
+					b.producers.decrementAndGet();
+				}
+			}
 		}
 		
-		@Override
-		public void run() {
-			for (;enable;) {
-				if (saveCycleMillis != 0) {
+		void submit() {
+			if (service.isShutdown())
+				return;
+			if (submitted.compareAndSet(false, true))
+				service.submit(MExecutionService.Kind.AutoSave, task);
+		}
+		
+		void drain() {
+			// if a writer is running, it drains again before it leaves
+			again = true;
+			while (again && writing.compareAndSet(false, true)) {
+				Boolean outer = writer.get();
+				writer.set(Boolean.TRUE);
+				try {
+					while (again) {
+						again = false;
+						spare.first.set(NO_TIME);
+						Buffer full = active.getAndSet(spare);
+						while (full.producers.get() != 0)
+							Thread.yield();
+						spare = full;
+						flush(full);
+					}
+				} finally {
+					if (outer == null)
+						writer.remove();
+					writing.set(false);
+				}
+			}
+		}
+		
+		/**
+		 * Save the elements of a full buffer, in batches of the maximum size. The elements
+		 * of a failed batch are queued again, so they're not lost with the exception.
+		 */
+		private void flush(Buffer full) {
+			int max = maxBatchSize;
+			List<T> batch = new ArrayList<T>(Math.min(max, full.items.size()));
+			long batchWeight = 0;
+			T e;
+			while ((e = full.items.poll()) != null) {
+				// changed after this point, the element is queued again
+				Integer w = pending.remove(e);
+				count.decrementAndGet();
+				batchWeight += w == null ? 0 : w;
+				batch.add(e);
+				if (batch.size() >= max || full.items.isEmpty()) {
+					long start = System.nanoTime();
+					RuntimeException failure = null;
 					try {
-						// waiting for interval
-						Thread.sleep(saveCycleMillis);
-					} catch (InterruptedException e1) {
-						/*
-						 * do nothing
-						 */
+						save(batch);
+					} catch (RuntimeException ex) {
+						failure = ex;
+					} finally {
+						statistics.recordFlush(batch.size(), System.nanoTime() - start);
+						released(batchWeight);
 					}
+					if (failure != null) {
+						logger.log(Level.WARNING, "failed to save " + batch.size() + " elements, retry later", failure);
+						for (T f : batch)
+							retry(f);
+					}
+					batch.clear();
+					batchWeight = 0;
 				}
-				remove();
 			}
 		}
 	}
+	
+	/**
+	 * Release the weight of saved elements, and wake up the throttled producers.
+	 */
+	private void released(long w) {
+		weight.addAndGet(-w);
+		budget.weight.addAndGet(-w);
+		if (budget.limit > 0) {
+			synchronized (budget) {
+				budget.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * The memory budget of the elements waiting in one or more queues. The weight of
+	 * the elements waiting in all of the queues sharing a budget is counted against it,
+	 * and when it's exceeded, all of the queues are flushed, and the producers of any of
+	 * them are held back.
+	 */
+	public static class Budget {
+		
+		private volatile long limit = 0;
+		
+		private final AtomicLong weight = new AtomicLong();
+		
+		private final List<MAutoSaveQueue<?>> queues = new CopyOnWriteArrayList<MAutoSaveQueue<?>>();
+		
+		public Budget() {
+		}
+		
+		/**
+		 * Create a budget.
+		 * @param limit the maximum total weight, {@code 0} for no limit.
+		 */
+		public Budget(long limit) {
+			this.limit = Math.max(0, limit);
+		}
+		
+		public long getLimit() {
+			return limit;
+		}
+		
+		/**
+		 * Set the maximum total weight of the elements waiting in the queues.
+		 * @param limit the limit, {@code 0} for no limit.
+		 */
+		public void setLimit(long limit) {
+			this.limit = Math.max(0, limit);
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		
+		/**
+		 * The total weight of the elements waiting in the queues.
+		 * @return weight.
+		 */
+		public long getWeight() {
+			return weight.get();
+		}
+		
+		/**
+		 * Stop sharing the budget with a queue, e.g. of a database no longer used. The
+		 * queue should be drained before.
+		 * @param queue the queue.
+		 */
+		public void remove(MAutoSaveQueue<?> queue) {
+			queues.remove(queue);
+		}
+	}
+	
 }
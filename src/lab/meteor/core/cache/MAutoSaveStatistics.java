@@ -0,0 +1,250 @@
+package lab.meteor.core.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The statistics of an auto saving queue. The counters are updated without locking,
+ * and can be read programmatically by {@link #snapshot()}.
+ * @see MAutoSaveQueue#getStatistics()
+ */
+public class MAutoSaveStatistics {
+
+	/**
+	 * The number of buckets of flush time histogram. The bucket {@code i} counts the
+	 * flushes which take less than {@code 2^i} microseconds.
+	 */
+	static final int HISTOGRAM_BUCKETS = 32;
+
+	private final MAutoSaveQueue<?> queue;
+
+	private final AtomicLong offers = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong maxFlushSize = new AtomicLong();
+	private final AtomicLong flushTime = new AtomicLong();
+	private final AtomicLong throttles = new AtomicLong();
+	private final AtomicLong throttleTime = new AtomicLong();
+	private final AtomicLongArray flushHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+	MAutoSaveStatistics(MAutoSaveQueue<?> queue) {
+		this.queue = queue;
+	}
+
+	void recordOffer(boolean queued) {
+		offers.incrementAndGet();
+		if (!queued)
+			coalesced.incrementAndGet();
+	}
+
+	/**
+	 * Record a batch written.
+	 * @param size the number of elements.
+	 * @param nanos the time of writing in nanoseconds.
+	 */
+	void recordFlush(int size, long nanos) {
+		flushes.incrementAndGet();
+		flushed.addAndGet(size);
+		flushTime.addAndGet(nanos);
+		long max;
+		while (size > (max = maxFlushSize.get()) && !maxFlushSize.compareAndSet(max, size))
+			;
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		if (bucket >= HISTOGRAM_BUCKETS)
+			bucket = HISTOGRAM_BUCKETS - 1;
+		flushHistogram.incrementAndGet(bucket);
+	}
+
+	/**
+	 * Record a producer held back because the memory budget is exceeded.
+	 * @param nanos the time of waiting in nanoseconds.
+	 */
+	void recordThrottle(long nanos) {
+		throttles.incrementAndGet();
+		throttleTime.addAndGet(nanos);
+	}
+
+	public void reset() {
+		offers.set(0);
+		coalesced.set(0);
+		flushes.set(0);
+		flushed.set(0);
+		maxFlushSize.set(0);
+		flushTime.set(0);
+		throttles.set(0);
+		throttleTime.set(0);
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+			flushHistogram.set(i, 0);
+	}
+
+	/**
+	 * Take a snapshot of the statistics.
+	 * @return snapshot.
+	 */
+	public Snapshot snapshot() {
+		long[] histogram = new long[HISTOGRAM_BUCKETS];
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+			histogram[i] = flushHistogram.get(i);
+		return new Snapshot(queue.size(), queue.getPendingWeight(), offers.get(), coalesced.get(),
+				flushes.get(), flushed.get(), maxFlushSize.get(), flushTime.get(),
+				throttles.get(), throttleTime.get(), histogram);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	/**
+	 * The immutable values of statistics at a moment.
+	 */
+	public static class Snapshot {
+
+		private final long depth;
+		private final long weight;
+		private final long offers;
+		private final long coalesced;
+		private final long flushes;
+		private final long flushed;
+		private final long maxFlushSize;
+		private final long flushTime;
+		private final long throttles;
+		private final long throttleTime;
+		private final long[] histogram;
+
+		Snapshot(long depth, long weight, long offers, long coalesced, long flushes,
+				long flushed, long maxFlushSize, long flushTime, long throttles,
+				long throttleTime, long[] histogram) {
+			this.depth = depth;
+			this.weight = weight;
+			this.offers = offers;
+			this.coalesced = coalesced;
+			this.flushes = flushes;
+			this.flushed = flushed;
+			this.maxFlushSize = maxFlushSize;
+			this.flushTime = flushTime;
+			this.throttles = throttles;
+			this.throttleTime = throttleTime;
+			this.histogram = histogram;
+		}
+
+		/**
+		 * The number of elements waiting to be saved.
+		 * @return count.
+		 */
+		public long getQueueDepth() {
+			return depth;
+		}
+
+		/**
+		 * The total weight of the elements waiting to be saved.
+		 * @return weight.
+		 * @see MAutoSaveQueue#setMemoryBudget(long)
+		 */
+		public long getPendingWeight() {
+			return weight;
+		}
+
+		public long getOfferCount() {
+			return offers;
+		}
+
+		/**
+		 * The number of offers of elements which were already waiting.
+		 * @return count.
+		 */
+		public long getCoalescedCount() {
+			return coalesced;
+		}
+
+		public long getFlushCount() {
+			return flushes;
+		}
+
+		/**
+		 * The number of elements written.
+		 * @return count.
+		 */
+		public long getFlushedCount() {
+			return flushed;
+		}
+
+		/**
+		 * The average number of elements written by a flush.
+		 * @return size.
+		 */
+		public double getAverageFlushSize() {
+			return flushes == 0 ? 0.0 : (double) flushed / flushes;
+		}
+
+		public long getMaxFlushSize() {
+			return maxFlushSize;
+		}
+
+		/**
+		 * The average time of a flush in nanoseconds.
+		 * @return time.
+		 */
+		public double getAverageFlushTime() {
+			return flushes == 0 ? 0.0 : (double) flushTime / flushes;
+		}
+
+		/**
+		 * The upper bound of the flush time under which the given percentage of flushes
+		 * are done.
+		 * @param percentile the percentile between 0 and 100.
+		 * @return time in microseconds.
+		 */
+		public long getFlushTimePercentile(double percentile) {
+			long total = 0;
+			for (long c : histogram)
+				total += c;
+			if (total == 0)
+				return 0;
+			long threshold = (long) Math.ceil(total * percentile / 100.0);
+			long count = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				count += histogram[i];
+				if (count >= threshold)
+					return 1L << i;
+			}
+			return 1L << (histogram.length - 1);
+		}
+
+		/**
+		 * The number of times that producers were held back by the memory budget.
+		 * @return count.
+		 */
+		public long getThrottleCount() {
+			return throttles;
+		}
+
+		/**
+		 * The total time that producers were held back, in nanoseconds.
+		 * @return time.
+		 */
+		public long getThrottleTime() {
+			return throttleTime;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("auto save: depth=").append(depth)
+				.append(", weight=").append(weight)
+				.append(", offers=").append(offers)
+				.append(", coalesced=").append(coalesced)
+				.append(", flushes=").append(flushes)
+				.append(", avgFlushSize=").append(String.format("%.1f", getAverageFlushSize()))
+				.append(", maxFlushSize=").append(maxFlushSize)
+				.append(", avgFlush=").append(String.format("%.1f", getAverageFlushTime() / 1000)).append("us")
+				.append(", p99Flush=").append(getFlushTimePercentile(99)).append("us")
+				.append(", throttles=").append(throttles)
+				.append(", throttled=").append(throttleTime / 1000000).append("ms");
+			return sb.toString();
+		}
+	}
+
+}
@@ -0,0 +1,286 @@
+package lab.meteor.core.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The statistics of a kind of cached elements. The counters are updated without locking,
+ * so that the statistics can always be collected. It's exposed through JMX as
+ * {@link MCacheStatisticsMXBean}, and can be read programmatically by {@link #snapshot()}.
+ */
+public class MCacheStatistics implements MCacheStatisticsMXBean {
+
+	/**
+	 * The kind of cached elements.
+	 */
+	public static enum Kind {
+		/**
+		 * Class, attribute, reference, enum, symbol and package.
+		 */
+		Meta,
+		/**
+		 * Object.
+		 */
+		Object,
+		/**
+		 * Tag.
+		 */
+		Tag
+	}
+
+	/**
+	 * The number of buckets of load time histogram. The bucket {@code i} counts the loads
+	 * which take less than {@code 2^i} microseconds.
+	 */
+	static final int HISTOGRAM_BUCKETS = 32;
+
+	private final Kind kind;
+
+	private final MCaches caches;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong loadTime = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong gcCleared = new AtomicLong();
+	private final AtomicLongArray loadHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+	MCacheStatistics(Kind kind, MCaches caches) {
+		this.kind = kind;
+		this.caches = caches;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	void recordEviction() {
+		evictions.incrementAndGet();
+	}
+
+	void recordGCCleared() {
+		gcCleared.incrementAndGet();
+	}
+
+	/**
+	 * Record a load from database.
+	 * @param nanos the time of loading in nanoseconds.
+	 */
+	void recordLoad(long nanos) {
+		loads.incrementAndGet();
+		loadTime.addAndGet(nanos);
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		if (bucket >= HISTOGRAM_BUCKETS)
+			bucket = HISTOGRAM_BUCKETS - 1;
+		loadHistogram.incrementAndGet(bucket);
+	}
+
+	@Override
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public double getHitRatio() {
+		return snapshot().getHitRatio();
+	}
+
+	@Override
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	@Override
+	public long getTotalLoadTime() {
+		return loadTime.get();
+	}
+
+	@Override
+	public double getAverageLoadTime() {
+		return snapshot().getAverageLoadTime();
+	}
+
+	@Override
+	public long getLoadTimePercentile(double percentile) {
+		return snapshot().getLoadTimePercentile(percentile);
+	}
+
+	@Override
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getGCClearedCount() {
+		return gcCleared.get();
+	}
+
+	@Override
+	public long getSize() {
+		return caches.size(kind);
+	}
+
+	@Override
+	public void reset() {
+		hits.set(0);
+		misses.set(0);
+		loads.set(0);
+		loadTime.set(0);
+		evictions.set(0);
+		gcCleared.set(0);
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+			loadHistogram.set(i, 0);
+	}
+
+	/**
+	 * Take a snapshot of the statistics.
+	 * @return snapshot.
+	 */
+	public Snapshot snapshot() {
+		long[] histogram = new long[HISTOGRAM_BUCKETS];
+		for (int i = 0; i < HISTOGRAM_BUCKETS; i++)
+			histogram[i] = loadHistogram.get(i);
+		return new Snapshot(kind, hits.get(), misses.get(), loads.get(), loadTime.get(),
+				evictions.get(), gcCleared.get(), caches.size(kind), histogram);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	/**
+	 * The immutable values of statistics at a moment.
+	 */
+	public static class Snapshot {
+
+		private final Kind kind;
+		private final long hits;
+		private final long misses;
+		private final long loads;
+		private final long loadTime;
+		private final long evictions;
+		private final long gcCleared;
+		private final long size;
+		private final long[] histogram;
+
+		Snapshot(Kind kind, long hits, long misses, long loads, long loadTime,
+				long evictions, long gcCleared, long size, long[] histogram) {
+			this.kind = kind;
+			this.hits = hits;
+			this.misses = misses;
+			this.loads = loads;
+			this.loadTime = loadTime;
+			this.evictions = evictions;
+			this.gcCleared = gcCleared;
+			this.size = size;
+			this.histogram = histogram;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		public long getHitCount() {
+			return hits;
+		}
+
+		public long getMissCount() {
+			return misses;
+		}
+
+		/**
+		 * The ratio of hits to all requests.
+		 * @return ratio, {@code 1.0} if there is no request.
+		 */
+		public double getHitRatio() {
+			long requests = hits + misses;
+			return requests == 0 ? 1.0 : (double) hits / requests;
+		}
+
+		public long getLoadCount() {
+			return loads;
+		}
+
+		/**
+		 * The total time of loads in nanoseconds.
+		 * @return time.
+		 */
+		public long getTotalLoadTime() {
+			return loadTime;
+		}
+
+		/**
+		 * The average time of a load in nanoseconds.
+		 * @return time.
+		 */
+		public double getAverageLoadTime() {
+			return loads == 0 ? 0.0 : (double) loadTime / loads;
+		}
+
+		/**
+		 * The upper bound of the load time under which the given percentage of loads
+		 * are done.
+		 * @param percentile the percentile between 0 and 100.
+		 * @return time in microseconds.
+		 */
+		public long getLoadTimePercentile(double percentile) {
+			long total = 0;
+			for (long c : histogram)
+				total += c;
+			if (total == 0)
+				return 0;
+			long threshold = (long) Math.ceil(total * percentile / 100.0);
+			long count = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				count += histogram[i];
+				if (count >= threshold)
+					return 1L << i;
+			}
+			return 1L << (histogram.length - 1);
+		}
+
+		public long getEvictionCount() {
+			return evictions;
+		}
+
+		public long getGCClearedCount() {
+			return gcCleared;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(kind).append(" cache: size=").append(size)
+				.append(", hits=").append(hits)
+				.append(", misses=").append(misses)
+				.append(", hitRatio=").append(String.format("%.3f", getHitRatio()))
+				.append(", loads=").append(loads)
+				.append(", avgLoad=").append(String.format("%.1f", getAverageLoadTime() / 1000)).append("us")
+				.append(", p99Load=").append(getLoadTimePercentile(99)).append("us")
+				.append(", evictions=").append(evictions)
+				.append(", gcCleared=").append(gcCleared);
+			return sb.toString();
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+package lab.meteor.core.cache;
+
+/**
+ * The management interface of cache statistics.
+ * @see MCacheStatistics
+ */
+public interface MCacheStatisticsMXBean {
+
+	long getHitCount();
+
+	long getMissCount();
+
+	double getHitRatio();
+
+	long getLoadCount();
+
+	/**
+	 * The total time of loads in nanoseconds.
+	 */
+	long getTotalLoadTime();
+
+	/**
+	 * The average time of a load in nanoseconds.
+	 */
+	double getAverageLoadTime();
+
+	/**
+	 * The load time in microseconds under which the given percentage of loads are done.
+	 */
+	long getLoadTimePercentile(double percentile);
+
+	long getEvictionCount();
+
+	/**
+	 * The number of overflowed entries whose elements have been reclaimed by GC.
+	 */
+	long getGCClearedCount();
+
+	long getSize();
+
+	void reset();
+
+}
@@ -0,0 +1,337 @@
+package lab.meteor.core.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lab.meteor.core.MExecutionService;
+
+/**
+ * Keep the hot set of caches across restarts. The IDs of the most frequently used
+ * objects and tags are recorded to a snapshot file, periodically if a record cycle is
+ * set. When the system starts, the snapshot is replayed in background by the maintenance
+ * pool of {@link MExecutionService}, which loads the elements in batches from the
+ * hottest to the coldest. The replay only takes a part of time (the duty cycle), so
+ * the foreground accesses always win.
+ */
+public abstract class MCacheWarmer {
+
+	/**
+	 * The magic number of snapshot file.
+	 */
+	private static final int MAGIC = 0x4D574152;
+
+	private static final int VERSION = 1;
+
+	public static final int DEFAULT_RECORD_LIMIT = 10000;
+
+	public static final int DEFAULT_BATCH_SIZE = 200;
+
+	public static final int DEFAULT_DUTY_CYCLE = 20;
+
+	/**
+	 * A recorded element.
+	 */
+	static class Record {
+		final MCacheStatistics.Kind kind;
+		final long id;
+		final int hits;
+
+		Record(MCacheStatistics.Kind kind, long id, int hits) {
+			this.kind = kind;
+			this.id = id;
+			this.hits = hits;
+		}
+	}
+
+	private final MCaches caches;
+
+	private volatile File file;
+
+	private volatile long recordCycleMillis = 0;
+
+	private volatile int recordLimit = DEFAULT_RECORD_LIMIT;
+
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+	private volatile int dutyCycle = DEFAULT_DUTY_CYCLE;
+
+	private final MExecutionService service;
+
+	private ScheduledFuture<?> recorder;
+
+	private ReplayHandler replayer;
+
+	private Future<?> replayFuture;
+
+	public MCacheWarmer(MCaches caches) {
+		this(caches, MExecutionService.getDefault());
+	}
+
+	public MCacheWarmer(MCaches caches, MExecutionService service) {
+		this.caches = caches;
+		this.service = service;
+	}
+
+	public File getSnapshotFile() {
+		return file;
+	}
+
+	/**
+	 * Set the snapshot file.
+	 * @param file the file, {@code null} to disable the warmer.
+	 */
+	public void setSnapshotFile(File file) {
+		this.file = file;
+	}
+
+	public long getRecordCycle() {
+		return recordCycleMillis;
+	}
+
+	/**
+	 * Set the cycle of recording the hot set.
+	 * @param millis the cycle in milliseconds, {@code 0} to stop recording periodically.
+	 */
+	public synchronized void setRecordCycle(long millis) {
+		this.recordCycleMillis = millis;
+		if (recorder != null) {
+			recorder.cancel(false);
+			recorder = null;
+		}
+		if (millis > 0)
+			recorder = service.scheduleWithFixedDelay(MExecutionService.Kind.Maintenance,
+					new RecordHandler(), millis, TimeUnit.MILLISECONDS);
+	}
+
+	public int getRecordLimit() {
+		return recordLimit;
+	}
+
+	/**
+	 * Set the maximum number of objects, and of tags, which are recorded.
+	 * @param limit the limit.
+	 */
+	public void setRecordLimit(int limit) {
+		this.recordLimit = limit;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Set the number of elements loaded in a batch during replay.
+	 * @param size the size of batch.
+	 */
+	public void setBatchSize(int size) {
+		this.batchSize = Math.max(1, size);
+	}
+
+	public int getDutyCycle() {
+		return dutyCycle;
+	}
+
+	/**
+	 * Set the percentage of time that the replay may spend on loading. After a batch,
+	 * the replay sleeps for a while in proportion to the time of loading.
+	 * @param percent the percentage between 1 and 100.
+	 */
+	public void setDutyCycle(int percent) {
+		this.dutyCycle = Math.min(100, Math.max(1, percent));
+	}
+
+	/**
+	 * Record the hot set to snapshot file now. The file is replaced atomically.
+	 * @throws IOException
+	 */
+	public void record() throws IOException {
+		File f = this.file;
+		if (f == null)
+			return;
+		List<Record> records = new ArrayList<Record>();
+		for (Map.Entry<Long, Integer> entry : caches.hottestObjects(recordLimit).entrySet())
+			records.add(new Record(MCacheStatistics.Kind.Object, entry.getKey(), entry.getValue()));
+		for (Map.Entry<Long, Integer> entry : caches.hottestTags(recordLimit).entrySet())
+			records.add(new Record(MCacheStatistics.Kind.Tag, entry.getKey(), entry.getValue()));
+		Collections.sort(records, new Comparator<Record>() {
+			@Override
+			public int compare(Record a, Record b) {
+				return a.hits < b.hits ? 1 : (a.hits == b.hits ? 0 : -1);
+			}
+		});
+
+		File tmp = new File(f.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(records.size());
+			for (Record r : records) {
+				out.writeByte(r.kind.ordinal());
+				out.writeLong(r.id);
+				out.writeInt(r.hits);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(f)) {
+			f.delete();
+			if (!tmp.renameTo(f))
+				throw new IOException("cannot replace " + f);
+		}
+	}
+
+	/**
+	 * Read the snapshot file.
+	 * @return the records, from the hottest to the coldest.
+	 * @throws IOException if the file can't be read, or it's corrupt.
+	 */
+	List<Record> read() throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		File f = this.file;
+		if (f == null || !f.exists())
+			return records;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return records;
+			int count = in.readInt();
+			MCacheStatistics.Kind[] kinds = MCacheStatistics.Kind.values();
+			for (int i = 0; i < count; i++) {
+				int k = in.readByte();
+				if (k < 0 || k >= kinds.length)
+					throw new IOException("unknown kind " + k);
+				MCacheStatistics.Kind kind = kinds[k];
+				long id = in.readLong();
+				int hits = in.readInt();
+				records.add(new Record(kind, id, hits));
+			}
+		} catch (EOFException e) {
+			// a truncated snapshot, replay the part read
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Start replaying the snapshot file in background. It has no effect if a replay
+	 * is running.
+	 */
+	public synchronized void replay() {
+		if (isReplaying())
+			return;
+		replayer = new ReplayHandler();
+		replayFuture = service.submit(MExecutionService.Kind.Maintenance, replayer);
+	}
+
+	public synchronized boolean isReplaying() {
+		return replayFuture != null && !replayFuture.isDone();
+	}
+
+	/**
+	 * Stop the running replay.
+	 */
+	public synchronized void cancelReplay() {
+		if (replayer != null) {
+			replayer.disable();
+			replayFuture.cancel(true);
+			replayer = null;
+			replayFuture = null;
+		}
+	}
+
+	/**
+	 * Load a batch of elements into cache.
+	 * @param kind the kind of elements, object or tag.
+	 * @param ids the IDs of elements.
+	 */
+	protected abstract void load(MCacheStatistics.Kind kind, List<Long> ids);
+
+	private class RecordHandler implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				record();
+			} catch (IOException e) {
+				/*
+				 * try again in next cycle
+				 */
+			}
+		}
+	}
+
+	private class ReplayHandler implements Runnable {
+
+		volatile boolean enable = true;
+
+		public void disable() {
+			enable = false;
+		}
+
+		@Override
+		public void run() {
+			List<Record> records;
+			try {
+				records = read();
+			} catch (IOException e) {
+				return;
+			}
+			List<Long> objects = new ArrayList<Long>();
+			List<Long> tags = new ArrayList<Long>();
+			for (int i = 0; i < records.size() && enable; i++) {
+				Record r = records.get(i);
+				if (caches.isElementInCache(r.id))
+					continue;
+				List<Long> batch = r.kind == MCacheStatistics.Kind.Tag ? tags : objects;
+				batch.add(r.id);
+				if (batch.size() >= batchSize)
+					flush(r.kind, batch);
+			}
+			flush(MCacheStatistics.Kind.Object, objects);
+			flush(MCacheStatistics.Kind.Tag, tags);
+		}
+
+		private void flush(MCacheStatistics.Kind kind, List<Long> batch) {
+			if (!enable || batch.isEmpty())
+				return;
+			long start = System.nanoTime();
+			try {
+				load(kind, batch);
+			} catch (RuntimeException e) {
+				/*
+				 * the warm-up is best effort
+				 */
+			}
+			batch.clear();
+			long busy = (System.nanoTime() - start) / 1000000;
+			long idle = busy * (100 - dutyCycle) / dutyCycle;
+			if (idle > 0) {
+				try {
+					Thread.sleep(idle);
+				} catch (InterruptedException e) {
+					/*
+					 * checked by the loop
+					 */
+				}
+			}
+		}
+	}
+
+}
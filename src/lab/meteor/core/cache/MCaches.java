@@ -1,8 +1,13 @@
 package lab.meteor.core.cache;
 
-import java.util.HashMap;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
 import java.util.Map;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import lab.meteor.core.MElement;
 import lab.meteor.core.MObject;
 import lab.meteor.core.MTag;
@@ -10,11 +15,74 @@ import lab.meteor.core.MElement.MElementType;
 
 public class MCaches {
 
+	/**
+	 * How the elements evicted from the object and tag caches are kept.
+	 */
+	public static enum Overflow {
+		/**
+		 * The evicted elements are dropped.
+		 */
+		NONE,
+		/**
+		 * The evicted elements are kept by weak references, so an element still used
+		 * elsewhere keeps its identity.
+		 */
+		WEAK,
+		/**
+		 * The evicted elements are kept by soft references until the memory is short.
+		 */
+		SOFT
+	}
+	
+	/**
+	 * The default capacity of objects' cache.
+	 */
+	public static final long DEFAULT_OBJECTS_CAPACITY = 100000;
+	
+	/**
+	 * The default capacity of tags' cache.
+	 */
+	public static final long DEFAULT_TAGS_CAPACITY = 20000;
+	
+	/**
+	 * The weight of an element against the capacity of cache.
+	 * @param <T> the type of element.
+	 */
+	public static interface Weigher<T> {
+		/**
+		 * Weigh an element.
+		 * @param e the element.
+		 * @return the weight, e.g. <code>1</code> to count the elements, or the estimated
+		 * bytes of element.
+		 */
+		int weigh(T e);
+	}
+	
+	/**
+	 * Elements are weighed by count, unless another weigher is set.
+	 */
+	public static final Weigher<MElement> COUNT_WEIGHER = new Weigher<MElement>() {
+		@Override
+		public int weigh(MElement e) {
+			return 1;
+		}
+	};
+	
+	/**
+	 * The elements with unsaved changes are never evicted.
+	 */
+	private static final MGCCache.EvictionGuard<MElement> DIRTY_GUARD = new MGCCache.EvictionGuard<MElement>() {
+		@Override
+		public boolean isPinned(MElement e) {
+			return e.isDirty();
+		}
+	};
+
 	/**
 	 * The meta of system, i.e. the model, include class, attribute, reference, 
-	 * enum and symbol(enumeration literal).
+	 * enum and symbol(enumeration literal). It's read without locking.
 	 */
-	private Map<Long, MElement> metaElements;
+	private final MSnapshotMap<Long, MElement> metaElements;
 	
 	/**
 	 * The objects' cache.
@@ -26,10 +94,116 @@ public class MCaches {
 	 */
 	private MGCCache<MTag> tagsCache;
 	
+	/**
+	 * The off-heap cache of object documents, {@code null} if it's disabled.
+	 */
+	private volatile MOffHeapCache documentCache;
+	
+	/**
+	 * The statistics of each kind of elements.
+	 */
+	private final Map<MCacheStatistics.Kind, MCacheStatistics> statistics;
+	
+	/**
+	 * The names of registered MBeans.
+	 */
+	private final Map<MCacheStatistics.Kind, ObjectName> mbeanNames;
+	
 	public MCaches() {
-		metaElements = new HashMap<Long, MElement>();
-		objectsCache = new MGCCache<MObject>();
-		tagsCache = new MGCCache<MTag>();
+		statistics = new EnumMap<MCacheStatistics.Kind, MCacheStatistics>(MCacheStatistics.Kind.class);
+		for (MCacheStatistics.Kind kind : MCacheStatistics.Kind.values())
+			statistics.put(kind, new MCacheStatistics(kind, this));
+		mbeanNames = new EnumMap<MCacheStatistics.Kind, ObjectName>(MCacheStatistics.Kind.class);
+		metaElements = new MSnapshotMap<Long, MElement>(false);
+		objectsCache = new MGCCache<MObject>(DEFAULT_OBJECTS_CAPACITY, Overflow.WEAK, 
+				COUNT_WEIGHER, DIRTY_GUARD, statistics.get(MCacheStatistics.Kind.Object));
+		tagsCache = new MGCCache<MTag>(DEFAULT_TAGS_CAPACITY, Overflow.WEAK, 
+				COUNT_WEIGHER, DIRTY_GUARD, statistics.get(MCacheStatistics.Kind.Tag));
+	}
+	
+	/**
+	 * Set the capacity of objects' cache, i.e. the maximum number of objects kept.
+	 * @param capacity
+	 */
+	public void setObjectsCapacity(long capacity) {
+		objectsCache.setCapacity(capacity);
+	}
+	
+	public long getObjectsCapacity() {
+		return objectsCache.getCapacity();
+	}
+	
+	/**
+	 * Set the weigher of objects' cache. The capacity is the maximum total weight, so
+	 * it's a number of bytes if the weigher estimates the bytes of objects.
+	 * @param weigher the weigher, {@code null} to weigh by count.
+	 */
+	public void setObjectsWeigher(Weigher<? super MObject> weigher) {
+		if (weigher == null)
+			objectsCache.setWeigher(COUNT_WEIGHER);
+		else
+			objectsCache.setWeigher(weigher);
+	}
+	
+	/**
+	 * Weigh an object in cache again, since its content is changed, e.g. it's loaded.
+	 * @param obj the object.
+	 */
+	public void reweighObject(MObject obj) {
+		objectsCache.reweigh(obj.getID());
+	}
+	
+	/**
+	 * Set the capacity of tags' cache, i.e. the maximum number of tags kept.
+	 * @param capacity
+	 */
+	public void setTagsCapacity(long capacity) {
+		tagsCache.setCapacity(capacity);
+	}
+	
+	public long getTagsCapacity() {
+		return tagsCache.getCapacity();
+	}
+	
+	/**
+	 * Set how the evicted objects and tags are kept.
+	 * @param overflow
+	 */
+	public void setOverflow(Overflow overflow) {
+		objectsCache.setOverflow(overflow);
+		tagsCache.setOverflow(overflow);
+	}
+	
+	public Overflow getOverflow() {
+		return objectsCache.getOverflow();
+	}
+	
+	/**
+	 * Set the capacity of the off-heap cache of object documents in bytes. The
+	 * documents of objects dropped from objects' cache are kept there, so they can be
+	 * loaded again without accessing database. The cache is disabled by default.
+	 * @param capacity the capacity in bytes, {@code 0} to disable the cache.
+	 */
+	public synchronized void setDocumentCacheCapacity(long capacity) {
+		MOffHeapCache old = documentCache;
+		if (old != null && old.getCapacity() == capacity)
+			return;
+		documentCache = capacity > 0 ? new MOffHeapCache(capacity) : null;
+		if (old != null)
+			old.clear();
+	}
+	
+	public long getDocumentCacheCapacity() {
+		MOffHeapCache c = documentCache;
+		return c == null ? 0 : c.getCapacity();
+	}
+	
+	/**
+	 * Get the off-heap cache of object documents.
+	 * @return the cache, {@code null} if it's disabled.
+	 */
+	public MOffHeapCache getDocumentCache() {
+		return documentCache;
 	}
 	
 	/**
@@ -39,7 +213,29 @@ public class MCaches {
 	 * and symbol(enumeration literal).
 	 */
 	public MElement getMetaElement(long id) {
-		return metaElements.get(id);
+		MElement ele = metaElements.get(id);
+		MCacheStatistics stats = statistics.get(MCacheStatistics.Kind.Meta);
+		if (ele != null)
+			stats.recordHit();
+		else
+			stats.recordMiss();
+		return ele;
+	}
+	
+	/**
+	 * Begin a batch of changes of meta elements. The meta elements added or removed
+	 * during the batch are visible to other threads only when the batch ends, all at once.
+	 * It must be paired with {@link #endMetaBatch()} in a {@code finally} block.
+	 */
+	public void beginMetaBatch() {
+		metaElements.beginBatch();
+	}
+	
+	/**
+	 * End a batch of changes of meta elements.
+	 */
+	public void endMetaBatch() {
+		metaElements.endBatch();
 	}
 	
 	/**
@@ -76,16 +272,17 @@ public class MCaches {
 	}
 	
 	/**
-	 * Get an element in cache.
+	 * Get an element in cache. The lookup is not counted in statistics, since
+	 * the kind of element is not known by the caller.
 	 * @param id
 	 * @return
 	 */
 	public MElement getElement(long id) {
 		MElement ele = metaElements.get(id);
 		if (ele == null)
-			ele = objectsCache.get(id);
+			ele = objectsCache.peek(id);
 		if (ele == null)
-			ele = tagsCache.get(id);
+			ele = tagsCache.peek(id);
 		return ele;
 	}
 	
@@ -119,6 +316,110 @@ public class MCaches {
 		metaElements.clear();
 		objectsCache.clear();
 		tagsCache.clear();
+		MOffHeapCache c = documentCache;
+		if (c != null)
+			c.clear();
+	}
+	
+	/**
+	 * Get the most frequently used objects in cache.
+	 * @param limit the maximum number of objects.
+	 * @return the map from ID to hit count, in descending order of hit count.
+	 */
+	Map<Long, Integer> hottestObjects(int limit) {
+		return objectsCache.hottest(limit);
+	}
+	
+	/**
+	 * Get the most frequently used tags in cache.
+	 * @param limit the maximum number of tags.
+	 * @return the map from ID to hit count, in descending order of hit count.
+	 */
+	Map<Long, Integer> hottestTags(int limit) {
+		return tagsCache.hottest(limit);
+	}
+	
+	/**
+	 * Record that an element has been loaded from database.
+	 * @param type the type of element.
+	 * @param nanos the time of loading in nanoseconds.
+	 */
+	public void recordLoad(MElementType type, long nanos) {
+		statistics.get(kindOf(type)).recordLoad(nanos);
+	}
+	
+	/**
+	 * Get the statistics of a kind of elements.
+	 * @param kind
+	 * @return the statistics.
+	 */
+	public MCacheStatistics getStatistics(MCacheStatistics.Kind kind) {
+		return statistics.get(kind);
+	}
+	
+	/**
+	 * Take the snapshots of statistics of all kinds.
+	 * @return snapshots by kind.
+	 */
+	public Map<MCacheStatistics.Kind, MCacheStatistics.Snapshot> snapshot() {
+		Map<MCacheStatistics.Kind, MCacheStatistics.Snapshot> snapshots = 
+				new EnumMap<MCacheStatistics.Kind, MCacheStatistics.Snapshot>(MCacheStatistics.Kind.class);
+		for (MCacheStatistics stats : statistics.values())
+			snapshots.put(stats.getKind(), stats.snapshot());
+		return snapshots;
+	}
+	
+	/**
+	 * The number of elements of a kind in cache.
+	 * @param kind
+	 * @return size.
+	 */
+	public long size(MCacheStatistics.Kind kind) {
+		switch (kind) {
+		case Object:
+			return objectsCache.size();
+		case Tag:
+			return tagsCache.size();
+		default:
+			return metaElements.size();
+		}
+	}
+	
+	/**
+	 * Register the statistics in platform MBean server, with the names
+	 * "<code>domain</code>:type=Cache,kind=Meta|Object|Tag".
+	 * @param domain the domain of names.
+	 * @throws JMException
+	 */
+	public synchronized void registerMBeans(String domain) throws JMException {
+		unregisterMBeans();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (MCacheStatistics stats : statistics.values()) {
+			ObjectName name = new ObjectName(domain + ":type=Cache,kind=" + stats.getKind());
+			server.registerMBean(stats, name);
+			mbeanNames.put(stats.getKind(), name);
+		}
+	}
+	
+	/**
+	 * Unregister the statistics from platform MBean server.
+	 * @throws JMException
+	 */
+	public synchronized void unregisterMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : mbeanNames.values()) {
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		}
+		mbeanNames.clear();
+	}
+	
+	private static MCacheStatistics.Kind kindOf(MElementType type) {
+		if (type == MElementType.Object)
+			return MCacheStatistics.Kind.Object;
+		if (type == MElementType.Tag)
+			return MCacheStatistics.Kind.Tag;
+		return MCacheStatistics.Kind.Meta;
 	}
 	
 }
@@ -1,121 +1,470 @@
 package lab.meteor.core.cache;
 
+import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
+/**
+ * A size-bounded cache of elements with segmented LRU eviction. The cache is split into
+ * stripes by ID, and each stripe has its own lock, so the threads accessing different
+ * elements rarely contend.
+ * <p>
+ * A new element enters the probation segment of its stripe. When it's hit again, it's
+ * promoted to the protected segment, so elements touched only once (e.g. by a scan) can't
+ * flush the frequently used ones. When a stripe exceeds its share of capacity, the least
+ * recently used elements of probation segment, and then of protected segment, are evicted.
+ * The pinned elements (e.g. elements with unsaved changes) are never evicted.
+ * <p>
+ * Optionally, the evicted elements are kept in an overflow tier by weak or soft references,
+ * so that an element still used elsewhere is found again rather than loaded twice.
+ * @param <T> the type of element.
+ */
 class MGCCache<T> {
-	
-	private static class MCacheReference<U> extends SoftReference<U> {
 
-		long id;
-		
-		public MCacheReference(U referent, long id) {
-			super(referent);
+	/**
+	 * Decide whether an element can be evicted.
+	 */
+	interface EvictionGuard<T> {
+		boolean isPinned(T e);
+	}
+
+	private static class Entry<U> {
+		final U value;
+		int weight;
+		int hits = 0;
+
+		Entry(U value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private static interface MCacheReference {
+		long id();
+	}
+
+	private static class SoftCacheReference<U> extends SoftReference<U> implements MCacheReference {
+
+		final long id;
+
+		public SoftCacheReference(U referent, long id, ReferenceQueue<U> q) {
+			super(referent, q);
 			this.id = id;
 		}
-		
-		public MCacheReference(U referent, long id, ReferenceQueue<U> q) {
+
+		@Override
+		public long id() {
+			return id;
+		}
+
+	}
+
+	private static class WeakCacheReference<U> extends WeakReference<U> implements MCacheReference {
+
+		final long id;
+
+		public WeakCacheReference(U referent, long id, ReferenceQueue<U> q) {
 			super(referent, q);
 			this.id = id;
 		}
-		
+
+		@Override
+		public long id() {
+			return id;
+		}
+
 	}
-	
-	private Map<Long, MCacheReference<T>> cache;
-	
-	private ReferenceQueue<T> gcQueue;
-	
-	private static class Lock { }
-	
-	private Lock lock = new Lock();
-	
-	MGCCache() {
-		cache = new HashMap<Long, MCacheReference<T>>();
-		gcQueue = new ReferenceQueue<T>();
-		ClearHandler ch = new ClearHandler();
-		ch.start();
+
+	/**
+	 * The number of stripes, a power of two.
+	 */
+	private static final int SEGMENTS = 16;
+
+	/**
+	 * The percentage of capacity for protected segment.
+	 */
+	private static final int PROTECTED_PERCENT = 80;
+
+	private final Segment[] segments;
+
+	private volatile MCaches.Weigher<? super T> weigher;
+
+	private final EvictionGuard<? super T> guard;
+
+	private final MCacheStatistics stats;
+
+	private volatile long segmentCapacity;
+
+	private volatile MCaches.Overflow overflow;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	MGCCache(long capacity, MCaches.Overflow overflow, MCaches.Weigher<? super T> weigher, 
+			EvictionGuard<? super T> guard, MCacheStatistics stats) {
+		this.weigher = weigher;
+		this.guard = guard;
+		this.stats = stats;
+		this.overflow = overflow;
+		this.segments = new MGCCache.Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.segments[i] = new Segment();
+		}
+		setCapacity(capacity);
 	}
-	
+
+	/**
+	 * Set the capacity, i.e. the maximum total weight of the elements.
+	 * @param capacity the capacity.
+	 */
+	public void setCapacity(long capacity) {
+		this.segmentCapacity = Math.max(1, capacity / SEGMENTS);
+		for (Segment s : segments) {
+			synchronized (s) {
+				s.evict();
+			}
+		}
+	}
+
+	public long getCapacity() {
+		return this.segmentCapacity * SEGMENTS;
+	}
+
+	/**
+	 * Set the weigher, the elements in cache are weighed again by it.
+	 * @param weigher the weigher.
+	 */
+	public void setWeigher(MCaches.Weigher<? super T> weigher) {
+		this.weigher = weigher;
+		for (Segment s : segments) {
+			synchronized (s) {
+				s.reweigh(s.probation, false);
+				s.reweigh(s.protect, true);
+				s.evict();
+			}
+		}
+	}
+
+	/**
+	 * Weigh an element in cache again, e.g. after it's loaded.
+	 * @param id the ID.
+	 */
+	public void reweigh(long id) {
+		Segment s = segmentFor(id);
+		synchronized (s) {
+			Entry<T> e = s.probation.get(id);
+			boolean isProtected = false;
+			if (e == null) {
+				e = s.protect.get(id);
+				isProtected = true;
+			}
+			if (e == null)
+				return;
+			s.reweigh(e, isProtected);
+			s.evict();
+		}
+	}
+
+	public void setOverflow(MCaches.Overflow overflow) {
+		this.overflow = overflow;
+	}
+
+	public MCaches.Overflow getOverflow() {
+		return this.overflow;
+	}
+
+	private Segment segmentFor(long id) {
+		int h = (int) (id ^ (id >>> 32));
+		h ^= (h >>> 16);
+		return segments[h & (SEGMENTS - 1)];
+	}
+
 	public void add(long id, T e) {
-		MCacheReference<T> r = new MCacheReference<T>(e, id, gcQueue);
-		synchronized (lock) {
-			cache.put(id, r);
+		Segment s = segmentFor(id);
+		synchronized (s) {
+			s.add(id, e);
 		}
 	}
-	
+
 	public void remove(long id) {
-		synchronized (lock) {
-			MCacheReference<T> r = cache.remove(id);
-			if (r != null) {
-				r.clear();
-			}
+		Segment s = segmentFor(id);
+		synchronized (s) {
+			s.remove(id);
 		}
 	}
-	
+
 	public T get(long id) {
-		synchronized (lock) {
-			MCacheReference<T> ref = cache.get(id);
-			if (ref == null)
-				return null;
-			if (ref.get() == null) {
-				cache.remove(id);
-				return null;
-			} else {
-				T e = ref.get();
-				return e;
-			}
+		Segment s = segmentFor(id);
+		T e;
+		synchronized (s) {
+			e = s.get(id, true);
 		}
+		if (e != null)
+			stats.recordHit();
+		else
+			stats.recordMiss();
+		return e;
 	}
 	
+	/**
+	 * Get an element without counting the request, and without promoting it or bringing
+	 * it back from the overflow tier.
+	 * @param id the ID.
+	 * @return element, {@code null} if it's not in cache.
+	 */
+	public T peek(long id) {
+		Segment s = segmentFor(id);
+		synchronized (s) {
+			return s.get(id, false);
+		}
+	}
+
 	public boolean contains(long id) {
-		synchronized (lock) {
-			return cache.containsKey(id);
+		Segment s = segmentFor(id);
+		synchronized (s) {
+			return s.contains(id);
 		}
 	}
-	
+
 	public void clear() {
-		synchronized (lock) {
-			Iterator<Entry<Long, MCacheReference<T>>> it = cache.entrySet().iterator();
-			while (it.hasNext()) {
-				MCacheReference<T> r = it.next().getValue();
-				r.clear();
-				it.remove();
+		for (Segment s : segments) {
+			synchronized (s) {
+				s.clear();
 			}
 		}
 	}
-	
+
+	/**
+	 * The number of elements in cache, not include the overflow tier.
+	 * @return size.
+	 */
 	public int size() {
-		synchronized (lock) {
-			return cache.size();
+		int size = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				size += s.probation.size() + s.protect.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Get the most frequently hit elements in cache. The hit counts are halved after
+	 * they are read, so the order follows the recent accesses.
+	 * @param limit the maximum number of elements.
+	 * @return the map from ID to hit count, in descending order of hit count.
+	 */
+	public LinkedHashMap<Long, Integer> hottest(int limit) {
+		List<long[]> hits = new ArrayList<long[]>();
+		for (Segment s : segments) {
+			synchronized (s) {
+				s.collectHits(hits);
+			}
 		}
+		Collections.sort(hits, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[1] < b[1] ? 1 : (a[1] == b[1] ? 0 : -1);
+			}
+		});
+		LinkedHashMap<Long, Integer> hottest = new LinkedHashMap<Long, Integer>();
+		for (int i = 0; i < hits.size() && i < limit; i++)
+			hottest.put(hits.get(i)[0], (int) hits.get(i)[1]);
+		return hottest;
 	}
 	
-	private class ClearHandler extends Thread {
+	/**
+	 * A stripe of cache. All methods must be called with the lock of segment held.
+	 */
+	private class Segment {
+
+		final LinkedHashMap<Long, Entry<T>> probation = new LinkedHashMap<Long, Entry<T>>(16, 0.75f, true);
+
+		final LinkedHashMap<Long, Entry<T>> protect = new LinkedHashMap<Long, Entry<T>>(16, 0.75f, true);
+
+		final Map<Long, Reference<T>> overflowed = new HashMap<Long, Reference<T>>();
+
+		final ReferenceQueue<T> gcQueue = new ReferenceQueue<T>();
+
+		long weight = 0;
+
+		long protectedWeight = 0;
+
+		T get(long id, boolean touch) {
+			if (!touch) {
+				Entry<T> e = protect.get(id);
+				if (e == null)
+					e = probation.get(id);
+				if (e != null)
+					return e.value;
+				expunge();
+				Reference<T> r = overflowed.get(id);
+				return r == null ? null : r.get();
+			}
+			Entry<T> e = protect.get(id);
+			if (e != null) {
+				e.hits++;
+				return e.value;
+			}
+			e = probation.remove(id);
+			if (e != null) {
+				e.hits++;
+				promote(id, e);
+				return e.value;
+			}
+			expunge();
+			Reference<T> r = overflowed.remove(id);
+			if (r != null) {
+				T v = r.get();
+				if (v != null) {
+					admit(id, v);
+					return v;
+				}
+			}
+			return null;
+		}
+
+		void add(long id, T value) {
+			remove(id);
+			admit(id, value);
+		}
+
+		void remove(long id) {
+			Entry<T> e = probation.remove(id);
+			if (e == null) {
+				e = protect.remove(id);
+				if (e != null)
+					protectedWeight -= e.weight;
+			}
+			if (e != null)
+				weight -= e.weight;
+			Reference<T> r = overflowed.remove(id);
+			if (r != null)
+				r.clear();
+		}
+
+		void reweigh(LinkedHashMap<Long, Entry<T>> map, boolean isProtected) {
+			for (Entry<T> e : map.values())
+				reweigh(e, isProtected);
+		}
+
+		void reweigh(Entry<T> e, boolean isProtected) {
+			int w = weigher.weigh(e.value);
+			weight += w - e.weight;
+			if (isProtected)
+				protectedWeight += w - e.weight;
+			e.weight = w;
+		}
+
+		void collectHits(List<long[]> hits) {
+			collectHits(probation, hits);
+			collectHits(protect, hits);
+		}
 		
-		ClearHandler() {
-			super("Meteor-GC-Handler");
-			setDaemon(true);
+		private void collectHits(LinkedHashMap<Long, Entry<T>> map, List<long[]> hits) {
+			for (Map.Entry<Long, Entry<T>> entry : map.entrySet()) {
+				Entry<T> e = entry.getValue();
+				hits.add(new long[] { entry.getKey(), e.hits });
+				e.hits >>>= 1;
+			}
 		}
 		
-		public void run() {
-			for(;;) {
-				try {
-					@SuppressWarnings("unchecked")
-					MCacheReference<T> g = (MCacheReference<T>) gcQueue.remove();
-					synchronized (lock) {
-						cache.remove(g.id);
-					}
-				} catch (InterruptedException e) {
-					/*
-					 * do nothing
-					 */
+		boolean contains(long id) {
+			if (probation.containsKey(id) || protect.containsKey(id))
+				return true;
+			expunge();
+			Reference<T> r = overflowed.get(id);
+			return r != null && r.get() != null;
+		}
+
+		void clear() {
+			probation.clear();
+			protect.clear();
+			for (Reference<T> r : overflowed.values())
+				r.clear();
+			overflowed.clear();
+			weight = 0;
+			protectedWeight = 0;
+			expunge();
+		}
+
+		private void admit(long id, T value) {
+			Entry<T> e = new Entry<T>(value, weigher.weigh(value));
+			probation.put(id, e);
+			weight += e.weight;
+			evict();
+		}
+
+		private void promote(long id, Entry<T> e) {
+			protect.put(id, e);
+			protectedWeight += e.weight;
+			long protectedCapacity = segmentCapacity * PROTECTED_PERCENT / 100;
+			// demote the eldest protected elements back to probation
+			Iterator<Map.Entry<Long, Entry<T>>> it = protect.entrySet().iterator();
+			while (protectedWeight > protectedCapacity && it.hasNext()) {
+				Map.Entry<Long, Entry<T>> eldest = it.next();
+				if (eldest.getValue() == e)
+					break;
+				it.remove();
+				protectedWeight -= eldest.getValue().weight;
+				probation.put(eldest.getKey(), eldest.getValue());
+			}
+		}
+
+		void evict() {
+			if (weight <= segmentCapacity)
+				return;
+			evictFrom(probation, false);
+			if (weight > segmentCapacity)
+				evictFrom(protect, true);
+		}
+
+		private void evictFrom(LinkedHashMap<Long, Entry<T>> map, boolean isProtected) {
+			Iterator<Map.Entry<Long, Entry<T>>> it = map.entrySet().iterator();
+			while (weight > segmentCapacity && it.hasNext()) {
+				Map.Entry<Long, Entry<T>> eldest = it.next();
+				Entry<T> e = eldest.getValue();
+				if (guard != null && guard.isPinned(e.value))
+					continue;
+				it.remove();
+				weight -= e.weight;
+				if (isProtected)
+					protectedWeight -= e.weight;
+				stats.recordEviction();
+				spill(eldest.getKey(), e.value);
+			}
+		}
+
+		private void spill(long id, T value) {
+			MCaches.Overflow o = overflow;
+			if (o == MCaches.Overflow.WEAK) {
+				overflowed.put(id, new WeakCacheReference<T>(value, id, gcQueue));
+			} else if (o == MCaches.Overflow.SOFT) {
+				overflowed.put(id, new SoftCacheReference<T>(value, id, gcQueue));
+			}
+		}
+
+		/**
+		 * Remove the overflowed entries whose elements have been reclaimed by GC.
+		 */
+		private void expunge() {
+			Reference<? extends T> r;
+			while ((r = gcQueue.poll()) != null) {
+				long id = ((MCacheReference) r).id();
+				if (overflowed.get(id) == r) {
+					overflowed.remove(id);
+					stats.recordGCCleared();
 				}
 			}
-		};
+		}
+
 	}
-	
+
 }
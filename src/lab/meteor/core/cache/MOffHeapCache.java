@@ -0,0 +1,184 @@
+package lab.meteor.core.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded LRU cache of serialized documents, which are kept in direct
+ * <code>ByteBuffer</code> slabs outside the Java heap. It survives the GC pressure
+ * that clears the elements evicted from the heap caches, so a document evicted from
+ * heap could be rehydrated without a database round-trip.
+ * <p>
+ * The slabs are divided into pages of fixed size. A document occupies the pages it
+ * needs, which are not necessarily contiguous, and returns them to the free list when
+ * it's evicted or removed. Only the page indexes of documents are kept on heap.
+ */
+public class MOffHeapCache {
+
+	/**
+	 * The size of a page in bytes.
+	 */
+	public static final int PAGE_SIZE = 256;
+
+	/**
+	 * The size of a slab in bytes.
+	 */
+	private static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+	private static final int PAGES_PER_SLAB = SLAB_SIZE / PAGE_SIZE;
+
+	private static class Entry {
+		final int[] pages;
+		final int length;
+
+		Entry(int[] pages, int length) {
+			this.pages = pages;
+			this.length = length;
+		}
+	}
+
+	private final ByteBuffer[] slabs;
+
+	private final int[] freePages;
+
+	private int freeCount;
+
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * Create a cache, the memory is allocated at once.
+	 * @param capacity the capacity in bytes, rounded up to whole pages.
+	 */
+	public MOffHeapCache(long capacity) {
+		long pages = (capacity + PAGE_SIZE - 1) / PAGE_SIZE;
+		if (pages <= 0 || pages > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("capacity");
+		int slabCount = (int) ((pages + PAGES_PER_SLAB - 1) / PAGES_PER_SLAB);
+		this.slabs = new ByteBuffer[slabCount];
+		for (int i = 0; i < slabCount; i++) {
+			long remain = pages - (long) i * PAGES_PER_SLAB;
+			int size = (int) Math.min(PAGES_PER_SLAB, remain) * PAGE_SIZE;
+			this.slabs[i] = ByteBuffer.allocateDirect(size);
+		}
+		this.freePages = new int[(int) pages];
+		for (int i = 0; i < freePages.length; i++)
+			freePages[i] = freePages.length - 1 - i;
+		this.freeCount = freePages.length;
+	}
+
+	/**
+	 * Put a document. The least recently used documents are evicted if there is no
+	 * enough space, and a document larger than the whole cache is ignored.
+	 * @param id the ID of element.
+	 * @param data the serialized document.
+	 */
+	public synchronized void put(long id, byte[] data) {
+		removeEntry(id);
+		int needed = (data.length + PAGE_SIZE - 1) / PAGE_SIZE;
+		if (needed > freePages.length)
+			return;
+		Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+		while (freeCount < needed && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			release(eldest);
+		}
+		int[] pages = new int[needed];
+		for (int i = 0; i < needed; i++) {
+			int page = freePages[--freeCount];
+			pages[i] = page;
+			int len = Math.min(PAGE_SIZE, data.length - i * PAGE_SIZE);
+			ByteBuffer slab = slabs[page / PAGES_PER_SLAB];
+			slab.position((page % PAGES_PER_SLAB) * PAGE_SIZE);
+			slab.put(data, i * PAGE_SIZE, len);
+		}
+		entries.put(id, new Entry(pages, data.length));
+	}
+
+	/**
+	 * Get a document.
+	 * @param id the ID of element.
+	 * @return the serialized document, {@code null} if it's not in cache.
+	 */
+	public synchronized byte[] get(long id) {
+		Entry e = entries.get(id);
+		if (e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		byte[] data = new byte[e.length];
+		for (int i = 0; i < e.pages.length; i++) {
+			int page = e.pages[i];
+			int len = Math.min(PAGE_SIZE, e.length - i * PAGE_SIZE);
+			ByteBuffer slab = slabs[page / PAGES_PER_SLAB];
+			slab.position((page % PAGES_PER_SLAB) * PAGE_SIZE);
+			slab.get(data, i * PAGE_SIZE, len);
+		}
+		return data;
+	}
+
+	/**
+	 * Remove a document.
+	 * @param id the ID of element.
+	 */
+	public synchronized void remove(long id) {
+		removeEntry(id);
+	}
+
+	public synchronized void clear() {
+		for (Entry e : entries.values())
+			release(e);
+		entries.clear();
+	}
+
+	/**
+	 * The number of documents in cache.
+	 * @return size.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * The capacity in bytes.
+	 * @return capacity.
+	 */
+	public long getCapacity() {
+		return (long) freePages.length * PAGE_SIZE;
+	}
+
+	/**
+	 * The bytes occupied by documents, counted in whole pages.
+	 * @return used bytes.
+	 */
+	public synchronized long getUsed() {
+		return (long) (freePages.length - freeCount) * PAGE_SIZE;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	private void removeEntry(long id) {
+		Entry e = entries.remove(id);
+		if (e != null)
+			release(e);
+	}
+
+	private void release(Entry e) {
+		for (int page : e.pages)
+			freePages[freeCount++] = page;
+	}
+
+}
@@ -0,0 +1,179 @@
+package lab.meteor.core.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A copy-on-write map for the registries of meta elements, which are read far more
+ * often than changed. The map is an immutable snapshot published by a volatile write,
+ * so the readers never lock and never see a map in the middle of a change. A writer
+ * copies the snapshot, changes the copy and publishes it as the new version.
+ * <p>
+ * A series of changes could be batched by {@link #beginBatch()} and {@link #endBatch()},
+ * then the map is copied only once, and the changes are published together. During a
+ * batch, the batching thread sees its own changes while other threads see the previous
+ * version.
+ * @param <K> the type of keys.
+ * @param <V> the type of values.
+ */
+public class MSnapshotMap<K, V> {
+
+	private final boolean sorted;
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * The published version, never changed once published.
+	 */
+	private volatile Map<K, V> current;
+
+	/**
+	 * The version under construction by a batch, guarded by write lock.
+	 */
+	private Map<K, V> pending;
+
+	private int batchDepth = 0;
+
+	/**
+	 * Create an empty map.
+	 * @param sorted {@code true} if the keys are kept in natural order.
+	 */
+	public MSnapshotMap(boolean sorted) {
+		this.sorted = sorted;
+		this.current = copy(null);
+	}
+
+	private Map<K, V> copy(Map<K, V> m) {
+		if (sorted)
+			return m == null ? new TreeMap<K, V>() : new TreeMap<K, V>(m);
+		else
+			return m == null ? new HashMap<K, V>() : new HashMap<K, V>(m);
+	}
+
+	/**
+	 * The version visible to the current thread.
+	 */
+	private Map<K, V> view() {
+		if (pending != null && writeLock.isHeldByCurrentThread())
+			return pending;
+		return current;
+	}
+
+	public V get(Object key) {
+		return view().get(key);
+	}
+
+	public boolean containsKey(Object key) {
+		return view().containsKey(key);
+	}
+
+	public int size() {
+		return view().size();
+	}
+
+	public boolean isEmpty() {
+		return view().isEmpty();
+	}
+
+	/**
+	 * Get the current version, which is not affected by later changes.
+	 * @return the unmodifiable map.
+	 */
+	public Map<K, V> snapshot() {
+		Map<K, V> m = view();
+		if (m == pending)
+			m = copy(m);
+		return Collections.unmodifiableMap(m);
+	}
+
+	/**
+	 * The keys of current version.
+	 * @return the unmodifiable set of keys.
+	 */
+	public Set<K> keySet() {
+		return snapshot().keySet();
+	}
+
+	/**
+	 * The values of current version.
+	 * @return the unmodifiable collection of values.
+	 */
+	public Collection<V> values() {
+		return snapshot().values();
+	}
+
+	public V put(K key, V value) {
+		writeLock.lock();
+		try {
+			if (pending != null)
+				return pending.put(key, value);
+			Map<K, V> m = copy(current);
+			V old = m.put(key, value);
+			current = m;
+			return old;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public V remove(Object key) {
+		writeLock.lock();
+		try {
+			if (pending != null)
+				return pending.remove(key);
+			if (!current.containsKey(key))
+				return null;
+			Map<K, V> m = copy(current);
+			V old = m.remove(key);
+			current = m;
+			return old;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public void clear() {
+		writeLock.lock();
+		try {
+			if (pending != null)
+				pending.clear();
+			else
+				current = copy(null);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Begin a batch of changes. The batches could be nested, the changes are published
+	 * when the outermost batch ends. Every call must be paired with a call of
+	 * {@link #endBatch()} in a {@code finally} block.
+	 */
+	public void beginBatch() {
+		writeLock.lock();
+		if (batchDepth++ == 0)
+			pending = copy(current);
+	}
+
+	/**
+	 * End a batch of changes.
+	 */
+	public void endBatch() {
+		if (!writeLock.isHeldByCurrentThread())
+			throw new IllegalMonitorStateException();
+		try {
+			if (--batchDepth == 0) {
+				current = pending;
+				pending = null;
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+}
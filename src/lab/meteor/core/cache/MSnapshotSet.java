@@ -0,0 +1,65 @@
+package lab.meteor.core.cache;
+
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A copy-on-write set, the readers never lock. Iterating the set walks the version at
+ * the time the iteration starts, so the set could be changed during the iteration.
+ * @param <E> the type of elements.
+ * @see MSnapshotMap
+ */
+public class MSnapshotSet<E> implements Iterable<E> {
+
+	private final MSnapshotMap<E, Boolean> map;
+
+	/**
+	 * Create an empty set.
+	 * @param sorted {@code true} if the elements are kept in natural order.
+	 */
+	public MSnapshotSet(boolean sorted) {
+		this.map = new MSnapshotMap<E, Boolean>(sorted);
+	}
+
+	public boolean contains(Object e) {
+		return map.containsKey(e);
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	public boolean add(E e) {
+		return map.put(e, Boolean.TRUE) == null;
+	}
+
+	public boolean remove(Object e) {
+		return map.remove(e) != null;
+	}
+
+	public void clear() {
+		map.clear();
+	}
+
+	/**
+	 * Get the current version, which is not affected by later changes.
+	 * @return the unmodifiable set.
+	 */
+	public Set<E> snapshot() {
+		return map.keySet();
+	}
+
+	public <T> T[] toArray(T[] a) {
+		return snapshot().toArray(a);
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return snapshot().iterator();
+	}
+
+}
@@ -0,0 +1,32 @@
+package lab.meteor.core.script;
+
+import lab.meteor.core.MObject;
+
+/**
+ * The listener of a batch script execution. The methods are called by the worker
+ * threads, so they must be thread-safe.
+ * @see MScriptBatch
+ */
+public interface IBatchScriptListener extends IScriptListener {
+
+	/**
+	 * A script returned a value.
+	 * @param obj the object.
+	 * @param value the value, not {@code null}.
+	 */
+	void result(MObject obj, Object value);
+
+	/**
+	 * A batch of objects is done.
+	 * @param done the number of objects done so far.
+	 * @param failed the number of objects failed so far.
+	 */
+	void progress(long done, long failed);
+
+	/**
+	 * All objects are done.
+	 * @param report the report.
+	 */
+	void completed(MScriptBatch.Report report);
+
+}
@@ -0,0 +1,15 @@
+package lab.meteor.core.script;
+
+/**
+ * The listener of a profiled script execution.
+ * @see MScriptTask#setProfiling(boolean)
+ */
+public interface IProfileScriptListener extends IScriptListener {
+
+	/**
+	 * A profiled script ended, either completed or not.
+	 * @param profile the report.
+	 */
+	void profiled(MScriptProfile profile);
+
+}
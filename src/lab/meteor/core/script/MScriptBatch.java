@@ -0,0 +1,367 @@
+package lab.meteor.core.script;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.ScriptException;
+
+import lab.meteor.core.MClass;
+import lab.meteor.core.MDatabase;
+import lab.meteor.core.MExecutionService;
+import lab.meteor.core.MObject;
+import lab.meteor.core.MObjectScan;
+import lab.meteor.core.MPrefetch;
+import lab.meteor.core.MSession;
+
+/**
+ * A script applied to every object of a class, or of a collection. The objects are
+ * split into batches, which are run in parallel by the threads of a fork-join pool,
+ * and each thread runs the script by its own engine taken from the pool of
+ * {@link MScriptEngine}. The script is compiled once per engine, and sees the object
+ * as <code>self</code>.
+ * <p>
+ * The objects of a batch are loaded together, and the objects changed by the scripts
+ * of a batch are written together when the batch is done, in a session. A script
+ * failing on an object doesn't stop the others, the error is reported to the listener
+ * and counted in the report.
+ * <pre>
+ * MScriptBatch.Report report = new MScriptBatch(engine, "self.score = self.a + self.b;")
+ *     .listener(listener).run(cls, true);
+ * </pre>
+ */
+public class MScriptBatch {
+
+	/**
+	 * The maximum number of errors kept in a report.
+	 */
+	public static final int MAX_REPORTED_ERRORS = 100;
+
+	private final MScriptEngine engine;
+
+	private final String code;
+
+	private IScriptListener listener = null;
+
+	private int batchSize = MObjectScan.DEFAULT_BATCH_SIZE;
+
+	private MPrefetch plan = null;
+
+	private ForkJoinPool pool = null;
+
+	public MScriptBatch(MScriptEngine engine, String code) {
+		this.engine = engine;
+		this.code = code;
+	}
+
+	/**
+	 * Set the listener, which receives the errors, and also the results and progress
+	 * if it's an {@link IBatchScriptListener}.
+	 * @param listener the listener.
+	 * @return this batch.
+	 */
+	public MScriptBatch listener(IScriptListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Set the number of objects loaded, run and written together.
+	 * @param size the size of batch.
+	 * @return this batch.
+	 */
+	public MScriptBatch batchSize(int size) {
+		this.batchSize = Math.max(1, size);
+		return this;
+	}
+
+	/**
+	 * Load the objects together with the objects along the reference paths.
+	 * @param paths the reference paths.
+	 * @return this batch.
+	 */
+	public MScriptBatch prefetch(String... paths) {
+		this.plan = MPrefetch.of(paths);
+		return this;
+	}
+
+	/**
+	 * Set the pool which runs the batches. By default, the pool of
+	 * {@link MExecutionService#getForkJoinPool()} is used.
+	 * @param pool the pool.
+	 * @return this batch.
+	 */
+	public MScriptBatch pool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	private ForkJoinPool pool() {
+		return pool != null ? pool : MExecutionService.getDefault().getForkJoinPool();
+	}
+
+	/**
+	 * Run the script on the objects of a class, and wait until it's done.
+	 * @param cls the class.
+	 * @param includeSubclasses whether the objects of sub-classes are included.
+	 * @return the report.
+	 */
+	public Report run(MClass cls, boolean includeSubclasses) {
+		final Run run = new Run(MDatabase.getDB());
+		MObjectScan scan = cls.scan(includeSubclasses).batchSize(batchSize).pool(pool());
+		if (plan != null)
+			scan.prefetch(plan);
+		scan.forEachBatch(new MObjectScan.BatchVisitor() {
+			@Override
+			public void visit(List<MObject> objs) {
+				run.batch(objs);
+			}
+		});
+		return run.finish();
+	}
+
+	/**
+	 * Run the script on a collection of objects, e.g. the result of a query, and wait
+	 * until it's done.
+	 * @param objs the objects.
+	 * @return the report.
+	 */
+	public Report run(Collection<MObject> objs) {
+		Run run = new Run(MDatabase.getDB());
+		List<MObject> list = new ArrayList<MObject>(objs);
+		if (!list.isEmpty())
+			pool().invoke(new Partition(run, list, 0, list.size()));
+		return run.finish();
+	}
+
+	/**
+	 * Run the script on the objects of a class in background, by the script executor
+	 * of {@link MExecutionService}.
+	 * @param cls the class.
+	 * @param includeSubclasses whether the objects of sub-classes are included.
+	 * @return the future of report.
+	 */
+	public Future<Report> submit(final MClass cls, final boolean includeSubclasses) {
+		final MDatabase db = MDatabase.getDB();
+		return MExecutionService.getDefault().getExecutor(MExecutionService.Kind.Script).submit(new Callable<Report>() {
+			@Override
+			public Report call() {
+				MDatabase.Scope scope = db.enter();
+				try {
+					return run(cls, includeSubclasses);
+				} finally {
+					scope.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * The state of a run, shared by the threads.
+	 */
+	private class Run {
+		final MDatabase database;
+		final long start = System.nanoTime();
+		final AtomicLong done = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong written = new AtomicLong();
+		final List<Report.Error> errors = Collections.synchronizedList(new ArrayList<Report.Error>());
+
+		Run(MDatabase database) {
+			this.database = database;
+		}
+
+		/**
+		 * Run the script on a batch of loaded objects, and write the changes.
+		 */
+		void batch(List<MObject> objs) {
+			MSession session = database.beginSession();
+			try {
+				for (MObject obj : objs) {
+					Map<String, Object> variables = new HashMap<String, Object>(2);
+					variables.put("self", obj);
+					try {
+						Object value = engine.eval(code, variables);
+						if (value != null && listener instanceof IBatchScriptListener)
+							((IBatchScriptListener) listener).result(obj, value);
+					} catch (ScriptException e) {
+						failed(obj, e.getLineNumber(), e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+					} catch (RuntimeException e) {
+						failed(obj, -1, e.toString());
+					}
+					done.incrementAndGet();
+				}
+				int n = session.size();
+				session.commit();
+				written.addAndGet(n);
+			} catch (RuntimeException e) {
+				// the changes of batch are discarded
+				failed(null, -1, "writing failed: " + e);
+			} finally {
+				session.close();
+			}
+			if (listener instanceof IBatchScriptListener)
+				((IBatchScriptListener) listener).progress(done.get(), failed.get());
+		}
+
+		void failed(MObject obj, int line, String message) {
+			if (obj != null)
+				failed.incrementAndGet();
+			Report.Error error = new Report.Error(obj == null ? -1 : obj.getID(), line, message);
+			if (errors.size() < MAX_REPORTED_ERRORS)
+				errors.add(error);
+			if (listener != null)
+				listener.printError(error.toString());
+		}
+
+		Report finish() {
+			Report report = new Report(done.get(), failed.get(), written.get(),
+					(System.nanoTime() - start) / 1000000L, new ArrayList<Report.Error>(errors));
+			if (listener instanceof IBatchScriptListener)
+				((IBatchScriptListener) listener).completed(report);
+			return report;
+		}
+	}
+
+	/**
+	 * A range of a collection of objects, which is split until it's not larger than a
+	 * batch.
+	 */
+	private class Partition extends RecursiveAction {
+
+		private static final long serialVersionUID = 6427403582390142236L;
+
+		final Run run;
+		final List<MObject> objs;
+		final int lo;
+		final int hi;
+
+		Partition(Run run, List<MObject> objs, int lo, int hi) {
+			this.run = run;
+			this.objs = objs;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > batchSize) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Partition(run, objs, lo, mid), new Partition(run, objs, mid, hi));
+				return;
+			}
+			MDatabase.Scope scope = run.database.enter();
+			try {
+				List<MObject> batch = new ArrayList<MObject>(objs.subList(lo, hi));
+				(plan != null ? plan : new MPrefetch()).apply(batch);
+				List<MObject> loaded = new ArrayList<MObject>(batch.size());
+				for (MObject obj : batch) {
+					if (obj != null && obj.isLoaded() && !obj.isDeleted())
+						loaded.add(obj);
+				}
+				run.batch(loaded);
+			} finally {
+				scope.close();
+			}
+		}
+	}
+
+	/**
+	 * The report of a batch script execution.
+	 */
+	public static class Report {
+
+		/**
+		 * An error of script.
+		 */
+		public static class Error {
+			/**
+			 * The ID of object, <code>-1</code> if the error is not of an object, e.g.
+			 * the writing of a batch fails.
+			 */
+			public final long objectId;
+			/**
+			 * The line of script, <code>-1</code> if unknown.
+			 */
+			public final int line;
+			public final String message;
+
+			Error(long objectId, int line, String message) {
+				this.objectId = objectId;
+				this.line = line;
+				this.message = message;
+			}
+
+			@Override
+			public String toString() {
+				StringBuilder sb = new StringBuilder();
+				if (objectId != -1)
+					sb.append("object ").append(objectId).append(": ");
+				if (line >= 0)
+					sb.append("line ").append(line).append(": ");
+				return sb.append(message).toString();
+			}
+		}
+
+		private final long objects;
+		private final long failures;
+		private final long written;
+		private final long elapsedMillis;
+		private final List<Error> errors;
+
+		Report(long objects, long failures, long written, long elapsedMillis, List<Error> errors) {
+			this.objects = objects;
+			this.failures = failures;
+			this.written = written;
+			this.elapsedMillis = elapsedMillis;
+			this.errors = Collections.unmodifiableList(errors);
+		}
+
+		/**
+		 * The number of objects which the script ran on.
+		 */
+		public long getObjects() {
+			return objects;
+		}
+
+		/**
+		 * The number of objects on which the script failed.
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * The number of objects written.
+		 */
+		public long getWritten() {
+			return written;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		/**
+		 * The first errors, at most {@link MScriptBatch#MAX_REPORTED_ERRORS}.
+		 */
+		public List<Error> getErrors() {
+			return errors;
+		}
+
+		@Override
+		public String toString() {
+			return "objects=" + objects + ", failures=" + failures + ", written=" + written
+					+ ", elapsed=" + elapsedMillis + "ms, errors=" + errors.size();
+		}
+	}
+
+}
@@ -1,25 +1,232 @@
 package lab.meteor.core.script;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
 
+/**
+ * The JavaScript engines of scripts. The engines are pooled, so a script is run by an
+ * idle engine which was created before, the one released last is taken first. Each
+ * engine keeps the compiled scripts it ran, keyed by the code, so the same code is
+ * compiled once per engine.
+ * <p>
+ * Each run has its own bindings, so the global variables declared by a script, and the
+ * variables given to a run, are not seen by the next script run on the same engine.
+ */
 public class MScriptEngine {
-	
+
+	/**
+	 * The default maximum number of compiled scripts kept by an engine.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 256;
+
+	/**
+	 * The default maximum number of idle engines.
+	 */
+	public static final int DEFAULT_POOL_SIZE = 16;
+
 	private ScriptEngineManager sem;
-	
+
+	/**
+	 * The idle engines, the last released one is taken first.
+	 */
+	private final ConcurrentLinkedDeque<PooledEngine> idle = new ConcurrentLinkedDeque<PooledEngine>();
+
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	private volatile int poolSize = DEFAULT_POOL_SIZE;
+
+	private volatile int cacheSize = DEFAULT_CACHE_SIZE;
+
+	private final AtomicLong compiles = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Create a new engine, which is not pooled.
+	 * @return the engine with <code>me</code> bound.
+	 */
 	public final ScriptEngine getScriptEngine() {
 		ScriptEngine se = sem.getEngineByName("javascript");
+		if (se == null)
+			return null;
 		MScriptHelper helper = new MScriptHelper();
 		se.getBindings(ScriptContext.ENGINE_SCOPE).put("me", helper);
-		setBindings();
+		setBindings(se.getBindings(ScriptContext.ENGINE_SCOPE));
 		return se;
 	}
-	
+
 	protected void setBindings() { }
-	
+
+	/**
+	 * Put the variables shared by all scripts into the bindings of a new engine, or of
+	 * a run of a pooled engine.
+	 * @param bindings the bindings.
+	 */
+	protected void setBindings(Bindings bindings) {
+		setBindings();
+	}
+
 	public MScriptEngine() {
 		sem = new ScriptEngineManager();
 	}
-	
+
+	/**
+	 * Run a script by a pooled engine.
+	 * @param code the code.
+	 * @return the value of script.
+	 * @throws ScriptException if the script fails.
+	 */
+	public final Object eval(String code) throws ScriptException {
+		return eval(code, null);
+	}
+
+	/**
+	 * Run a script by a pooled engine, with variables which are only visible to this
+	 * run. The code is compiled once per engine.
+	 * @param code the code.
+	 * @param variables the variables, or {@code null}.
+	 * @return the value of script.
+	 * @throws ScriptException if the script fails.
+	 */
+	public final Object eval(String code, Map<String, Object> variables) throws ScriptException {
+		PooledEngine pe = acquire();
+		try {
+			Bindings bindings = pe.engine.createBindings();
+			bindings.put("me", pe.helper);
+			setBindings(bindings);
+			if (variables != null)
+				bindings.putAll(variables);
+			CompiledScript cs = pe.compiled(code);
+			if (cs != null)
+				return cs.eval(bindings);
+			return pe.engine.eval(code, bindings);
+		} finally {
+			release(pe);
+		}
+	}
+
+	private PooledEngine acquire() throws ScriptException {
+		PooledEngine pe = idle.pollFirst();
+		if (pe != null) {
+			idleCount.decrementAndGet();
+			return pe;
+		}
+		ScriptEngine se = sem.getEngineByName("javascript");
+		if (se == null)
+			throw new ScriptException("javascript engine is not available.");
+		return new PooledEngine(se);
+	}
+
+	private void release(PooledEngine pe) {
+		if (idleCount.incrementAndGet() > poolSize) {
+			idleCount.decrementAndGet();
+			return;
+		}
+		idle.offerFirst(pe);
+	}
+
+	/**
+	 * Set the maximum number of idle engines. The engines more than it are dropped
+	 * when they're released.
+	 * @param size the size of pool.
+	 */
+	public void setPoolSize(int size) {
+		this.poolSize = Math.max(0, size);
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * Set the maximum number of compiled scripts kept by an engine, the least recently
+	 * used ones are dropped.
+	 * @param size the size of cache.
+	 */
+	public void setCacheSize(int size) {
+		this.cacheSize = Math.max(0, size);
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * The number of times that a script is compiled.
+	 * @return count.
+	 */
+	public long getCompileCount() {
+		return compiles.get();
+	}
+
+	/**
+	 * The number of times that a compiled script is reused.
+	 * @return count.
+	 */
+	public long getCacheHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Drop the idle engines and their compiled scripts, e.g. to free the memory of the
+	 * scripts which are not run any more.
+	 */
+	public void clear() {
+		while (idle.pollFirst() != null)
+			idleCount.decrementAndGet();
+	}
+
+	/**
+	 * An engine and its compiled scripts. It's used by one thread at a time.
+	 */
+	private class PooledEngine {
+
+		final ScriptEngine engine;
+
+		final MScriptHelper helper = new MScriptHelper();
+
+		final LinkedHashMap<String, CompiledScript> scripts = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+			private static final long serialVersionUID = 2461370541865087335L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+				return size() > cacheSize;
+			}
+		};
+
+		PooledEngine(ScriptEngine engine) {
+			this.engine = engine;
+		}
+
+		/**
+		 * Get the compiled script of code, compile it if it's not compiled.
+		 * @return the compiled script, or {@code null} if the engine can't compile.
+		 */
+		CompiledScript compiled(String code) throws ScriptException {
+			if (!(engine instanceof Compilable))
+				return null;
+			CompiledScript cs = scripts.get(code);
+			if (cs != null) {
+				hits.incrementAndGet();
+				return cs;
+			}
+			cs = ((Compilable) engine).compile(code);
+			compiles.incrementAndGet();
+			if (cacheSize > 0)
+				scripts.put(code, cs);
+			return cs;
+		}
+	}
+
 }
@@ -2,24 +2,43 @@ package lab.meteor.core.script;
 
 import java.util.Iterator;
 
+import lab.meteor.core.MBudget;
 import lab.meteor.core.MClass;
-import lab.meteor.core.MDictionary;
+import lab.meteor.core.MDatabase;
 import lab.meteor.core.MElement;
 import lab.meteor.core.MElementPointer;
 import lab.meteor.core.MEnum;
-import lab.meteor.core.MList;
 import lab.meteor.core.MObject;
 import lab.meteor.core.MPackage;
+import lab.meteor.core.MProfile;
 import lab.meteor.core.MElement.MElementType;
-import lab.meteor.core.MProperty;
-import lab.meteor.core.MReference;
-import lab.meteor.core.MReference.Multiplicity;
 import lab.meteor.core.MTag;
 
+/**
+ * The helper bound to scripts as <code>me</code>. Each method checks the budget of the
+ * thread first, so a script which is canceled or out of budget is aborted at its next
+ * call, see {@link MBudget}. If the thread is profiled, each method is a section of the
+ * profile named by the method, so the storage accesses are counted per method, see
+ * {@link MProfile}.
+ */
 public class MScriptHelper {
 	
 	public Iterator<MObject> objectItr(MClass cls) {
-		return cls.objectsIterator();
+		MProfile.Section s = enter("objectItr");
+		try {
+			return profiled(cls.objectsIterator());
+		} finally {
+			MProfile.end(s);
+		}
+	}
+	
+	public Iterator<MObject> objectItr(MClass cls, boolean includeSubclasses) {
+		MProfile.Section s = enter("objectItr");
+		try {
+			return profiled(cls.objectsIterator(includeSubclasses));
+		} finally {
+			MProfile.end(s);
+		}
 	}
 	
 	public Iterator<MObject> objectItr(String className) throws MScriptException {
@@ -30,13 +49,23 @@ public class MScriptHelper {
 	}
 	
 	public MObject object(long id) {
-		return (MObject)(new MElementPointer(id, MElementType.Object)).getElement();
+		MProfile.Section s = enter("object");
+		try {
+			return (MObject)(new MElementPointer(id, MElementType.Object)).getElement();
+		} finally {
+			MProfile.end(s);
+		}
 	}
 
 	public MObject newObject(MClass cls) {
-		if (cls == null)
-			return null;
-		return new MObject(cls);
+		MProfile.Section s = enter("newObject");
+		try {
+			if (cls == null)
+				return null;
+			return new MObject(cls);
+		} finally {
+			MProfile.end(s);
+		}
 	}
 	
 	public MObject newObject(String clsName) throws MScriptException {
@@ -45,11 +74,16 @@ public class MScriptHelper {
 	}
 	
 	public MTag newTag(MElement e, String name, Object value) {
-		return new MTag(e, name, value);
+		MProfile.Section s = enter("newTag");
+		try {
+			return new MTag(e, name, value);
+		} finally {
+			MProfile.end(s);
+		}
 	}
 	
 	public MPackage defaultPackage() {
-		return MPackage.DEFAULT_PACKAGE;
+		return MDatabase.getDB().getDefaultPackage();
 	}
 	
 	public MPackage findPackage(String name) throws MScriptException {
@@ -77,277 +111,108 @@ public class MScriptHelper {
 		System.out.println(e.details());
 	}
 
+	/**
+	 * Get the value at the end of a path expression, such as
+	 * <code>self.items[3].product&lt;label&gt;</code>. The expression is compiled once
+	 * for the class of the object.
+	 * @see MScriptPath
+	 */
 	public Object get(MElement obj, String exp) throws MScriptException {
-		Tokenizer tn = new Tokenizer(exp);
-		Object it = obj;
-		Token t = tn.next();
-		if (t == null || !t.name.equals("self"))
-			throw new MScriptException("expression must start with 'self'.");
-		while (tn.hasNext()) {
-			t = tn.next();
-			if (it == null)
-				throw new MScriptException("interupt with null value.");
-			it = find(it, t);
+		MProfile.Section s = enter("get");
+		try {
+			return path(obj, exp).get(obj);
+		} finally {
+			MProfile.end(s);
 		}
-		return it;
 	}
 	
 	public void set(MObject obj, String exp, Object value) throws MScriptException {
-		Tokenizer tn = new Tokenizer(exp);
-		Object it = obj;
-		Token t = tn.next();
-		if (t == null || !t.name.equals("self"))
-			throw new MScriptException("expression must start with 'self'.");
-		while (tn.hasNext()) {
-			t = tn.next();
-			if (it == null)
-				throw new MScriptException("interupt with null value.");
-			if (!tn.hasNext())
-				break;
-			it = find(it, t);
-		}
-		if (t.type == TokenType.Dot) {
-			if (!(it instanceof MObject))
-				throw new MScriptException("wrong operation at \'" + t.name + "\'");
-			MObject o = (MObject) it;
-			o.load();
-			MProperty p = o.getClazz().getProperty(t.name);
-			if (p.getElementType() == MElementType.Attribute) {
-				o.setAttribute(t.name, value);
-			} else {
-				if (((MReference) p).getMultiplicity() == Multiplicity.Multiple)
-					throw new MScriptException("wrong operation for the invalid multiplicity.");
-				if (!(value instanceof MObject))
-					throw new MScriptException("invalid value.");
-				o.setReference(t.name, (MObject) value);
-			}
-		} else if (t.type == TokenType.Bracket) {
-			if (Character.isDigit(t.name.charAt(0))) {
-				int index = Integer.parseInt(t.name);
-				if (!(it instanceof MList))
-					throw new MScriptException("wrong operation at \'" + t.name + "\'");
-				MList list = (MList) it;
-				if (index > list.size())
-					throw new MScriptException("out of range at \'" + t.name + "\'");
-				list.set(index, value);
-			} else {
-				if (!(it instanceof MDictionary))
-					throw new MScriptException("wrong operation at \'" + t.name + "\'");
-				MDictionary dict = (MDictionary) it;
-				dict.put(t.name, value);
-			}
-		} else if (t.type == TokenType.Angular) {
-			if (!(it instanceof MObject))
-				throw new MScriptException("wrong operation at \'" + t.name + "\'");
-			MElement o = (MElement) it;
-			o.loadTags();
-			MTag tag = o.tag(t.name);
-			if (tag != null)
-				tag.set(value);
-			else {
-				new MTag(o, t.name, value);
-			}
+		MProfile.Section s = enter("set");
+		try {
+			path(obj, exp).set(obj, value);
+		} finally {
+			MProfile.end(s);
 		}
 	}
 	
 	public void add(MObject obj, String exp, MObject value) throws MScriptException {
 		if (value == null)
 			return;
-		Tokenizer tn = new Tokenizer(exp);
-		Object it = obj;
-		Token t = tn.next();
-		if (t == null || !t.name.equals("self"))
-			throw new MScriptException("expression must start with 'self'.");
-		while (tn.hasNext()) {
-			t = tn.next();
-			if (it == null)
-				throw new MScriptException("interupt with null value.");
-			if (!tn.hasNext())
-				break;
-			it = find(it, t);
-		}
-		if (t.type == TokenType.Dot) {
-			if (!(it instanceof MObject))
-				throw new MScriptException("wrong operation at \'" + t.name + "\'");
-			MObject o = (MObject) it;
-			o.load();
-			MProperty p = o.getClazz().getProperty(t.name);
-			if (p.getElementType() == MElementType.Attribute) {
-				throw new MScriptException("wrong operation for the invalid property.");
-			} else {
-				if (((MReference) p).getMultiplicity() == Multiplicity.One)
-					throw new MScriptException("wrong operation for the invalid multiplicity.");
-				o.addReference(t.name, value);
-			}
-		} else {
-			throw new MScriptException("add operation should be operated on a reference property.");
+		MProfile.Section s = enter("add");
+		try {
+			path(obj, exp).add(obj, value);
+		} finally {
+			MProfile.end(s);
 		}
 	}
 	
 	public void remove(MObject obj, String exp, MObject value) throws MScriptException {
 		if (value == null)
 			return;
-		Tokenizer tn = new Tokenizer(exp);
-		Object it = obj;
-		Token t = tn.next();
-		if (t == null || !t.name.equals("self"))
-			throw new MScriptException("expression must start with 'self'.");
-		while (tn.hasNext()) {
-			t = tn.next();
-			if (it == null)
-				throw new MScriptException("interupt with null value.");
-			if (!tn.hasNext())
-				break;
-			it = find(it, t);
-		}
-		if (t.type == TokenType.Dot) {
-			if (!(it instanceof MObject))
-				throw new MScriptException("wrong operation at \'" + t.name + "\'");
-			MObject o = (MObject) it;
-			o.load();
-			MProperty p = o.getClazz().getProperty(t.name);
-			if (p.getElementType() == MElementType.Attribute) {
-				throw new MScriptException("wrong operation for the invalid property.");
-			} else {
-				if (((MReference) p).getMultiplicity() == Multiplicity.One)
-					throw new MScriptException("wrong operation for the invalid multiplicity.");
-				o.removeReference(t.name, value);
-			}
-		} else {
-			throw new MScriptException("add operation should be operated on a reference property.");
-		}
-	}
-	
-	private Object find(Object it, Token t) throws MScriptException {
-		if (t.type == TokenType.Dot) {
-			if (!(it instanceof MObject))
-				throw new MScriptException("wrong operation at \'" + t.name + "\'");
-			MObject o = (MObject) it;
-			o.load();
-			it = o.get(t.name);
-		} else if (t.type == TokenType.Bracket){
-			if (Character.isDigit(t.name.charAt(0))) {
-				int index = Integer.parseInt(t.name);
-				if (!(it instanceof MList))
-					throw new MScriptException("wrong operation at \'" + t.name + "\'");
-				MList list = (MList) it;
-				if (index >= list.size())
-					throw new MScriptException("out of range at \'" + t.name + "\'");
-				it = list.get(index);
-			} else {
-				if (!(it instanceof MDictionary))
-					throw new MScriptException("wrong operation at \'" + t.name + "\'");
-				MDictionary dict = (MDictionary) it;
-				if (!dict.containsKey(t.name))
-					throw new MScriptException("out of range at \'" + t.name + "\'");
-				it = dict.get(t.name);
-			}
-		} else { //Angular
-			if (!(it instanceof MObject))
-				throw new MScriptException("wrong operation at \'" + t.name + "\'");
-			MElement o = (MElement) it;
-			o.loadTags();
-			MTag tag = o.tag(t.name);
-			if (tag == null)
-				throw new MScriptException("interupt with null tag.");
-			tag.load();
-			it = tag.get();
-		}
-		return it;
-	}
-
-	public class MScriptException extends Exception {
-		private static final long serialVersionUID = 8051203885298589303L;
-		public MScriptException(String message) {
-			super(message);
+		MProfile.Section s = enter("remove");
+		try {
+			path(obj, exp).remove(obj, value);
+		} finally {
+			MProfile.end(s);
 		}
 	}
 	
-	private enum TokenType {
-		Dot,
-		Bracket,
-		Angular
+	private static MScriptPath path(MElement obj, String exp) throws MScriptException {
+		MClass cls = null;
+		if (obj instanceof MObject && !obj.isDeleted())
+			cls = ((MObject) obj).getClazz();
+		return MScriptPath.compile(cls, exp);
 	}
 	
-	private class Token {
-		String name;
-		TokenType type;
-		public Token(String n, TokenType t) { name = n; type = t; }
+	/**
+	 * Check the budget of thread, and open the section of a method.
+	 * @param method the name of method.
+	 * @return the section, or {@code null} if the thread is not profiled.
+	 */
+	private static MProfile.Section enter(String method) {
+		MBudget.checkCurrent();
+		return MProfile.begin(method);
 	}
 	
-	private class Tokenizer {
-		String exp;
-		int loc = 0;
-		
-		Tokenizer(String exp) {
-			this.exp = exp;
-		}
-		
-		boolean hasNext() {
-			return loc < exp.length();
-		}
-		
-		Token next() throws MScriptException {
-			if (loc >= exp.length())
-				return null;
-			TokenType type;
-			StringBuilder sb = new StringBuilder();
-			char ch = cur();
-			if (isWordChar(ch)) {
-				sb.append(ch);
-				loc++;
-				while (isWordChar(ch = cur())) {
-					sb.append(ch);
-					loc++;
-				}
-				if (ch == '.')
-					loc++;
-				type = TokenType.Dot;
-			} else if (ch == '[') {
-				loc++;
-				while (isWordChar(ch = cur())) {
-					sb.append(ch);
-					loc++;
+	/**
+	 * The objects of an iterator are loaded when it moves, so the moves are counted
+	 * into the section of the method which created it.
+	 */
+	private static Iterator<MObject> profiled(final Iterator<MObject> it) {
+		if (MProfile.getCurrent() == null)
+			return it;
+		return new Iterator<MObject>() {
+			@Override
+			public boolean hasNext() {
+				MProfile.Section s = enter("objectItr");
+				try {
+					return it.hasNext();
+				} finally {
+					MProfile.end(s);
 				}
-				if (ch == ']')
-					loc++;
-				else
-					throw new MScriptException("wrong expression.");
-				if (cur() == '.')
-					loc++;
-				else if (cur() != '[' && cur() != '<')
-					throw new MScriptException("wrong expression.");
-				type = TokenType.Bracket;
-			} else if (ch == '<')  {
-				loc++;
-				while (isWordChar(ch = cur())) {
-					sb.append(ch);
-					loc++;
+			}
+
+			@Override
+			public MObject next() {
+				MProfile.Section s = enter("objectItr");
+				try {
+					return it.next();
+				} finally {
+					MProfile.end(s);
 				}
-				if (ch == '>')
-					loc++;
-				else
-					throw new MScriptException("wrong expression.");
-				if (cur() == '.')
-					loc++;
-				else if (cur() != '[' && cur() != '<')
-					throw new MScriptException("wrong expression.");
-				type = TokenType.Angular;
 			}
-			else {
-				throw new MScriptException("wrong expression.");
+
+			@Override
+			public void remove() {
+				it.remove();
 			}
-			return new Token(sb.toString(), type);
-		}
-		
-		char cur() {
-			if (loc >= exp.length())
-				return '\0';
-			return exp.charAt(loc);
-		}
-		
-		boolean isWordChar(char ch) {
-			return Character.isLetter(ch) || Character.isDigit(ch) || ch == '_';
+		};
+	}
+
+	public static class MScriptException extends Exception {
+		private static final long serialVersionUID = 8051203885298589303L;
+		public MScriptException(String message) {
+			super(message);
 		}
 	}
 	
@@ -359,8 +224,8 @@ public class MScriptHelper {
 	 */
 	public static MElement getElement(String identifier) {
 		if (identifier.equals(""))
-			return MPackage.DEFAULT_PACKAGE;
-		return getElement(identifier, MPackage.DEFAULT_PACKAGE);
+			return MDatabase.getDB().getDefaultPackage();
+		return getElement(identifier, MDatabase.getDB().getDefaultPackage());
 	}
 	
 	/**
@@ -0,0 +1,427 @@
+package lab.meteor.core.script;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import lab.meteor.core.MClass;
+import lab.meteor.core.MDictionary;
+import lab.meteor.core.MElement;
+import lab.meteor.core.MElement.MElementType;
+import lab.meteor.core.MList;
+import lab.meteor.core.MObject;
+import lab.meteor.core.MProperty;
+import lab.meteor.core.MReference;
+import lab.meteor.core.MReference.Multiplicity;
+import lab.meteor.core.MTag;
+import lab.meteor.core.script.MScriptHelper.MScriptException;
+
+/**
+ * A compiled path expression, such as <code>self.items[3].product&lt;label&gt;</code>.
+ * The expression is parsed once into steps, and the properties along the path are
+ * resolved from the class which the path is bound to, following the references of
+ * single multiplicity. When the path is evaluated, a step uses its resolved property
+ * if the object is an instance of the class it was resolved from, otherwise it looks
+ * up the property by name.
+ * <p>
+ * The compiled paths are cached by the class and the expression.
+ * @see MScriptHelper#get(MElement, String)
+ */
+public final class MScriptPath {
+
+	/**
+	 * The maximum number of paths cached, the cache is cleared when it's exceeded.
+	 */
+	private static final int MAX_CACHE_SIZE = 4096;
+
+	private static final ConcurrentMap<Key, MScriptPath> cache = new ConcurrentHashMap<Key, MScriptPath>();
+
+	private final String expression;
+
+	private final MClass clazz;
+
+	private final Step[] steps;
+
+	private MScriptPath(String expression, MClass clazz, Step[] steps) {
+		this.expression = expression;
+		this.clazz = clazz;
+		this.steps = steps;
+	}
+
+	/**
+	 * Get the compiled path of an expression, which is compiled at the first time.
+	 * @param clazz the class of <code>self</code>, or {@code null} if unknown.
+	 * @param exp the expression, starting with <code>self</code>.
+	 * @return the compiled path.
+	 * @throws MScriptException if the expression is wrong.
+	 */
+	public static MScriptPath compile(MClass clazz, String exp) throws MScriptException {
+		Key key = new Key(clazz, exp);
+		MScriptPath path = cache.get(key);
+		if (path != null)
+			return path;
+		path = parse(clazz, exp);
+		if (cache.size() >= MAX_CACHE_SIZE)
+			cache.clear();
+		cache.put(key, path);
+		return path;
+	}
+
+	private static MScriptPath parse(MClass clazz, String exp) throws MScriptException {
+		Tokenizer tn = new Tokenizer(exp);
+		Token t = tn.next();
+		if (t == null || !t.name.equals("self"))
+			throw new MScriptException("expression must start with 'self'.");
+		List<Step> steps = new ArrayList<Step>();
+		MClass cls = clazz;
+		while (tn.hasNext()) {
+			t = tn.next();
+			Step step = new Step(t, cls);
+			steps.add(step);
+			cls = null;
+			if (step.property != null && step.property.getElementType() == MElementType.Reference) {
+				MReference ref = (MReference) step.property;
+				if (ref.getMultiplicity() == Multiplicity.One)
+					cls = ref.getReference();
+			}
+		}
+		return new MScriptPath(exp, clazz, steps.toArray(new Step[steps.size()]));
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * The class which the path is bound to.
+	 * @return the class, or {@code null} if unknown.
+	 */
+	public MClass getClazz() {
+		return clazz;
+	}
+
+	/**
+	 * Evaluate the path.
+	 * @param self the element where the path starts.
+	 * @return the value at the end of path.
+	 * @throws MScriptException if the path can't be followed.
+	 */
+	public Object get(MElement self) throws MScriptException {
+		return follow(self, steps.length);
+	}
+
+	/**
+	 * Set the value at the end of path, which is an attribute, a single reference, an
+	 * element of list or dictionary, or a tag.
+	 * @param self the object where the path starts.
+	 * @param value the value.
+	 * @throws MScriptException if the path can't be followed.
+	 */
+	public void set(MObject self, Object value) throws MScriptException {
+		Step t = last();
+		Object it = follow(self, steps.length - 1);
+		if (t.type == TokenType.Dot) {
+			MObject o = toObject(it, t);
+			MProperty p = t.resolve(o);
+			if (p == null || p.getElementType() == MElementType.Attribute) {
+				o.setAttribute(t.name, value);
+			} else {
+				if (((MReference) p).getMultiplicity() == Multiplicity.Multiple)
+					throw new MScriptException("wrong operation for the invalid multiplicity.");
+				if (!(value instanceof MObject))
+					throw new MScriptException("invalid value.");
+				o.setReference(t.name, (MObject) value);
+			}
+		} else if (t.type == TokenType.Bracket) {
+			if (t.index >= 0) {
+				if (!(it instanceof MList))
+					throw new MScriptException("wrong operation at \'" + t.name + "\'");
+				MList list = (MList) it;
+				if (t.index >= list.size())
+					throw new MScriptException("out of range at \'" + t.name + "\'");
+				list.set(t.index, value);
+			} else {
+				if (!(it instanceof MDictionary))
+					throw new MScriptException("wrong operation at \'" + t.name + "\'");
+				MDictionary dict = (MDictionary) it;
+				dict.put(t.name, value);
+			}
+		} else {
+			MElement o = toObject(it, t);
+			o.loadTags();
+			MTag tag = o.tag(t.name);
+			if (tag != null)
+				tag.set(value);
+			else {
+				new MTag(o, t.name, value);
+			}
+		}
+	}
+
+	/**
+	 * Add an object to the reference at the end of path.
+	 * @param self the object where the path starts.
+	 * @param value the object to be added.
+	 * @throws MScriptException if the path doesn't end with a multiple reference.
+	 */
+	public void add(MObject self, MObject value) throws MScriptException {
+		if (value == null)
+			return;
+		MObject o = multipleReferenceOwner(self);
+		o.addReference(last().name, value);
+	}
+
+	/**
+	 * Remove an object from the reference at the end of path.
+	 * @param self the object where the path starts.
+	 * @param value the object to be removed.
+	 * @throws MScriptException if the path doesn't end with a multiple reference.
+	 */
+	public void remove(MObject self, MObject value) throws MScriptException {
+		if (value == null)
+			return;
+		MObject o = multipleReferenceOwner(self);
+		o.removeReference(last().name, value);
+	}
+
+	private Step last() throws MScriptException {
+		if (steps.length == 0)
+			throw new MScriptException("wrong operation at \'self\'");
+		return steps[steps.length - 1];
+	}
+
+	private MObject multipleReferenceOwner(MObject self) throws MScriptException {
+		Step t = last();
+		if (t.type != TokenType.Dot)
+			throw new MScriptException("add operation should be operated on a reference property.");
+		MObject o = toObject(follow(self, steps.length - 1), t);
+		MProperty p = t.resolve(o);
+		if (p == null || p.getElementType() == MElementType.Attribute)
+			throw new MScriptException("wrong operation for the invalid property.");
+		if (((MReference) p).getMultiplicity() == Multiplicity.One)
+			throw new MScriptException("wrong operation for the invalid multiplicity.");
+		return o;
+	}
+
+	/**
+	 * Follow the first steps of path.
+	 * @param it the start.
+	 * @param n the number of steps.
+	 * @return the value after the steps.
+	 */
+	private Object follow(Object it, int n) throws MScriptException {
+		for (int i = 0; i < n; i++) {
+			Step t = steps[i];
+			if (it == null)
+				throw new MScriptException("interupt with null value.");
+			switch (t.type) {
+			case Dot:
+				MObject o = toObject(it, t);
+				it = o.get(t.resolve(o));
+				break;
+			case Bracket:
+				if (t.index >= 0) {
+					if (!(it instanceof MList))
+						throw new MScriptException("wrong operation at \'" + t.name + "\'");
+					MList list = (MList) it;
+					if (t.index >= list.size())
+						throw new MScriptException("out of range at \'" + t.name + "\'");
+					it = list.get(t.index);
+				} else {
+					if (!(it instanceof MDictionary))
+						throw new MScriptException("wrong operation at \'" + t.name + "\'");
+					MDictionary dict = (MDictionary) it;
+					if (!dict.containsKey(t.name))
+						throw new MScriptException("out of range at \'" + t.name + "\'");
+					it = dict.get(t.name);
+				}
+				break;
+			default:
+				MElement e = toObject(it, t);
+				e.loadTags();
+				MTag tag = e.tag(t.name);
+				if (tag == null)
+					throw new MScriptException("interupt with null tag.");
+				tag.load();
+				it = tag.get();
+				break;
+			}
+		}
+		if (n < steps.length && it == null)
+			throw new MScriptException("interupt with null value.");
+		return it;
+	}
+
+	private static MObject toObject(Object it, Step t) throws MScriptException {
+		if (!(it instanceof MObject))
+			throw new MScriptException("wrong operation at \'" + t.name + "\'");
+		MObject o = (MObject) it;
+		o.load();
+		return o;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	/**
+	 * A step of path, with the property resolved if it's known.
+	 */
+	private static final class Step {
+		final TokenType type;
+		final String name;
+		/**
+		 * The index of list, <code>-1</code> if it's a key of dictionary.
+		 */
+		final int index;
+		/**
+		 * The class which the property is resolved from.
+		 */
+		final MClass owner;
+		final MProperty property;
+
+		Step(Token t, MClass owner) throws MScriptException {
+			this.type = t.type;
+			this.name = t.name;
+			if (t.type == TokenType.Bracket) {
+				if (t.name.isEmpty())
+					throw new MScriptException("wrong expression.");
+				this.index = Character.isDigit(t.name.charAt(0)) ? Integer.parseInt(t.name) : -1;
+			} else {
+				this.index = -1;
+			}
+			if (t.type == TokenType.Dot && owner != null) {
+				this.owner = owner;
+				this.property = owner.getProperty(t.name);
+			} else {
+				this.owner = null;
+				this.property = null;
+			}
+		}
+
+		/**
+		 * The property of an object.
+		 */
+		MProperty resolve(MObject o) {
+			MClass c = o.getClazz();
+			MProperty p = property;
+			if (p != null && (c == owner || c.isKindOf(owner)) && !p.isDeleted() && name.equals(p.getName()))
+				return p;
+			return c.getProperty(name);
+		}
+	}
+
+	private static final class Key {
+		final MClass clazz;
+		final String expression;
+
+		Key(MClass clazz, String expression) {
+			this.clazz = clazz;
+			this.expression = expression;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(clazz) * 31 + expression.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key k = (Key) obj;
+			return k.clazz == clazz && k.expression.equals(expression);
+		}
+	}
+
+	enum TokenType {
+		Dot,
+		Bracket,
+		Angular
+	}
+
+	static class Token {
+		String name;
+		TokenType type;
+		public Token(String n, TokenType t) { name = n; type = t; }
+	}
+
+	static class Tokenizer {
+		String exp;
+		int loc = 0;
+
+		Tokenizer(String exp) {
+			this.exp = exp;
+		}
+
+		boolean hasNext() {
+			return loc < exp.length();
+		}
+
+		Token next() throws MScriptException {
+			if (loc >= exp.length())
+				return null;
+			TokenType type;
+			StringBuilder sb = new StringBuilder();
+			char ch = cur();
+			if (isWordChar(ch)) {
+				sb.append(ch);
+				loc++;
+				while (isWordChar(ch = cur())) {
+					sb.append(ch);
+					loc++;
+				}
+				if (ch == '.')
+					loc++;
+				type = TokenType.Dot;
+			} else if (ch == '[') {
+				loc++;
+				while (isWordChar(ch = cur())) {
+					sb.append(ch);
+					loc++;
+				}
+				if (ch == ']')
+					loc++;
+				else
+					throw new MScriptException("wrong expression.");
+				if (cur() == '.')
+					loc++;
+				else if (cur() != '[' && cur() != '<' && cur() != '\0')
+					throw new MScriptException("wrong expression.");
+				type = TokenType.Bracket;
+			} else if (ch == '<')  {
+				loc++;
+				while (isWordChar(ch = cur())) {
+					sb.append(ch);
+					loc++;
+				}
+				if (ch == '>')
+					loc++;
+				else
+					throw new MScriptException("wrong expression.");
+				if (cur() == '.')
+					loc++;
+				else if (cur() != '[' && cur() != '<' && cur() != '\0')
+					throw new MScriptException("wrong expression.");
+				type = TokenType.Angular;
+			}
+			else {
+				throw new MScriptException("wrong expression.");
+			}
+			return new Token(sb.toString(), type);
+		}
+
+		char cur() {
+			if (loc >= exp.length())
+				return '\0';
+			return exp.charAt(loc);
+		}
+
+		boolean isWordChar(char ch) {
+			return Character.isLetter(ch) || Character.isDigit(ch) || ch == '_';
+		}
+	}
+
+}
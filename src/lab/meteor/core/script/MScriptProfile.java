@@ -0,0 +1,276 @@
+package lab.meteor.core.script;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import lab.meteor.core.MProfile;
+import lab.meteor.core.script.MScriptProfiler.Category;
+
+/**
+ * The report of a profiled script: the time of each line and function of script, the
+ * time of each kind of code, and the storage accesses of each method of the script
+ * helper. The times of lines, functions and kinds are estimated by samples, the
+ * counters of methods are exact. The samples without a line of script, e.g. of an
+ * interpreting engine, are only counted by kind, see
+ * {@link #getUnattributedSampleCount()}.
+ * <p>
+ * The report is printed as text by {@link #toString()}, and as JSON by
+ * {@link #toJSON()}.
+ * @see MScriptProfiler
+ */
+public class MScriptProfile {
+
+	/**
+	 * The time and number of samples of a line or a function.
+	 */
+	public static class Entry {
+
+		private final String name;
+		private final long time;
+		private final long samples;
+
+		Entry(String name, long time, long samples) {
+			this.name = name;
+			this.time = time;
+			this.samples = samples;
+		}
+
+		/**
+		 * The line number or the name of function.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * The estimated nanoseconds.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public long getSampleCount() {
+			return samples;
+		}
+	}
+
+	private static final Comparator<Entry> BY_TIME = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			return Long.compare(o2.time, o1.time);
+		}
+	};
+
+	private static final Comparator<MProfile.Snapshot> SECTION_BY_TIME = new Comparator<MProfile.Snapshot>() {
+		@Override
+		public int compare(MProfile.Snapshot o1, MProfile.Snapshot o2) {
+			return Long.compare(o2.getTime(), o1.getTime());
+		}
+	};
+
+	private final long elapsed;
+
+	private final long interval;
+
+	private final long samples;
+
+	private final long unattributed;
+
+	private final List<Entry> lines;
+
+	private final List<Entry> functions;
+
+	private final Map<Category, Long> categories = new EnumMap<Category, Long>(Category.class);
+
+	private final List<MProfile.Snapshot> sections;
+
+	MScriptProfile(long elapsed, long interval, long samples, long unattributed,
+			Map<Integer, long[]> lines, Map<String, long[]> functions, long[] categories,
+			List<MProfile.Snapshot> sections) {
+		this.elapsed = elapsed;
+		this.interval = interval;
+		this.samples = samples;
+		this.unattributed = unattributed;
+		this.lines = entries(lines);
+		this.functions = entries(functions);
+		for (Category c : Category.values())
+			this.categories.put(c, categories[c.ordinal()]);
+		List<MProfile.Snapshot> list = new ArrayList<MProfile.Snapshot>(sections);
+		Collections.sort(list, SECTION_BY_TIME);
+		this.sections = Collections.unmodifiableList(list);
+	}
+
+	private static List<Entry> entries(Map<?, long[]> map) {
+		List<Entry> list = new ArrayList<Entry>(map.size());
+		for (Map.Entry<?, long[]> e : map.entrySet())
+			list.add(new Entry(String.valueOf(e.getKey()), e.getValue()[0], e.getValue()[1]));
+		Collections.sort(list, BY_TIME);
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * The nanoseconds from the start to the end of profiling.
+	 */
+	public long getElapsedTime() {
+		return elapsed;
+	}
+
+	/**
+	 * The interval of samples in milliseconds.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	public long getSampleCount() {
+		return samples;
+	}
+
+	/**
+	 * The number of samples which are not given to a line and a function, since no
+	 * frame of script is found in the stack. It's all of the samples if the engine
+	 * interprets the script, then the time is only known by kind.
+	 */
+	public long getUnattributedSampleCount() {
+		return unattributed;
+	}
+
+	/**
+	 * The lines of script, the slowest first.
+	 */
+	public List<Entry> getLines() {
+		return lines;
+	}
+
+	/**
+	 * The functions of script, the slowest first.
+	 */
+	public List<Entry> getFunctions() {
+		return functions;
+	}
+
+	/**
+	 * The estimated nanoseconds of a kind of code.
+	 * @param category the kind.
+	 * @return the time.
+	 */
+	public long getTime(Category category) {
+		return categories.get(category);
+	}
+
+	/**
+	 * The counters of the methods of script helper, the slowest first. The storage
+	 * accesses of the script outside of the helper are counted into
+	 * {@link MProfile#OTHER}.
+	 */
+	public List<MProfile.Snapshot> getSections() {
+		return sections;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("profile: ").append(ms(elapsed)).append(" ms, ").append(samples)
+			.append(" samples every ").append(interval).append(" ms\n");
+		if (unattributed > 0) {
+			sb.append(unattributed).append(" samples without a line of script");
+			if (unattributed == samples)
+				sb.append(", the engine may interpret the script, so the time is by kind only");
+			sb.append('\n');
+		}
+		sb.append("time by kind:\n");
+		for (Category c : Category.values())
+			sb.append(String.format("  %-10s %8d ms\n", c, ms(categories.get(c))));
+		sb.append("time by line:\n");
+		for (Entry e : lines)
+			sb.append(String.format("  line %-5s %8d ms %6d samples\n", e.name, ms(e.time), e.samples));
+		sb.append("time by function:\n");
+		for (Entry e : functions)
+			sb.append(String.format("  %-20s %8d ms %6d samples\n", e.name, ms(e.time), e.samples));
+		sb.append(String.format("%-12s %8s %8s %8s %8s %8s %8s %8s\n",
+				"method", "calls", "ms", "loads", "saves", "hits", "misses", "trips"));
+		for (MProfile.Snapshot s : sections)
+			sb.append(String.format("%-12s %8d %8d %8d %8d %8d %8d %8d\n", s.getName(), s.getCallCount(),
+					ms(s.getTime()), s.getLoadCount(), s.getSaveCount(), s.getHitCount(),
+					s.getMissCount(), s.getRoundTripCount()));
+		return sb.toString();
+	}
+
+	/**
+	 * The report in JSON, with times in milliseconds.
+	 * @return the JSON text.
+	 */
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"elapsed\":").append(ms(elapsed))
+			.append(",\"interval\":").append(interval)
+			.append(",\"samples\":").append(samples)
+			.append(",\"unattributed\":").append(unattributed)
+			.append(",\"kinds\":{");
+		for (Category c : Category.values()) {
+			if (c.ordinal() > 0)
+				sb.append(',');
+			sb.append('"').append(c).append("\":").append(ms(categories.get(c)));
+		}
+		sb.append("},\"lines\":");
+		appendEntries(sb, lines);
+		sb.append(",\"functions\":");
+		appendEntries(sb, functions);
+		sb.append(",\"methods\":[");
+		for (int i = 0; i < sections.size(); i++) {
+			MProfile.Snapshot s = sections.get(i);
+			if (i > 0)
+				sb.append(',');
+			sb.append("{\"name\":");
+			appendString(sb, s.getName());
+			sb.append(",\"calls\":").append(s.getCallCount())
+				.append(",\"time\":").append(ms(s.getTime()))
+				.append(",\"loads\":").append(s.getLoadCount())
+				.append(",\"saves\":").append(s.getSaveCount())
+				.append(",\"hits\":").append(s.getHitCount())
+				.append(",\"misses\":").append(s.getMissCount())
+				.append(",\"trips\":").append(s.getRoundTripCount())
+				.append('}');
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	private static void appendEntries(StringBuilder sb, List<Entry> entries) {
+		sb.append('[');
+		for (int i = 0; i < entries.size(); i++) {
+			Entry e = entries.get(i);
+			if (i > 0)
+				sb.append(',');
+			sb.append("{\"name\":");
+			appendString(sb, e.name);
+			sb.append(",\"time\":").append(ms(e.time))
+				.append(",\"samples\":").append(e.samples)
+				.append('}');
+		}
+		sb.append(']');
+	}
+
+	private static void appendString(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (ch == '"' || ch == '\\')
+				sb.append('\\').append(ch);
+			else if (ch < 0x20)
+				sb.append(String.format("\\u%04x", (int) ch));
+			else
+				sb.append(ch);
+		}
+		sb.append('"');
+	}
+
+	private static long ms(long nanos) {
+		return nanos / 1000000L;
+	}
+
+}
@@ -0,0 +1,229 @@
+package lab.meteor.core.script;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lab.meteor.core.MDBAdapter;
+import lab.meteor.core.MExecutionService;
+import lab.meteor.core.MProfile;
+
+/**
+ * A sampling profiler of a script thread. The stack of the thread is sampled at a fixed
+ * interval by the scheduler of {@link MExecutionService}, and the time between samples
+ * is given to the innermost script frame, i.e. a line and a function of script, and to
+ * the kind of code the thread is running above it: the engine itself, the path
+ * expressions, the other code of meteor, or the adapter, which is waiting for storage.
+ * <p>
+ * The profiler also has a {@link MProfile}, which should be entered by the script thread
+ * to count the storage accesses of each method of the script helper. The samples are
+ * statistical, so a line which runs shorter than the interval may not be seen.
+ * <p>
+ * The lines and functions are only known for the engines which compile scripts into
+ * classes. With an interpreting engine, e.g. Rhino in interpreted mode, the stack has
+ * no script frame, so the samples are counted by kind only, and reported as
+ * unattributed. So are the samples taken outside of the script, e.g. while it's
+ * compiled or its changes are committed.
+ * <pre>
+ * MScriptProfiler profiler = new MScriptProfiler(Thread.currentThread());
+ * MProfile.Scope scope = profiler.getProfile().enter();
+ * profiler.start();
+ * try {
+ *     ...
+ * } finally {
+ *     scope.close();
+ * }
+ * MScriptProfile report = profiler.stop();
+ * </pre>
+ */
+public class MScriptProfiler {
+
+	/**
+	 * The default interval of samples in milliseconds.
+	 */
+	public static final long DEFAULT_INTERVAL = 2;
+
+	/**
+	 * The kinds of code a script thread runs.
+	 */
+	public static enum Category {
+		/**
+		 * The script engine, i.e. the script itself.
+		 */
+		Engine,
+		/**
+		 * The resolution of path expressions.
+		 */
+		Path,
+		/**
+		 * The other code of meteor, e.g. the objects and the caches.
+		 */
+		Meteor,
+		/**
+		 * The adapter, i.e. the round trips to storage.
+		 */
+		Storage
+	}
+
+	private final Thread thread;
+
+	private final long interval;
+
+	private final MProfile profile = new MProfile();
+
+	private final Map<Integer, long[]> lines = new HashMap<Integer, long[]>();
+
+	private final Map<String, long[]> functions = new HashMap<String, long[]>();
+
+	private final long[] categories = new long[Category.values().length];
+
+	/**
+	 * Whether a class is an adapter, keyed by the name of class.
+	 */
+	private final Map<String, Boolean> adapters = new HashMap<String, Boolean>();
+
+	private ScheduledFuture<?> future = null;
+
+	private long start;
+
+	private long last;
+
+	private long samples = 0;
+	
+	/**
+	 * The samples without a script frame.
+	 */
+	private long unattributed = 0;
+
+	public MScriptProfiler(Thread thread) {
+		this(thread, DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * Create a profiler.
+	 * @param thread the thread running the script.
+	 * @param interval the interval of samples in milliseconds.
+	 */
+	public MScriptProfiler(Thread thread, long interval) {
+		this.thread = thread;
+		this.interval = Math.max(1, interval);
+	}
+
+	/**
+	 * The counters of storage accesses, which should be entered by the script thread.
+	 * @return the profile.
+	 */
+	public MProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Start sampling.
+	 */
+	public synchronized void start() {
+		if (future != null)
+			return;
+		start = last = System.nanoTime();
+		future = MExecutionService.getDefault().getScheduler().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop sampling, and make the report.
+	 * @return the report.
+	 */
+	public MScriptProfile stop() {
+		ScheduledFuture<?> f;
+		synchronized (this) {
+			f = future;
+		}
+		if (f != null)
+			f.cancel(false);
+		synchronized (this) {
+			long elapsed = future == null ? 0 : System.nanoTime() - start;
+			return new MScriptProfile(elapsed, interval, samples, unattributed, lines, functions,
+					categories, profile.snapshot());
+		}
+	}
+
+	private synchronized void sample() {
+		long now = System.nanoTime();
+		long time = now - last;
+		last = now;
+		StackTraceElement[] stack = thread.getStackTrace();
+		Category category = Category.Engine;
+		StackTraceElement frame = null;
+		for (StackTraceElement e : stack) {
+			if (isScriptFrame(e)) {
+				frame = e;
+				break;
+			}
+			Category c = categoryOf(e);
+			if (c.ordinal() > category.ordinal())
+				category = c;
+		}
+		samples++;
+		categories[category.ordinal()] += time;
+		if (frame == null) {
+			// an interpreted script, or not in the script, e.g. compiling or committing
+			unattributed++;
+			return;
+		}
+		add(lines, frame.getLineNumber(), time);
+		add(functions, functionName(frame), time);
+	}
+
+	private static <K> void add(Map<K, long[]> map, K key, long time) {
+		long[] v = map.get(key);
+		if (v == null) {
+			v = new long[2];
+			map.put(key, v);
+		}
+		v[0] += time;
+		v[1]++;
+	}
+
+	/**
+	 * A frame of script code, which is compiled by the engine into a class whose source
+	 * is not a Java file.
+	 */
+	private static boolean isScriptFrame(StackTraceElement e) {
+		String file = e.getFileName();
+		return file != null && !file.endsWith(".java") && e.getLineNumber() >= 0;
+	}
+
+	private static String functionName(StackTraceElement e) {
+		String name = e.getMethodName();
+		if (name.equals(":program") || name.equals("runScript") || name.equals("exec"))
+			return "<program>";
+		return name;
+	}
+
+	private Category categoryOf(StackTraceElement e) {
+		String name = e.getClassName();
+		if (!name.startsWith("lab.meteor."))
+			return Category.Engine;
+		if (name.startsWith(MScriptPath.class.getName()))
+			return Category.Path;
+		int i = name.indexOf('$');
+		if (i > 0)
+			name = name.substring(0, i);
+		Boolean adapter = adapters.get(name);
+		if (adapter == null) {
+			try {
+				Class<?> cls = Class.forName(name, false, MScriptProfiler.class.getClassLoader());
+				adapter = MDBAdapter.class.isAssignableFrom(cls);
+			} catch (ClassNotFoundException ex) {
+				adapter = false;
+			}
+			adapters.put(name, adapter);
+		}
+		return adapter ? Category.Storage : Category.Meteor;
+	}
+
+}
@@ -1,74 +1,285 @@
 package lab.meteor.core.script;
 
-import javax.script.ScriptEngine;
+import java.util.concurrent.Future;
+
 import javax.script.ScriptException;
 
+import lab.meteor.core.MBudget;
+import lab.meteor.core.MDatabase;
+import lab.meteor.core.MExecutionService;
+import lab.meteor.core.MProfile;
+import lab.meteor.core.MSession;
+
+/**
+ * A script run in background. The script runs in a session, so the objects it creates,
+ * changes and deletes are written together when it ends, and under a budget, which
+ * limits the time and the resources it uses, see {@link MBudget}. When the script is
+ * canceled or out of budget, it's aborted at its next access to the database, and the
+ * changes it has made are flushed or discarded by the abort policy.
+ * <p>
+ * If profiling is on, the script is profiled by a {@link MScriptProfiler}, and the
+ * report is passed to {@link #profiled(MScriptProfile)} and to the listener, if it's an
+ * {@link IProfileScriptListener}, when the script ends.
+ */
 public class MScriptTask {
-	
+
+	/**
+	 * What to do with the changes of a script which is aborted.
+	 */
+	public static enum AbortPolicy {
+		/**
+		 * Write the changes made before the abort.
+		 */
+		Flush,
+		/**
+		 * Discard the changes, the objects changed are loaded again when touched.
+		 */
+		Discard
+	}
+
 	private String code;
-	
+
 	private MScriptEngine engine;
-	
-	private boolean isRunning = false;
-	
+
+	private volatile boolean isRunning = false;
+
+	private MBudget budget = null;
+
+	private AbortPolicy abortPolicy = AbortPolicy.Flush;
+
+	private IScriptListener listener = null;
+
+	private boolean profiling = false;
+
 	public MScriptTask(MScriptEngine engine, String code) {
 		this.engine = engine;
 		this.code = code;
 	}
-	
+
 	public final void setCode(String code) {
 		this.code = code;
 	}
-	
+
 	public final String getCode() {
 		return code;
 	}
-	
+
 	public final void setEngine(MScriptEngine engine) {
 		this.engine = engine;
 	}
-	
+
 	public final MScriptEngine getEngine() {
 		return this.engine;
 	}
-	
+
+	/**
+	 * Set the limits of each run. The budget is copied when the task is executed, so
+	 * it could be shared by tasks.
+	 * @param budget the limits, or {@code null} for unlimited.
+	 */
+	public final void setBudget(MBudget budget) {
+		this.budget = budget;
+	}
+
+	public final MBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Set what to do with the changes of a script when it fails, or it's aborted. The
+	 * default is {@link AbortPolicy#Flush}, which keeps the changes made before.
+	 * @param policy the policy.
+	 */
+	public final void setAbortPolicy(AbortPolicy policy) {
+		this.abortPolicy = policy;
+	}
+
+	public final AbortPolicy getAbortPolicy() {
+		return abortPolicy;
+	}
+
+	/**
+	 * Set the listener, which receives the errors, and also the reports of profiling
+	 * if it's an {@link IProfileScriptListener}.
+	 * @param listener the listener.
+	 */
+	public final void setListener(IScriptListener listener) {
+		this.listener = listener;
+	}
+
+	public final IScriptListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Turn profiling on or off, for the next executions.
+	 * @param profiling whether the script is profiled.
+	 */
+	public final void setProfiling(boolean profiling) {
+		this.profiling = profiling;
+	}
+
+	public final boolean isProfiling() {
+		return profiling;
+	}
+
 	public final boolean isRunning() {
 		return isRunning;
 	}
-	
-	private Thread currentThread;
-	
+
+	private Future<?> currentTask;
+
+	/**
+	 * The budget of the current run.
+	 */
+	private volatile MBudget currentBudget;
+
+	/**
+	 * The budget of the current or last run, which tells the resources used so far.
+	 * @return the budget, or {@code null} if the task has never been executed.
+	 */
+	public final MBudget getCurrentBudget() {
+		return currentBudget;
+	}
+
+	/**
+	 * Run the code in background, by the script executor of {@link MExecutionService}.
+	 * The code is run by a pooled engine, and compiled once if it's run again.
+	 */
 	public final void execute() {
-		final ScriptEngine se = engine.getScriptEngine();
-		currentThread = new Thread() {
+		final MScriptEngine se = engine;
+		final String c = code;
+		final AbortPolicy policy = abortPolicy;
+		final MDatabase db = MDatabase.getDB();
+		final MBudget b = budget != null ? new MBudget(budget) : new MBudget();
+		final IScriptListener l = listener;
+		final boolean profiled = profiling;
+		currentBudget = b;
+		currentTask = MExecutionService.getDefault().submit(MExecutionService.Kind.Script, new Runnable() {
 			@Override
 			public void run() {
-				started();
+				if (b.isCanceled()) {
+					canceled();
+					return;
+				}
+				MDatabase.Scope dbScope = db.enter();
+				MSession session = db.beginSession();
+				MScriptProfiler profiler = null;
+				MProfile.Scope profileScope = null;
+				if (profiled) {
+					profiler = new MScriptProfiler(Thread.currentThread());
+					profileScope = profiler.getProfile().enter();
+					profiler.start();
+				}
 				try {
+					started();
 					isRunning = true;
-					se.eval(code);
-					isRunning = false;
-					completed();
-				} catch (ScriptException e) {
-					MScriptTask.this.interrupted(e.getLineNumber(), 
-							e.getColumnNumber(), e.getCause().getMessage());
+					Failure failure = eval(se, c, b);
+					if (failure == null) {
+						commit(session);
+						completed();
+					} else {
+						if (policy == AbortPolicy.Flush)
+							commit(session);
+						else
+							session.rollback();
+						if (b.getExceeded() == MBudget.Limit.Canceled) {
+							canceled();
+						} else {
+							if (l != null)
+								l.printError(failure.message);
+							interrupted(failure.line, failure.column, failure.message);
+						}
+					}
+				} catch (RuntimeException e) {
+					// the writing fails, the changes are discarded by closing the session
+					if (l != null)
+						l.printError(e.toString());
+					interrupted(-1, -1, e.toString());
 				} finally {
-					currentThread = null;
 					isRunning = false;
+					session.close();
+					if (profileScope != null)
+						profileScope.close();
+					dbScope.close();
+				}
+				if (profiler != null) {
+					MScriptProfile profile = profiler.stop();
+					profiled(profile);
+					if (l instanceof IProfileScriptListener)
+						((IProfileScriptListener) l).profiled(profile);
 				}
 			}
-		};
-		currentThread.start();
+		});
+	}
+
+	/**
+	 * Run the code under the budget.
+	 * @return the failure, or {@code null} if the code completes.
+	 */
+	private static Failure eval(MScriptEngine se, String c, MBudget b) {
+		MBudget.Scope scope = b.enter();
+		try {
+			se.eval(c);
+			return null;
+		} catch (ScriptException e) {
+			return new Failure(e.getLineNumber(), e.getColumnNumber(), message(b,
+					e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+		} catch (RuntimeException e) {
+			return new Failure(-1, -1, message(b, e.toString()));
+		} finally {
+			scope.close();
+		}
 	}
-	
+
+	/**
+	 * Write the changes of script, counted into the section <code>commit</code> if it's
+	 * profiled.
+	 */
+	private static void commit(MSession session) {
+		MProfile.Section s = MProfile.begin("commit");
+		try {
+			session.commit();
+		} finally {
+			MProfile.end(s);
+		}
+	}
+
+	private static String message(MBudget b, String message) {
+		MBudget.Limit limit = b.getExceeded();
+		if (limit == null)
+			return message;
+		if (limit == MBudget.Limit.Canceled)
+			return "script is canceled.";
+		return "script is aborted, the limit of " + limit + " is exceeded.";
+	}
+
+	/**
+	 * Cancel the running or waiting script. The script is aborted at its next access to
+	 * the database, and {@link #canceled()} is called then.
+	 */
 	public final void cancel() {
-		// TODO
-		throw new UnsupportedOperationException();
+		MBudget b = currentBudget;
+		if (b != null)
+			b.cancel();
 	}
-	
+
 	protected void started() { }
 	protected void completed() { }
 	protected void interrupted(int line, int column, String message) { }
 	protected void canceled() {  }
+	protected void profiled(MScriptProfile profile) { }
+
+	private static class Failure {
+		final int line;
+		final int column;
+		final String message;
+
+		Failure(int line, int column, String message) {
+			this.line = line;
+			this.column = column;
+			this.message = message;
+		}
+	}
 
 }
@@ -1,6 +1,11 @@
 package lab.meteor.dba;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import org.bson.types.Binary;
@@ -14,6 +19,7 @@ import com.mongodb.DBObject;
 
 import lab.meteor.core.MAttribute;
 import lab.meteor.core.MClass;
+import lab.meteor.core.MCollection;
 import lab.meteor.core.MDBAdapter;
 import lab.meteor.core.MElement.MElementType;
 import lab.meteor.core.MElementPointer;
@@ -36,6 +42,7 @@ public class MongoDBAdapter implements MDBAdapter {
 	
 	private static final String COLLECT_NAME_ELEMENT = "elements";
 	private static final String COLLECT_NAME_TAG = "tags";
+	private static final String COLLECT_NAME_SPILL = "spilled";
 	
 	private static final String COLLECT_NAME_CLASS = "classes";
 	private static final String COLLECT_NAME_ATTRIBUTE = "attributes";
@@ -46,6 +53,11 @@ public class MongoDBAdapter implements MDBAdapter {
 	
 	public static boolean ENABLE_DOUBLE_CHECK_EXISTENCE = true;
 	
+	/**
+	 * The number of documents fetched in one round trip by the cursors.
+	 */
+	public static int CURSOR_BATCH_SIZE = 1000;
+	
 	private DB db;
 	
 	public MongoDBAdapter(DB db) {
@@ -570,16 +582,77 @@ public class MongoDBAdapter implements MDBAdapter {
 		if (obj.isFlagged(MObject.ATTRIB_FLAG_CLASS))
 			obj.class_id = cls_id;
 		// load values
-		if (obj.isFlagged(MObject.ATTRIB_FLAG_VALUES)) {
-			Iterator<String> it = o.keySet().iterator();
-			while (it.hasNext()) {
-				String key = it.next();
-				if (key.equals("_id"))
-					continue;
-				String k = key.substring(1);
-				obj.values.put(k, dbObjectToObject(o.get(key)));
+		if (obj.isFlagged(MObject.ATTRIB_FLAG_VALUES))
+			readObjectValues(o, obj);
+	}
+	
+	private static void readObjectValues(DBObject o, ObjectDBInfo obj) {
+		Iterator<String> it = o.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			if (key.equals("_id"))
+				continue;
+			String k = key.substring(1);
+			obj.values.put(k, dbObjectToObject(o.get(key)));
+		}
+	}
+	
+	@Override
+	public IDList loadObjects(List<ObjectDBInfo> objs) {
+		Map<Long, ObjectDBInfo> infos = new HashMap<Long, ObjectDBInfo>();
+		BasicDBList ids = new BasicDBList();
+		for (ObjectDBInfo obj : objs) {
+			infos.put(obj.id, obj);
+			ids.add(obj.id);
+		}
+		// the classes of objects, one query
+		Map<Long, BasicDBList> classes = new HashMap<Long, BasicDBList>();
+		if (!ids.isEmpty()) {
+			DBCollection ecol = db.getCollection(COLLECT_NAME_ELEMENT);
+			DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+			DBCursor cursor = ecol.find(query, new BasicDBObject("class", 1));
+			cursor.batchSize(CURSOR_BATCH_SIZE);
+			try {
+				while (cursor.hasNext()) {
+					DBObject o = cursor.next();
+					if (!o.containsField("class"))
+						continue;
+					Long cls = (Long) o.get("class");
+					BasicDBList list = classes.get(cls);
+					if (list == null) {
+						list = new BasicDBList();
+						classes.put(cls, list);
+					}
+					list.add(o.get("_id"));
+				}
+			} finally {
+				cursor.close();
 			}
 		}
+		// the values of objects, one query per class
+		for (Entry<Long, BasicDBList> entry : classes.entrySet()) {
+			DBCollection col = db.getCollection(classIDToString(entry.getKey()));
+			DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", entry.getValue()));
+			DBCursor cursor = col.find(query);
+			cursor.batchSize(CURSOR_BATCH_SIZE);
+			try {
+				while (cursor.hasNext()) {
+					DBObject o = cursor.next();
+					ObjectDBInfo obj = infos.remove(o.get("_id"));
+					if (obj == null)
+						continue;
+					if (obj.isFlagged(MObject.ATTRIB_FLAG_CLASS))
+						obj.class_id = entry.getKey();
+					if (obj.isFlagged(MObject.ATTRIB_FLAG_VALUES))
+						readObjectValues(o, obj);
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		IDList missed = new IDList();
+		missed.addAll(infos.keySet());
+		return missed;
 	}
 
 	@Override
@@ -597,19 +670,176 @@ public class MongoDBAdapter implements MDBAdapter {
 	@Override
 	public void updateObject(ObjectDBInfo obj) {
 		DBCollection col = db.getCollection(classIDToString(obj.class_id));
-		DBObject o = new BasicDBObject();
-		DBObject d = new BasicDBObject();
-		DBObject que = new BasicDBObject();
-		que.put("_id", obj.id);
 		
 		// valid existence
 		checkExistence(col, obj.id);
 		
+		BasicDBList replaced = writeSpilled(obj, false);
+		updateDocument(col, obj, replaced);
+	}
+	
+	/**
+	 * Update the document of an object. The stored entries of the attributes which
+	 * were large collections and are replaced are removed. Whether an attribute was a
+	 * large collection is told by the marker in the old document, which is returned by
+	 * the update, so the entries are only removed, by another round trip, when there
+	 * are some.
+	 * @param col the collection of the class.
+	 * @param obj the object.
+	 * @param replaced the keys of attributes replaced, given by <code>writeSpilled()</code>.
+	 */
+	private void updateDocument(DBCollection col, ObjectDBInfo obj, BasicDBList replaced) {
+		DBObject que = new BasicDBObject("_id", obj.id);
+		if (replaced.isEmpty()) {
+			col.update(que, objectUpdate(obj));
+			return;
+		}
+		DBObject fields = new BasicDBObject();
+		for (Object key : replaced)
+			fields.put("p" + key, true);
+		DBObject old = col.findAndModify(que, fields, null, false, objectUpdate(obj), false, false);
+		if (old == null)
+			return;
+		BasicDBList spilled = new BasicDBList();
+		for (Object key : replaced) {
+			Object v = old.get("p" + key);
+			if (v instanceof DBObject && ((DBObject) v).containsField(KEY_SPILL))
+				spilled.add(key);
+		}
+		if (!spilled.isEmpty()) {
+			DBObject spillQue = new BasicDBObject();
+			spillQue.put("o", obj.id);
+			spillQue.put("a", new BasicDBObject("$in", spilled));
+			db.getCollection(COLLECT_NAME_SPILL).remove(spillQue);
+		}
+	}
+	
+	/**
+	 * Write the entries of the large collections of an object. An entry is a document
+	 * of <code>{o: object, c: class, a: attribute, k: key, v: value}</code>.
+	 * @param obj the object.
+	 * @param created whether the object is newly created, so nothing is stored.
+	 * @return the keys of the attributes which may have been large collections, and are
+	 * replaced or deleted, so their stored entries may have to be removed.
+	 */
+	private BasicDBList writeSpilled(ObjectDBInfo obj, boolean created) {
+		DBCollection col = null;
+		BasicDBList replaced = new BasicDBList();
+		for (Entry<String, Object> entry : obj.values.entrySet()) {
+			Object value = entry.getValue();
+			if (!(value instanceof SpilledCollection)) {
+				if (!created && (value == null || value instanceof DataDict || value instanceof DataSet))
+					replaced.add(entry.getKey());
+				continue;
+			}
+			if (col == null)
+				col = db.getCollection(COLLECT_NAME_SPILL);
+			SpilledCollection sc = (SpilledCollection) value;
+			if (sc.clear) {
+				if (!created)
+					col.remove(spillQuery(obj.id, entry.getKey()));
+				// nothing is stored, one insert of all entries
+				List<DBObject> docs = new ArrayList<DBObject>(sc.puts.size());
+				for (Entry<String, Object> put : sc.puts.entrySet()) {
+					DBObject o = spillQuery(obj.id, entry.getKey());
+					o.put("c", obj.class_id);
+					o.put("k", put.getKey());
+					o.put("v", objectToDBObject(put.getValue()));
+					docs.add(o);
+				}
+				if (!docs.isEmpty())
+					col.insert(docs);
+				continue;
+			}
+			if (!sc.removes.isEmpty()) {
+				BasicDBList keys = new BasicDBList();
+				keys.addAll(sc.removes);
+				DBObject que = spillQuery(obj.id, entry.getKey());
+				que.put("k", new BasicDBObject("$in", keys));
+				col.remove(que);
+			}
+			for (Entry<String, Object> put : sc.puts.entrySet()) {
+				DBObject que = spillQuery(obj.id, entry.getKey());
+				que.put("k", put.getKey());
+				DBObject o = new BasicDBObject();
+				o.put("c", obj.class_id);
+				o.put("v", objectToDBObject(put.getValue()));
+				col.update(que, new BasicDBObject("$set", o), true, false);
+			}
+		}
+		if (!created) {
+			for (String key : obj.deleteKeys.keySet())
+				replaced.add(key);
+		}
+		return replaced;
+	}
+	
+	private static DBObject spillQuery(long obj_id, String atb_key) {
+		DBObject que = new BasicDBObject();
+		que.put("o", obj_id);
+		que.put("a", atb_key);
+		return que;
+	}
+	
+	@Override
+	public Object loadSpilledEntry(long obj_id, long atb_id, String key) {
+		DBCollection col = db.getCollection(COLLECT_NAME_SPILL);
+		DBObject que = spillQuery(obj_id, MUtility.stringID(atb_id));
+		que.put("k", key);
+		DBObject o = col.findOne(que, new BasicDBObject("v", true));
+		if (o == null)
+			return null;
+		return dbObjectToObject(o.get("v"));
+	}
+	
+	@Override
+	public DataDict loadSpilledEntries(long obj_id, long atb_id, String after, int limit) {
+		DBCollection col = db.getCollection(COLLECT_NAME_SPILL);
+		DBObject que = spillQuery(obj_id, MUtility.stringID(atb_id));
+		if (after != null)
+			que.put("k", new BasicDBObject("$gt", after));
+		DBObject fields = new BasicDBObject();
+		fields.put("k", true);
+		fields.put("v", true);
+		DBCursor cursor = col.find(que, fields).sort(new BasicDBObject("k", 1)).limit(limit);
+		DataDict dd = new DataDict();
+		try {
+			while (cursor.hasNext()) {
+				DBObject o = cursor.next();
+				dd.put((String) o.get("k"), dbObjectToObject(o.get("v")));
+			}
+		} finally {
+			cursor.close();
+		}
+		return dd;
+	}
+	
+	private static DBObject objectUpdate(ObjectDBInfo obj) {
+		DBObject o = new BasicDBObject();
+		DBObject d = new BasicDBObject();
+		DBObject push = new BasicDBObject();
+		DBObject pull = new BasicDBObject();
+		DBObject pop = new BasicDBObject();
 		Iterator<Entry<String, Object>> it = obj.values.entrySet().iterator();
 		while (it.hasNext()) {
 			Entry<String, Object> entry = it.next();
 			Object value = entry.getValue();
-			o.put("p" + entry.getKey(), objectToDBObject(value));
+			String key = "p" + entry.getKey();
+			if (value instanceof ListDelta) {
+				ListDelta delta = (ListDelta) value;
+				if (delta.appended != null) {
+					push.put(key, new BasicDBObject("$each", objectToDBObject(delta.appended)));
+				} else if (delta.sets != null) {
+					for (Entry<Integer, Object> set : delta.sets.entrySet())
+						o.put(key + "." + set.getKey(), objectToDBObject(set.getValue()));
+				} else if (delta.pulled != null) {
+					pull.put(key, objectToDBObject(delta.pulled));
+				} else if (delta.pop != 0) {
+					pop.put(key, delta.pop);
+				}
+				continue;
+			}
+			o.put(key, objectToDBObject(value));
 		}
 		it = obj.deleteKeys.entrySet().iterator();
 		while (it.hasNext()) {
@@ -621,7 +851,71 @@ public class MongoDBAdapter implements MDBAdapter {
 		DBObject set = new BasicDBObject();
 		set.put("$set", o);
 		set.put("$unset", d);
-		col.update(que, set);
+		if (!push.keySet().isEmpty())
+			set.put("$push", push);
+		if (!pull.keySet().isEmpty())
+			set.put("$pullAll", pull);
+		if (!pop.keySet().isEmpty())
+			set.put("$pop", pop);
+		return set;
+	}
+	
+	@Override
+	public void saveObjects(List<ObjectDBInfo> created, List<ObjectDBInfo> updated, List<ObjectDBInfo> deleted) {
+		DBCollection ecol = db.getCollection(COLLECT_NAME_ELEMENT);
+		// create : one insert of types, one insert per class
+		if (!created.isEmpty()) {
+			List<DBObject> types = new ArrayList<DBObject>(created.size());
+			Map<Long, List<DBObject>> docs = new LinkedHashMap<Long, List<DBObject>>();
+			for (ObjectDBInfo obj : created) {
+				DBObject t = new BasicDBObject();
+				t.put("_id", obj.id);
+				t.put("type", MElementType.Object.toString());
+				t.put("class", obj.class_id);
+				types.add(t);
+				DBObject o = new BasicDBObject();
+				o.put("_id", obj.id);
+				for (Entry<String, Object> entry : obj.values.entrySet())
+					o.put("p" + entry.getKey(), objectToDBObject(entry.getValue()));
+				List<DBObject> list = docs.get(obj.class_id);
+				if (list == null) {
+					list = new ArrayList<DBObject>();
+					docs.put(obj.class_id, list);
+				}
+				list.add(o);
+			}
+			ecol.insert(types);
+			for (Entry<Long, List<DBObject>> entry : docs.entrySet())
+				db.getCollection(classIDToString(entry.getKey())).insert(entry.getValue());
+			for (ObjectDBInfo obj : created)
+				writeSpilled(obj, true);
+		}
+		// update : the driver has no bulk update, one update per object
+		for (ObjectDBInfo obj : updated) {
+			DBCollection col = db.getCollection(classIDToString(obj.class_id));
+			BasicDBList replaced = writeSpilled(obj, false);
+			updateDocument(col, obj, replaced);
+		}
+		// delete : one remove per class, and one remove of types
+		if (!deleted.isEmpty()) {
+			BasicDBList ids = new BasicDBList();
+			Map<Long, BasicDBList> classes = new LinkedHashMap<Long, BasicDBList>();
+			for (ObjectDBInfo obj : deleted) {
+				ids.add(obj.id);
+				BasicDBList list = classes.get(obj.class_id);
+				if (list == null) {
+					list = new BasicDBList();
+					classes.put(obj.class_id, list);
+				}
+				list.add(obj.id);
+			}
+			for (Entry<Long, BasicDBList> entry : classes.entrySet()) {
+				DBCollection col = db.getCollection(classIDToString(entry.getKey()));
+				col.remove(new BasicDBObject("_id", new BasicDBObject("$in", entry.getValue())));
+			}
+			ecol.remove(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+			db.getCollection(COLLECT_NAME_SPILL).remove(new BasicDBObject("o", new BasicDBObject("$in", ids)));
+		}
 	}
 	
 	@Override
@@ -636,6 +930,7 @@ public class MongoDBAdapter implements MDBAdapter {
 		
 		col.remove(que);
 		ecol.remove(que);
+		db.getCollection(COLLECT_NAME_SPILL).remove(new BasicDBObject("o", obj.id));
 	}
 
 	@Override
@@ -794,6 +1089,8 @@ public class MongoDBAdapter implements MDBAdapter {
 	final static String KEY_DICT = "dict";
 	final static String KEY_LIST = "list";
 	final static String KEY_SET = "set";
+	final static String KEY_SPILL = "spill";
+	final static String KEY_PACKED = "packed";
 	final static String KEY_OBJECT = "o";
 	final static String KEY_SYMBOL = "s";
 	final static String KEY_REF = "r";
@@ -816,6 +1113,10 @@ public class MongoDBAdapter implements MDBAdapter {
 			value = dataListToDBObject((DataList) value);
 		} else if (value instanceof DataSet) {
 			value = dataSetToDBObject((DataSet) value);
+		} else if (value instanceof SpilledCollection) {
+			value = spilledToDBObject((SpilledCollection) value);
+		} else if (value instanceof DataPacked) {
+			value = packedToDBObject((DataPacked) value);
 		} else if (value instanceof MBinary) {
 			value = new Binary(((MBinary) value).getData());
 		} else if (value instanceof MRef) {
@@ -840,6 +1141,10 @@ public class MongoDBAdapter implements MDBAdapter {
 				return dbObjectToDataList(dbo);
 			} else if (dbo.containsField(KEY_SET)) {
 				return dbObjectToDataSet(dbo);
+			} else if (dbo.containsField(KEY_SPILL)) {
+				return dbObjectToSpilled(dbo);
+			} else if (dbo.containsField(KEY_PACKED)) {
+				return dbObjectToPacked(dbo);
 			} else if (dbo.containsField(KEY_REF)) {
 				return dbObjectToRef(dbo);
 			} else if (dbo.containsField(KEY_CODE)) {
@@ -936,6 +1241,47 @@ public class MongoDBAdapter implements MDBAdapter {
 		return ds;
 	}
 	
+	/**
+	 * Convert a large collection to the marker stored in object. The entries are
+	 * written apart by <code>writeSpilled()</code>.
+	 * @param sc Large collection
+	 * @return DBObject
+	 */
+	private static DBObject spilledToDBObject(SpilledCollection sc) {
+		DBObject obj = new BasicDBObject();
+		obj.put(KEY_SPILL, sc.kind.toString());
+		obj.put("size", sc.size);
+		return obj;
+	}
+	
+	private static SpilledCollection dbObjectToSpilled(DBObject obj) {
+		SpilledCollection sc = new SpilledCollection();
+		sc.kind = MCollection.Factory.valueOf((String) obj.get(KEY_SPILL));
+		sc.size = ((Number) obj.get("size")).intValue();
+		return sc;
+	}
+	
+	/**
+	 * Convert a packed collection to <code>DBObject</code>, the numbers are stored
+	 * as a binary.
+	 * @param dp Packed collection
+	 * @return DBObject
+	 */
+	private static DBObject packedToDBObject(DataPacked dp) {
+		DBObject obj = new BasicDBObject();
+		obj.put(KEY_PACKED, dp.kind.toString());
+		obj.put("data", new Binary(dp.data));
+		return obj;
+	}
+	
+	private static DataPacked dbObjectToPacked(DBObject obj) {
+		MCollection.Factory kind = MCollection.Factory.valueOf((String) obj.get(KEY_PACKED));
+		Object data = obj.get("data");
+		if (data instanceof Binary)
+			return new DataPacked(kind, ((Binary) data).getData());
+		return new DataPacked(kind, (byte[]) data);
+	}
+	
 	private static DBObject elementPtToDBObject(MElementPointer pt) {
 		DBObject obj = new BasicDBObject();
 		String key;
@@ -1029,6 +1375,18 @@ public class MongoDBAdapter implements MDBAdapter {
 //		DBCollection eleCol = db.getCollection(COLLECT_NAME_ELEMENT);
 //		eleCol.ensureIndex("type");
 		
+		// for finding the objects of several classes at once
+		DBCollection eleCol = db.getCollection(COLLECT_NAME_ELEMENT);
+		eleCol.ensureIndex(new BasicDBObject("class", 1));
+		
+		// for reading the entries of large collections by key and in pages
+		DBCollection spillCol = db.getCollection(COLLECT_NAME_SPILL);
+		DBObject spillIndex = new BasicDBObject();
+		spillIndex.put("o", 1);
+		spillIndex.put("a", 1);
+		spillIndex.put("k", 1);
+		spillCol.ensureIndex(spillIndex, new BasicDBObject("unique", true));
+		
 	}
 
 	@Override
@@ -1076,10 +1434,71 @@ public class MongoDBAdapter implements MDBAdapter {
 		return listIDs(classIDToString(id));
 	}
 	
+	@Override
+	public IDCursor findObjectIDs(long[] classIDs) {
+		DBObject projection = new BasicDBObject().append("_id", true);
+		DBCursor cursor;
+		if (classIDs.length == 1) {
+			DBCollection col = db.getCollection(classIDToString(classIDs[0]));
+			cursor = col.find(new BasicDBObject(), projection);
+		} else {
+			// the element collection records the class of every object
+			DBCollection ecol = db.getCollection(COLLECT_NAME_ELEMENT);
+			BasicDBList ids = new BasicDBList();
+			for (long id : classIDs)
+				ids.add(id);
+			DBObject query = new BasicDBObject("class", new BasicDBObject("$in", ids));
+			cursor = ecol.find(query, projection);
+		}
+		cursor.batchSize(CURSOR_BATCH_SIZE);
+		return new MongoIDCursor(cursor);
+	}
+	
+	private static class MongoIDCursor implements IDCursor {
+		
+		private final DBCursor cursor;
+		private boolean closed = false;
+		
+		MongoIDCursor(DBCursor cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (closed)
+				return false;
+			if (cursor.hasNext())
+				return true;
+			close();
+			return false;
+		}
+
+		@Override
+		public Long next() {
+			DBObject o = cursor.next();
+			return (Long) o.get("_id");
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				cursor.close();
+			}
+		}
+		
+	}
+	
 	@Override
 	public void deleteAllObjects(long classID) {
 		DBCollection col = db.getCollection(classIDToString(classID));
 		col.drop();
+		db.getCollection(COLLECT_NAME_SPILL).remove(new BasicDBObject("c", classID));
 	}
 	
 	private IDList listIDs(String collectionName) {
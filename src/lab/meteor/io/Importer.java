@@ -3,16 +3,17 @@ package lab.meteor.io;
 import java.util.ArrayList;
 import java.util.List;
 
+import lab.meteor.core.MExecutionService;
+
 public abstract class Importer<T> {
 	
 	public void doImport(final T data) {
-		Thread t = new Thread() {
+		MExecutionService.getDefault().submit(MExecutionService.Kind.Import, new Runnable() {
 			@Override
 			public void run() {
 				importData(data);
 			}
-		};
-		t.start();
+		});
 	}
 	
 	protected abstract void importData(T data);
@@ -26,20 +26,12 @@ public class StringIndexer {
 		MProperty p = clazz.getProperty(property);
 		if (p.getType() != MPrimitiveType.String)
 			return; // TODO
-		Iterator<MObject> it = clazz.objectsIterator();
+		Iterator<MObject> it = clazz.objectsIterator(true);
 		while (it.hasNext()) {
 			MObject obj = it.next();
 			Object o = obj.get(property);
 			map.put((String) o, obj);
 		}
-		for (MClass cls : clazz.getSubClasses()) {
-			it = cls.objectsIterator();
-			while (it.hasNext()) {
-				MObject obj = it.next();
-				Object o = obj.get(property);
-				map.put((String) o, obj);
-			}
-		}
 	}
 	
 	public MObject find(String key) {
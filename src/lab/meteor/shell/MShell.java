@@ -21,7 +21,7 @@ import lab.meteor.core.MDataType;
 public class MShell {
 	
 	final MDatabase db = MDatabase.getDB();
-	MPackage currentPkg = MPackage.DEFAULT_PACKAGE;
+	MPackage currentPkg = db.getDefaultPackage();
 	
 	List<IShellListener> listeners = new LinkedList<IShellListener>();
 	
@@ -732,7 +732,7 @@ public class MShell {
 		if (name == null)
 			throw new MShellException("invalid name.");
 		if (name.equals("")) {
-			if (this.currentPkg == MPackage.DEFAULT_PACKAGE)
+			if (this.currentPkg == db.getDefaultPackage())
 				return;
 			this.currentPkg = this.currentPkg.getPackage();
 		} else {
@@ -1,8 +1,8 @@
 package lab.meteor.visualize.shell;
 
-import lab.meteor.core.script.IScriptListener;
+import lab.meteor.core.script.IProfileScriptListener;
 import lab.meteor.shell.IShellListener;
 
-public interface IPrinter extends IShellListener, IScriptListener {
+public interface IPrinter extends IShellListener, IProfileScriptListener {
 
 }
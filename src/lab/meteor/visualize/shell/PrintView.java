@@ -2,6 +2,7 @@ package lab.meteor.visualize.shell;
 
 import java.awt.Color;
 
+import lab.meteor.core.script.MScriptProfile;
 import lab.meteor.visualize.resource.Resources;
 import co.gongzh.snail.View;
 import co.gongzh.snail.text.TextView;
@@ -41,4 +42,9 @@ public class PrintView extends View implements IPrinter {
 	public void printError(String message) {
 		textView.getText().append(message, Resources.FONT_CMD_PRINT, Color.red);
 	}
+
+	@Override
+	public void profiled(MScriptProfile profile) {
+		print(profile.toString());
+	}
 }
@@ -81,6 +81,20 @@ public class ScriptView extends View {
 				};
 				EventQueue.invokeLater(r);
 			};
+			
+			@Override
+			protected void canceled() {
+				Runnable r = new Runnable() {
+
+					@Override
+					public void run() {
+						titleBarView.setBackgroundColor(Resources.COLOR_WARNING_BG);
+						titleBarView.setText("Canceled");
+						titleBarView.setTextColor(Resources.COLOR_WARNING_TEXT);
+					}
+				};
+				EventQueue.invokeLater(r);
+			}
 		};
 		
 		setBackgroundColor(null);
@@ -151,9 +165,27 @@ public class ScriptView extends View {
 		super.setSize(width, height);
 	}
 	
+	/**
+	 * Set the console, which prints the errors and the reports of profiling.
+	 * @param printer the console.
+	 */
+	public void setPrinter(IPrinter printer) {
+		task.setListener(printer);
+	}
+	
+	/**
+	 * Turn profiling of scripts on or off.
+	 * @param profiling whether the scripts are profiled.
+	 */
+	public void setProfiling(boolean profiling) {
+		task.setProfiling(profiling);
+	}
+	
 	void run() {
-		if (task.isRunning())
+		if (task.isRunning()) {
+			task.cancel();
 			return;
+		}
 		task.setCode(textView.getPlainText());
 		task.execute();
 	}